@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Blocking facade over {@link LeaderElection} and {@link NodeReader}.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * BlockingRecipes recipes = <span style="color: purple; font-weight: bold;">new</span> BlockingRecipes(zooKeeper);
+ *
+ * <span style="color: darkgreen;">// Read a znode. Wait for it to be created if it does not exist.</span>
+ * Stat stat = <span style="color: purple; font-weight: bold;">new</span> Stat();
+ * <span style="color: purple; font-weight: bold;">byte</span>[] data = recipes.{@link #read(String, Stat, long, TimeUnit)
+ * read}(<span style="color: mediumblue;">"/config"</span>, stat, 10, TimeUnit.SECONDS);
+ *
+ * <span style="color: darkgreen;">// Wait for the znode to be changed.</span>
+ * data = recipes.{@link #awaitChange(String, int, Stat, long, TimeUnit)
+ * awaitChange}(<span style="color: mediumblue;">"/config"</span>, stat.getVersion(), stat, 1, TimeUnit.HOURS);
+ *
+ * <span style="color: darkgreen;">// Wait to be the leader.</span>
+ * LeaderElection election = <span style="color: purple; font-weight: bold;">new</span> LeaderElection(zooKeeper).start();
+ * <span style="color: purple; font-weight: bold;">if</span> (recipes.{@link #awaitLeadership(LeaderElection, long, TimeUnit)
+ * awaitLeadership}(election, 30, TimeUnit.SECONDS)) {
+ *     ......
+ * }
+ * </pre>
+ *
+ * <p>
+ * The methods of this class start the asynchronous recipes and park the
+ * calling thread on a {@link CountDownLatch} until the recipes complete.
+ * No {@code synchronized} block or {@link Object#wait()} is used around
+ * the waits. Waiting threads hold no resources other than a latch and a
+ * {@link NodeReader}, and readers of the same path share one watch (see
+ * {@link NodeReader}), so many threads can wait at the same time.
+ * </p>
+ *
+ * @since 1.3
+ */
+public class BlockingRecipes
+{
+    private ZooKeeper mZooKeeper;
+    private PayloadCodec mCodec;
+
+
+    public BlockingRecipes()
+    {
+    }
+
+
+    public BlockingRecipes(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+    }
+
+
+    /**
+     * Get the {@link ZooKeeper} instance to read znodes.
+     *
+     * @return
+     *         The {@link ZooKeeper} instance.
+     */
+    public ZooKeeper getZooKeeper()
+    {
+        return mZooKeeper;
+    }
+
+
+    /**
+     * Set the {@link ZooKeeper} instance to read znodes.
+     *
+     * @param zooKeeper
+     *         A {@link ZooKeeper} instance.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public BlockingRecipes setZooKeeper(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+
+        return this;
+    }
+
+
+    /**
+     * Get the codec to decode the content of znodes.
+     *
+     * @return
+     *         The codec. {@code null} if no codec is set.
+     */
+    public PayloadCodec getCodec()
+    {
+        return mCodec;
+    }
+
+
+    /**
+     * Set a codec to decode the content of znodes.
+     *
+     * @param codec
+     *         A codec. {@code null} not to decode the content.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @see NodeReader#setCodec(PayloadCodec)
+     */
+    public BlockingRecipes setCodec(PayloadCodec codec)
+    {
+        mCodec = codec;
+
+        return this;
+    }
+
+
+    /**
+     * Read a znode. If the znode does not exist, this method waits
+     * for it to be created.
+     *
+     * @param path
+     *         The path of the znode.
+     *
+     * @param stat
+     *         A {@link Stat} instance to receive statistics of the znode.
+     *         May be {@code null}.
+     *
+     * @param timeout
+     *         The maximum time to wait.
+     *
+     * @param unit
+     *         The unit of {@code timeout}.
+     *
+     * @return
+     *         The content of the znode.
+     *
+     * @throws InterruptedException
+     *         Interrupted while waiting.
+     *
+     * @throws TimeoutException
+     *         The znode was not read within the timeout.
+     *
+     * @throws IllegalStateException
+     *         <ul>
+     *           <li>No {@link ZooKeeper} instance is set.
+     *           <li>Gave up reading the znode. See {@link
+     *               NodeReader.Listener#onGaveUp(NodeReader)}.
+     *         </ul>
+     */
+    public byte[] read(String path, Stat stat, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException
+    {
+        return await(path, false, -1, stat, timeout, unit);
+    }
+
+
+    /**
+     * Wait for a znode to be changed. This method returns the content
+     * of the znode when its version differs from {@code sinceVersion}.
+     * If the znode does not exist, this method waits for it to be created.
+     *
+     * @param path
+     *         The path of the znode.
+     *
+     * @param sinceVersion
+     *         The version of the znode which the caller already knows.
+     *         -1 to return the current content as soon as it is read.
+     *
+     * @param stat
+     *         A {@link Stat} instance to receive statistics of the znode.
+     *         May be {@code null}.
+     *
+     * @param timeout
+     *         The maximum time to wait.
+     *
+     * @param unit
+     *         The unit of {@code timeout}.
+     *
+     * @return
+     *         The content of the znode.
+     *
+     * @throws InterruptedException
+     *         Interrupted while waiting.
+     *
+     * @throws TimeoutException
+     *         The znode was not changed within the timeout.
+     *
+     * @throws IllegalStateException
+     *         <ul>
+     *           <li>No {@link ZooKeeper} instance is set.
+     *           <li>Gave up reading the znode. See {@link
+     *               NodeReader.Listener#onGaveUp(NodeReader)}.
+     *         </ul>
+     */
+    public byte[] awaitChange(String path, int sinceVersion, Stat stat, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException
+    {
+        return await(path, true, sinceVersion, stat, timeout, unit);
+    }
+
+
+    /**
+     * Wait for a {@link LeaderElection} to become the leader. The
+     * leader election must have been started by the caller.
+     *
+     * @param election
+     *         A {@link LeaderElection} instance.
+     *
+     * @param timeout
+     *         The maximum time to wait.
+     *
+     * @param unit
+     *         The unit of {@code timeout}.
+     *
+     * @return
+     *         {@code true} if the state of the {@code LeaderElection}
+     *         is {@link LeaderElection.State#LEADER LEADER}. {@code false}
+     *         if it did not become the leader within the timeout or if it
+     *         has finished.
+     *
+     * @throws InterruptedException
+     *         Interrupted while waiting.
+     */
+    public boolean awaitLeadership(LeaderElection election, long timeout, TimeUnit unit) throws InterruptedException
+    {
+        LeadershipWaiter waiter = new LeadershipWaiter();
+
+        // Register the waiter before checking the state so that
+        // a state change between them is not missed.
+        election.addObserver(waiter);
+
+        try
+        {
+            if (isSettled(election.getState()) == false)
+            {
+                waiter.mLatch.await(timeout, unit);
+            }
+
+            return election.getState() == LeaderElection.State.LEADER;
+        }
+        finally
+        {
+            election.removeObserver(waiter);
+        }
+    }
+
+
+    private byte[] await(String path, boolean watching, int sinceVersion, Stat stat, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException
+    {
+        if (mZooKeeper == null)
+        {
+            throw new IllegalStateException("A ZooKeeper instance must be set.");
+        }
+
+        ReadWaiter waiter = new ReadWaiter(sinceVersion);
+
+        NodeReader reader = new NodeReader()
+            .setZooKeeper(mZooKeeper)
+            .setPath(path)
+            .setCodec(mCodec)
+            .setWatching(watching)
+            .setListener(waiter)
+            .start();
+
+        boolean done;
+
+        try
+        {
+            done = waiter.mLatch.await(timeout, unit);
+        }
+        finally
+        {
+            // Stop reading and watching.
+            reader.finish();
+        }
+
+        if (done == false)
+        {
+            throw new TimeoutException("Timed out waiting for the znode: " + path);
+        }
+
+        if (waiter.mStat == null)
+        {
+            throw new IllegalStateException("Gave up reading the znode: " + path);
+        }
+
+        if (stat != null)
+        {
+            copyStat(waiter.mStat, stat);
+        }
+
+        return waiter.mData;
+    }
+
+
+    private static boolean isSettled(LeaderElection.State state)
+    {
+        return state == LeaderElection.State.LEADER || state == LeaderElection.State.DONE;
+    }
+
+
+    private static void copyStat(Stat from, Stat to)
+    {
+        to.setCzxid(from.getCzxid());
+        to.setMzxid(from.getMzxid());
+        to.setCtime(from.getCtime());
+        to.setMtime(from.getMtime());
+        to.setVersion(from.getVersion());
+        to.setCversion(from.getCversion());
+        to.setAversion(from.getAversion());
+        to.setEphemeralOwner(from.getEphemeralOwner());
+        to.setDataLength(from.getDataLength());
+        to.setNumChildren(from.getNumChildren());
+        to.setPzxid(from.getPzxid());
+    }
+
+
+    private static class ReadWaiter extends NodeReader.Adapter
+    {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private final int mSinceVersion;
+        private volatile byte[] mData;
+        private volatile Stat mStat;
+
+
+        public ReadWaiter(int sinceVersion)
+        {
+            mSinceVersion = sinceVersion;
+        }
+
+
+        @Override
+        public void onRead(NodeReader reader, byte[] data, Stat stat)
+        {
+            if (stat.getVersion() == mSinceVersion || mLatch.getCount() == 0)
+            {
+                // Not changed yet, or already done.
+                return;
+            }
+
+            // mStat must be set last because it is used as a flag.
+            mData = data;
+            mStat = stat;
+            mLatch.countDown();
+        }
+
+
+        @Override
+        public void onGaveUp(NodeReader reader)
+        {
+            mLatch.countDown();
+        }
+    }
+
+
+    private static class LeadershipWaiter extends LeaderElection.Adapter
+    {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+
+
+        @Override
+        public void onStateChanged(LeaderElection election, LeaderElection.State oldState, LeaderElection.State newState)
+        {
+            if (isSettled(newState))
+            {
+                mLatch.countDown();
+            }
+        }
+    }
+}
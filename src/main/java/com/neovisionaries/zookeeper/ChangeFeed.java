@@ -0,0 +1,490 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Publisher of successive values with demand-driven flow control.
+ *
+ * <p>
+ * The interfaces {@link Subscriber} and {@link Subscription} have the
+ * same methods as the ones of {@code java.util.concurrent.Flow} and
+ * Reactive Streams, so they can be bridged to those APIs by thin
+ * adapters without adding a dependency to this library.
+ * </p>
+ *
+ * <p>
+ * Each subscriber receives values only as many as it has requested
+ * by {@link Subscription#request(long)}. While a subscriber has no
+ * outstanding demand, only the latest value is kept for it and older
+ * ones are discarded ("latest value wins"), so a slow subscriber never
+ * makes values pile up. A new subscriber receives the latest value
+ * first. Any number of subscribers can subscribe to a feed.
+ * </p>
+ *
+ * <p>
+ * Signals to a subscriber are never concurrent. By default, they are
+ * delivered on the thread which has published a value (e.g. the event
+ * thread of a {@link org.apache.zookeeper.ZooKeeper ZooKeeper}
+ * instance) or the thread which has called {@code request()}. If
+ * subscribers may block, set an {@link #setExecutor(Executor) executor}.
+ * </p>
+ *
+ * @param <T>
+ *         The type of values.
+ *
+ * @since 1.3
+ *
+ * @see NodeChangeFeed
+ * @see LeaderStateFeed
+ */
+public abstract class ChangeFeed<T>
+{
+    /**
+     * Receiver of values. The same as {@code Flow.Subscriber}.
+     *
+     * @param <T>
+     *         The type of values.
+     */
+    public interface Subscriber<T>
+    {
+        /**
+         * Called first with a subscription to request values.
+         *
+         * @param subscription
+         *         The subscription.
+         */
+        void onSubscribe(Subscription subscription);
+
+
+        /**
+         * Called with a value which has been requested.
+         *
+         * @param item
+         *         The value.
+         */
+        void onNext(T item);
+
+
+        /**
+         * Called when the feed has failed. No other method is called
+         * after this.
+         *
+         * @param throwable
+         *         The cause.
+         */
+        void onError(Throwable throwable);
+
+
+        /**
+         * Called when the feed has finished. No other method is called
+         * after this.
+         */
+        void onComplete();
+    }
+
+
+    /**
+     * Link between a feed and a subscriber. The same as
+     * {@code Flow.Subscription}.
+     */
+    public interface Subscription
+    {
+        /**
+         * Request values.
+         *
+         * @param n
+         *         The number of values to add to the demand. Must be
+         *         positive. {@code Long.MAX_VALUE} means unbounded.
+         */
+        void request(long n);
+
+
+        /**
+         * Stop receiving values.
+         */
+        void cancel();
+    }
+
+
+    private final List<Channel> mChannels = new CopyOnWriteArrayList<Channel>();
+    private Executor mExecutor;
+
+    // Guarded by this.
+    private T mLatest;
+    private boolean mDone;
+    private Throwable mError;
+
+
+    /**
+     * Get the executor on which signals are delivered to subscribers.
+     *
+     * @return
+     *         The executor. {@code null} if signals are delivered on
+     *         the calling threads.
+     */
+    public Executor getExecutor()
+    {
+        return mExecutor;
+    }
+
+
+    /**
+     * Set an executor on which signals are delivered to subscribers.
+     * This method should be called before the first subscription.
+     *
+     * @param executor
+     *         An executor. {@code null} to deliver signals on the calling
+     *         threads (default).
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ChangeFeed<T> setExecutor(Executor executor)
+    {
+        mExecutor = executor;
+
+        return this;
+    }
+
+
+    /**
+     * Get the latest value published so far.
+     *
+     * @return
+     *         The latest value. {@code null} if no value has been
+     *         published yet.
+     */
+    public synchronized T getLatest()
+    {
+        return mLatest;
+    }
+
+
+    /**
+     * Get the number of active subscribers.
+     *
+     * @return
+     *         The number of active subscribers.
+     */
+    public int getSubscriberCount()
+    {
+        return mChannels.size();
+    }
+
+
+    /**
+     * Subscribe to this feed. If the feed has already finished, the
+     * subscriber receives {@code onComplete()} or {@code onError()}
+     * right after {@code onSubscribe()}.
+     *
+     * @param subscriber
+     *         A subscriber.
+     *
+     * @throws NullPointerException
+     *         {@code subscriber} is {@code null}.
+     */
+    public void subscribe(Subscriber<? super T> subscriber)
+    {
+        if (subscriber == null)
+        {
+            throw new NullPointerException("subscriber is null.");
+        }
+
+        Channel channel = new Channel(subscriber);
+
+        subscriber.onSubscribe(channel);
+
+        synchronized (this)
+        {
+            if (mLatest != null)
+            {
+                channel.mPending.set(mLatest);
+            }
+
+            if (mDone)
+            {
+                channel.terminate(mError);
+            }
+            else
+            {
+                mChannels.add(channel);
+            }
+        }
+
+        channel.schedule();
+    }
+
+
+    /**
+     * Publish a value to all the subscribers.
+     */
+    protected void publish(T value)
+    {
+        synchronized (this)
+        {
+            if (mDone)
+            {
+                return;
+            }
+
+            mLatest = value;
+
+            // Replace a value which has not been delivered yet.
+            for (Channel channel : mChannels)
+            {
+                channel.mPending.set(value);
+            }
+        }
+
+        scheduleAll();
+    }
+
+
+    /**
+     * Finish this feed normally. Subscribers receive {@code onComplete()}
+     * after the pending value if they have demand for it; otherwise the
+     * pending value is discarded.
+     */
+    protected void complete()
+    {
+        terminate(null);
+    }
+
+
+    /**
+     * Finish this feed with an error.
+     */
+    protected void fail(Throwable error)
+    {
+        terminate(error);
+    }
+
+
+    private void terminate(Throwable error)
+    {
+        synchronized (this)
+        {
+            if (mDone)
+            {
+                return;
+            }
+
+            mDone  = true;
+            mError = error;
+
+            for (Channel channel : mChannels)
+            {
+                channel.terminate(error);
+            }
+        }
+
+        scheduleAll();
+    }
+
+
+    private void scheduleAll()
+    {
+        for (Channel channel : mChannels)
+        {
+            channel.schedule();
+        }
+    }
+
+
+    private class Channel implements Subscription, Runnable
+    {
+        private final Subscriber<? super T> mSubscriber;
+        private final AtomicReference<T> mPending = new AtomicReference<T>();
+        private final AtomicLong mRequested = new AtomicLong();
+        private final AtomicInteger mWorkCount = new AtomicInteger();
+        private volatile boolean mCancelled;
+        private volatile boolean mTerminated;
+        private volatile Throwable mError;
+
+
+        public Channel(Subscriber<? super T> subscriber)
+        {
+            mSubscriber = subscriber;
+        }
+
+
+        @Override
+        public void request(long n)
+        {
+            if (n <= 0)
+            {
+                terminate(new IllegalArgumentException("The number of requested values must be positive."));
+                schedule();
+                return;
+            }
+
+            while (true)
+            {
+                long current = mRequested.get();
+                long next    = current + n;
+
+                if (next < 0)
+                {
+                    // Overflow. Regard as unbounded.
+                    next = Long.MAX_VALUE;
+                }
+
+                if (mRequested.compareAndSet(current, next))
+                {
+                    break;
+                }
+            }
+
+            schedule();
+        }
+
+
+        @Override
+        public void cancel()
+        {
+            mCancelled = true;
+            mChannels.remove(this);
+        }
+
+
+        private void terminate(Throwable error)
+        {
+            if (mTerminated == false)
+            {
+                // mTerminated must be set last because it is used as a flag.
+                mError      = error;
+                mTerminated = true;
+            }
+        }
+
+
+        private void schedule()
+        {
+            // Only the thread which increments the count from zero
+            // delivers signals. Others just let it loop again.
+            if (mWorkCount.getAndIncrement() != 0)
+            {
+                return;
+            }
+
+            Executor executor = mExecutor;
+
+            if (executor == null)
+            {
+                run();
+                return;
+            }
+
+            try
+            {
+                executor.execute(this);
+            }
+            catch (RejectedExecutionException e)
+            {
+                // The executor has been shut down, e.g. after the feed
+                // completed. Deliver signals on this thread.
+                run();
+            }
+        }
+
+
+        @Override
+        public void run()
+        {
+            int missed = 1;
+
+            while (true)
+            {
+                drain();
+
+                missed = mWorkCount.addAndGet(-missed);
+
+                if (missed == 0)
+                {
+                    return;
+                }
+            }
+        }
+
+
+        private void drain()
+        {
+            while (mCancelled == false && 0 < mRequested.get())
+            {
+                T value = mPending.getAndSet(null);
+
+                if (value == null)
+                {
+                    break;
+                }
+
+                if (mRequested.get() != Long.MAX_VALUE)
+                {
+                    mRequested.decrementAndGet();
+                }
+
+                try
+                {
+                    mSubscriber.onNext(value);
+                }
+                catch (RuntimeException e)
+                {
+                    // A broken subscriber.
+                    cancel();
+                }
+            }
+
+            if (mCancelled || mTerminated == false)
+            {
+                return;
+            }
+
+            // Deliver the pending value first if it has been requested.
+            if (mPending.get() != null && 0 < mRequested.get())
+            {
+                return;
+            }
+
+            cancel();
+
+            try
+            {
+                if (mError != null)
+                {
+                    mSubscriber.onError(mError);
+                }
+                else
+                {
+                    mSubscriber.onComplete();
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // Ignore.
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+
+/**
+ * Manifest of a chunked value. The manifest is the content of the
+ * znode of a chunked value and describes the chunk znodes that are
+ * children of the znode.
+ *
+ * <p>
+ * The name of a chunk znode is
+ * <code>chunk-<i>{version}</i>-<i>{token}</i>-<i>{index}</i></code>.
+ * The token is a random number chosen by each writer so that chunks
+ * written by concurrent writers never collide.
+ * </p>
+ *
+ * @see ChunkedValueWriter
+ * @see ChunkedValueReader
+ */
+final class ChunkManifest
+{
+    private static final int MAGIC = 0x4E56434D;   // "NVCM"
+    private static final int FORMAT = 1;
+    private static final String CHUNK_PREFIX = "chunk-";
+
+
+    private final long mVersion;
+    private final long mToken;
+    private final long mLength;
+    private final int mChunkSize;
+    private final int mChunkCount;
+    private final int mChecksum;
+
+
+    ChunkManifest(long version, long token, long length, int chunkSize, int chunkCount, int checksum)
+    {
+        mVersion    = version;
+        mToken      = token;
+        mLength     = length;
+        mChunkSize  = chunkSize;
+        mChunkCount = chunkCount;
+        mChecksum   = checksum;
+    }
+
+
+    static ChunkManifest empty()
+    {
+        return new ChunkManifest(0, 0, 0, 0, 0, 0);
+    }
+
+
+    long getVersion()
+    {
+        return mVersion;
+    }
+
+
+    long getToken()
+    {
+        return mToken;
+    }
+
+
+    long getLength()
+    {
+        return mLength;
+    }
+
+
+    int getChunkSize()
+    {
+        return mChunkSize;
+    }
+
+
+    int getChunkCount()
+    {
+        return mChunkCount;
+    }
+
+
+    int getChecksum()
+    {
+        return mChecksum;
+    }
+
+
+    String getChunkPath(String path, int index)
+    {
+        return path + "/" + getChunkName(mVersion, mToken, index);
+    }
+
+
+    static String getChunkName(long version, long token, int index)
+    {
+        return CHUNK_PREFIX + version + "-" + token + "-" + index;
+    }
+
+
+    /**
+     * Extract the version from the name of a chunk znode.
+     *
+     * @return
+     *         The version, or -1 if the name is not a chunk name.
+     */
+    static long parseChunkVersion(String name)
+    {
+        long[] parsed = parseChunkName(name);
+
+        return (parsed == null) ? -1 : parsed[0];
+    }
+
+
+    /**
+     * Extract the token from the name of a chunk znode.
+     *
+     * @return
+     *         The token, or 0 if the name is not a chunk name.
+     */
+    static long parseChunkToken(String name)
+    {
+        long[] parsed = parseChunkName(name);
+
+        return (parsed == null) ? 0 : parsed[1];
+    }
+
+
+    private static long[] parseChunkName(String name)
+    {
+        if (name.startsWith(CHUNK_PREFIX) == false)
+        {
+            return null;
+        }
+
+        String[] elements = name.substring(CHUNK_PREFIX.length()).split("-");
+
+        if (elements.length != 3)
+        {
+            return null;
+        }
+
+        try
+        {
+            return new long[] {
+                Long.parseLong(elements[0]), Long.parseLong(elements[1]) };
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+
+    byte[] encode()
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(48);
+        DataOutputStream out = new DataOutputStream(baos);
+
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(mVersion);
+            out.writeLong(mToken);
+            out.writeLong(mLength);
+            out.writeInt(mChunkSize);
+            out.writeInt(mChunkCount);
+            out.writeInt(mChecksum);
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            // This never happens.
+        }
+
+        return baos.toByteArray();
+    }
+
+
+    /**
+     * Decode a manifest.
+     *
+     * @return
+     *         The decoded manifest. If {@code data} is {@code null}
+     *         or empty, a manifest of version 0 which has no chunk.
+     *
+     * @throws IllegalArgumentException
+     *         The data is not a manifest.
+     */
+    static ChunkManifest decode(byte[] data)
+    {
+        if (data == null || data.length == 0)
+        {
+            return empty();
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+        try
+        {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT)
+            {
+                throw new IllegalArgumentException("The data is not a manifest of a chunked value.");
+            }
+
+            return new ChunkManifest(
+                in.readLong(), in.readLong(), in.readLong(),
+                in.readInt(), in.readInt(), in.readInt());
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("The manifest of a chunked value is truncated.");
+        }
+    }
+}
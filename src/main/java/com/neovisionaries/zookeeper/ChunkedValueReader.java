@@ -0,0 +1,601 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Reader of a value written by {@link ChunkedValueWriter}.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * <span style="color: darkgreen;">// Read a large value.</span>
+ * InputStream in = <span style="color: purple; font-weight: bold;">new</span> ChunkedValueReader()
+ *     .{@link #setZooKeeper(ZooKeeper) setZooKeeper}(zooKeeper)
+ *     .{@link #setPath(String) setPath}(<span style="color: mediumblue;">"/routing-table"</span>)
+ *     .{@link #openStream()};
+ * </pre>
+ *
+ * <p>
+ * The manifest in the target znode is read first, and then chunks listed
+ * in the manifest are read in parallel. At most {@link #setWindow(int)
+ * window} chunks are read ahead, so memory used during reading is bounded
+ * by {@code window} &times; chunk size. Chunks are read in the same way as
+ * {@link NodeReader} does, i.e. by asynchronous {@link
+ * ZooKeeper#getData(String, boolean, DataCallback, Object) getData()}
+ * which is retried on transient errors.
+ * </p>
+ *
+ * <p>
+ * If the version being read is deleted by writers before reading finishes,
+ * the stream throws an {@code IOException} instead of returning data of
+ * another version. The checksum of the whole value is validated at the
+ * end of the stream. To be notified of new versions, use a {@link
+ * NodeReader} which reads the target znode.
+ * </p>
+ *
+ * <p>
+ * Note that the methods which block must not be called on the event
+ * thread of the {@link ZooKeeper} instance, e.g. in a ZooKeeper callback
+ * or a listener of {@link NodeReader}, because the results of reading
+ * chunks are delivered on the thread.
+ * </p>
+ *
+ * @since 1.3
+ *
+ * @see ChunkedValueWriter
+ */
+public class ChunkedValueReader
+{
+    private static final int DEFAULT_WINDOW = 4;
+
+
+    /**
+     * Stream to read a chunked value.
+     */
+    public static class ValueInputStream extends InputStream
+    {
+        private final ZooKeeper mZooKeeper;
+        private final String mPath;
+        private final ChunkManifest mManifest;
+        private final int mWindow;
+        private final byte[][] mSlots;
+        private final DataCallback mChunkCallback = new ChunkCallback();
+        private final CRC32 mCrc = new CRC32();
+        private int mIndex;
+        private byte[] mChunk;
+        private int mOffset;
+        private long mPosition;
+        private String mError;
+        private boolean mClosed;
+
+
+        ValueInputStream(ZooKeeper zooKeeper, String path, ChunkManifest manifest, int window)
+        {
+            mZooKeeper = zooKeeper;
+            mPath      = path;
+            mManifest  = manifest;
+            mWindow    = window;
+            mSlots     = new byte[window][];
+
+            // Read ahead as many chunks as the window allows.
+            for (int i = 0; i < window && i < manifest.getChunkCount(); ++i)
+            {
+                readChunk(i);
+            }
+        }
+
+
+        /**
+         * Get the version of the value which this stream reads.
+         *
+         * @return
+         *         The version of the value.
+         */
+        public long getVersion()
+        {
+            return mManifest.getVersion();
+        }
+
+
+        /**
+         * Get the length of the value which this stream reads.
+         *
+         * @return
+         *         The length of the value in bytes.
+         */
+        public long getLength()
+        {
+            return mManifest.getLength();
+        }
+
+
+        @Override
+        public int read() throws IOException
+        {
+            if (ensureChunk() == false)
+            {
+                return -1;
+            }
+
+            return mChunk[mOffset++] & 0xFF;
+        }
+
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+
+            if (ensureChunk() == false)
+            {
+                return -1;
+            }
+
+            int count = Math.min(len, mChunk.length - mOffset);
+
+            System.arraycopy(mChunk, mOffset, b, off, count);
+            mOffset += count;
+
+            return count;
+        }
+
+
+        @Override
+        public int available()
+        {
+            return (mChunk == null) ? 0 : mChunk.length - mOffset;
+        }
+
+
+        @Override
+        public void close()
+        {
+            synchronized (this)
+            {
+                mClosed = true;
+
+                // Release read-ahead chunks.
+                for (int i = 0; i < mSlots.length; ++i)
+                {
+                    mSlots[i] = null;
+                }
+            }
+
+            mChunk = null;
+        }
+
+
+        private boolean ensureChunk() throws IOException
+        {
+            while (mChunk == null || mChunk.length <= mOffset)
+            {
+                if (mIndex == mManifest.getChunkCount())
+                {
+                    verify();
+                    return false;
+                }
+
+                mChunk  = takeChunk(mIndex);
+                mOffset = 0;
+                mCrc.update(mChunk, 0, mChunk.length);
+                mPosition += mChunk.length;
+
+                // Read the chunk which has become within the window.
+                if (mIndex + mWindow < mManifest.getChunkCount())
+                {
+                    readChunk(mIndex + mWindow);
+                }
+
+                mIndex++;
+            }
+
+            return true;
+        }
+
+
+        private byte[] takeChunk(int index) throws IOException
+        {
+            int slot = index % mWindow;
+
+            synchronized (this)
+            {
+                while (mSlots[slot] == null)
+                {
+                    if (mClosed)
+                    {
+                        throw new IOException("The stream has been closed.");
+                    }
+
+                    if (mError != null)
+                    {
+                        throw new IOException(mError);
+                    }
+
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new InterruptedIOException("Interrupted while waiting for a chunk.");
+                    }
+                }
+
+                byte[] chunk = mSlots[slot];
+                mSlots[slot] = null;
+
+                return chunk;
+            }
+        }
+
+
+        private void verify() throws IOException
+        {
+            if (mPosition != mManifest.getLength())
+            {
+                throw new IOException("The length of the chunked value is wrong.");
+            }
+
+            if ((int)mCrc.getValue() != mManifest.getChecksum())
+            {
+                throw new IOException("The checksum of the chunked value does not match.");
+            }
+        }
+
+
+        private void readChunk(int index)
+        {
+            mZooKeeper.getData(mManifest.getChunkPath(mPath, index),
+                false, mChunkCallback, Integer.valueOf(index));
+        }
+
+
+        private void fail(String error)
+        {
+            synchronized (this)
+            {
+                if (mError == null)
+                {
+                    mError = error;
+                }
+
+                notifyAll();
+            }
+        }
+
+
+        private boolean shouldFinish()
+        {
+            synchronized (this)
+            {
+                if (mClosed || mError != null)
+                {
+                    return true;
+                }
+            }
+
+            switch (mZooKeeper.getState())
+            {
+                case AUTH_FAILED:
+                case CLOSED:
+                    fail("The ZooKeeper session is not available.");
+                    return true;
+
+                default:
+                    return false;
+            }
+        }
+
+
+        private class ChunkCallback implements DataCallback
+        {
+            @Override
+            public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat)
+            {
+                int index = ((Integer)ctx).intValue();
+
+                switch (Code.get(rc))
+                {
+                    case OK:
+                        store(index, (data != null) ? data : new byte[0]);
+                        return;
+
+                    case NONODE:
+                        // The version has been deleted by writers.
+                        fail("Version " + getVersion() + " of the chunked value has been replaced.");
+                        return;
+
+                    default:
+                        // Retry to read the chunk.
+                        if (shouldFinish() == false)
+                        {
+                            readChunk(index);
+                        }
+                        return;
+                }
+            }
+
+
+            private void store(int index, byte[] data)
+            {
+                synchronized (ValueInputStream.this)
+                {
+                    if (mClosed)
+                    {
+                        return;
+                    }
+
+                    mSlots[index % mWindow] = data;
+                    ValueInputStream.this.notifyAll();
+                }
+            }
+        }
+    }
+
+
+    private ZooKeeper mZooKeeper;
+    private String mPath;
+    private int mWindow = DEFAULT_WINDOW;
+
+
+    public ChunkedValueReader()
+    {
+    }
+
+
+    public ChunkedValueReader(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+    }
+
+
+    /**
+     * Get the {@link ZooKeeper} instance to read the value.
+     *
+     * @return
+     *         The {@link ZooKeeper} instance.
+     */
+    public ZooKeeper getZooKeeper()
+    {
+        return mZooKeeper;
+    }
+
+
+    /**
+     * Set the {@link ZooKeeper} instance to read the value.
+     *
+     * @param zooKeeper
+     *         A {@link ZooKeeper} instance.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ChunkedValueReader setZooKeeper(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+
+        return this;
+    }
+
+
+    /**
+     * Get the path of the znode of the value.
+     *
+     * @return
+     *         The path of the znode of the value.
+     */
+    public String getPath()
+    {
+        return mPath;
+    }
+
+
+    /**
+     * Set the path of the znode of the value.
+     *
+     * @param path
+     *         The path of the znode of the value.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ChunkedValueReader setPath(String path)
+    {
+        mPath = path;
+
+        return this;
+    }
+
+
+    /**
+     * Get the maximum number of chunks read ahead.
+     *
+     * @return
+     *         The maximum number of chunks read ahead.
+     */
+    public int getWindow()
+    {
+        return mWindow;
+    }
+
+
+    /**
+     * Set the maximum number of chunks read ahead. The default value is 4.
+     *
+     * @param window
+     *         The maximum number of chunks read ahead.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalArgumentException
+     *         {@code window} is not positive.
+     */
+    public ChunkedValueReader setWindow(int window)
+    {
+        if (window <= 0)
+        {
+            throw new IllegalArgumentException("The window must be positive.");
+        }
+
+        mWindow = window;
+
+        return this;
+    }
+
+
+    /**
+     * Open a stream to read the latest version of the value.
+     *
+     * @return
+     *         A stream to read the value.
+     *
+     * @throws KeeperException
+     *         Failed to read the manifest. {@link
+     *         KeeperException.NoNodeException NoNodeException}
+     *         means that the value has never been written.
+     *
+     * @throws InterruptedException
+     *         Interrupted while waiting for ZooKeeper.
+     *
+     * @throws IllegalStateException
+     *         <ul>
+     *           <li>No {@link ZooKeeper} instance is set.
+     *           <li>No path is set.
+     *           <li>The target znode does not contain a manifest.
+     *         </ul>
+     */
+    public ValueInputStream openStream() throws KeeperException, InterruptedException
+    {
+        if (mZooKeeper == null)
+        {
+            throw new IllegalStateException("A ZooKeeper instance must be set.");
+        }
+
+        if (mPath == null)
+        {
+            throw new IllegalStateException("A path must be set.");
+        }
+
+        ChunkManifest manifest;
+
+        try
+        {
+            manifest = ChunkManifest.decode(mZooKeeper.getData(mPath, false, null));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalStateException(e.getMessage());
+        }
+
+        return new ValueInputStream(mZooKeeper, mPath, manifest, mWindow);
+    }
+
+
+    /**
+     * Read the latest version of the value into a buffer.
+     *
+     * @param buffer
+     *         A buffer to reuse. If it is {@code null} or its capacity
+     *         is not enough, a new buffer is allocated.
+     *
+     * @return
+     *         A buffer containing the value. Its position is zero and
+     *         its limit is the length of the value.
+     *
+     * @throws IOException
+     *         Failed to read chunks, or the value is too large to be
+     *         held in a {@code ByteBuffer}.
+     *
+     * @throws KeeperException
+     *         Failed to read the manifest.
+     *
+     * @throws InterruptedException
+     *         Interrupted while waiting for ZooKeeper.
+     *
+     * @throws IllegalStateException
+     *         <ul>
+     *           <li>No {@link ZooKeeper} instance is set.
+     *           <li>No path is set.
+     *           <li>The target znode does not contain a manifest.
+     *         </ul>
+     */
+    public ByteBuffer read(ByteBuffer buffer) throws IOException, KeeperException, InterruptedException
+    {
+        ValueInputStream in = openStream();
+
+        try
+        {
+            if (Integer.MAX_VALUE < in.getLength())
+            {
+                throw new IOException("The chunked value is too large to be held in a ByteBuffer.");
+            }
+
+            int length = (int)in.getLength();
+
+            if (buffer == null || buffer.capacity() < length || buffer.hasArray() == false)
+            {
+                buffer = ByteBuffer.allocate(length);
+            }
+
+            buffer.clear();
+
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset();
+            int position = 0;
+
+            while (position < length)
+            {
+                int count = in.read(array, offset + position, length - position);
+
+                if (count < 0)
+                {
+                    throw new IOException("The chunked value is truncated.");
+                }
+
+                position += count;
+            }
+
+            // Validate the checksum at the end of the stream.
+            if (in.read() != -1)
+            {
+                throw new IOException("The chunked value is longer than expected.");
+            }
+
+            buffer.limit(length);
+
+            return buffer;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Writer of a value which is too large to be stored in a single znode.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * <span style="color: darkgreen;">// Write a large value.</span>
+ * <span style="color: purple; font-weight: bold;">long</span> version = <span style="color: purple; font-weight: bold;">new</span> ChunkedValueWriter()
+ *     .{@link #setZooKeeper(ZooKeeper) setZooKeeper}(zooKeeper)
+ *     .{@link #setPath(String) setPath}(<span style="color: mediumblue;">"/routing-table"</span>)
+ *     .{@link #write(InputStream) write}(in);
+ * </pre>
+ *
+ * <p>
+ * A value is split into chunks and each chunk is stored in a child znode
+ * of the target znode. After all the chunks have been written, a manifest
+ * describing the new chunks is written into the target znode by a single
+ * conditional {@link ZooKeeper#setData(String, byte[], int) setData()}.
+ * Therefore, {@link ChunkedValueReader} never sees a mixture of chunks of
+ * different versions. When two writers write at the same time, only one
+ * of them succeeds and the other gets {@link KeeperException.BadVersionException}.
+ * </p>
+ *
+ * <p>
+ * Chunks of the version which has just been replaced are kept so that
+ * readers reading the version can finish reading it. Chunks of older
+ * versions and chunks left by failed writers are deleted.
+ * </p>
+ *
+ * <p>
+ * Memory used by {@link #write(InputStream)} is bounded by the chunk size.
+ * </p>
+ *
+ * @since 1.3
+ *
+ * @see ChunkedValueReader
+ */
+public class ChunkedValueWriter
+{
+    private static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+    private static final List<ACL> DEFAULT_ACL_LIST = ZooDefs.Ids.OPEN_ACL_UNSAFE;
+
+
+    private final Random mRandom = new Random();
+    private ZooKeeper mZooKeeper;
+    private String mPath;
+    private List<ACL> mAclList = DEFAULT_ACL_LIST;
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+
+
+    public ChunkedValueWriter()
+    {
+    }
+
+
+    public ChunkedValueWriter(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+    }
+
+
+    /**
+     * Get the {@link ZooKeeper} instance to write the value.
+     *
+     * @return
+     *         The {@link ZooKeeper} instance.
+     */
+    public ZooKeeper getZooKeeper()
+    {
+        return mZooKeeper;
+    }
+
+
+    /**
+     * Set the {@link ZooKeeper} instance to write the value.
+     *
+     * @param zooKeeper
+     *         A {@link ZooKeeper} instance.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ChunkedValueWriter setZooKeeper(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+
+        return this;
+    }
+
+
+    /**
+     * Get the path of the znode of the value.
+     *
+     * @return
+     *         The path of the znode of the value.
+     */
+    public String getPath()
+    {
+        return mPath;
+    }
+
+
+    /**
+     * Set the path of the znode of the value. The znode is
+     * created if it does not exist. Its parent must exist.
+     *
+     * @param path
+     *         The path of the znode of the value.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ChunkedValueWriter setPath(String path)
+    {
+        mPath = path;
+
+        return this;
+    }
+
+
+    /**
+     * Get the ACL list used for creation of znodes.
+     *
+     * @return
+     *         The ACL list used for creation of znodes.
+     */
+    public List<ACL> getAclList()
+    {
+        return mAclList;
+    }
+
+
+    /**
+     * Set the ACL list used for creation of znodes. The default
+     * value is {@link ZooDefs.Ids#OPEN_ACL_UNSAFE OPEN_ACL_UNSAFE}.
+     *
+     * @param list
+     *         The ACL list used for creation of znodes.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ChunkedValueWriter setAclList(List<ACL> list)
+    {
+        mAclList = list;
+
+        return this;
+    }
+
+
+    /**
+     * Get the maximum size of a chunk.
+     *
+     * @return
+     *         The maximum size of a chunk in bytes.
+     */
+    public int getChunkSize()
+    {
+        return mChunkSize;
+    }
+
+
+    /**
+     * Set the maximum size of a chunk. The default value is 512 KB.
+     * The value must be less than {@code jute.maxbuffer} of the
+     * ZooKeeper servers (1 MB by default).
+     *
+     * @param size
+     *         The maximum size of a chunk in bytes.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalArgumentException
+     *         {@code size} is not positive.
+     */
+    public ChunkedValueWriter setChunkSize(int size)
+    {
+        if (size <= 0)
+        {
+            throw new IllegalArgumentException("The chunk size must be positive.");
+        }
+
+        mChunkSize = size;
+
+        return this;
+    }
+
+
+    /**
+     * Write a value.
+     *
+     * @param value
+     *         The value to write.
+     *
+     * @return
+     *         The version of the written value.
+     *
+     * @throws KeeperException
+     *         A ZooKeeper operation failed. {@link
+     *         KeeperException.BadVersionException BadVersionException}
+     *         means that another writer wrote a new version at the same
+     *         time.
+     *
+     * @throws InterruptedException
+     *         Interrupted while waiting for ZooKeeper.
+     *
+     * @throws IllegalStateException
+     *         <ul>
+     *           <li>No {@link ZooKeeper} instance is set.
+     *           <li>No path is set.
+     *         </ul>
+     */
+    public long write(byte[] value) throws KeeperException, InterruptedException
+    {
+        try
+        {
+            return write(new ByteArrayInputStream(value));
+        }
+        catch (IOException e)
+        {
+            // This never happens.
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+
+    /**
+     * Write a value read from the given stream. The stream is
+     * read until its end but not closed.
+     *
+     * @param in
+     *         The stream to read the value from.
+     *
+     * @return
+     *         The version of the written value.
+     *
+     * @throws IOException
+     *         Failed to read the stream.
+     *
+     * @throws KeeperException
+     *         A ZooKeeper operation failed. {@link
+     *         KeeperException.BadVersionException BadVersionException}
+     *         means that another writer wrote a new version at the same
+     *         time.
+     *
+     * @throws InterruptedException
+     *         Interrupted while waiting for ZooKeeper.
+     *
+     * @throws IllegalStateException
+     *         <ul>
+     *           <li>No {@link ZooKeeper} instance is set.
+     *           <li>No path is set.
+     *         </ul>
+     */
+    public long write(InputStream in) throws IOException, KeeperException, InterruptedException
+    {
+        if (mZooKeeper == null)
+        {
+            throw new IllegalStateException("A ZooKeeper instance must be set.");
+        }
+
+        if (mPath == null)
+        {
+            throw new IllegalStateException("A path must be set.");
+        }
+
+        // Read the current manifest and remember its znode version
+        // so that the manifest can be replaced conditionally.
+        Stat stat = new Stat();
+        ChunkManifest current = readManifest(stat);
+
+        long version = current.getVersion() + 1;
+        long token   = mRandom.nextLong() & Long.MAX_VALUE;
+        ChunkManifest manifest;
+
+        try
+        {
+            manifest = writeChunks(in, version, token);
+            mZooKeeper.setData(mPath, manifest.encode(), stat.getVersion());
+        }
+        catch (IOException e)
+        {
+            deleteChunks(version, token);
+            throw e;
+        }
+        catch (KeeperException e)
+        {
+            deleteChunks(version, token);
+            throw e;
+        }
+
+        // The new version has been published. Delete stale chunks.
+        deleteStaleChunks(current, manifest);
+
+        return version;
+    }
+
+
+    private ChunkManifest readManifest(Stat stat) throws KeeperException, InterruptedException
+    {
+        try
+        {
+            return ChunkManifest.decode(mZooKeeper.getData(mPath, false, stat));
+        }
+        catch (KeeperException.NoNodeException e)
+        {
+            // The znode of the value does not exist yet.
+        }
+
+        try
+        {
+            mZooKeeper.create(mPath, ChunkManifest.empty().encode(), mAclList, CreateMode.PERSISTENT);
+        }
+        catch (KeeperException.NodeExistsException e)
+        {
+            // Another writer has created it.
+        }
+
+        return ChunkManifest.decode(mZooKeeper.getData(mPath, false, stat));
+    }
+
+
+    private ChunkManifest writeChunks(InputStream in, long version, long token)
+        throws IOException, KeeperException, InterruptedException
+    {
+        CRC32 crc  = new CRC32();
+        byte[] buffer = new byte[mChunkSize];
+        long length = 0;
+        int count = 0;
+
+        while (true)
+        {
+            int size = fill(in, buffer);
+
+            if (size == 0)
+            {
+                break;
+            }
+
+            byte[] chunk = buffer;
+
+            if (size < buffer.length)
+            {
+                chunk = new byte[size];
+                System.arraycopy(buffer, 0, chunk, 0, size);
+            }
+
+            mZooKeeper.create(mPath + "/" + ChunkManifest.getChunkName(version, token, count),
+                chunk, mAclList, CreateMode.PERSISTENT);
+
+            crc.update(chunk, 0, size);
+            length += size;
+            count++;
+
+            if (size < buffer.length)
+            {
+                break;
+            }
+        }
+
+        return new ChunkManifest(version, token, length, mChunkSize, count, (int)crc.getValue());
+    }
+
+
+    private static int fill(InputStream in, byte[] buffer) throws IOException
+    {
+        int size = 0;
+
+        while (size < buffer.length)
+        {
+            int count = in.read(buffer, size, buffer.length - size);
+
+            if (count < 0)
+            {
+                break;
+            }
+
+            size += count;
+        }
+
+        return size;
+    }
+
+
+    private void deleteChunks(long version, long token) throws InterruptedException
+    {
+        List<String> children;
+
+        try
+        {
+            children = mZooKeeper.getChildren(mPath, false);
+        }
+        catch (KeeperException e)
+        {
+            // Chunks left here will be deleted by a later write.
+            return;
+        }
+
+        for (String child : children)
+        {
+            if (ChunkManifest.parseChunkVersion(child) == version &&
+                ChunkManifest.parseChunkToken(child) == token)
+            {
+                delete(child);
+            }
+        }
+    }
+
+
+    private void deleteStaleChunks(ChunkManifest previous, ChunkManifest latest) throws InterruptedException
+    {
+        List<String> children;
+
+        try
+        {
+            children = mZooKeeper.getChildren(mPath, false);
+        }
+        catch (KeeperException e)
+        {
+            // Chunks left here will be deleted by a later write.
+            return;
+        }
+
+        for (String child : children)
+        {
+            long version = ChunkManifest.parseChunkVersion(child);
+
+            if (version < 0)
+            {
+                // Not a chunk.
+                continue;
+            }
+
+            long token = ChunkManifest.parseChunkToken(child);
+
+            // Chunks of versions older than the previous one are not
+            // referred to by anyone any more. Chunks of the previous and
+            // the latest versions which were written with other tokens
+            // were left by writers which failed. Chunks of versions newer
+            // than the latest one belong to writers in progress.
+            if (version < previous.getVersion() ||
+                (version <= latest.getVersion() &&
+                 token != previous.getToken() && token != latest.getToken()))
+            {
+                delete(child);
+            }
+        }
+    }
+
+
+    private void delete(String child) throws InterruptedException
+    {
+        try
+        {
+            mZooKeeper.delete(mPath + "/" + child, -1);
+        }
+        catch (KeeperException e)
+        {
+            // Ignore. Chunks left here will be deleted by a later write.
+        }
+    }
+}
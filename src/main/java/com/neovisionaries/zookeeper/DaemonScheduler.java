@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Executors with daemon threads for recipes which need timers.
+ *
+ * <p>
+ * Timers of recipes are short and must not block, so they share one
+ * thread by default. Tasks which may block, such as tasks given by
+ * applications, should run on an executor of their own.
+ * </p>
+ */
+final class DaemonScheduler
+{
+    private static final String SHARED_THREAD_NAME = "nv-zookeeper-scheduler";
+    private static ScheduledExecutorService sShared;
+
+
+    private DaemonScheduler()
+    {
+    }
+
+
+    /**
+     * Get the executor shared by recipes. It has a single daemon thread,
+     * which is created on the first call and never shut down.
+     */
+    static synchronized ScheduledExecutorService getShared()
+    {
+        if (sShared == null)
+        {
+            sShared = newExecutor(SHARED_THREAD_NAME);
+        }
+
+        return sShared;
+    }
+
+
+    /**
+     * Create a new executor with a single daemon thread. The caller is
+     * responsible for shutting it down.
+     */
+    static ScheduledExecutorService newExecutor(String threadName)
+    {
+        return Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(threadName));
+    }
+
+
+    private static class DaemonThreadFactory implements ThreadFactory
+    {
+        private final String mName;
+
+
+        DaemonThreadFactory(String name)
+        {
+            mName = name;
+        }
+
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, mName);
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * {@link PayloadCodec} implementation which compresses data with
+ * Deflate and validates it with CRC-32.
+ *
+ * <p>
+ * Encoded data starts with a header as shown below.
+ * </p>
+ *
+ * <pre style="margin: 1em;">
+ * +-------------------+-------+-----------------+--------------------+---------+
+ * | magic (3 bytes)   | flags | original length | CRC-32 (4 bytes,   | payload |
+ * | 0xF5 0x4E 0x56    |       | (4 bytes)       | if flags &amp; 0x02)  |         |
+ * +-------------------+-------+-----------------+--------------------+---------+
+ *
+ *   flags: 0x01 = the payload is compressed, 0x02 = a checksum is present.
+ * </pre>
+ *
+ * <p>
+ * The first byte of the magic, {@code 0xF5}, never appears in UTF-8
+ * text. Therefore, data which does not start with the magic (e.g.
+ * plain text or JSON written before a codec was introduced) is
+ * regarded as legacy data and {@link #decode(byte[])} returns it
+ * as is.
+ * </p>
+ *
+ * <p>
+ * Data whose length is less than the {@link #setThreshold(int)
+ * threshold} is not compressed, and data is stored uncompressed
+ * when compression does not make it smaller.
+ * </p>
+ *
+ * @since 1.3
+ */
+public class DeflatePayloadCodec implements PayloadCodec
+{
+    private static final byte MAGIC_0 = (byte)0xF5;
+    private static final byte MAGIC_1 = (byte)0x4E;
+    private static final byte MAGIC_2 = (byte)0x56;
+    private static final int FLAG_COMPRESSED = 0x01;
+    private static final int FLAG_CHECKSUM   = 0x02;
+    private static final int BASE_HEADER_LENGTH = 8;
+    private static final int CHECKSUM_LENGTH = 4;
+    private static final int DEFAULT_THRESHOLD = 64;
+    private static final int JUTE_MAX_BUFFER = Integer.getInteger("jute.maxbuffer", 0xfffff).intValue();
+    private static final int DEFAULT_MAX_LENGTH = (int)Math.min(Integer.MAX_VALUE, JUTE_MAX_BUFFER * 16L);
+
+    // Deflate cannot compress data more than this ratio.
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+
+    private volatile int mLevel = Deflater.DEFAULT_COMPRESSION;
+    private volatile int mThreshold = DEFAULT_THRESHOLD;
+    private volatile boolean mChecksumEnabled = true;
+    private volatile int mMaxLength = DEFAULT_MAX_LENGTH;
+
+
+    /**
+     * Get the compression level.
+     *
+     * @return
+     *         The compression level.
+     */
+    public int getLevel()
+    {
+        return mLevel;
+    }
+
+
+    /**
+     * Set the compression level (0-9). The default value is
+     * {@link Deflater#DEFAULT_COMPRESSION}.
+     *
+     * @param level
+     *         The compression level.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public DeflatePayloadCodec setLevel(int level)
+    {
+        mLevel = level;
+
+        return this;
+    }
+
+
+    /**
+     * Get the minimum length of data to be compressed.
+     *
+     * @return
+     *         The minimum length of data to be compressed.
+     */
+    public int getThreshold()
+    {
+        return mThreshold;
+    }
+
+
+    /**
+     * Set the minimum length of data to be compressed.
+     * The default value is 64.
+     *
+     * @param threshold
+     *         The minimum length of data to be compressed.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public DeflatePayloadCodec setThreshold(int threshold)
+    {
+        mThreshold = threshold;
+
+        return this;
+    }
+
+
+    /**
+     * Check if a checksum is added on encoding.
+     *
+     * @return
+     *         {@code true} if a checksum is added on encoding.
+     */
+    public boolean isChecksumEnabled()
+    {
+        return mChecksumEnabled;
+    }
+
+
+    /**
+     * Enable or disable addition of a checksum on encoding. Enabled
+     * by default. Note that checksums present in encoded data are
+     * always validated on decoding regardless of this setting.
+     *
+     * @param enabled
+     *         {@code true} to add a checksum on encoding.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public DeflatePayloadCodec setChecksumEnabled(boolean enabled)
+    {
+        mChecksumEnabled = enabled;
+
+        return this;
+    }
+
+
+    /**
+     * Get the maximum length of original data.
+     *
+     * @return
+     *         The maximum length of original data.
+     */
+    public int getMaxLength()
+    {
+        return mMaxLength;
+    }
+
+
+    /**
+     * Set the maximum length of original data. Encoded data whose header
+     * claims a longer original length is rejected before any buffer is
+     * allocated for it, so broken or malicious data cannot exhaust the
+     * heap. The default value is 16 times {@code jute.maxbuffer}, i.e.
+     * 16 MB unless the system property is set.
+     *
+     * @param length
+     *         The maximum length of original data.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public DeflatePayloadCodec setMaxLength(int length)
+    {
+        mMaxLength = length;
+
+        return this;
+    }
+
+
+    /**
+     * Encode data.
+     *
+     * @param data
+     *         Data to encode. May be {@code null}.
+     *
+     * @return
+     *         Encoded data. {@code null} if {@code data} is {@code null}.
+     *
+     * @throws IllegalArgumentException
+     *         The length of the data exceeds the {@link #setMaxLength(int)
+     *         maximum length}.
+     */
+    @Override
+    public byte[] encode(byte[] data)
+    {
+        if (data == null)
+        {
+            return null;
+        }
+
+        if (mMaxLength < data.length)
+        {
+            throw new IllegalArgumentException("The length of the data exceeds the maximum length.");
+        }
+
+        boolean checksum = mChecksumEnabled;
+        int headerLength = BASE_HEADER_LENGTH + (checksum ? CHECKSUM_LENGTH : 0);
+        int flags = checksum ? FLAG_CHECKSUM : 0;
+        byte[] payload = data;
+        int payloadLength = data.length;
+
+        if (mThreshold <= data.length)
+        {
+            byte[] compressed = new byte[data.length];
+            int compressedLength = deflate(data, compressed);
+
+            // If compression made the data smaller.
+            if (0 < compressedLength)
+            {
+                flags |= FLAG_COMPRESSED;
+                payload = compressed;
+                payloadLength = compressedLength;
+            }
+        }
+
+        byte[] encoded = new byte[headerLength + payloadLength];
+
+        encoded[0] = MAGIC_0;
+        encoded[1] = MAGIC_1;
+        encoded[2] = MAGIC_2;
+        encoded[3] = (byte)flags;
+        putInt(encoded, 4, data.length);
+
+        if (checksum)
+        {
+            putInt(encoded, BASE_HEADER_LENGTH, checksum(data, data.length));
+        }
+
+        System.arraycopy(payload, 0, encoded, headerLength, payloadLength);
+
+        return encoded;
+    }
+
+
+    @Override
+    public byte[] decode(byte[] data)
+    {
+        if (data == null)
+        {
+            return null;
+        }
+
+        // If the data was not encoded by this codec.
+        if (isLegacy(data))
+        {
+            return data;
+        }
+
+        byte[] decoded = new byte[getOriginalLength(data)];
+
+        decode(data, decoded);
+
+        return decoded;
+    }
+
+
+    @Override
+    public ByteBuffer decode(byte[] data, ByteBuffer buffer)
+    {
+        int length = isLegacy(data) ? data.length : getOriginalLength(data);
+
+        if (buffer == null || buffer.capacity() < length || buffer.hasArray() == false)
+        {
+            buffer = ByteBuffer.allocate(length);
+        }
+
+        buffer.clear();
+
+        byte[] array = buffer.array();
+        int offset   = buffer.arrayOffset();
+
+        if (isLegacy(data))
+        {
+            System.arraycopy(data, 0, array, offset, length);
+        }
+        else
+        {
+            byte[] decoded = (offset == 0) ? array : new byte[length];
+
+            decode(data, decoded);
+
+            if (decoded != array)
+            {
+                System.arraycopy(decoded, 0, array, offset, length);
+            }
+        }
+
+        buffer.limit(length);
+
+        return buffer;
+    }
+
+
+    private void decode(byte[] data, byte[] output)
+    {
+        int flags = data[3];
+        int length = getOriginalLength(data);
+        boolean checksum = (flags & FLAG_CHECKSUM) != 0;
+        int headerLength = getHeaderLength(flags);
+
+        if ((flags & FLAG_COMPRESSED) != 0)
+        {
+            inflate(data, headerLength, output, length);
+        }
+        else
+        {
+            System.arraycopy(data, headerLength, output, 0, length);
+        }
+
+        if (checksum && getInt(data, BASE_HEADER_LENGTH) != checksum(output, length))
+        {
+            throw new IllegalArgumentException("The checksum of the encoded data does not match.");
+        }
+    }
+
+
+    private static boolean isLegacy(byte[] data)
+    {
+        return data.length < BASE_HEADER_LENGTH
+            || data[0] != MAGIC_0
+            || data[1] != MAGIC_1
+            || data[2] != MAGIC_2;
+    }
+
+
+    private static int getHeaderLength(int flags)
+    {
+        return BASE_HEADER_LENGTH + (((flags & FLAG_CHECKSUM) != 0) ? CHECKSUM_LENGTH : 0);
+    }
+
+
+    /**
+     * Get the original length from the header. The length is validated
+     * here because callers allocate a buffer of the length.
+     */
+    private int getOriginalLength(byte[] data)
+    {
+        int flags = data[3];
+        int length = getInt(data, 4);
+        int payloadLength = data.length - getHeaderLength(flags);
+
+        if (payloadLength < 0)
+        {
+            throw new IllegalArgumentException("The header of the encoded data is truncated.");
+        }
+
+        if (length < 0)
+        {
+            throw new IllegalArgumentException("The original length in the header is negative.");
+        }
+
+        if (mMaxLength < length)
+        {
+            throw new IllegalArgumentException("The original length in the header exceeds the maximum length.");
+        }
+
+        if ((flags & FLAG_COMPRESSED) == 0)
+        {
+            if (payloadLength != length)
+            {
+                throw new IllegalArgumentException("The length of the encoded data is wrong.");
+            }
+        }
+        else if ((long)payloadLength * MAX_DEFLATE_RATIO < length)
+        {
+            throw new IllegalArgumentException("The original length in the header is too large for the payload.");
+        }
+
+        return length;
+    }
+
+
+    private int deflate(byte[] input, byte[] output)
+    {
+        Deflater deflater = new Deflater(mLevel);
+
+        try
+        {
+            deflater.setInput(input);
+            deflater.finish();
+
+            int length = deflater.deflate(output);
+
+            // Zero means that the compressed data would not be
+            // smaller than the original data.
+            return deflater.finished() ? length : 0;
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+
+    private static void inflate(byte[] input, int offset, byte[] output, int length)
+    {
+        Inflater inflater = new Inflater();
+
+        try
+        {
+            inflater.setInput(input, offset, input.length - offset);
+
+            int inflated = inflater.inflate(output, 0, length);
+
+            if (inflated != length || inflater.finished() == false)
+            {
+                throw new IllegalArgumentException("The compressed data is truncated.");
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new IllegalArgumentException("The compressed data is broken: " + e.getMessage());
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+
+    private static int checksum(byte[] data, int length)
+    {
+        CRC32 crc = new CRC32();
+
+        crc.update(data, 0, length);
+
+        return (int)crc.getValue();
+    }
+
+
+    private static void putInt(byte[] array, int offset, int value)
+    {
+        array[offset    ] = (byte)(value >>> 24);
+        array[offset + 1] = (byte)(value >>> 16);
+        array[offset + 2] = (byte)(value >>>  8);
+        array[offset + 3] = (byte)(value       );
+    }
+
+
+    private static int getInt(byte[] array, int offset)
+    {
+        return ((array[offset    ] & 0xFF) << 24)
+             | ((array[offset + 1] & 0xFF) << 16)
+             | ((array[offset + 2] & 0xFF) <<  8)
+             | ((array[offset + 3] & 0xFF)      );
+    }
+}
@@ -0,0 +1,1046 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Local disk cache of the last known content of znodes.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * <span style="color: darkgreen;">// Open the cache once per process.</span>
+ * DiskNodeCache cache = <span style="color: purple; font-weight: bold;">new</span> DiskNodeCache(<span style="color: purple; font-weight: bold;">new</span> File(<span style="color: mediumblue;">"/var/cache/app/znodes"</span>)).{@link #open()};
+ *
+ * <span style="color: darkgreen;">// The reader serves the cached content immediately and then</span>
+ * <span style="color: darkgreen;">// the content read from ZooKeeper.</span>
+ * <span style="color: purple; font-weight: bold;">new</span> NodeReader(zooKeeper)
+ *     .{@link NodeReader#setPath(String) setPath}(<span style="color: mediumblue;">"/config"</span>)
+ *     .{@link NodeReader#setCache(DiskNodeCache) setCache}(cache)
+ *     .{@link NodeReader#setListener(NodeReader.Listener) setListener}(cacheListener)
+ *     .{@link NodeReader#start() start()};
+ * </pre>
+ *
+ * <p>
+ * The cache file is an append-only log of records. Each record holds a
+ * path, the {@link Stat} and the content of a znode, or a removal of a
+ * path, and is protected by a CRC-32 checksum. {@link #open()} indexes
+ * the records. Contents are read from the file only when they are
+ * requested, so a cache of many entries does not occupy the heap. A
+ * record which was partially written when the process crashed is
+ * discarded.
+ * </p>
+ *
+ * <p>
+ * {@link #put(String, byte[], Stat)} and {@link #remove(String)} update
+ * the entries in memory and return at once. Records are written to the
+ * file by a background thread, so callers such as the event thread of
+ * {@link org.apache.zookeeper.ZooKeeper ZooKeeper} never wait for the
+ * disk. A record is written only when the {@link Stat#getMzxid() mzxid}
+ * differs from the cached one, so re-reading unchanged znodes does not
+ * write. When more than half of the file is occupied by overwritten
+ * records, the background thread compacts the file. Records are not
+ * synced to the disk one by one. They are synced by {@link #close()},
+ * which also reports the first error of the background writes.
+ * </p>
+ *
+ * <p>
+ * All methods are thread-safe. The same file must not be opened by
+ * multiple instances at the same time.
+ * </p>
+ *
+ * @since 1.3
+ *
+ * @see NodeReader#setCache(DiskNodeCache)
+ */
+public class DiskNodeCache
+{
+    /**
+     * Entry of a {@link DiskNodeCache}.
+     */
+    public static final class Entry
+    {
+        private final Stat mStat;
+        private final byte[] mData;
+
+
+        Entry(Stat stat, byte[] data)
+        {
+            mStat = stat;
+            mData = data;
+        }
+
+
+        /**
+         * Get the statistics of the znode when it was cached.
+         *
+         * @return
+         *         The statistics.
+         */
+        public Stat getStat()
+        {
+            return mStat;
+        }
+
+
+        /**
+         * Get the content of the znode when it was cached.
+         *
+         * @return
+         *         The content. May be {@code null}.
+         */
+        public byte[] getData()
+        {
+            return mData;
+        }
+    }
+
+
+    private static final int MAGIC = 0x4E565A43;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_REMOVE = 2;
+    private static final int STAT_SIZE = 8 * 6 + 4 * 5;
+    private static final long MINIMUM_COMPACTION_SIZE = 1024 * 1024;
+
+
+    private final File mFile;
+    private final Runnable mFlushTask = new FlushTask();
+
+    // Guarded by this. The writer replaces mChannel only while holding
+    // the lock, so get() always reads an open channel.
+    private final Map<String, Record> mRecords = new HashMap<String, Record>();
+    private final Map<String, Record> mPending = new LinkedHashMap<String, Record>();
+    private FileChannel mChannel;
+    private ScheduledExecutorService mWriter;
+    private boolean mFlushScheduled;
+    private IOException mWriteError;
+
+    // Accessed only by the writer after open().
+    private final Map<String, Integer> mWrittenSizes = new HashMap<String, Integer>();
+    private long mSize;
+    private long mGarbageSize;
+
+
+    public DiskNodeCache(File file)
+    {
+        if (file == null)
+        {
+            throw new NullPointerException("file is null.");
+        }
+
+        mFile = file;
+    }
+
+
+    /**
+     * Get the cache file.
+     *
+     * @return
+     *         The cache file.
+     */
+    public File getFile()
+    {
+        return mFile;
+    }
+
+
+    /**
+     * Open the cache file and load the index of the records. If the file
+     * does not exist, it is created. If the file is not a cache file, it
+     * is overwritten.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IOException
+     *         Failed to open the file.
+     */
+    public synchronized DiskNodeCache open() throws IOException
+    {
+        if (mChannel != null)
+        {
+            throw new IllegalStateException("The cache is already open.");
+        }
+
+        mChannel = openChannel(mFile);
+
+        try
+        {
+            load();
+        }
+        catch (IOException e)
+        {
+            mChannel.close();
+            mChannel = null;
+            mRecords.clear();
+            throw e;
+        }
+
+        mWriter = DaemonScheduler.newExecutor("DiskNodeCache");
+
+        return this;
+    }
+
+
+    /**
+     * Write the pending records, sync the cache file to the disk and
+     * close it.
+     *
+     * @throws IOException
+     *         Failed to close the file, or a background write has failed
+     *         since the cache was opened.
+     */
+    public void close() throws IOException
+    {
+        ScheduledExecutorService writer;
+
+        synchronized (this)
+        {
+            if (mWriter == null)
+            {
+                return;
+            }
+
+            // No more records are accepted.
+            writer = mWriter;
+            mWriter = null;
+        }
+
+        // Let the writer finish the pending records.
+        writer.shutdown();
+
+        try
+        {
+            while (writer.awaitTermination(1, TimeUnit.SECONDS) == false)
+            {
+                // Keep waiting.
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this)
+        {
+            IOException error = mWriteError;
+            mWriteError = null;
+
+            try
+            {
+                mChannel.force(false);
+            }
+            finally
+            {
+                mChannel.close();
+                mChannel = null;
+                mRecords.clear();
+                mPending.clear();
+                mFlushScheduled = false;
+            }
+
+            if (error != null)
+            {
+                throw error;
+            }
+        }
+    }
+
+
+    /**
+     * Get the number of cached entries.
+     *
+     * @return
+     *         The number of entries.
+     */
+    public synchronized int size()
+    {
+        return mRecords.size();
+    }
+
+
+    /**
+     * Get the cached entry of the path.
+     *
+     * @param path
+     *         The path of the znode.
+     *
+     * @return
+     *         The entry. {@code null} if the path is not cached or the
+     *         content could not be read from the file.
+     */
+    public synchronized Entry get(String path)
+    {
+        Record record = mRecords.get(path);
+
+        if (record == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return new Entry(copyStat(record.mStat), record.getData(mChannel));
+        }
+        catch (IOException e)
+        {
+            // Regard it as not cached.
+            return null;
+        }
+    }
+
+
+    /**
+     * Cache the content of a znode. If the cached entry of the path has
+     * the same {@link Stat#getMzxid() mzxid}, nothing is written. The
+     * record is written to the file in background.
+     *
+     * @param path
+     *         The path of the znode.
+     *
+     * @param data
+     *         The content of the znode.
+     *
+     * @param stat
+     *         The statistics of the znode.
+     *
+     * @throws IllegalStateException
+     *         The cache is not open.
+     */
+    public synchronized void put(String path, byte[] data, Stat stat)
+    {
+        ensureOpen();
+
+        Record old = mRecords.get(path);
+
+        if (old != null && old.mStat.getMzxid() == stat.getMzxid())
+        {
+            // Not changed.
+            return;
+        }
+
+        Record record = new Record(copyStat(stat), (data != null) ? data.clone() : null);
+        mRecords.put(path, record);
+
+        schedule(path, record);
+    }
+
+
+    /**
+     * Remove the cached entry of the path. The removal is written to the
+     * file in background.
+     *
+     * @param path
+     *         The path of the znode.
+     *
+     * @throws IllegalStateException
+     *         The cache is not open.
+     */
+    public synchronized void remove(String path)
+    {
+        ensureOpen();
+
+        if (mRecords.remove(path) == null)
+        {
+            return;
+        }
+
+        // null means a removal.
+        schedule(path, null);
+    }
+
+
+    /**
+     * Rewrite the cache file so that it contains only the live entries.
+     * The pending records are written first. This method waits for the
+     * background thread to finish the compaction.
+     *
+     * @throws IOException
+     *         Failed to rewrite the file. The cache keeps working with
+     *         the file as it was before the compaction.
+     *
+     * @throws IllegalStateException
+     *         The cache is not open.
+     */
+    public void compact() throws IOException
+    {
+        Future<Void> future;
+
+        synchronized (this)
+        {
+            ensureOpen();
+
+            future = mWriter.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException
+                {
+                    flush();
+                    compactFile();
+                    return null;
+                }
+            });
+        }
+
+        try
+        {
+            future.get();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException)
+            {
+                throw (IOException)cause;
+            }
+
+            throw new IOException("Compaction failed: " + cause);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the compaction.");
+        }
+    }
+
+
+    private void ensureOpen()
+    {
+        if (mWriter == null)
+        {
+            throw new IllegalStateException("The cache is not open.");
+        }
+    }
+
+
+    private void schedule(String path, Record record)
+    {
+        // Only the last change of a path needs to be written.
+        mPending.remove(path);
+        mPending.put(path, record);
+
+        if (mFlushScheduled)
+        {
+            return;
+        }
+
+        mFlushScheduled = true;
+        mWriter.execute(mFlushTask);
+    }
+
+
+    private void onWriteError(IOException e)
+    {
+        synchronized (this)
+        {
+            // Keep the first one for close().
+            if (mWriteError == null)
+            {
+                mWriteError = e;
+            }
+        }
+    }
+
+
+    private void flush() throws IOException
+    {
+        Map<String, Record> pending;
+
+        synchronized (this)
+        {
+            pending = new LinkedHashMap<String, Record>(mPending);
+            mPending.clear();
+            mFlushScheduled = false;
+        }
+
+        for (Map.Entry<String, Record> entry : pending.entrySet())
+        {
+            write(entry.getKey(), entry.getValue());
+        }
+    }
+
+
+    private void write(String path, Record record) throws IOException
+    {
+        Integer old = mWrittenSizes.get(path);
+
+        if (record == null)
+        {
+            if (old == null)
+            {
+                // Never written.
+                return;
+            }
+
+            int size = append(TYPE_REMOVE, path, null, null);
+            mWrittenSizes.remove(path);
+
+            // Both the old record and the removal record are garbage.
+            mGarbageSize += old.intValue() + size;
+            return;
+        }
+
+        int size = append(TYPE_PUT, path, record.mData, record.mStat);
+        mWrittenSizes.put(path, Integer.valueOf(size));
+
+        if (old != null)
+        {
+            mGarbageSize += old.intValue();
+        }
+    }
+
+
+    private void compactIfNecessary() throws IOException
+    {
+        if (MINIMUM_COMPACTION_SIZE <= mSize && mSize < mGarbageSize * 2)
+        {
+            compactFile();
+        }
+    }
+
+
+    private void compactFile() throws IOException
+    {
+        Map<String, Record> snapshot;
+
+        synchronized (this)
+        {
+            snapshot = new HashMap<String, Record>(mRecords);
+        }
+
+        // Write the live entries to a temporary file. The current file
+        // is not touched, so a failure here changes nothing.
+        File tmp = new File(mFile.getPath() + ".tmp");
+        Map<String, Record> compacted = new HashMap<String, Record>();
+        Map<String, Integer> sizes = new HashMap<String, Integer>();
+        long size = HEADER_SIZE;
+        FileChannel out = openChannel(tmp);
+
+        try
+        {
+            out.truncate(0);
+            writeHeader(out);
+
+            for (Map.Entry<String, Record> entry : snapshot.entrySet())
+            {
+                Record record = entry.getValue();
+                byte[] data = record.getData(mChannel);
+                ByteBuffer buffer = encode(TYPE_PUT, entry.getKey(), data, record.mStat);
+                int recordSize = buffer.remaining();
+
+                writeFully(out, buffer, size);
+
+                // The content is at the end of the record.
+                int dataOffset = (data == null) ? -1 : (int)(size + recordSize - data.length);
+
+                compacted.put(entry.getKey(), new Record(record.mStat, dataOffset, record.mDataLength));
+                sizes.put(entry.getKey(), Integer.valueOf(recordSize));
+                size += recordSize;
+            }
+
+            out.force(false);
+        }
+        catch (IOException e)
+        {
+            out.close();
+            tmp.delete();
+            throw e;
+        }
+
+        out.close();
+
+        synchronized (this)
+        {
+            // Close the current file before replacing it. Some platforms
+            // cannot rename over an open file. Records are read from the
+            // file under this lock, so nobody reads it meanwhile.
+            mChannel.close();
+
+            if (replace(tmp))
+            {
+                mChannel = openChannel(mFile);
+                mChannel.position(size);
+
+                for (Map.Entry<String, Record> entry : compacted.entrySet())
+                {
+                    // Skip entries which have been changed meanwhile.
+                    // Their changes are pending.
+                    if (mRecords.get(entry.getKey()) == snapshot.get(entry.getKey()))
+                    {
+                        mRecords.put(entry.getKey(), entry.getValue());
+                    }
+                }
+
+                mWrittenSizes.clear();
+                mWrittenSizes.putAll(sizes);
+                mSize = size;
+                mGarbageSize = 0;
+                return;
+            }
+
+            recover(tmp);
+        }
+
+        throw new IOException("Failed to replace " + mFile + " with " + tmp + ".");
+    }
+
+
+    private boolean replace(File tmp)
+    {
+        if (tmp.renameTo(mFile))
+        {
+            return true;
+        }
+
+        // renameTo() does not replace an existing file on some platforms.
+        return mFile.delete() && tmp.renameTo(mFile);
+    }
+
+
+    private void recover(File tmp) throws IOException
+    {
+        if (mFile.exists())
+        {
+            // The original file is intact. Keep using it as it was.
+            tmp.delete();
+            mChannel = openChannel(mFile);
+            mChannel.position(mSize);
+            return;
+        }
+
+        // The original file has been deleted. Start with an empty file.
+        tmp.delete();
+        mChannel = openChannel(mFile);
+        reset();
+        mWrittenSizes.clear();
+        mGarbageSize = 0;
+
+        for (Iterator<Map.Entry<String, Record>> it = mRecords.entrySet().iterator(); it.hasNext(); )
+        {
+            Map.Entry<String, Record> entry = it.next();
+
+            if (0 <= entry.getValue().mDataOffset)
+            {
+                // The content was in the deleted file and has been lost.
+                it.remove();
+            }
+            else if (mPending.containsKey(entry.getKey()) == false)
+            {
+                // The content is in the heap. Write it again.
+                mPending.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        if (mPending.isEmpty() == false && mFlushScheduled == false && mWriter != null)
+        {
+            mFlushScheduled = true;
+            mWriter.execute(mFlushTask);
+        }
+    }
+
+
+    private void load() throws IOException
+    {
+        mRecords.clear();
+        mWrittenSizes.clear();
+        mSize = mChannel.size();
+        mGarbageSize = 0;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+        if (mSize < HEADER_SIZE || readFully(mChannel, header, 0) == false ||
+            header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+        {
+            // A new file or not a cache file of this format.
+            reset();
+            return;
+        }
+
+        // Read the file sequentially through a buffer.
+        InputStream in = new BufferedInputStream(Channels.newInputStream(mChannel.position(HEADER_SIZE)), 65536);
+        DataInputStream input = new DataInputStream(in);
+        long position = HEADER_SIZE;
+        byte[] body = new byte[256];
+        CRC32 crc = new CRC32();
+
+        while (position + RECORD_HEADER_SIZE <= mSize)
+        {
+            int length = input.readInt();
+            int checksum = input.readInt();
+            long start = position + RECORD_HEADER_SIZE;
+
+            if (length <= 0 || mSize < start + length)
+            {
+                // Partially written.
+                break;
+            }
+
+            if (body.length < length)
+            {
+                body = new byte[Math.max(length, body.length * 2)];
+            }
+
+            input.readFully(body, 0, length);
+
+            crc.reset();
+            crc.update(body, 0, length);
+
+            if ((int)crc.getValue() != checksum)
+            {
+                // Broken.
+                break;
+            }
+
+            index(body, start, length + RECORD_HEADER_SIZE);
+
+            position = start + length;
+        }
+
+        if (position < mSize)
+        {
+            // Discard the broken tail.
+            mChannel.truncate(position);
+            mSize = position;
+        }
+
+        mChannel.position(mSize);
+    }
+
+
+    private void index(byte[] body, long start, int size)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        byte type = buffer.get();
+        int pathLength = buffer.getShort() & 0xFFFF;
+        String path = newString(body, 3, pathLength);
+
+        buffer.position(3 + pathLength);
+
+        Integer old;
+
+        if (type == TYPE_PUT)
+        {
+            Stat stat = readStat(buffer);
+            int dataLength = buffer.getInt();
+
+            // Point to the content in the file.
+            long dataOffset = (dataLength < 0) ? -1 : start + buffer.position();
+
+            mRecords.put(path, new Record(stat, dataOffset, dataLength));
+            old = mWrittenSizes.put(path, Integer.valueOf(size));
+        }
+        else
+        {
+            mRecords.remove(path);
+            old = mWrittenSizes.remove(path);
+            mGarbageSize += size;
+        }
+
+        if (old != null)
+        {
+            mGarbageSize += old.intValue();
+        }
+    }
+
+
+    private void reset() throws IOException
+    {
+        mChannel.truncate(0);
+        writeHeader(mChannel);
+        mChannel.position(HEADER_SIZE);
+        mSize = HEADER_SIZE;
+    }
+
+
+    private static FileChannel openChannel(File file) throws IOException
+    {
+        return new RandomAccessFile(file, "rw").getChannel();
+    }
+
+
+    private static void writeHeader(FileChannel channel) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+
+        writeFully(channel, header, 0);
+    }
+
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            position += channel.write(buffer, position);
+        }
+    }
+
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            int count = channel.read(buffer, position);
+
+            if (count < 0)
+            {
+                return false;
+            }
+
+            position += count;
+        }
+
+        return true;
+    }
+
+
+    private int append(byte type, String path, byte[] data, Stat stat) throws IOException
+    {
+        ByteBuffer record = encode(type, path, data, stat);
+        int size = record.remaining();
+
+        try
+        {
+            writeFully(mChannel, record, mSize);
+        }
+        catch (IOException e)
+        {
+            // Do not leave a partial record before the next one.
+            try
+            {
+                mChannel.truncate(mSize);
+            }
+            catch (IOException e2)
+            {
+                // A partial record is discarded by the next load().
+            }
+
+            throw e;
+        }
+
+        mSize += size;
+
+        return size;
+    }
+
+
+    private static ByteBuffer encode(byte type, String path, byte[] data, Stat stat)
+    {
+        byte[] pathBytes = getBytes(path);
+        int length = 1 + 2 + pathBytes.length;
+
+        if (type == TYPE_PUT)
+        {
+            length += STAT_SIZE + 4 + ((data != null) ? data.length : 0);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        buffer.putInt(length).putInt(0);
+        buffer.put(type).putShort((short)pathBytes.length).put(pathBytes);
+
+        if (type == TYPE_PUT)
+        {
+            writeStat(buffer, stat);
+
+            if (data == null)
+            {
+                buffer.putInt(-1);
+            }
+            else
+            {
+                buffer.putInt(data.length).put(data);
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), RECORD_HEADER_SIZE, length);
+        buffer.putInt(4, (int)crc.getValue());
+
+        buffer.flip();
+
+        return buffer;
+    }
+
+
+    private static void writeStat(ByteBuffer buffer, Stat stat)
+    {
+        buffer.putLong(stat.getCzxid());
+        buffer.putLong(stat.getMzxid());
+        buffer.putLong(stat.getCtime());
+        buffer.putLong(stat.getMtime());
+        buffer.putInt(stat.getVersion());
+        buffer.putInt(stat.getCversion());
+        buffer.putInt(stat.getAversion());
+        buffer.putLong(stat.getEphemeralOwner());
+        buffer.putInt(stat.getDataLength());
+        buffer.putInt(stat.getNumChildren());
+        buffer.putLong(stat.getPzxid());
+    }
+
+
+    private static Stat readStat(ByteBuffer buffer)
+    {
+        Stat stat = new Stat();
+
+        stat.setCzxid(buffer.getLong());
+        stat.setMzxid(buffer.getLong());
+        stat.setCtime(buffer.getLong());
+        stat.setMtime(buffer.getLong());
+        stat.setVersion(buffer.getInt());
+        stat.setCversion(buffer.getInt());
+        stat.setAversion(buffer.getInt());
+        stat.setEphemeralOwner(buffer.getLong());
+        stat.setDataLength(buffer.getInt());
+        stat.setNumChildren(buffer.getInt());
+        stat.setPzxid(buffer.getLong());
+
+        return stat;
+    }
+
+
+    private static Stat copyStat(Stat stat)
+    {
+        return new Stat(stat.getCzxid(), stat.getMzxid(), stat.getCtime(), stat.getMtime(),
+            stat.getVersion(), stat.getCversion(), stat.getAversion(), stat.getEphemeralOwner(),
+            stat.getDataLength(), stat.getNumChildren(), stat.getPzxid());
+    }
+
+
+    private static byte[] getBytes(String string)
+    {
+        try
+        {
+            return string.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // This never happens.
+            return null;
+        }
+    }
+
+
+    private static String newString(byte[] bytes, int offset, int length)
+    {
+        try
+        {
+            return new String(bytes, offset, length, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // This never happens.
+            return null;
+        }
+    }
+
+
+    /**
+     * Cached record. The content is either in the heap or in the file.
+     */
+    private static final class Record
+    {
+        private final Stat mStat;
+        private final byte[] mData;
+        private final long mDataOffset;
+        private final int mDataLength;
+
+
+        Record(Stat stat, byte[] data)
+        {
+            mStat       = stat;
+            mData       = data;
+            mDataOffset = -1;
+            mDataLength = (data != null) ? data.length : -1;
+        }
+
+
+        Record(Stat stat, long dataOffset, int dataLength)
+        {
+            mStat       = stat;
+            mData       = null;
+            mDataOffset = dataOffset;
+            mDataLength = dataLength;
+        }
+
+
+        byte[] getData(FileChannel channel) throws IOException
+        {
+            if (mDataLength < 0)
+            {
+                return null;
+            }
+
+            if (mDataOffset < 0)
+            {
+                return mData.clone();
+            }
+
+            // A positional read does not disturb appends by the writer.
+            byte[] data = new byte[mDataLength];
+
+            if (readFully(channel, ByteBuffer.wrap(data), mDataOffset) == false)
+            {
+                throw new EOFException("The cache file is shorter than expected.");
+            }
+
+            return data;
+        }
+    }
+
+
+    private class FlushTask implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                flush();
+                compactIfNecessary();
+            }
+            catch (IOException e)
+            {
+                onWriteError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,928 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Cluster-wide rate limiter which enforces a global rate by local
+ * {@link TokenBucket}s.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * DistributedRateLimiter limiter = <span style="color: purple; font-weight: bold;">new</span> DistributedRateLimiter()
+ *     .{@link #setZooKeeper(ZooKeeper) setZooKeeper}(zooKeeper)
+ *     .{@link #setPath(String) setPath}(<span style="color: mediumblue;">"/rate-limit/api"</span>)
+ *     .{@link #setGlobalRate(double) setGlobalRate}(50000)
+ *     .{@link #start()};
+ *
+ * <span style="color: darkgreen;">// On each request. ZooKeeper is not accessed here.</span>
+ * <span style="color: purple; font-weight: bold;">if</span> (limiter.{@link #tryAcquire()} == <span style="color: purple; font-weight: bold;">false</span>) {
+ *     <span style="color: darkgreen;">// Reject the request.</span>
+ * }
+ * </pre>
+ *
+ * <p>
+ * Each node enforces its share of the global rate with a local {@link
+ * TokenBucket}, so the request path is O(1), lock-free and does not
+ * access ZooKeeper. Every {@link #setInterval(long) interval}, each node
+ * reports its demand (permits requested per second) to an ephemeral
+ * znode. A coordinator elected by {@link LeaderElection} collects the
+ * demands and redistributes the global rate. Each node receives its
+ * share through a {@link NodeReader} which {@link
+ * NodeReader#setWatching(boolean) watches} its share znode.
+ * </p>
+ *
+ * <p>
+ * The coordinator first gives every node {@link #setMinimumShareRatio(double)
+ * a minimum share} of an equal split, and then distributes the rest in
+ * proportion to the reported demands. The following znodes are used under
+ * the {@link #setPath(String) path}.
+ * </p>
+ *
+ * <blockquote>
+ * <table border="1" cellpadding="5" style="border-collapse: collapse;">
+ *   <tr><td>{@code leader}</td><td>The znode for electing the coordinator.</td></tr>
+ *   <tr><td><code>demands/<i>{node ID}</i></code></td><td>An ephemeral znode
+ *       holding the demand of the node.</td></tr>
+ *   <tr><td><code>shares/<i>{node ID}</i></code></td><td>The share of the
+ *       node in permits per second. The coordinator deletes it when the
+ *       demand znode of the node disappears.</td></tr>
+ * </table>
+ * </blockquote>
+ *
+ * <p>
+ * Until the first share is received, {@link #setInitialRate(double)
+ * the initial rate} is used.
+ * </p>
+ *
+ * @since 1.3
+ *
+ * @see TokenBucket
+ */
+public class DistributedRateLimiter
+{
+    private static final List<ACL> DEFAULT_ACL_LIST = ZooDefs.Ids.OPEN_ACL_UNSAFE;
+    private static final long DEFAULT_INTERVAL = 1000;
+    private static final double DEFAULT_MINIMUM_SHARE_RATIO = 0.1;
+
+
+    private final TokenBucket mBucket = new TokenBucket();
+    private ZooKeeper mZooKeeper;
+    private String mPath;
+    private String mNodeId;
+    private List<ACL> mAclList;
+    private double mGlobalRate;
+    private double mInitialRate;
+    private double mMinimumShareRatio = DEFAULT_MINIMUM_SHARE_RATIO;
+    private long mInterval = DEFAULT_INTERVAL;
+    private ScheduledExecutorService mExecutor;
+    private boolean mOwnExecutor;
+    private LeaderElection mElection;
+    private NodeReader mReader;
+    private ScheduledFuture<?> mReportTask;
+    private ScheduledFuture<?> mCoordinateTask;
+    private boolean mStarted;
+    private boolean mShouldFinish;
+
+    // Accessed only by the report task.
+    private long mLastCount;
+    private long mLastTime;
+    private boolean mDemandNodeCreated;
+
+    // Accessed only by the coordinate task.
+    private final Map<String, Double> mPublishedShares = new HashMap<String, Double>();
+
+
+    public DistributedRateLimiter()
+    {
+    }
+
+
+    public DistributedRateLimiter(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+    }
+
+
+    /**
+     * Get the {@link ZooKeeper} instance.
+     *
+     * @return
+     *         The {@link ZooKeeper} instance.
+     */
+    public ZooKeeper getZooKeeper()
+    {
+        return mZooKeeper;
+    }
+
+
+    /**
+     * Set the {@link ZooKeeper} instance.
+     *
+     * @param zooKeeper
+     *         A {@link ZooKeeper} instance.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public DistributedRateLimiter setZooKeeper(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+
+        return this;
+    }
+
+
+    /**
+     * Get the path of the znode under which znodes for the rate
+     * limiter are created.
+     *
+     * @return
+     *         The path.
+     */
+    public String getPath()
+    {
+        return mPath;
+    }
+
+
+    /**
+     * Set the path of the znode under which znodes for the rate limiter
+     * are created. The znode and its children used by this class are
+     * created if they do not exist. The parent of the znode must exist.
+     *
+     * @param path
+     *         The path.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public DistributedRateLimiter setPath(String path)
+    {
+        mPath = path;
+
+        return this;
+    }
+
+
+    /**
+     * Get the ID of this node.
+     *
+     * @return
+     *         The ID of this node.
+     */
+    public String getNodeId()
+    {
+        return mNodeId;
+    }
+
+
+    /**
+     * Set the ID of this node. The ID must be unique among nodes and
+     * must be usable as a znode name. If no ID is set when {@link
+     * #start()} is called, a random ID is generated.
+     *
+     * @param id
+     *         The ID of this node.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public DistributedRateLimiter setNodeId(String id)
+    {
+        mNodeId = id;
+
+        return this;
+    }
+
+
+    /**
+     * Get the ACL list used for creation of znodes.
+     *
+     * @return
+     *         The ACL list used for creation of znodes.
+     */
+    public List<ACL> getAclList()
+    {
+        return mAclList;
+    }
+
+
+    /**
+     * Set the ACL list used for creation of znodes. If no ACL list is
+     * set when {@link #start()} is called, {@link
+     * ZooDefs.Ids#OPEN_ACL_UNSAFE OPEN_ACL_UNSAFE} is used.
+     *
+     * @param list
+     *         The ACL list used for creation of znodes.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public DistributedRateLimiter setAclList(List<ACL> list)
+    {
+        mAclList = list;
+
+        return this;
+    }
+
+
+    /**
+     * Get the global rate.
+     *
+     * @return
+     *         The number of permits per second across the cluster.
+     */
+    public double getGlobalRate()
+    {
+        return mGlobalRate;
+    }
+
+
+    /**
+     * Set the global rate. All nodes should use the same value. The
+     * value used by the current coordinator takes effect.
+     *
+     * @param rate
+     *         The number of permits per second across the cluster.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public DistributedRateLimiter setGlobalRate(double rate)
+    {
+        mGlobalRate = rate;
+
+        return this;
+    }
+
+
+    /**
+     * Get the rate used until the first share is received.
+     *
+     * @return
+     *         The number of permits per second.
+     */
+    public double getInitialRate()
+    {
+        return mInitialRate;
+    }
+
+
+    /**
+     * Set the rate used until the first share is received. The default
+     * value is 0, i.e. all requests are denied until the coordinator
+     * assigns a share to this node.
+     *
+     * @param rate
+     *         The number of permits per second.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public DistributedRateLimiter setInitialRate(double rate)
+    {
+        mInitialRate = rate;
+
+        return this;
+    }
+
+
+    /**
+     * Get the ratio of the minimum share to an equal split.
+     *
+     * @return
+     *         The ratio of the minimum share.
+     */
+    public double getMinimumShareRatio()
+    {
+        return mMinimumShareRatio;
+    }
+
+
+    /**
+     * Set the ratio of the minimum share to an equal split. For example,
+     * if the global rate is 1000, there are 10 nodes and the ratio is 0.1
+     * (default), every node gets at least 10 permits per second regardless
+     * of its demand so that a node whose demand rises can be served until
+     * the next redistribution.
+     *
+     * @param ratio
+     *         The ratio of the minimum share, from 0 to 1.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public DistributedRateLimiter setMinimumShareRatio(double ratio)
+    {
+        mMinimumShareRatio = Math.max(0, Math.min(1, ratio));
+
+        return this;
+    }
+
+
+    /**
+     * Get the interval of demand reports and redistribution.
+     *
+     * @return
+     *         The interval in milliseconds.
+     */
+    public long getInterval()
+    {
+        return mInterval;
+    }
+
+
+    /**
+     * Set the interval of demand reports and redistribution.
+     * The default value is 1000 milliseconds.
+     *
+     * @param interval
+     *         The interval in milliseconds.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public DistributedRateLimiter setInterval(long interval)
+    {
+        mInterval = interval;
+
+        return this;
+    }
+
+
+    /**
+     * Get the executor which runs periodic tasks.
+     *
+     * @return
+     *         The executor.
+     */
+    public ScheduledExecutorService getExecutor()
+    {
+        return mExecutor;
+    }
+
+
+    /**
+     * Set the executor which runs periodic tasks. The tasks make
+     * synchronous ZooKeeper calls, so the executor should not be shared
+     * with tasks which must not be delayed. If no executor is set when
+     * {@link #start()} is called, a single-thread executor with a daemon
+     * thread is created and it is shut down by {@link #finish()}.
+     *
+     * @param executor
+     *         An executor.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public DistributedRateLimiter setExecutor(ScheduledExecutorService executor)
+    {
+        mExecutor = executor;
+
+        return this;
+    }
+
+
+    /**
+     * Get the local token bucket which enforces the share of this node.
+     *
+     * @return
+     *         The local token bucket.
+     */
+    public TokenBucket getBucket()
+    {
+        return mBucket;
+    }
+
+
+    /**
+     * Try to acquire a permit from the share of this node. This method
+     * does not access ZooKeeper.
+     *
+     * @return
+     *         {@code true} if a permit was acquired.
+     */
+    public boolean tryAcquire()
+    {
+        return mBucket.tryAcquire(1);
+    }
+
+
+    /**
+     * Try to acquire permits from the share of this node. This method
+     * does not access ZooKeeper.
+     *
+     * @param permits
+     *         The number of permits.
+     *
+     * @return
+     *         {@code true} if the permits were acquired.
+     *
+     * @throws IllegalArgumentException
+     *         {@code permits} is zero or negative.
+     */
+    public boolean tryAcquire(int permits)
+    {
+        return mBucket.tryAcquire(permits);
+    }
+
+
+    /**
+     * Start the rate limiter. This node starts reporting its demand,
+     * reading its share, and running for the coordinator.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalStateException
+     *         <ul>
+     *           <li>No {@link ZooKeeper} instance is set.
+     *           <li>No path is set.
+     *           <li>{@code start()} has already been called.
+     *         </ul>
+     */
+    public DistributedRateLimiter start()
+    {
+        if (mZooKeeper == null)
+        {
+            throw new IllegalStateException("A ZooKeeper instance must be set.");
+        }
+
+        if (mPath == null)
+        {
+            throw new IllegalStateException("A path must be set.");
+        }
+
+        synchronized (this)
+        {
+            if (mStarted)
+            {
+                throw new IllegalStateException("start() can be called only once.");
+            }
+
+            mStarted = true;
+
+            if (mExecutor == null)
+            {
+                mExecutor    = DaemonScheduler.newExecutor("DistributedRateLimiter");
+                mOwnExecutor = true;
+            }
+        }
+
+        if (mNodeId == null)
+        {
+            mNodeId = String.valueOf(Math.abs(new Random().nextLong()));
+        }
+
+        if (mAclList == null)
+        {
+            mAclList = DEFAULT_ACL_LIST;
+        }
+
+        mBucket.setRate(mInitialRate);
+        mLastCount = mBucket.getRequestCount();
+        mLastTime  = System.nanoTime();
+
+        // Report the demand periodically. The first report creates
+        // the znodes used by this class.
+        mReportTask = mExecutor.scheduleWithFixedDelay(
+            new ReportTask(), 0, mInterval, TimeUnit.MILLISECONDS);
+
+        // Read the share of this node and follow its changes.
+        mReader = new NodeReader()
+            .setZooKeeper(mZooKeeper)
+            .setPath(mPath + "/shares/" + mNodeId)
+            .setWatching(true)
+            .setListener(new ShareListener())
+            .start();
+
+        // Run for the coordinator.
+        mElection = new LeaderElection()
+            .setZooKeeper(mZooKeeper)
+            .setPath(mPath + "/leader")
+            .setId(mNodeId)
+            .setAclList(mAclList)
+            .setListener(new ElectionListener())
+            .start();
+
+        return this;
+    }
+
+
+    /**
+     * Stop the rate limiter. The local token bucket keeps the last share.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public DistributedRateLimiter finish()
+    {
+        synchronized (this)
+        {
+            mShouldFinish = true;
+
+            if (mStarted == false)
+            {
+                return this;
+            }
+
+            stopCoordinating();
+            mReportTask.cancel(false);
+        }
+
+        mElection.finish();
+        mReader.finish();
+
+        if (mOwnExecutor)
+        {
+            mExecutor.shutdownNow();
+        }
+
+        return this;
+    }
+
+
+    /**
+     * Compute shares of the global rate.
+     *
+     * @param demands
+     *         Demands of nodes in permits per second.
+     *
+     * @param globalRate
+     *         The global rate in permits per second.
+     *
+     * @param minimumShareRatio
+     *         The ratio of the minimum share to an equal split.
+     *
+     * @return
+     *         Shares of nodes in permits per second. The sum of the
+     *         shares equals to {@code globalRate}.
+     */
+    public static Map<String, Double> computeShares(
+            Map<String, Double> demands, double globalRate, double minimumShareRatio)
+    {
+        Map<String, Double> shares = new HashMap<String, Double>();
+        int count = demands.size();
+
+        if (count == 0)
+        {
+            return shares;
+        }
+
+        double minimum = globalRate / count * minimumShareRatio;
+        double rest = globalRate - minimum * count;
+        double total = 0;
+
+        for (Double demand : demands.values())
+        {
+            total += Math.max(0, demand.doubleValue());
+        }
+
+        for (Map.Entry<String, Double> entry : demands.entrySet())
+        {
+            double demand = Math.max(0, entry.getValue().doubleValue());
+
+            // Split the rest in proportion to demands, or equally
+            // if nobody has demand.
+            double extra = (0 < total) ? rest * demand / total : rest / count;
+
+            shares.put(entry.getKey(), Double.valueOf(minimum + extra));
+        }
+
+        return shares;
+    }
+
+
+    private synchronized void startCoordinating()
+    {
+        if (mShouldFinish || mCoordinateTask != null)
+        {
+            return;
+        }
+
+        mCoordinateTask = mExecutor.scheduleWithFixedDelay(
+            new CoordinateTask(), 0, mInterval, TimeUnit.MILLISECONDS);
+    }
+
+
+    private synchronized void stopCoordinating()
+    {
+        if (mCoordinateTask != null)
+        {
+            mCoordinateTask.cancel(false);
+            mCoordinateTask = null;
+        }
+    }
+
+
+    private void report() throws KeeperException, InterruptedException
+    {
+        long now   = System.nanoTime();
+        long count = mBucket.getRequestCount();
+        double seconds = (now - mLastTime) / 1e9;
+        double demand  = (0 < seconds) ? (count - mLastCount) / seconds : 0;
+
+        mLastTime  = now;
+        mLastCount = count;
+
+        String path = mPath + "/demands/" + mNodeId;
+        byte[] data = getBytes(String.valueOf(demand));
+
+        if (mDemandNodeCreated)
+        {
+            try
+            {
+                mZooKeeper.setData(path, data, -1);
+                return;
+            }
+            catch (KeeperException.NoNodeException e)
+            {
+                // Create it again below.
+            }
+        }
+
+        createIfAbsent(mPath);
+        createIfAbsent(mPath + "/demands");
+        createIfAbsent(mPath + "/shares");
+
+        try
+        {
+            mZooKeeper.create(path, data, mAclList, CreateMode.EPHEMERAL);
+        }
+        catch (KeeperException.NodeExistsException e)
+        {
+            mZooKeeper.setData(path, data, -1);
+        }
+
+        mDemandNodeCreated = true;
+    }
+
+
+    private void coordinate() throws KeeperException, InterruptedException
+    {
+        String demandsPath = mPath + "/demands";
+        Map<String, Double> demands = new HashMap<String, Double>();
+
+        for (String node : mZooKeeper.getChildren(demandsPath, false))
+        {
+            try
+            {
+                byte[] data = mZooKeeper.getData(demandsPath + "/" + node, false, null);
+                demands.put(node, Double.valueOf(newString(data)));
+            }
+            catch (KeeperException.NoNodeException e)
+            {
+                // The node has left.
+            }
+            catch (NumberFormatException e)
+            {
+                // Regard the broken demand as zero.
+                demands.put(node, Double.valueOf(0));
+            }
+        }
+
+        Map<String, Double> shares = computeShares(demands, mGlobalRate, mMinimumShareRatio);
+
+        // A new coordinator does not know which nodes have left before
+        // it took over, so it looks for stale shares first.
+        boolean deleteShares = mPublishedShares.isEmpty();
+
+        for (Map.Entry<String, Double> entry : shares.entrySet())
+        {
+            Double previous = mPublishedShares.get(entry.getKey());
+            double share = entry.getValue().doubleValue();
+
+            // Skip writing if the share has not changed meaningfully.
+            if (previous != null && Math.abs(previous.doubleValue() - share) <= share * 0.01)
+            {
+                continue;
+            }
+
+            String path = mPath + "/shares/" + entry.getKey();
+            byte[] data = getBytes(String.valueOf(share));
+
+            try
+            {
+                mZooKeeper.setData(path, data, -1);
+            }
+            catch (KeeperException.NoNodeException e)
+            {
+                try
+                {
+                    mZooKeeper.create(path, data, mAclList, CreateMode.PERSISTENT);
+                }
+                catch (KeeperException.NodeExistsException e2)
+                {
+                    mZooKeeper.setData(path, data, -1);
+                }
+            }
+
+            mPublishedShares.put(entry.getKey(), entry.getValue());
+        }
+
+        if (mPublishedShares.size() != shares.size())
+        {
+            // Some nodes have left. Forget them.
+            mPublishedShares.keySet().retainAll(shares.keySet());
+            deleteShares = true;
+        }
+
+        if (deleteShares)
+        {
+            deleteSharesExcept(shares.keySet());
+        }
+    }
+
+
+    private void deleteSharesExcept(Set<String> nodes) throws KeeperException, InterruptedException
+    {
+        String sharesPath = mPath + "/shares";
+
+        // Share znodes are persistent so that a share survives a change
+        // of the coordinator. Delete those of nodes which have left.
+        for (String node : mZooKeeper.getChildren(sharesPath, false))
+        {
+            if (nodes.contains(node))
+            {
+                continue;
+            }
+
+            try
+            {
+                mZooKeeper.delete(sharesPath + "/" + node, -1);
+            }
+            catch (KeeperException.NoNodeException e)
+            {
+                // Already deleted.
+            }
+        }
+    }
+
+
+    private void createIfAbsent(String path) throws KeeperException, InterruptedException
+    {
+        try
+        {
+            mZooKeeper.create(path, null, mAclList, CreateMode.PERSISTENT);
+        }
+        catch (KeeperException.NodeExistsException e)
+        {
+            // Already exists.
+        }
+    }
+
+
+    private class ReportTask implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                report();
+            }
+            catch (KeeperException e)
+            {
+                // Retry at the next interval.
+            }
+            catch (InterruptedException e)
+            {
+                // The executor is shutting down.
+            }
+        }
+    }
+
+
+    private class CoordinateTask implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                coordinate();
+            }
+            catch (KeeperException e)
+            {
+                // Retry at the next interval. Shares may have been
+                // written partially, so write all of them next time.
+                mPublishedShares.clear();
+            }
+            catch (InterruptedException e)
+            {
+                // The executor is shutting down.
+            }
+        }
+    }
+
+
+    private class ElectionListener extends LeaderElection.Adapter
+    {
+        @Override
+        public void onWin(LeaderElection election)
+        {
+            startCoordinating();
+        }
+
+
+        @Override
+        public void onLose(LeaderElection election)
+        {
+            stopCoordinating();
+        }
+
+
+        @Override
+        public void onVacant(LeaderElection election)
+        {
+            stopCoordinating();
+        }
+
+
+        @Override
+        public void onFinish(LeaderElection election)
+        {
+            stopCoordinating();
+        }
+    }
+
+
+    private class ShareListener extends NodeReader.Adapter
+    {
+        @Override
+        public void onRead(NodeReader reader, byte[] data, Stat stat)
+        {
+            try
+            {
+                mBucket.setRate(Double.parseDouble(newString(data)));
+            }
+            catch (RuntimeException e)
+            {
+                // Keep the current rate if the share is broken.
+            }
+        }
+    }
+
+
+    private static byte[] getBytes(String string)
+    {
+        try
+        {
+            return string.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // This never happens.
+            return null;
+        }
+    }
+
+
+    private static String newString(byte[] bytes)
+    {
+        if (bytes == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return new String(bytes, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // This never happens.
+            return null;
+        }
+    }
+}
@@ -0,0 +1,851 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Waiter for a set of znodes to exist.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * <span style="color: darkgreen;">// Wait for all the dependencies to be registered.</span>
+ * <span style="color: purple; font-weight: bold;">new</span> ExistenceWaiter(zooKeeper)
+ *     .{@link #addPath(String) addPath}(<span style="color: mediumblue;">"/schema/v3"</span>)
+ *     .{@link #addPath(String) addPath}(<span style="color: mediumblue;">"/features/new-billing"</span>)
+ *     .{@link #addPaths(Collection) addPaths}(peerPaths)
+ *     .{@link #setCondition(Condition) setCondition}(ExistenceWaiter.Condition.ALL)
+ *     .{@link #setTimeout(long, TimeUnit) setTimeout}(30, TimeUnit.SECONDS)
+ *     .{@link #setListener(Listener) setListener}(<span style="color: purple; font-weight: bold;">new</span> ExistenceWaiter.{@link Adapter}() {
+ *         <span style="color: gray;">&#x40;Override</span>
+ *         <span style="color: purple; font-weight: bold;">public void</span> {@link Listener#onSatisfied(ExistenceWaiter)
+ *         onSatisfied}(ExistenceWaiter waiter) {
+ *             startService();
+ *         }
+ *
+ *         <span style="color: gray;">&#x40;Override</span>
+ *         <span style="color: purple; font-weight: bold;">public void</span> {@link Listener#onTimedOut(ExistenceWaiter)
+ *         onTimedOut}(ExistenceWaiter waiter) {
+ *             System.out.println(<span style="color: mediumblue;">"Missing: "</span> + waiter.{@link #getMissingPaths()});
+ *         }
+ *     })
+ *     .{@link #start()};
+ * </pre>
+ *
+ * <p>
+ * {@link #start()} sends one {@code exists()} request per path at once
+ * without waiting for responses. All the requests share one {@link
+ * Watcher} instance and one callback instance, so waiting for many
+ * paths costs one request and no extra objects per path as long as the
+ * connection is stable. A path which has been created is detected by
+ * the watch. Unless the condition is satisfied by it, the watch is set
+ * again by another {@code exists()} so that a deletion is detected.
+ * </p>
+ *
+ * <p>
+ * Until the {@link #setCondition(Condition) condition} is satisfied,
+ * a path which is deleted after it was found is counted as missing
+ * again. After the condition is satisfied, or the waiter times out or
+ * gives up, no more requests are sent. Watches which remain on the
+ * server are ignored when they are triggered. These watches are not
+ * counted by {@link WatchManager}.
+ * </p>
+ *
+ * @since 1.3
+ */
+public class ExistenceWaiter
+{
+    /**
+     * Condition to complete waiting.
+     */
+    public enum Condition
+    {
+        /**
+         * All the paths exist.
+         */
+        ALL,
+
+
+        /**
+         * At least one of the paths exists.
+         */
+        ANY,
+
+
+        /**
+         * A majority of the paths exist.
+         */
+        QUORUM
+    }
+
+
+    /**
+     * Listener interface to receive the result of waiting.
+     */
+    public interface Listener
+    {
+        /**
+         * Called when the condition has been satisfied.
+         *
+         * @param waiter
+         *         The {@link ExistenceWaiter} instance which this
+         *         listener is associated with.
+         */
+        void onSatisfied(ExistenceWaiter waiter);
+
+
+        /**
+         * Called when the condition was not satisfied within the
+         * timeout. This method is called on a thread of the executor.
+         *
+         * @param waiter
+         *         The {@link ExistenceWaiter} instance which this
+         *         listener is associated with.
+         */
+        void onTimedOut(ExistenceWaiter waiter);
+
+
+        /**
+         * Called when the waiter gave up waiting because {@link
+         * #finish()} was called or the {@link ZooKeeper} instance
+         * reports {@link ZooKeeper.States#AUTH_FAILED AUTH_FAILED} or
+         * {@link ZooKeeper.States#CLOSED CLOSED}.
+         *
+         * @param waiter
+         *         The {@link ExistenceWaiter} instance which this
+         *         listener is associated with.
+         */
+        void onGaveUp(ExistenceWaiter waiter);
+    }
+
+
+    /**
+     * An empty implementation of {@link Listener} interface.
+     */
+    public static class Adapter implements Listener
+    {
+        @Override
+        public void onSatisfied(ExistenceWaiter waiter)
+        {
+        }
+
+
+        @Override
+        public void onTimedOut(ExistenceWaiter waiter)
+        {
+        }
+
+
+        @Override
+        public void onGaveUp(ExistenceWaiter waiter)
+        {
+        }
+    }
+
+
+    // Shared by all waiters. Each waiter passes itself as the context,
+    // and the path given to processResult() identifies the znode.
+    private static final StatCallback sExistsCallback = new ExistsCallback();
+
+
+    private ZooKeeper mZooKeeper;
+    private final Set<String> mPaths = new LinkedHashSet<String>();
+    private Condition mCondition = Condition.ALL;
+    private long mTimeout;
+    private Listener mListener;
+    private RequestDispatcher mDispatcher;
+    private ScheduledExecutorService mExecutor;
+    private final Watcher mWatcher = new TrackWatcher();
+
+    // Guarded by this.
+    private final Set<String> mMissing = new HashSet<String>();
+    private final Set<String> mExisting = new LinkedHashSet<String>();
+    private int mRequired;
+    private boolean mStarted;
+    private boolean mDone;
+    private ScheduledFuture<?> mTimeoutFuture;
+
+
+    public ExistenceWaiter()
+    {
+    }
+
+
+    public ExistenceWaiter(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+    }
+
+
+    /**
+     * Get the {@link ZooKeeper} instance.
+     *
+     * @return
+     *         The {@link ZooKeeper} instance.
+     */
+    public ZooKeeper getZooKeeper()
+    {
+        return mZooKeeper;
+    }
+
+
+    /**
+     * Set the {@link ZooKeeper} instance.
+     *
+     * <p>
+     * If no {@link ZooKeeper} instance is set when {@link #start()} is called,
+     * an {@code IllegalStateException} is thrown.
+     * </p>
+     *
+     * @param zooKeeper
+     *         A {@link ZooKeeper} instance.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ExistenceWaiter setZooKeeper(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+
+        return this;
+    }
+
+
+    /**
+     * Get the paths to wait for.
+     *
+     * @return
+     *         A copy of the paths.
+     */
+    public synchronized Set<String> getPaths()
+    {
+        return new LinkedHashSet<String>(mPaths);
+    }
+
+
+    /**
+     * Add a path to wait for. This method should be called before
+     * {@link #start()}.
+     *
+     * @param path
+     *         A path.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public synchronized ExistenceWaiter addPath(String path)
+    {
+        if (path == null)
+        {
+            throw new NullPointerException("path is null.");
+        }
+
+        mPaths.add(path);
+
+        return this;
+    }
+
+
+    /**
+     * Add paths to wait for. This method should be called before
+     * {@link #start()}.
+     *
+     * @param paths
+     *         Paths.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ExistenceWaiter addPaths(Collection<String> paths)
+    {
+        for (String path : paths)
+        {
+            addPath(path);
+        }
+
+        return this;
+    }
+
+
+    /**
+     * Get the condition to complete waiting.
+     *
+     * @return
+     *         The condition.
+     */
+    public Condition getCondition()
+    {
+        return mCondition;
+    }
+
+
+    /**
+     * Set the condition to complete waiting. The default value is
+     * {@link Condition#ALL ALL}. This method should be called before
+     * {@link #start()}.
+     *
+     * @param condition
+     *         The condition. {@code null} is regarded as {@code ALL}.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ExistenceWaiter setCondition(Condition condition)
+    {
+        mCondition = (condition != null) ? condition : Condition.ALL;
+
+        return this;
+    }
+
+
+    /**
+     * Get the timeout.
+     *
+     * @return
+     *         The timeout in milliseconds. 0 means no timeout.
+     */
+    public long getTimeout()
+    {
+        return mTimeout;
+    }
+
+
+    /**
+     * Set the timeout. When the condition is not satisfied within the
+     * timeout after {@link #start()}, {@link Listener#onTimedOut(ExistenceWaiter)
+     * onTimedOut()} is called. The default value is 0, which means no
+     * timeout.
+     *
+     * @param timeout
+     *         The timeout. 0 or a negative value means no timeout.
+     *
+     * @param unit
+     *         The unit of {@code timeout}.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ExistenceWaiter setTimeout(long timeout, TimeUnit unit)
+    {
+        mTimeout = Math.max(0, unit.toMillis(timeout));
+
+        return this;
+    }
+
+
+    /**
+     * Get the listener.
+     *
+     * @return
+     *         The listener.
+     */
+    public Listener getListener()
+    {
+        return mListener;
+    }
+
+
+    /**
+     * Set a listener.
+     *
+     * @param listener
+     *         A listener.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ExistenceWaiter setListener(Listener listener)
+    {
+        mListener = listener;
+
+        return this;
+    }
+
+
+    /**
+     * Get the dispatcher of requests.
+     *
+     * @return
+     *         The dispatcher. {@code null} if no dispatcher is set.
+     */
+    public RequestDispatcher getDispatcher()
+    {
+        return mDispatcher;
+    }
+
+
+    /**
+     * Set a dispatcher of requests. If a dispatcher is set, {@code
+     * exists()} requests are sent through the dispatcher with {@link
+     * RequestDispatcher.Priority#NORMAL NORMAL} priority, which is
+     * useful to pace the requests of a large number of paths. The
+     * dispatcher must be associated with the same {@link ZooKeeper}
+     * instance.
+     *
+     * @param dispatcher
+     *         A dispatcher. {@code null} to send requests directly
+     *         (default).
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ExistenceWaiter setDispatcher(RequestDispatcher dispatcher)
+    {
+        mDispatcher = dispatcher;
+
+        return this;
+    }
+
+
+    /**
+     * Get the executor which runs the timeout.
+     *
+     * @return
+     *         The executor. {@code null} if no executor is set.
+     */
+    public ScheduledExecutorService getExecutor()
+    {
+        return mExecutor;
+    }
+
+
+    /**
+     * Set the executor which runs the timeout and calls {@link
+     * Listener#onTimedOut(ExistenceWaiter) onTimedOut()}. If no executor
+     * is set, a single-thread executor with a daemon thread shared by
+     * all recipes is used, so the listener should not block in {@code
+     * onTimedOut()}.
+     *
+     * @param executor
+     *         An executor.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ExistenceWaiter setExecutor(ScheduledExecutorService executor)
+    {
+        mExecutor = executor;
+
+        return this;
+    }
+
+
+    /**
+     * Get the paths which have been found to exist.
+     *
+     * @return
+     *         A copy of the paths.
+     */
+    public synchronized Set<String> getExistingPaths()
+    {
+        return new LinkedHashSet<String>(mExisting);
+    }
+
+
+    /**
+     * Get the paths which have not been found to exist.
+     *
+     * @return
+     *         A copy of the paths.
+     */
+    public synchronized Set<String> getMissingPaths()
+    {
+        Set<String> missing = new LinkedHashSet<String>(mPaths);
+        missing.removeAll(mExisting);
+
+        return missing;
+    }
+
+
+    /**
+     * Check if the condition has been satisfied.
+     *
+     * @return
+     *         {@code true} if the condition has been satisfied.
+     */
+    public synchronized boolean isSatisfied()
+    {
+        return mStarted && mRequired <= mExisting.size();
+    }
+
+
+    /**
+     * Start waiting.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalStateException
+     *         <ul>
+     *           <li>No {@link ZooKeeper} instance is set.
+     *           <li>No path is set.
+     *           <li>This waiter has already been started.
+     *         </ul>
+     */
+    public ExistenceWaiter start()
+    {
+        // If a ZooKeeper instance is not set.
+        if (mZooKeeper == null)
+        {
+            // A ZooKeeper instance must be set before start().
+            throw new IllegalStateException("A ZooKeeper instance must be set.");
+        }
+
+        String[] paths;
+
+        synchronized (this)
+        {
+            if (mPaths.size() == 0)
+            {
+                throw new IllegalStateException("At least one path must be set.");
+            }
+
+            if (mStarted)
+            {
+                throw new IllegalStateException("The waiter has already been started.");
+            }
+
+            mStarted = true;
+            mMissing.addAll(mPaths);
+            mRequired = computeRequired(mCondition, mPaths.size());
+            paths = mPaths.toArray(new String[mPaths.size()]);
+
+            if (0 < mTimeout)
+            {
+                mTimeoutFuture = getExecutorToUse().schedule(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        timeOut();
+                    }
+                }, mTimeout, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        // Pipeline the requests.
+        for (String path : paths)
+        {
+            exists(path);
+        }
+
+        return this;
+    }
+
+
+    /**
+     * Stop waiting. If the condition has not been satisfied yet, {@link
+     * Listener#onGaveUp(ExistenceWaiter) onGaveUp()} is called.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ExistenceWaiter finish()
+    {
+        if (complete())
+        {
+            callOnGaveUp();
+        }
+
+        return this;
+    }
+
+
+    private static int computeRequired(Condition condition, int count)
+    {
+        switch (condition)
+        {
+            case ANY:
+                return 1;
+
+            case QUORUM:
+                return count / 2 + 1;
+
+            case ALL:
+            default:
+                return count;
+        }
+    }
+
+
+    private ScheduledExecutorService getExecutorToUse()
+    {
+        if (mExecutor != null)
+        {
+            return mExecutor;
+        }
+
+        return DaemonScheduler.getShared();
+    }
+
+
+    private boolean shouldFinish()
+    {
+        switch (mZooKeeper.getState())
+        {
+            case AUTH_FAILED:
+            case CLOSED:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+
+    private synchronized boolean isDone()
+    {
+        return mDone;
+    }
+
+
+    /**
+     * Mark as done. Returns {@code false} if already done.
+     */
+    private boolean complete()
+    {
+        ScheduledFuture<?> future;
+
+        synchronized (this)
+        {
+            if (mDone)
+            {
+                return false;
+            }
+
+            mDone = true;
+            future = mTimeoutFuture;
+            mTimeoutFuture = null;
+        }
+
+        if (future != null)
+        {
+            future.cancel(false);
+        }
+
+        return true;
+    }
+
+
+    private void exists(String path)
+    {
+        if (isDone())
+        {
+            return;
+        }
+
+        if (shouldFinish())
+        {
+            if (complete())
+            {
+                callOnGaveUp();
+            }
+
+            return;
+        }
+
+        if (mDispatcher != null)
+        {
+            mDispatcher.exists(path, mWatcher, sExistsCallback, this, RequestDispatcher.Priority.NORMAL);
+        }
+        else
+        {
+            mZooKeeper.exists(path, mWatcher, sExistsCallback, this);
+        }
+    }
+
+
+    private void found(String path)
+    {
+        synchronized (this)
+        {
+            if (mDone || mMissing.remove(path) == false)
+            {
+                return;
+            }
+
+            mExisting.add(path);
+
+            if (mExisting.size() < mRequired)
+            {
+                return;
+            }
+        }
+
+        if (complete())
+        {
+            callOnSatisfied();
+        }
+    }
+
+
+    private void lost(String path)
+    {
+        synchronized (this)
+        {
+            if (mDone || mExisting.remove(path) == false)
+            {
+                return;
+            }
+
+            mMissing.add(path);
+        }
+    }
+
+
+    private void timeOut()
+    {
+        if (complete())
+        {
+            callOnTimedOut();
+        }
+    }
+
+
+    private void callOnSatisfied()
+    {
+        if (mListener == null)
+        {
+            return;
+        }
+
+        try
+        {
+            mListener.onSatisfied(this);
+        }
+        catch (RuntimeException e)
+        {
+            // Ignore.
+        }
+    }
+
+
+    private void callOnTimedOut()
+    {
+        if (mListener == null)
+        {
+            return;
+        }
+
+        try
+        {
+            mListener.onTimedOut(this);
+        }
+        catch (RuntimeException e)
+        {
+            // Ignore.
+        }
+    }
+
+
+    private void callOnGaveUp()
+    {
+        if (mListener == null)
+        {
+            return;
+        }
+
+        try
+        {
+            mListener.onGaveUp(this);
+        }
+        catch (RuntimeException e)
+        {
+            // Ignore.
+        }
+    }
+
+
+    private class TrackWatcher implements Watcher
+    {
+        @Override
+        public void process(WatchedEvent event)
+        {
+            String path = event.getPath();
+
+            switch (event.getType())
+            {
+                case NodeCreated:
+                    found(path);
+
+                    // The watch has been consumed. Set it again to detect
+                    // deletion while other paths are awaited. found() is
+                    // idempotent, so the result of exists() does no harm.
+                    exists(path);
+                    return;
+
+                case NodeDeleted:
+                    // Deleted before the condition was satisfied.
+                    lost(path);
+                    exists(path);
+                    return;
+
+                case NodeDataChanged:
+                    // Set the watch again to detect deletion.
+                    exists(path);
+                    return;
+
+                case None:
+                    if (shouldFinish() && complete())
+                    {
+                        callOnGaveUp();
+                    }
+                    return;
+
+                default:
+                    return;
+            }
+        }
+    }
+
+
+    private static class ExistsCallback implements StatCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat)
+        {
+            ExistenceWaiter waiter = (ExistenceWaiter)ctx;
+
+            switch (Code.get(rc))
+            {
+                case OK:
+                    waiter.found(path);
+                    return;
+
+                case NONODE:
+                    // Wait for the watcher to be triggered.
+                    return;
+
+                default:
+                    // Retry.
+                    waiter.exists(path);
+                    return;
+            }
+        }
+    }
+}
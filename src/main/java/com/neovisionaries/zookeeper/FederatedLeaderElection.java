@@ -0,0 +1,808 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Two-tier leader election over a local ensemble and a global ensemble.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * <span style="color: darkgreen;">// localZooKeeper is connected to the ensemble of this zone.</span>
+ * <span style="color: darkgreen;">// globalZooKeeper is connected to the ensemble shared by all zones.</span>
+ * FederatedLeaderElection election = <span style="color: purple; font-weight: bold;">new</span> FederatedLeaderElection()
+ *     .{@link #setLocalZooKeeper(ZooKeeper) setLocalZooKeeper}(localZooKeeper)
+ *     .{@link #setGlobalZooKeeper(ZooKeeper) setGlobalZooKeeper}(globalZooKeeper)
+ *     .{@link #setListener(Listener) setListener}(<span style="color: purple; font-weight: bold;">new</span> FederatedLeaderElection.Listener() {
+ *         <span style="color: gray;">&#x40;Override</span>
+ *         <span style="color: purple; font-weight: bold;">public void</span> {@link Listener#onRoleChanged(FederatedLeaderElection, Role, Role)
+ *         onRoleChanged}(FederatedLeaderElection election, {@link Role} oldRole, {@link Role} newRole) {
+ *             System.out.format(<span style="color: mediumblue;">"The role was changed from %s to %s.\n"</span>, oldRole, newRole);
+ *         }
+ *     })
+ *     .{@link #start()};
+ * </pre>
+ *
+ * <p>
+ * A candidate first joins a {@link LeaderElection} on the local ensemble.
+ * Only while it is the leader of the zone, it joins another {@code
+ * LeaderElection} on the global ensemble among the leaders of the zones.
+ * Followers never talk to the global ensemble, so decisions at the zone
+ * level do not pay cross-zone latency.
+ * </p>
+ *
+ * <p>
+ * When a candidate stops being the leader of its zone, e.g. its session
+ * of the local ensemble has expired, it resigns the global leadership by
+ * deleting the znode which it created on the global ensemble. Then the
+ * leader of another zone can take over the global role. When the global
+ * ensemble is unavailable, the leaders of the zones keep the role
+ * {@link Role#LOCAL_LEADER LOCAL_LEADER}.
+ * </p>
+ *
+ * <p>
+ * Each time a candidate becomes the leader of its zone, a new global
+ * election is started. When the global election ends while the
+ * candidate is still the leader of its zone, e.g. its session of the
+ * global ensemble has expired, a new global election is started again
+ * after a delay, which grows from 1 second up to 1 minute while the
+ * retries keep failing. The global {@link ZooKeeper} instance may be
+ * replaced by {@link #setGlobalZooKeeper(ZooKeeper)} after its session
+ * has expired, and the next retry uses the new instance.
+ * </p>
+ *
+ * @since 1.3
+ */
+public class FederatedLeaderElection
+{
+    /**
+     * Role of a candidate.
+     */
+    public enum Role
+    {
+        /**
+         * The candidate is not the leader of its zone.
+         */
+        NONE,
+
+
+        /**
+         * The candidate is the leader of its zone, but not the global
+         * leader.
+         */
+        LOCAL_LEADER,
+
+
+        /**
+         * The candidate is the leader of its zone and the global leader.
+         */
+        GLOBAL_LEADER
+    }
+
+
+    /**
+     * Listener interface to receive changes of the role.
+     */
+    public interface Listener
+    {
+        /**
+         * Called when the role of this candidate has changed.
+         *
+         * @param election
+         *         The {@link FederatedLeaderElection} instance which this
+         *         listener is associated with.
+         *
+         * @param oldRole
+         *         The previous role.
+         *
+         * @param newRole
+         *         The new role.
+         */
+        void onRoleChanged(FederatedLeaderElection election, Role oldRole, Role newRole);
+    }
+
+
+    private static final String DEFAULT_PATH = "/leader";
+    private static final long MIN_RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 60000;
+    private static final VoidCallback sResignCallback = new ResignCallback();
+
+
+    private ZooKeeper mLocalZooKeeper;
+    private ZooKeeper mGlobalZooKeeper;
+    private String mLocalPath;
+    private String mGlobalPath;
+    private String mId;
+    private Listener mListener;
+    private LeaderElection mLocal;
+    private LeaderElection mGlobal;
+    private final LeaderElection.Listener mLocalObserver = new LocalObserver();
+    private final LeaderElection.Listener mGlobalObserver = new GlobalObserver();
+
+    // Guarded by this.
+    private LeaderElection.State mLocalState = LeaderElection.State.CREATED;
+    private LeaderElection.State mGlobalState = LeaderElection.State.CREATED;
+    private Role mRole = Role.NONE;
+    private boolean mShouldFinish;
+    private long mRetryDelay = MIN_RETRY_DELAY;
+
+
+    public FederatedLeaderElection()
+    {
+    }
+
+
+    /**
+     * Get the {@link ZooKeeper} instance of the local ensemble.
+     *
+     * @return
+     *         The {@link ZooKeeper} instance of the local ensemble.
+     */
+    public ZooKeeper getLocalZooKeeper()
+    {
+        return mLocalZooKeeper;
+    }
+
+
+    /**
+     * Set the {@link ZooKeeper} instance of the local ensemble.
+     *
+     * @param zooKeeper
+     *         The {@link ZooKeeper} instance of the local ensemble.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public FederatedLeaderElection setLocalZooKeeper(ZooKeeper zooKeeper)
+    {
+        mLocalZooKeeper = zooKeeper;
+
+        return this;
+    }
+
+
+    /**
+     * Get the {@link ZooKeeper} instance of the global ensemble.
+     *
+     * @return
+     *         The {@link ZooKeeper} instance of the global ensemble.
+     */
+    public synchronized ZooKeeper getGlobalZooKeeper()
+    {
+        return mGlobalZooKeeper;
+    }
+
+
+    /**
+     * Set the {@link ZooKeeper} instance of the global ensemble. The
+     * instance is used from the next time the global election is
+     * started, i.e. when this candidate becomes the leader of its zone
+     * or retries the global election after it has ended.
+     *
+     * @param zooKeeper
+     *         The {@link ZooKeeper} instance of the global ensemble.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public synchronized FederatedLeaderElection setGlobalZooKeeper(ZooKeeper zooKeeper)
+    {
+        mGlobalZooKeeper = zooKeeper;
+
+        return this;
+    }
+
+
+    /**
+     * Get the path of the znode for the election in the local ensemble.
+     *
+     * @return
+     *         The path of the local znode.
+     */
+    public String getLocalPath()
+    {
+        return mLocalPath;
+    }
+
+
+    /**
+     * Set the path of the znode for the election in the local ensemble.
+     * The default value is {@code "/leader"}.
+     *
+     * @param path
+     *         The path of the local znode.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public FederatedLeaderElection setLocalPath(String path)
+    {
+        mLocalPath = path;
+
+        return this;
+    }
+
+
+    /**
+     * Get the path of the znode for the election in the global ensemble.
+     *
+     * @return
+     *         The path of the global znode.
+     */
+    public String getGlobalPath()
+    {
+        return mGlobalPath;
+    }
+
+
+    /**
+     * Set the path of the znode for the election in the global ensemble.
+     * The default value is {@code "/leader"}.
+     *
+     * @param path
+     *         The path of the global znode.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public FederatedLeaderElection setGlobalPath(String path)
+    {
+        mGlobalPath = path;
+
+        return this;
+    }
+
+
+    /**
+     * Get the ID of this candidate.
+     *
+     * @return
+     *         The ID of this candidate.
+     */
+    public String getId()
+    {
+        return mId;
+    }
+
+
+    /**
+     * Set the ID of this candidate. The same ID is used in both the
+     * local and the global elections, so it must be unique among all
+     * zones. If no ID is set, a random one is generated.
+     *
+     * @param id
+     *         The ID of this candidate.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public FederatedLeaderElection setId(String id)
+    {
+        mId = id;
+
+        return this;
+    }
+
+
+    /**
+     * Get the listener.
+     *
+     * @return
+     *         The listener.
+     */
+    public Listener getListener()
+    {
+        return mListener;
+    }
+
+
+    /**
+     * Set a listener.
+     *
+     * @param listener
+     *         A listener.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public FederatedLeaderElection setListener(Listener listener)
+    {
+        mListener = listener;
+
+        return this;
+    }
+
+
+    /**
+     * Get the current role.
+     *
+     * @return
+     *         The current role.
+     */
+    public synchronized Role getRole()
+    {
+        return mRole;
+    }
+
+
+    /**
+     * Get the election in the local ensemble.
+     *
+     * @return
+     *         The local {@link LeaderElection}. {@code null} if {@link
+     *         #start()} has not been called.
+     */
+    public synchronized LeaderElection getLocalElection()
+    {
+        return mLocal;
+    }
+
+
+    /**
+     * Create a {@link LeaderObserver} instance to follow the global
+     * leader without joining the election. No global election is needed
+     * to observe it, so this method can be used by any candidate.
+     *
+     * @return
+     *         A {@link LeaderObserver} instance which has not been started.
+     */
+    public LeaderObserver createGlobalObserver()
+    {
+        return new LeaderObserver()
+            .setZooKeeper(getGlobalZooKeeper())
+            .setPath((mGlobalPath != null) ? mGlobalPath : DEFAULT_PATH);
+    }
+
+
+    /**
+     * Start the election.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalStateException
+     *         <ul>
+     *           <li>No local or global {@link ZooKeeper} instance is set.
+     *           <li>{@code start()} has already been called.
+     *         </ul>
+     */
+    public FederatedLeaderElection start()
+    {
+        if (mLocalZooKeeper == null)
+        {
+            throw new IllegalStateException("A local ZooKeeper instance must be set.");
+        }
+
+        if (getGlobalZooKeeper() == null)
+        {
+            throw new IllegalStateException("A global ZooKeeper instance must be set.");
+        }
+
+        if (mLocalPath == null)
+        {
+            mLocalPath = DEFAULT_PATH;
+        }
+
+        if (mGlobalPath == null)
+        {
+            mGlobalPath = DEFAULT_PATH;
+        }
+
+        if (mId == null)
+        {
+            mId = String.valueOf(Math.abs(new Random().nextLong()));
+        }
+
+        LeaderElection local;
+
+        synchronized (this)
+        {
+            if (mLocal != null)
+            {
+                throw new IllegalStateException("start() has already been called.");
+            }
+
+            local = mLocal = new LeaderElection(mLocalZooKeeper)
+                .setPath(mLocalPath)
+                .setId(mId);
+        }
+
+        local.addObserver(mLocalObserver);
+        local.start();
+
+        return this;
+    }
+
+
+    /**
+     * Stop the election. The global leadership is resigned if this
+     * candidate has it. Like {@link LeaderElection#finish()}, the znode
+     * in the local ensemble is not deleted.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public FederatedLeaderElection finish()
+    {
+        LeaderElection local;
+
+        synchronized (this)
+        {
+            mShouldFinish = true;
+            local = mLocal;
+        }
+
+        if (local != null)
+        {
+            local.finish();
+        }
+
+        stopGlobal();
+
+        return this;
+    }
+
+
+    private void startGlobal()
+    {
+        LeaderElection global;
+
+        synchronized (this)
+        {
+            if (mShouldFinish || mGlobal != null || mLocalState != LeaderElection.State.LEADER)
+            {
+                return;
+            }
+
+            global = mGlobal = new LeaderElection(mGlobalZooKeeper)
+                .setPath(mGlobalPath)
+                .setId(mId);
+
+            mGlobalState = LeaderElection.State.CREATED;
+        }
+
+        // Observers are notified while the election holds its lock.
+        // Do not hold the lock of this instance here to keep the order
+        // of locks.
+        global.addObserver(mGlobalObserver);
+        global.start();
+
+        // A LeaderElection does not notice the end of its session while
+        // it is waiting for nothing, e.g. while it is the leader.
+        new GlobalSessionWatcher(global).watch();
+    }
+
+
+    private void startGlobalLater()
+    {
+        long delay;
+
+        synchronized (this)
+        {
+            delay = mRetryDelay;
+            mRetryDelay = Math.min(delay * 2, MAX_RETRY_DELAY);
+        }
+
+        // Do not retry at once. The global ensemble may be unavailable
+        // or the ZooKeeper instance may not have been replaced yet.
+        DaemonScheduler.getShared().schedule(new Runnable() {
+            @Override
+            public void run()
+            {
+                startGlobal();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+
+    private void stopGlobal()
+    {
+        LeaderElection global;
+
+        synchronized (this)
+        {
+            global = mGlobal;
+            mGlobal = null;
+            mGlobalState = LeaderElection.State.DONE;
+        }
+
+        if (global == null)
+        {
+            return;
+        }
+
+        global.finish();
+
+        // If the global election has been won, the znode remains as long
+        // as the session of the global ensemble is alive. Delete it.
+        resign(global);
+
+        updateRole();
+    }
+
+
+    private void onGlobalEnded(LeaderElection global)
+    {
+        boolean retry;
+
+        synchronized (this)
+        {
+            if (global != mGlobal)
+            {
+                // Already stopped or ended.
+                return;
+            }
+
+            // Forget the election so that a new one can be started.
+            mGlobal = null;
+            mGlobalState = LeaderElection.State.DONE;
+            retry = (mShouldFinish == false && mLocalState == LeaderElection.State.LEADER);
+        }
+
+        // Its znode has gone with the session, so there is nothing to
+        // resign. Just stop it from scheduling anything further.
+        global.finish();
+
+        updateRole();
+
+        if (retry)
+        {
+            startGlobalLater();
+        }
+    }
+
+
+    private void resign(LeaderElection global)
+    {
+        int version = global.getLeaderVersion();
+
+        if (version < 0)
+        {
+            // Not the global leader.
+            return;
+        }
+
+        global.getZooKeeper().delete(global.getPath(), version, sResignCallback, null);
+    }
+
+
+    private void updateRole()
+    {
+        Role oldRole;
+        Role newRole;
+
+        synchronized (this)
+        {
+            if (mLocalState != LeaderElection.State.LEADER)
+            {
+                newRole = Role.NONE;
+            }
+            else if (mGlobalState == LeaderElection.State.LEADER)
+            {
+                newRole = Role.GLOBAL_LEADER;
+            }
+            else
+            {
+                newRole = Role.LOCAL_LEADER;
+            }
+
+            oldRole = mRole;
+
+            if (oldRole == newRole)
+            {
+                return;
+            }
+
+            mRole = newRole;
+        }
+
+        callOnRoleChanged(oldRole, newRole);
+    }
+
+
+    private void callOnRoleChanged(Role oldRole, Role newRole)
+    {
+        if (mListener == null)
+        {
+            return;
+        }
+
+        try
+        {
+            mListener.onRoleChanged(this, oldRole, newRole);
+        }
+        catch (RuntimeException e)
+        {
+            // Ignore.
+        }
+    }
+
+
+    private class LocalObserver extends LeaderElection.Adapter
+    {
+        @Override
+        public void onStateChanged(LeaderElection election, LeaderElection.State oldState, LeaderElection.State newState)
+        {
+            synchronized (FederatedLeaderElection.this)
+            {
+                mLocalState = newState;
+            }
+
+            if (newState == LeaderElection.State.LEADER)
+            {
+                // Join the election among the leaders of the zones.
+                updateRole();
+                startGlobal();
+            }
+            else
+            {
+                // Resign the global leadership first.
+                stopGlobal();
+                updateRole();
+            }
+        }
+    }
+
+
+    private class GlobalObserver extends LeaderElection.Adapter
+    {
+        @Override
+        public void onStateChanged(LeaderElection election, LeaderElection.State oldState, LeaderElection.State newState)
+        {
+            if (newState == LeaderElection.State.DONE)
+            {
+                // The election has ended by itself, e.g. the ZooKeeper
+                // instance of the global ensemble has been closed.
+                onGlobalEnded(election);
+                return;
+            }
+
+            boolean stopped;
+
+            synchronized (FederatedLeaderElection.this)
+            {
+                stopped = (election != mGlobal);
+
+                if (stopped == false)
+                {
+                    mGlobalState = newState;
+
+                    if (newState == LeaderElection.State.LEADER ||
+                        newState == LeaderElection.State.FOLLOWER)
+                    {
+                        // The global ensemble is reachable again.
+                        mRetryDelay = MIN_RETRY_DELAY;
+                    }
+                }
+            }
+
+            if (stopped == false)
+            {
+                updateRole();
+            }
+            else if (newState == LeaderElection.State.LEADER)
+            {
+                // The election has won after being stopped. Do not
+                // hold the global leadership.
+                resign(election);
+            }
+        }
+    }
+
+
+    /**
+     * Detects the end of the session of a global election by an exists
+     * watch on the znode of the election. Session events are delivered
+     * to all the watchers registered on the session.
+     */
+    private class GlobalSessionWatcher implements Watcher, StatCallback
+    {
+        private final LeaderElection mElection;
+
+
+        GlobalSessionWatcher(LeaderElection election)
+        {
+            mElection = election;
+        }
+
+
+        void watch()
+        {
+            synchronized (FederatedLeaderElection.this)
+            {
+                if (mElection != mGlobal)
+                {
+                    return;
+                }
+            }
+
+            mElection.getZooKeeper().exists(mElection.getPath(), this, this, null);
+        }
+
+
+        @Override
+        public void process(WatchedEvent event)
+        {
+            switch (event.getState())
+            {
+                case Expired:
+                case AuthFailed:
+                    onGlobalEnded(mElection);
+                    return;
+
+                default:
+                    break;
+            }
+
+            if (event.getType() != EventType.None)
+            {
+                // The watch has been consumed by an event of the znode.
+                watch();
+            }
+        }
+
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat)
+        {
+            switch (Code.get(rc))
+            {
+                case OK:
+                case NONODE:
+                    // Watching.
+                    return;
+
+                case SESSIONEXPIRED:
+                case AUTHFAILED:
+                    onGlobalEnded(mElection);
+                    return;
+
+                default:
+                    // No watch has been set. Try again later.
+                    DaemonScheduler.getShared().schedule(new Runnable() {
+                        @Override
+                        public void run()
+                        {
+                            watch();
+                        }
+                    }, MIN_RETRY_DELAY, TimeUnit.MILLISECONDS);
+                    return;
+            }
+        }
+    }
+
+
+    private static class ResignCallback implements VoidCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx)
+        {
+            // Nothing to do. If the deletion has failed, the znode is
+            // deleted when the session of the global ensemble ends.
+        }
+    }
+}
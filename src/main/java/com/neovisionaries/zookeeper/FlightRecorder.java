@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.zookeeper.KeeperException.Code;
+
+
+/**
+ * Lock-free ring buffer of events which recipes have processed.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * LeaderElection election = <span style="color: purple; font-weight: bold;">new</span> LeaderElection(zooKeeper).start();
+ *
+ * ......
+ *
+ * <span style="color: darkgreen;">// Something went wrong. What has the election done recently?</span>
+ * <span style="color: purple; font-weight: bold;">for</span> (FlightRecorder.Entry entry : election.{@link LeaderElection#getRecorder() getRecorder()}.{@link #dump()})
+ * {
+ *     System.out.println(entry);
+ * }
+ * </pre>
+ *
+ * <p>
+ * A recorder keeps the last {@link #getCapacity() capacity} entries of
+ * (timestamp, operation, path, result code, state before, state after).
+ * Results of asynchronous requests, watch events, state transitions and
+ * exceptions thrown by listeners are recorded. Recording an entry takes
+ * one atomic increment, one {@link System#currentTimeMillis()} call and
+ * a few array stores. It neither blocks nor allocates, so a recorder can
+ * be left enabled in production and can be shared by multiple recipes.
+ * </p>
+ *
+ * <p>
+ * {@link #dump()} may be called at any time from any thread. Entries
+ * which are being overwritten while they are dumped are skipped.
+ * </p>
+ *
+ * @since 1.3
+ *
+ * @see LeaderElection#setRecorder(FlightRecorder)
+ * @see NodeReader#setRecorder(FlightRecorder)
+ */
+public class FlightRecorder
+{
+    /**
+     * Entry of a {@link FlightRecorder}.
+     */
+    public static final class Entry
+    {
+        private final long mSequence;
+        private final long mTimestamp;
+        private final String mOperation;
+        private final String mPath;
+        private final int mResultCode;
+        private final Object mStateBefore;
+        private final Object mStateAfter;
+        private final Throwable mCause;
+
+
+        Entry(long sequence, long timestamp, String operation, String path,
+              int resultCode, Object stateBefore, Object stateAfter, Throwable cause)
+        {
+            mSequence    = sequence;
+            mTimestamp   = timestamp;
+            mOperation   = operation;
+            mPath        = path;
+            mResultCode  = resultCode;
+            mStateBefore = stateBefore;
+            mStateAfter  = stateAfter;
+            mCause       = cause;
+        }
+
+
+        /**
+         * Get the sequence number of this entry. The first entry of a
+         * recorder is 0.
+         *
+         * @return
+         *         The sequence number.
+         */
+        public long getSequence()
+        {
+            return mSequence;
+        }
+
+
+        /**
+         * Get the time when this entry was recorded.
+         *
+         * @return
+         *         The time in milliseconds since the epoch.
+         */
+        public long getTimestamp()
+        {
+            return mTimestamp;
+        }
+
+
+        /**
+         * Get the operation, e.g. {@code "getData"}, {@code "NodeDeleted"}
+         * or {@code "onWin"}.
+         *
+         * @return
+         *         The operation.
+         */
+        public String getOperation()
+        {
+            return mOperation;
+        }
+
+
+        /**
+         * Get the path of the znode.
+         *
+         * @return
+         *         The path of the znode.
+         */
+        public String getPath()
+        {
+            return mPath;
+        }
+
+
+        /**
+         * Get the result code of the operation. See {@link Code}.
+         *
+         * @return
+         *         The result code. 0 ({@link Code#OK OK}) for entries
+         *         which are not results of requests.
+         */
+        public int getResultCode()
+        {
+            return mResultCode;
+        }
+
+
+        /**
+         * Get the state of the recipe before the operation.
+         *
+         * @return
+         *         The state before the operation. {@code null} if the
+         *         recipe has no state.
+         */
+        public Object getStateBefore()
+        {
+            return mStateBefore;
+        }
+
+
+        /**
+         * Get the state of the recipe after the operation.
+         *
+         * @return
+         *         The state after the operation. {@code null} if the
+         *         operation is not a state transition.
+         */
+        public Object getStateAfter()
+        {
+            return mStateAfter;
+        }
+
+
+        /**
+         * Get the exception which a listener threw.
+         *
+         * @return
+         *         The exception. {@code null} if no exception was thrown.
+         */
+        public Throwable getCause()
+        {
+            return mCause;
+        }
+
+
+        @Override
+        public String toString()
+        {
+            StringBuilder builder = new StringBuilder();
+
+            builder.append(mSequence).append(' ').append(mTimestamp)
+                .append(' ').append(mOperation).append(' ').append(mPath);
+
+            Code code = Code.get(mResultCode);
+            builder.append(' ').append((code != null) ? code.name() : String.valueOf(mResultCode));
+
+            if (mStateBefore != null || mStateAfter != null)
+            {
+                builder.append(' ').append(mStateBefore).append(" -> ").append(mStateAfter);
+            }
+
+            if (mCause != null)
+            {
+                builder.append(' ').append(mCause);
+            }
+
+            return builder.toString();
+        }
+    }
+
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+
+    private final int mMask;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    // mStamps[i] is (sequence + 1) of the last entry published at i.
+    // It is written after the other fields, so a full fence is not
+    // needed on the writer side.
+    private final AtomicLongArray mStamps;
+    private final long[] mTimestamps;
+    private final String[] mOperations;
+    private final String[] mPaths;
+    private final int[] mResultCodes;
+    private final Object[] mStatesBefore;
+    private final Object[] mStatesAfter;
+    private final Throwable[] mCauses;
+
+
+    /**
+     * Create a recorder which keeps the last 256 entries.
+     */
+    public FlightRecorder()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+
+    /**
+     * Create a recorder which keeps the last {@code capacity} entries.
+     *
+     * @param capacity
+     *         The number of entries to keep. It is rounded up to a
+     *         power of two.
+     *
+     * @throws IllegalArgumentException
+     *         {@code capacity} is not positive or too large.
+     */
+    public FlightRecorder(int capacity)
+    {
+        if (capacity <= 0 || (1 << 30) < capacity)
+        {
+            throw new IllegalArgumentException("The capacity is out of range.");
+        }
+
+        int size = 1;
+
+        while (size < capacity)
+        {
+            size <<= 1;
+        }
+
+        mMask         = size - 1;
+        mStamps       = new AtomicLongArray(size);
+        mTimestamps   = new long[size];
+        mOperations   = new String[size];
+        mPaths        = new String[size];
+        mResultCodes  = new int[size];
+        mStatesBefore = new Object[size];
+        mStatesAfter  = new Object[size];
+        mCauses       = new Throwable[size];
+    }
+
+
+    /**
+     * Get the number of entries this recorder keeps.
+     *
+     * @return
+     *         The capacity.
+     */
+    public int getCapacity()
+    {
+        return mMask + 1;
+    }
+
+
+    /**
+     * Get the total number of entries which have been recorded,
+     * including ones which have been overwritten.
+     *
+     * @return
+     *         The total number of entries.
+     */
+    public long getCount()
+    {
+        return mSequence.get();
+    }
+
+
+    /**
+     * Record an entry.
+     *
+     * @param operation
+     *         The operation. Constant strings should be used so that
+     *         recording does not allocate.
+     *
+     * @param path
+     *         The path of the znode.
+     *
+     * @param resultCode
+     *         The result code of the operation.
+     *
+     * @param stateBefore
+     *         The state before the operation, or {@code null}.
+     *
+     * @param stateAfter
+     *         The state after the operation, or {@code null}.
+     */
+    public void record(String operation, String path, int resultCode, Object stateBefore, Object stateAfter)
+    {
+        write(operation, path, resultCode, stateBefore, stateAfter, null);
+    }
+
+
+    /**
+     * Record an exception which a listener threw.
+     *
+     * @param operation
+     *         The name of the listener method.
+     *
+     * @param path
+     *         The path of the znode.
+     *
+     * @param cause
+     *         The exception.
+     */
+    public void recordError(String operation, String path, Throwable cause)
+    {
+        write(operation, path, 0, null, null, cause);
+    }
+
+
+    private void write(String operation, String path, int resultCode,
+                       Object stateBefore, Object stateAfter, Throwable cause)
+    {
+        long sequence = mSequence.getAndIncrement();
+        int i = (int)sequence & mMask;
+
+        mTimestamps[i]   = System.currentTimeMillis();
+        mOperations[i]   = operation;
+        mPaths[i]        = path;
+        mResultCodes[i]  = resultCode;
+        mStatesBefore[i] = stateBefore;
+        mStatesAfter[i]  = stateAfter;
+        mCauses[i]       = cause;
+
+        // Publish the entry.
+        mStamps.lazySet(i, sequence + 1);
+    }
+
+
+    /**
+     * Get the entries which this recorder keeps, from the oldest to the
+     * newest.
+     *
+     * @return
+     *         The entries.
+     */
+    public List<Entry> dump()
+    {
+        long end   = mSequence.get();
+        long start = Math.max(0, end - getCapacity());
+
+        List<Entry> entries = new ArrayList<Entry>((int)(end - start));
+
+        for (long sequence = start; sequence < end; ++sequence)
+        {
+            int i = (int)sequence & mMask;
+
+            if (mStamps.get(i) != sequence + 1)
+            {
+                // Being written or already overwritten.
+                continue;
+            }
+
+            Entry entry = new Entry(sequence, mTimestamps[i], mOperations[i], mPaths[i],
+                mResultCodes[i], mStatesBefore[i], mStatesAfter[i], mCauses[i]);
+
+            if (sequence + getCapacity() < mSequence.get())
+            {
+                // A newer entry may have been written into the slot
+                // while it was being read.
+                continue;
+            }
+
+            entries.add(entry);
+        }
+
+        return entries;
+    }
+}
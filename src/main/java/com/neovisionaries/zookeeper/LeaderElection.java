@@ -19,12 +19,12 @@ package com.neovisionaries.zookeeper;
 import java.io.UnsupportedEncodingException;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.apache.zookeeper.AsyncCallback.DataCallback;
 import org.apache.zookeeper.AsyncCallback.StatCallback;
 import org.apache.zookeeper.AsyncCallback.StringCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException.Code;
-import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.ZooDefs;
@@ -355,13 +355,19 @@ public class LeaderElection
     private String mId;
     private byte[] mIdBytes;
     private List<ACL> mAclList;
+    private PayloadCodec mCodec;
+    private RequestDispatcher mDispatcher;
+    private FlightRecorder mRecorder = new FlightRecorder();
     private StringCallback mRunForLeaderCallback = new RunForLeaderCallback();
     private DataCallback mCheckLeaderCallback = new CheckLeaderCallback();
-    private Watcher mTrackLeaderWatcher = new TrackLeaderWatcher();
+    private PathRegistry.Waiter mTrackLeaderWaiter = new TrackLeaderWaiter();
     private StatCallback mTrackLeaderCallback = new TrackLeaderCallback();
     private Listener mListener;
+    private final List<Listener> mObservers = new CopyOnWriteArrayList<Listener>();
     private boolean mShouldFinish;
-    private State mState = State.CREATED;
+    private volatile State mState = State.CREATED;
+    private int mLeaderVersion = -1;
+    private PathRegistry.Node mNode;
 
 
     public LeaderElection()
@@ -570,6 +576,126 @@ public class LeaderElection
     }
 
 
+    /**
+     * Get the codec to encode and decode the content of the
+     * znode for leader election.
+     *
+     * @return
+     *         The codec. {@code null} if no codec is set.
+     *
+     * @since 1.3
+     */
+    public PayloadCodec getCodec()
+    {
+        return mCodec;
+    }
+
+
+    /**
+     * Set a codec to encode and decode the content of the znode
+     * for leader election.
+     *
+     * <p>
+     * If a codec is set, the ID of this candidate is encoded through
+     * the codec before it is written into the znode, and the content
+     * of the znode is decoded through the codec before it is compared
+     * to the ID. All candidates of the same leader election should use
+     * the same type of codec. The codec is set also to {@link NodeReader}
+     * instances created by {@link #createReader()}.
+     * </p>
+     *
+     * @param codec
+     *         A codec. {@code null} to write the ID as is (default).
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @since 1.3
+     */
+    public LeaderElection setCodec(PayloadCodec codec)
+    {
+        mCodec = codec;
+
+        return this;
+    }
+
+
+    /**
+     * Get the dispatcher of read requests.
+     *
+     * @return
+     *         The dispatcher. {@code null} if no dispatcher is set.
+     *
+     * @since 1.3
+     */
+    public RequestDispatcher getDispatcher()
+    {
+        return mDispatcher;
+    }
+
+
+    /**
+     * Set a dispatcher of read requests. If a dispatcher is set, the
+     * requests to check and track the leader are sent through the
+     * dispatcher with {@link RequestDispatcher.Priority#HIGH HIGH}
+     * priority, so they are not delayed by bulk reads of other recipes
+     * which share the dispatcher. The dispatcher must be associated with
+     * the same {@link ZooKeeper} instance. This method should be called
+     * before {@link #start()}.
+     *
+     * @param dispatcher
+     *         A dispatcher. {@code null} to send requests directly
+     *         (default).
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @since 1.3
+     */
+    public LeaderElection setDispatcher(RequestDispatcher dispatcher)
+    {
+        mDispatcher = dispatcher;
+
+        return this;
+    }
+
+
+    /**
+     * Get the flight recorder.
+     *
+     * @return
+     *         The flight recorder. {@code null} if recording is disabled.
+     *
+     * @since 1.3
+     */
+    public FlightRecorder getRecorder()
+    {
+        return mRecorder;
+    }
+
+
+    /**
+     * Set a flight recorder. Results of requests, watch events, state
+     * transitions and exceptions thrown by the listener are recorded.
+     * By default, each {@code LeaderElection} instance has its own
+     * recorder which keeps the last 256 entries.
+     *
+     * @param recorder
+     *         A flight recorder. {@code null} to disable recording.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @since 1.3
+     */
+    public LeaderElection setRecorder(FlightRecorder recorder)
+    {
+        mRecorder = recorder;
+
+        return this;
+    }
+
+
     /**
      * Start leader election.
      *
@@ -596,6 +722,9 @@ public class LeaderElection
      *           <li>No {@link ZooKeeper} instance is set.
      *           <li>The current state is not {@link State#CREATED CREATED}.
      *         </ul>
+     *
+     * @throws IllegalArgumentException
+     *         The path is invalid as a znode path.
      */
     public LeaderElection start()
     {
@@ -610,6 +739,11 @@ public class LeaderElection
                     "The current state is " + mState + ".");
             }
 
+            // Register the path to the watch manager. The watch to track
+            // the leader is never evicted to polling.
+            mNode = PathRegistry.getInstance(mZooKeeper).acquire(mPath, WatchManager.Priority.HIGH);
+            mPath = mNode.getPath();
+
             if (runForLeader())
             {
                 changeState(State.ELECTING);
@@ -662,6 +796,44 @@ public class LeaderElection
     }
 
 
+    /**
+     * Get the version ({@link Stat#getVersion()}) of the znode for
+     * leader election which this candidate created as the leader.
+     *
+     * @return
+     *         The version of the leader znode, or -1 if the current
+     *         state is not {@link State#LEADER LEADER}.
+     */
+    int getLeaderVersion()
+    {
+        synchronized (this)
+        {
+            return (mState == State.LEADER) ? mLeaderVersion : -1;
+        }
+    }
+
+
+    /**
+     * Add an internal listener which is notified of state changes in
+     * addition to the listener set by {@link #setListener(Listener)}.
+     * Only {@link Listener#onStateChanged(LeaderElection, State, State)
+     * onStateChanged()} is called.
+     */
+    void addObserver(Listener observer)
+    {
+        mObservers.add(observer);
+    }
+
+
+    /**
+     * Remove an internal listener added by {@link #addObserver(Listener)}.
+     */
+    void removeObserver(Listener observer)
+    {
+        mObservers.remove(observer);
+    }
+
+
     /**
      * Create a {@link NodeReader} instance to read the content
      * of the znode that is used for leader election. This method
@@ -670,7 +842,9 @@ public class LeaderElection
      * <pre style="margin: 1em;">
      * return new {@link NodeReader#NodeReader() NodeReader()}
      *     .{@link NodeReader#setZooKeeper(ZooKeeper) setZooKeeper}(getZooKeeper())
-     *     .{@link NodeReader#setPath(String) setPath}((getPath() != null) ? getPath() : getDefaultPath());
+     *     .{@link NodeReader#setPath(String) setPath}((getPath() != null) ? getPath() : getDefaultPath())
+     *     .{@link NodeReader#setCodec(PayloadCodec) setCodec}(getCodec())
+     *     .{@link NodeReader#setDispatcher(RequestDispatcher) setDispatcher}(getDispatcher());
      * </pre>
      *
      * <p>
@@ -688,7 +862,37 @@ public class LeaderElection
     {
         return new NodeReader()
             .setZooKeeper(mZooKeeper)
-            .setPath((mPath != null) ? mPath : DEFAULT_PATH);
+            .setPath((mPath != null) ? mPath : DEFAULT_PATH)
+            .setCodec(mCodec)
+            .setDispatcher(mDispatcher);
+    }
+
+
+    /**
+     * Create a {@link LeaderObserver} instance to follow the leader of
+     * this election without joining it. This method behaves almost the
+     * same way as the following code.
+     *
+     * <pre style="margin: 1em;">
+     * return new {@link LeaderObserver#LeaderObserver() LeaderObserver()}
+     *     .{@link LeaderObserver#setZooKeeper(ZooKeeper) setZooKeeper}(getZooKeeper())
+     *     .{@link LeaderObserver#setPath(String) setPath}((getPath() != null) ? getPath() : getDefaultPath())
+     *     .{@link LeaderObserver#setCodec(PayloadCodec) setCodec}(getCodec())
+     *     .{@link LeaderObserver#setDispatcher(RequestDispatcher) setDispatcher}(getDispatcher());
+     * </pre>
+     *
+     * @return
+     *         A {@link LeaderObserver} instance which has not been started.
+     *
+     * @since 1.3
+     */
+    public LeaderObserver createObserver()
+    {
+        return new LeaderObserver()
+            .setZooKeeper(mZooKeeper)
+            .setPath((mPath != null) ? mPath : DEFAULT_PATH)
+            .setCodec(mCodec)
+            .setDispatcher(mDispatcher);
     }
 
 
@@ -718,6 +922,13 @@ public class LeaderElection
         // Convert the ID into a byte array.
         mIdBytes = getBytes(mId);
 
+        // If a codec is set.
+        if (mCodec != null)
+        {
+            // Encode the ID.
+            mIdBytes = mCodec.encode(mIdBytes);
+        }
+
         // If an ACL list is not set.
         if (mAclList == null)
         {
@@ -755,6 +966,7 @@ public class LeaderElection
 
         if (shouldFinish)
         {
+            release();
             changeState(State.DONE);
             callOnFinish();
         }
@@ -775,11 +987,50 @@ public class LeaderElection
 
             mState = state;
 
+            if (state != State.LEADER)
+            {
+                mLeaderVersion = -1;
+            }
+
+            record("changeState", 0, oldState, newState);
+
             callOnStateChanged(oldState, newState);
         }
     }
 
 
+    private void setLeaderVersion(int version)
+    {
+        synchronized (this)
+        {
+            mLeaderVersion = version;
+        }
+    }
+
+
+    private void release()
+    {
+        PathRegistry.Node node;
+
+        synchronized (this)
+        {
+            node  = mNode;
+            mNode = null;
+        }
+
+        if (node != null)
+        {
+            node.release(mTrackLeaderWaiter);
+        }
+    }
+
+
+    private synchronized PathRegistry.Node getNode()
+    {
+        return mNode;
+    }
+
+
     private boolean runForLeader()
     {
         if (finishIfAppropriate())
@@ -804,6 +1055,12 @@ public class LeaderElection
             return;
         }
 
+        if (mDispatcher != null)
+        {
+            mDispatcher.getData(mPath, null, mCheckLeaderCallback, null, RequestDispatcher.Priority.HIGH);
+            return;
+        }
+
         mZooKeeper.getData(mPath, false, mCheckLeaderCallback, null);
     }
 
@@ -816,7 +1073,25 @@ public class LeaderElection
             return;
         }
 
-        mZooKeeper.exists(mPath, mTrackLeaderWatcher, mTrackLeaderCallback, null);
+        PathRegistry.Node node = getNode();
+
+        if (node == null)
+        {
+            // Finished concurrently.
+            return;
+        }
+
+        // Wait for the leader znode to be deleted. The watcher is shared
+        // with other recipes watching the same path.
+        node.addWaiter(mTrackLeaderWaiter);
+
+        if (mDispatcher != null)
+        {
+            mDispatcher.exists(mPath, node.getWatcher(), mTrackLeaderCallback, null, RequestDispatcher.Priority.HIGH);
+            return;
+        }
+
+        mZooKeeper.exists(mPath, node.getWatcher(), mTrackLeaderCallback, null);
     }
 
 
@@ -825,10 +1100,13 @@ public class LeaderElection
         @Override
         public void processResult(int rc, String path, Object ctx, String name)
         {
+            record("create", rc, mState, null);
+
             switch (Code.get(rc))
             {
                 case OK:
                     // I'm the leader. Track myself.
+                    setLeaderVersion(0);
                     changeState(State.LEADER);
                     callOnWin();
                     trackLeader();
@@ -855,11 +1133,13 @@ public class LeaderElection
         @Override
         public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat)
         {
+            record("getData", rc, mState, null);
+
             switch (Code.get(rc))
             {
                 case OK:
                     // The leader znode exists. Check the content of the leader znode.
-                    processLeaderNode(data);
+                    processLeaderNode(data, stat);
                     return;
 
                 case NONODE:
@@ -877,15 +1157,16 @@ public class LeaderElection
         }
 
 
-        private void processLeaderNode(byte[] data)
+        private void processLeaderNode(byte[] data, Stat stat)
         {
             // Interpret the content of the leader znode as the leader's ID.
-            String id = newString(data);
+            String id = newString(decode(data));
 
             // If the ID equals to my own.
             if (mId.equals(id))
             {
                 // I'm the leader.
+                setLeaderVersion(stat.getVersion());
                 changeState(State.LEADER);
                 callOnWin();
             }
@@ -902,12 +1183,14 @@ public class LeaderElection
     }
 
 
-    private class TrackLeaderWatcher implements Watcher
+    private class TrackLeaderWaiter implements PathRegistry.Waiter
     {
         @Override
-        public void process(WatchedEvent event)
+        public void process(EventType type)
         {
-            if (event.getType() == EventType.NodeDeleted)
+            record(type.name(), 0, mState, null);
+
+            if (type == EventType.NodeDeleted)
             {
                 // The leader resigned.
                 changeState(State.ELECTING);
@@ -915,7 +1198,14 @@ public class LeaderElection
 
                 // Run for the leader.
                 runForLeader();
+                return;
             }
+
+            // Waiters are one-shot and an event triggered by another
+            // recipe watching the same path (e.g. NodeCreated or
+            // NodeDataChanged) has removed this one. Keep tracking the
+            // leader.
+            trackLeader();
         }
     }
 
@@ -925,9 +1215,13 @@ public class LeaderElection
         @Override
         public void processResult(int rc, String path, Object ctx, Stat stat)
         {
+            record("exists", rc, mState, null);
+
             switch (Code.get(rc))
             {
                 case OK:
+                    // The leader znode may have been updated.
+                    updateLeaderVersion(stat);
                     return;
 
                 case NONODE:
@@ -943,6 +1237,18 @@ public class LeaderElection
                     return;
             }
         }
+
+
+        private void updateLeaderVersion(Stat stat)
+        {
+            synchronized (LeaderElection.this)
+            {
+                if (mState == State.LEADER)
+                {
+                    mLeaderVersion = stat.getVersion();
+                }
+            }
+        }
     }
 
 
@@ -959,7 +1265,8 @@ public class LeaderElection
         }
         catch (RuntimeException e)
         {
-            // Ignore.
+            // Ignore but record.
+            recordError("onWin", e);
         }
     }
 
@@ -977,7 +1284,8 @@ public class LeaderElection
         }
         catch (RuntimeException e)
         {
-            // Ignore.
+            // Ignore but record.
+            recordError("onLose", e);
         }
     }
 
@@ -995,7 +1303,8 @@ public class LeaderElection
         }
         catch (RuntimeException e)
         {
-            // Ignore.
+            // Ignore but record.
+            recordError("onVacant", e);
         }
     }
 
@@ -1013,13 +1322,27 @@ public class LeaderElection
         }
         catch (RuntimeException e)
         {
-            // Ignore.
+            // Ignore but record.
+            recordError("onFinish", e);
         }
     }
 
 
     private void callOnStateChanged(State oldState, State newState)
     {
+        for (Listener observer : mObservers)
+        {
+            try
+            {
+                observer.onStateChanged(this, oldState, newState);
+            }
+            catch (RuntimeException e)
+            {
+                // Ignore but record.
+                recordError("onStateChanged", e);
+            }
+        }
+
         if (mListener == null)
         {
             return;
@@ -1031,7 +1354,30 @@ public class LeaderElection
         }
         catch (RuntimeException e)
         {
-            // Ignore.
+            // Ignore but record.
+            recordError("onStateChanged", e);
+        }
+    }
+
+
+    private void record(String operation, int rc, State stateBefore, State stateAfter)
+    {
+        FlightRecorder recorder = mRecorder;
+
+        if (recorder != null)
+        {
+            recorder.record(operation, mPath, rc, stateBefore, stateAfter);
+        }
+    }
+
+
+    private void recordError(String operation, RuntimeException cause)
+    {
+        FlightRecorder recorder = mRecorder;
+
+        if (recorder != null)
+        {
+            recorder.recordError(operation, mPath, cause);
         }
     }
 
@@ -1079,4 +1425,24 @@ public class LeaderElection
             return null;
         }
     }
+
+
+    private byte[] decode(byte[] data)
+    {
+        if (mCodec == null)
+        {
+            return data;
+        }
+
+        try
+        {
+            return mCodec.decode(data);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // The content of the leader znode is broken. It cannot
+            // be my ID because my ID is always encoded correctly.
+            return null;
+        }
+    }
 }
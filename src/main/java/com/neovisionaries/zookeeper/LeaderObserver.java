@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.io.UnsupportedEncodingException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Observer of a leader election which does not join the election.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * LeaderObserver observer = <span style="color: purple; font-weight: bold;">new</span> LeaderObserver()
+ *     .{@link #setZooKeeper(ZooKeeper) setZooKeeper}(zooKeeper)
+ *     .{@link #setPath(String) setPath}(<span style="color: mediumblue;">"/leader"</span>)
+ *     .{@link #start()};
+ *
+ * <span style="color: darkgreen;">// Who is the leader now? null if there is no leader.</span>
+ * String leader = observer.{@link #currentLeader()};
+ * </pre>
+ *
+ * <p>
+ * An observer reads the znode which {@link LeaderElection} candidates
+ * use for the election and watches it by a {@link NodeReader} whose
+ * {@link NodeReader#setWatching(boolean) watching} is enabled. It never
+ * creates a znode, so observers add no write load to elections. Observers
+ * of the same path in the same {@link ZooKeeper} session share one watch.
+ * </p>
+ *
+ * <p>
+ * The ID of the current leader is cached in a volatile field, so {@link
+ * #currentLeader()} neither allocates nor blocks.
+ * </p>
+ *
+ * @since 1.3
+ *
+ * @see LeaderElection#createObserver()
+ */
+public class LeaderObserver
+{
+    /**
+     * Listener interface to receive changes of the leader.
+     */
+    public interface Listener
+    {
+        /**
+         * Called when the leader has changed.
+         *
+         * @param observer
+         *         The {@link LeaderObserver} instance which this
+         *         listener is associated with.
+         *
+         * @param oldLeader
+         *         The ID of the previous leader. {@code null} if there
+         *         was no leader.
+         *
+         * @param newLeader
+         *         The ID of the new leader. {@code null} if there is
+         *         no leader.
+         */
+        void onLeaderChanged(LeaderObserver observer, String oldLeader, String newLeader);
+    }
+
+
+    private static final String DEFAULT_PATH = "/leader";
+
+
+    private final NodeReader mReader = new NodeReader();
+    private Listener mListener;
+    private volatile String mLeader;
+
+
+    public LeaderObserver()
+    {
+        mReader.setWatching(true).setListener(new LeaderListener());
+    }
+
+
+    public LeaderObserver(ZooKeeper zooKeeper)
+    {
+        this();
+
+        mReader.setZooKeeper(zooKeeper);
+    }
+
+
+    /**
+     * Get the {@link ZooKeeper} instance to observe the election.
+     *
+     * @return
+     *         The {@link ZooKeeper} instance.
+     */
+    public ZooKeeper getZooKeeper()
+    {
+        return mReader.getZooKeeper();
+    }
+
+
+    /**
+     * Set the {@link ZooKeeper} instance to observe the election.
+     *
+     * @param zooKeeper
+     *         A {@link ZooKeeper} instance.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaderObserver setZooKeeper(ZooKeeper zooKeeper)
+    {
+        mReader.setZooKeeper(zooKeeper);
+
+        return this;
+    }
+
+
+    /**
+     * Get the path of the znode for leader election.
+     *
+     * @return
+     *         The path of the znode for leader election.
+     */
+    public String getPath()
+    {
+        return mReader.getPath();
+    }
+
+
+    /**
+     * Set the path of the znode for leader election. If no path is set
+     * when {@link #start()} is called, {@code "/leader"}, which is the
+     * default path of {@link LeaderElection}, is used.
+     *
+     * @param path
+     *         The path of the znode for leader election.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaderObserver setPath(String path)
+    {
+        mReader.setPath(path);
+
+        return this;
+    }
+
+
+    /**
+     * Get the codec to decode the content of the znode.
+     *
+     * @return
+     *         The codec. {@code null} if no codec is set.
+     */
+    public PayloadCodec getCodec()
+    {
+        return mReader.getCodec();
+    }
+
+
+    /**
+     * Set a codec to decode the content of the znode. The same type of
+     * codec as the one set to the {@link LeaderElection} candidates
+     * must be used.
+     *
+     * @param codec
+     *         A codec. {@code null} not to decode the content.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaderObserver setCodec(PayloadCodec codec)
+    {
+        mReader.setCodec(codec);
+
+        return this;
+    }
+
+
+    /**
+     * Get the dispatcher of read requests.
+     *
+     * @return
+     *         The dispatcher. {@code null} if no dispatcher is set.
+     */
+    public RequestDispatcher getDispatcher()
+    {
+        return mReader.getDispatcher();
+    }
+
+
+    /**
+     * Set a dispatcher of read requests.
+     *
+     * @param dispatcher
+     *         A dispatcher. {@code null} to send requests directly
+     *         (default).
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @see NodeReader#setDispatcher(RequestDispatcher)
+     */
+    public LeaderObserver setDispatcher(RequestDispatcher dispatcher)
+    {
+        mReader.setDispatcher(dispatcher);
+
+        return this;
+    }
+
+
+    /**
+     * Get the listener.
+     *
+     * @return
+     *         The listener.
+     */
+    public Listener getListener()
+    {
+        return mListener;
+    }
+
+
+    /**
+     * Set a listener.
+     *
+     * @param listener
+     *         A listener.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaderObserver setListener(Listener listener)
+    {
+        mListener = listener;
+
+        return this;
+    }
+
+
+    /**
+     * Get the ID of the current leader. This method just returns the
+     * cached value.
+     *
+     * @return
+     *         The ID of the current leader. {@code null} if there is no
+     *         leader or the znode has not been read yet.
+     */
+    public String currentLeader()
+    {
+        return mLeader;
+    }
+
+
+    /**
+     * Start observing the election.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalStateException
+     *         No {@link ZooKeeper} instance is set.
+     */
+    public LeaderObserver start()
+    {
+        if (mReader.getPath() == null)
+        {
+            // Use the default path.
+            mReader.setPath(DEFAULT_PATH);
+        }
+
+        mReader.start();
+
+        return this;
+    }
+
+
+    /**
+     * Stop observing the election. The last cached leader ID is kept.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaderObserver finish()
+    {
+        mReader.finish();
+
+        return this;
+    }
+
+
+    private void changeLeader(String leader)
+    {
+        String oldLeader;
+
+        synchronized (this)
+        {
+            oldLeader = mLeader;
+
+            if (oldLeader == null ? leader == null : oldLeader.equals(leader))
+            {
+                // Not changed.
+                return;
+            }
+
+            mLeader = leader;
+        }
+
+        callOnLeaderChanged(oldLeader, leader);
+    }
+
+
+    private void callOnLeaderChanged(String oldLeader, String newLeader)
+    {
+        if (mListener == null)
+        {
+            return;
+        }
+
+        try
+        {
+            mListener.onLeaderChanged(this, oldLeader, newLeader);
+        }
+        catch (RuntimeException e)
+        {
+            // Ignore.
+        }
+    }
+
+
+    private class LeaderListener extends NodeReader.Adapter implements NodeReader.WatchListener
+    {
+        @Override
+        public void onRead(NodeReader reader, byte[] data, Stat stat)
+        {
+            changeLeader(newString(data));
+        }
+
+
+        @Override
+        public void onDeleted(NodeReader reader)
+        {
+            // The leader has gone.
+            changeLeader(null);
+        }
+    }
+
+
+    private static String newString(byte[] bytes)
+    {
+        if (bytes == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return new String(bytes, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // This never happens.
+            return null;
+        }
+    }
+}
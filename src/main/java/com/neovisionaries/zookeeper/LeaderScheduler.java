@@ -0,0 +1,707 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+
+/**
+ * Scheduler which runs periodic tasks only while a {@link LeaderElection}
+ * is the leader.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * LeaderElection election = <span style="color: purple; font-weight: bold;">new</span> LeaderElection(zooKeeper)
+ *     .setPath(<span style="color: mediumblue;">"/jobs/leader"</span>);
+ *
+ * LeaderScheduler scheduler = <span style="color: purple; font-weight: bold;">new</span> LeaderScheduler(election)
+ *     .{@link #setCheckpointPath(String) setCheckpointPath}(<span style="color: mediumblue;">"/jobs/checkpoints"</span>)
+ *     .{@link #schedule(String, Task, long, long, TimeUnit) schedule}(<span style="color: mediumblue;">"cleanup"</span>, cleanupTask, 0, 1, TimeUnit.MINUTES)
+ *     .{@link #start()};
+ *
+ * election.start();
+ * </pre>
+ *
+ * <p>
+ * When the state of the {@code LeaderElection} becomes {@link
+ * LeaderElection.State#LEADER LEADER}, the tasks are scheduled on a
+ * {@link ScheduledExecutorService} with fixed delays. On any transition
+ * out of {@code LEADER}, the tasks are cancelled immediately, running
+ * tasks are interrupted, and {@link Context#isCancelled()} of the
+ * running tasks starts returning {@code true}. Because the scheduler
+ * follows state changes synchronously inside {@code LeaderElection},
+ * no task is started after the transition.
+ * </p>
+ *
+ * <p>
+ * A task can save its progress by {@link Context#checkpoint(byte[])}.
+ * The checkpoint is written to the znode {@code <checkpoint path>/<task
+ * name>} in a transaction guarded by {@link
+ * TransactionBuilder#checkLeader(LeaderElection)}, so a former leader
+ * can never overwrite a checkpoint. When another candidate becomes the
+ * leader, the checkpoint is loaded before the first run of the task and
+ * is available through {@link Context#getCheckpoint()}.
+ * </p>
+ *
+ * <p>
+ * {@link #getLastResumeLatency()} and {@link #getLastFailoverLatency()}
+ * report how long it took for the tasks to resume after this candidate
+ * won and after it detected that the previous leader had gone.
+ * </p>
+ *
+ * @since 1.3
+ */
+public class LeaderScheduler
+{
+    /**
+     * Task run by {@link LeaderScheduler}.
+     */
+    public interface Task
+    {
+        /**
+         * Run the task. An exception thrown from this method is
+         * ignored, and the task is run again after the delay.
+         *
+         * @param context
+         *         The context of this run.
+         *
+         * @throws Exception
+         *         Any exception.
+         */
+        void run(Context context) throws Exception;
+    }
+
+
+    /**
+     * Context of a run of a {@link Task}.
+     */
+    public interface Context
+    {
+        /**
+         * Get the name of the task.
+         *
+         * @return
+         *         The name of the task.
+         */
+        String getName();
+
+
+        /**
+         * Get the last checkpoint of the task.
+         *
+         * @return
+         *         The last checkpoint. {@code null} if no checkpoint
+         *         has been saved or no checkpoint path is set.
+         */
+        byte[] getCheckpoint();
+
+
+        /**
+         * Save a checkpoint. The checkpoint is written only if this
+         * candidate is still the leader.
+         *
+         * @param data
+         *         The checkpoint.
+         *
+         * @return
+         *         {@code true} if the checkpoint was written. {@code false}
+         *         if the leadership has been lost or failed to write.
+         *
+         * @throws InterruptedException
+         *         Interrupted while waiting for ZooKeeper. This happens
+         *         when the leadership is lost.
+         *
+         * @throws IllegalStateException
+         *         No checkpoint path is set.
+         */
+        boolean checkpoint(byte[] data) throws InterruptedException;
+
+
+        /**
+         * Check if this run has been cancelled because the leadership
+         * has been lost. Long-running tasks should check this
+         * periodically and return as soon as possible when it
+         * returns {@code true}.
+         *
+         * @return
+         *         {@code true} if this run has been cancelled.
+         */
+        boolean isCancelled();
+    }
+
+
+    private final LeaderElection mElection;
+    private final LeaderElection.Listener mObserver = new StateObserver();
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+    private String mCheckpointPath;
+    private ScheduledExecutorService mExecutor;
+    private boolean mOwnExecutor;
+
+    // Guarded by this.
+    private int mTerm;
+    private boolean mLeading;
+    private long mWonAt;
+    private long mVacantAt;
+    private boolean mResumed;
+    private boolean mStarted;
+    private boolean mFinished;
+
+    private volatile long mLastResumeLatency = -1;
+    private volatile long mLastFailoverLatency = -1;
+
+
+    public LeaderScheduler(LeaderElection election)
+    {
+        if (election == null)
+        {
+            throw new NullPointerException("election is null.");
+        }
+
+        mElection = election;
+    }
+
+
+    /**
+     * Get the {@link LeaderElection} which this scheduler follows.
+     *
+     * @return
+     *         The {@link LeaderElection} instance.
+     */
+    public LeaderElection getElection()
+    {
+        return mElection;
+    }
+
+
+    /**
+     * Get the path of the znode under which checkpoints are saved.
+     *
+     * @return
+     *         The path.
+     */
+    public String getCheckpointPath()
+    {
+        return mCheckpointPath;
+    }
+
+
+    /**
+     * Set the path of the znode under which checkpoints are saved.
+     * The znode is created if it does not exist. The parent of the
+     * znode must exist. If no path is set, tasks cannot save
+     * checkpoints.
+     *
+     * @param path
+     *         The path.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaderScheduler setCheckpointPath(String path)
+    {
+        mCheckpointPath = path;
+
+        return this;
+    }
+
+
+    /**
+     * Get the executor which runs the tasks.
+     *
+     * @return
+     *         The executor.
+     */
+    public ScheduledExecutorService getExecutor()
+    {
+        return mExecutor;
+    }
+
+
+    /**
+     * Set the executor which runs the tasks. If no executor is set
+     * when {@link #start()} is called, a single-thread executor with
+     * a daemon thread is created and it is shut down by {@link #finish()}.
+     *
+     * @param executor
+     *         An executor.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaderScheduler setExecutor(ScheduledExecutorService executor)
+    {
+        mExecutor = executor;
+
+        return this;
+    }
+
+
+    /**
+     * Add a periodic task. The task runs with a fixed delay between
+     * the end of a run and the start of the next run. If the {@code
+     * LeaderElection} is the leader, the task is scheduled immediately.
+     *
+     * @param name
+     *         The name of the task, which is used as the name of the
+     *         checkpoint znode. Must be unique in this scheduler.
+     *
+     * @param task
+     *         The task.
+     *
+     * @param initialDelay
+     *         The delay before the first run after this candidate
+     *         becomes the leader.
+     *
+     * @param delay
+     *         The delay between runs.
+     *
+     * @param unit
+     *         The unit of {@code initialDelay} and {@code delay}.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaderScheduler schedule(String name, Task task, long initialDelay, long delay, TimeUnit unit)
+    {
+        Entry entry = new Entry(name, task, unit.toNanos(initialDelay), unit.toNanos(delay));
+
+        synchronized (this)
+        {
+            mEntries.add(entry);
+
+            if (mLeading)
+            {
+                entry.start(mTerm);
+            }
+        }
+
+        return this;
+    }
+
+
+    /**
+     * Start following the {@code LeaderElection}. This method should be
+     * called before the {@code LeaderElection} is started.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalStateException
+     *         {@code start()} has already been called.
+     */
+    public LeaderScheduler start()
+    {
+        synchronized (this)
+        {
+            if (mStarted)
+            {
+                throw new IllegalStateException("start() can be called only once.");
+            }
+
+            mStarted = true;
+
+            if (mExecutor == null)
+            {
+                mExecutor    = DaemonScheduler.newExecutor("LeaderScheduler");
+                mOwnExecutor = true;
+            }
+        }
+
+        // Follow the state in the same lock as LeaderElection
+        // notifies state changes.
+        synchronized (mElection)
+        {
+            mElection.addObserver(mObserver);
+
+            if (mElection.getState() == LeaderElection.State.LEADER)
+            {
+                startAll();
+            }
+        }
+
+        return this;
+    }
+
+
+    /**
+     * Stop all the tasks and stop following the {@code LeaderElection}.
+     * The {@code LeaderElection} itself is not finished.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaderScheduler finish()
+    {
+        mElection.removeObserver(mObserver);
+
+        synchronized (this)
+        {
+            mFinished = true;
+
+            stopAll();
+        }
+
+        if (mOwnExecutor)
+        {
+            mExecutor.shutdownNow();
+        }
+
+        return this;
+    }
+
+
+    /**
+     * Get the time it took from winning the election to loading the
+     * checkpoint and starting the first task, at the last time this
+     * candidate became the leader.
+     *
+     * @return
+     *         The latency in milliseconds. -1 if not measured yet.
+     */
+    public long getLastResumeLatency()
+    {
+        return mLastResumeLatency;
+    }
+
+
+    /**
+     * Get the time it took from detecting that the previous leader had
+     * gone to starting the first task as the new leader, at the last
+     * time this candidate took over the leadership. This includes the
+     * time of the election.
+     *
+     * @return
+     *         The latency in milliseconds. -1 if not measured yet.
+     */
+    public long getLastFailoverLatency()
+    {
+        return mLastFailoverLatency;
+    }
+
+
+    private synchronized void startAll()
+    {
+        if (mFinished || mLeading)
+        {
+            return;
+        }
+
+        mLeading = true;
+        mResumed = false;
+        mWonAt   = System.nanoTime();
+        ++mTerm;
+
+        for (Entry entry : mEntries)
+        {
+            entry.start(mTerm);
+        }
+    }
+
+
+    private synchronized void markVacant()
+    {
+        mVacantAt = System.nanoTime();
+    }
+
+
+    private synchronized void stopAll()
+    {
+        if (mLeading == false)
+        {
+            return;
+        }
+
+        mLeading = false;
+        ++mTerm;
+
+        for (Entry entry : mEntries)
+        {
+            entry.stop();
+        }
+    }
+
+
+    private synchronized boolean isCurrent(int term)
+    {
+        return mLeading && mTerm == term;
+    }
+
+
+    private synchronized void onResumed(int term)
+    {
+        if (mTerm != term || mResumed)
+        {
+            return;
+        }
+
+        mResumed = true;
+
+        long now = System.nanoTime();
+
+        mLastResumeLatency = TimeUnit.NANOSECONDS.toMillis(now - mWonAt);
+
+        if (mVacantAt != 0)
+        {
+            mLastFailoverLatency = TimeUnit.NANOSECONDS.toMillis(now - mVacantAt);
+            mVacantAt = 0;
+        }
+    }
+
+
+    private ZooKeeper getZooKeeper()
+    {
+        return mElection.getZooKeeper();
+    }
+
+
+    private String getCheckpointNodePath(String name)
+    {
+        return mCheckpointPath + "/" + name;
+    }
+
+
+    private byte[] loadCheckpoint(String name) throws KeeperException, InterruptedException
+    {
+        if (mCheckpointPath == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return getZooKeeper().getData(getCheckpointNodePath(name), false, null);
+        }
+        catch (KeeperException.NoNodeException e)
+        {
+            // No checkpoint has been saved.
+            return null;
+        }
+    }
+
+
+    private boolean saveCheckpoint(String name, byte[] data) throws InterruptedException
+    {
+        if (mCheckpointPath == null)
+        {
+            throw new IllegalStateException("A checkpoint path must be set.");
+        }
+
+        String path = getCheckpointNodePath(name);
+
+        try
+        {
+            try
+            {
+                new TransactionBuilder(getZooKeeper())
+                    .checkLeader(mElection)
+                    .setData(path, data, -1)
+                    .commit();
+            }
+            catch (KeeperException.NoNodeException e)
+            {
+                // The checkpoint znode or its parent does not exist.
+                // If the leader znode has gone instead, the retry
+                // below fails in the same way.
+                createParent();
+
+                new TransactionBuilder(getZooKeeper())
+                    .checkLeader(mElection)
+                    .create(path, data, CreateMode.PERSISTENT)
+                    .commit();
+            }
+
+            return true;
+        }
+        catch (KeeperException e)
+        {
+            // Not the leader any more, or failed to write.
+            return false;
+        }
+        catch (IllegalStateException e)
+        {
+            // Not the leader any more.
+            return false;
+        }
+    }
+
+
+    private void createParent() throws KeeperException, InterruptedException
+    {
+        try
+        {
+            getZooKeeper().create(mCheckpointPath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+        catch (KeeperException.NodeExistsException e)
+        {
+            // Already exists.
+        }
+    }
+
+
+    private class Entry
+    {
+        private final String mName;
+        private final Task mTask;
+        private final long mInitialDelay;
+        private final long mDelay;
+        private ScheduledFuture<?> mFuture;
+
+
+        public Entry(String name, Task task, long initialDelay, long delay)
+        {
+            mName         = name;
+            mTask         = task;
+            mInitialDelay = initialDelay;
+            mDelay        = delay;
+        }
+
+
+        // Called while holding the lock of LeaderScheduler.
+        public void start(int term)
+        {
+            mFuture = mExecutor.scheduleWithFixedDelay(
+                new Runner(this, term), mInitialDelay, mDelay, TimeUnit.NANOSECONDS);
+        }
+
+
+        // Called while holding the lock of LeaderScheduler.
+        public void stop()
+        {
+            if (mFuture != null)
+            {
+                // Interrupt the task if it is running.
+                mFuture.cancel(true);
+                mFuture = null;
+            }
+        }
+    }
+
+
+    private class Runner implements Runnable, Context
+    {
+        private final Entry mEntry;
+        private final int mTerm;
+        private boolean mLoaded;
+        private volatile byte[] mCheckpoint;
+
+
+        public Runner(Entry entry, int term)
+        {
+            mEntry = entry;
+            mTerm  = term;
+        }
+
+
+        @Override
+        public void run()
+        {
+            if (isCancelled())
+            {
+                return;
+            }
+
+            try
+            {
+                if (mLoaded == false)
+                {
+                    // Resume from the checkpoint of the previous leader.
+                    mCheckpoint = loadCheckpoint(mEntry.mName);
+                    mLoaded     = true;
+
+                    onResumed(mTerm);
+                }
+
+                mEntry.mTask.run(this);
+            }
+            catch (Throwable t)
+            {
+                // Run again after the delay. The checkpoint is
+                // loaded again if it failed to be loaded.
+            }
+        }
+
+
+        @Override
+        public String getName()
+        {
+            return mEntry.mName;
+        }
+
+
+        @Override
+        public byte[] getCheckpoint()
+        {
+            return mCheckpoint;
+        }
+
+
+        @Override
+        public boolean checkpoint(byte[] data) throws InterruptedException
+        {
+            if (isCancelled())
+            {
+                return false;
+            }
+
+            boolean saved = saveCheckpoint(mEntry.mName, data);
+
+            if (saved)
+            {
+                mCheckpoint = data;
+            }
+
+            return saved;
+        }
+
+
+        @Override
+        public boolean isCancelled()
+        {
+            return isCurrent(mTerm) == false;
+        }
+    }
+
+
+    private class StateObserver extends LeaderElection.Adapter
+    {
+        @Override
+        public void onStateChanged(LeaderElection election, LeaderElection.State oldState, LeaderElection.State newState)
+        {
+            if (newState == LeaderElection.State.LEADER)
+            {
+                startAll();
+                return;
+            }
+
+            // Stop the tasks immediately on any transition out of LEADER.
+            stopAll();
+
+            if (oldState == LeaderElection.State.FOLLOWER && newState == LeaderElection.State.ELECTING)
+            {
+                // The previous leader has gone.
+                markVacant();
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+
+/**
+ * Feed of state transitions of a {@link LeaderElection}.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * LeaderElection election = <span style="color: purple; font-weight: bold;">new</span> LeaderElection(zooKeeper);
+ *
+ * LeaderStateFeed feed = <span style="color: purple; font-weight: bold;">new</span> LeaderStateFeed(election).{@link #start()};
+ * feed.{@link #subscribe(ChangeFeed.Subscriber) subscribe}(subscriber);
+ *
+ * election.{@link LeaderElection#start() start()};
+ * </pre>
+ *
+ * <p>
+ * The current state is published when {@link #start()} is called, and
+ * then each new state is published. The listener set to the {@code
+ * LeaderElection} is not affected. When the state becomes {@link
+ * LeaderElection.State#DONE DONE}, the feed completes. See {@link
+ * ChangeFeed} for flow control. Note that a subscriber without demand
+ * receives only the latest state, so it may not see short-lived states.
+ * </p>
+ *
+ * <p>
+ * {@code LeaderElection} notifies state changes while holding its lock.
+ * To keep subscribers from running in the lock, signals are delivered
+ * on a thread of the feed's own unless an {@link #setExecutor(Executor)
+ * executor} is set.
+ * </p>
+ *
+ * @since 1.3
+ */
+public class LeaderStateFeed extends ChangeFeed<LeaderElection.State>
+{
+    private final LeaderElection mElection;
+    private final LeaderElection.Listener mObserver = new StateObserver();
+    private ExecutorService mOwnExecutor;
+
+
+    public LeaderStateFeed(LeaderElection election)
+    {
+        if (election == null)
+        {
+            throw new NullPointerException("election is null.");
+        }
+
+        mElection = election;
+    }
+
+
+    /**
+     * Get the {@link LeaderElection} whose state transitions are
+     * published.
+     *
+     * @return
+     *         The {@link LeaderElection} instance.
+     */
+    public LeaderElection getElection()
+    {
+        return mElection;
+    }
+
+
+    /**
+     * Set an executor on which signals are delivered to subscribers.
+     * If no executor is set when {@link #start()} is called, a
+     * single-thread executor with a daemon thread is created and it
+     * is shut down by {@link #finish()}.
+     *
+     * @param executor
+     *         An executor.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    @Override
+    public LeaderStateFeed setExecutor(Executor executor)
+    {
+        super.setExecutor(executor);
+
+        return this;
+    }
+
+
+    /**
+     * Start publishing state transitions.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaderStateFeed start()
+    {
+        synchronized (this)
+        {
+            if (getExecutor() == null)
+            {
+                mOwnExecutor = DaemonScheduler.newExecutor("LeaderStateFeed");
+                super.setExecutor(mOwnExecutor);
+            }
+        }
+
+        // LeaderElection notifies observers while holding its lock, so
+        // holding the lock here keeps the current state from being
+        // published after a newer one.
+        synchronized (mElection)
+        {
+            mElection.addObserver(mObserver);
+
+            publishState(mElection.getState());
+        }
+
+        return this;
+    }
+
+
+    /**
+     * Stop publishing state transitions. Subscribers receive {@code
+     * onComplete()}. The {@code LeaderElection} itself is not finished.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaderStateFeed finish()
+    {
+        mElection.removeObserver(mObserver);
+        complete();
+
+        synchronized (this)
+        {
+            if (mOwnExecutor != null)
+            {
+                // Signals already queued, including onComplete(),
+                // are still delivered.
+                mOwnExecutor.shutdown();
+            }
+        }
+
+        return this;
+    }
+
+
+    private void publishState(LeaderElection.State state)
+    {
+        publish(state);
+
+        if (state == LeaderElection.State.DONE)
+        {
+            finish();
+        }
+    }
+
+
+    private class StateObserver extends LeaderElection.Adapter
+    {
+        @Override
+        public void onStateChanged(LeaderElection election, LeaderElection.State oldState, LeaderElection.State newState)
+        {
+            publishState(newState);
+        }
+    }
+}
@@ -0,0 +1,955 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Leader election whose leadership is a lease renewed by a heartbeat,
+ * not the lifetime of an ephemeral znode.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * <span style="color: darkgreen;">// Leadership is valid for 30 seconds after the last renewal</span>
+ * <span style="color: darkgreen;">// whatever the session timeout is.</span>
+ * <span style="color: purple; font-weight: bold;">new</span> LeaseElection(zooKeeper)
+ *     .{@link #setPath(String) setPath}(<span style="color: mediumblue;">"/scheduler-lease"</span>)
+ *     .{@link #setLeaseTime(long, TimeUnit) setLeaseTime}(30, TimeUnit.SECONDS)
+ *     .{@link #setRenewalInterval(long, TimeUnit) setRenewalInterval}(5, TimeUnit.SECONDS)
+ *     .{@link #setListener(Listener) setListener}(<span style="color: purple; font-weight: bold;">new</span> LeaseElection.{@link Adapter}() {
+ *         <span style="color: gray;">&#x40;Override</span>
+ *         <span style="color: purple; font-weight: bold;">public void</span> {@link Listener#onWin(LeaseElection)
+ *         onWin}(LeaseElection election) {
+ *             startScheduling();
+ *         }
+ *
+ *         <span style="color: gray;">&#x40;Override</span>
+ *         <span style="color: purple; font-weight: bold;">public void</span> {@link Listener#onLose(LeaseElection)
+ *         onLose}(LeaseElection election) {
+ *             stopScheduling();
+ *         }
+ *     })
+ *     .{@link #start()};
+ * </pre>
+ *
+ * <p>
+ * The lease is a persistent znode whose content is the ID of the leader.
+ * The leader renews the lease by {@code setData()} with the version it
+ * last wrote at every {@link #setRenewalInterval(long, TimeUnit) renewal
+ * interval}. Other candidates read the znode at the same interval and
+ * take over the lease by a conditional {@code setData()} when they have
+ * not seen it modified for the {@link #setLeaseTime(long, TimeUnit) lease
+ * time}. The leader steps down when it has not renewed the lease within
+ * the lease time, which ends before any other candidate can take over as
+ * long as the clocks of the hosts advance at the same rate.
+ * </p>
+ *
+ * <p>
+ * Because the znode is not ephemeral, leadership survives disconnection
+ * and even expiration of the session as long as the lease is renewed in
+ * time. When the session has expired, give a new {@link ZooKeeper}
+ * instance by {@link #setZooKeeper(ZooKeeper)} and the heartbeat
+ * continues through it. The lease time and the session timeout can be
+ * tuned independently. Unlike {@link LeaderElection}, a crashed leader is
+ * replaced only after the lease time, and the znode remains after all the
+ * candidates have finished. A leader which {@link #finish() finishes}
+ * deletes the znode so that another candidate takes over at once.
+ * </p>
+ *
+ * <p>
+ * ZooKeeper 3.4 supports neither TTL nor container znodes, so the lease
+ * is kept only by the client-side heartbeat.
+ * </p>
+ *
+ * @since 1.3
+ *
+ * @see LeaderElection
+ */
+public class LeaseElection
+{
+    /**
+     * The listener to receive events of a {@link LeaseElection}.
+     */
+    public interface Listener
+    {
+        /**
+         * Called when this candidate has acquired the lease.
+         *
+         * @param election
+         *         The {@link LeaseElection} instance which this
+         *         listener is associated with.
+         */
+        void onWin(LeaseElection election);
+
+
+        /**
+         * Called when this candidate has lost the lease, that is, when
+         * another candidate has taken over the lease or when the lease
+         * has not been renewed within the lease time.
+         *
+         * @param election
+         *         The {@link LeaseElection} instance which this
+         *         listener is associated with.
+         */
+        void onLose(LeaseElection election);
+
+
+        /**
+         * Called when {@link #finish()} has stopped the election.
+         *
+         * @param election
+         *         The {@link LeaseElection} instance which this
+         *         listener is associated with.
+         */
+        void onFinish(LeaseElection election);
+    }
+
+
+    /**
+     * An empty implementation of {@link Listener}.
+     */
+    public static class Adapter implements Listener
+    {
+        @Override
+        public void onWin(LeaseElection election)
+        {
+        }
+
+
+        @Override
+        public void onLose(LeaseElection election)
+        {
+        }
+
+
+        @Override
+        public void onFinish(LeaseElection election)
+        {
+        }
+    }
+
+
+    /**
+     * State of a {@link LeaseElection}.
+     */
+    public enum State
+    {
+        /**
+         * The initial state.
+         */
+        CREATED,
+
+
+        /**
+         * Another candidate holds the lease, or nobody holds it yet.
+         */
+        FOLLOWER,
+
+
+        /**
+         * This candidate holds the lease.
+         */
+        LEADER,
+
+
+        /**
+         * {@link #finish()} has been called.
+         */
+        DONE
+    }
+
+
+    private static final String DEFAULT_PATH = "/leader-lease";
+    private static final List<ACL> DEFAULT_ACL_LIST = ZooDefs.Ids.OPEN_ACL_UNSAFE;
+    private static final long DEFAULT_LEASE_TIME = 10000;
+    private static final DataCallback sReadCallback = new ReadCallback();
+    private static final StringCallback sCreateCallback = new CreateCallback();
+    private static final StatCallback sWriteCallback = new WriteCallback();
+    private static final VoidCallback sIgnoreCallback = new IgnoreCallback();
+
+
+    private volatile ZooKeeper mZooKeeper;
+    private String mPath;
+    private String mId;
+    private byte[] mIdBytes;
+    private List<ACL> mAclList;
+    private long mLeaseTime = DEFAULT_LEASE_TIME;
+    private long mRenewalInterval;
+    private Listener mListener;
+    private ScheduledExecutorService mExecutor;
+
+    // Guarded by this.
+    private State mState = State.CREATED;
+    private ScheduledFuture<?> mHeartbeat;
+    private boolean mRequesting;
+    private long mRequestTime;
+    private int mVersion = -1;
+    private long mDeadline;
+    private long mObservedMzxid = -1;
+    private long mObservedTime;
+
+
+    public LeaseElection()
+    {
+    }
+
+
+    public LeaseElection(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+    }
+
+
+    /**
+     * Get the {@link ZooKeeper} instance.
+     *
+     * @return
+     *         The {@link ZooKeeper} instance.
+     */
+    public ZooKeeper getZooKeeper()
+    {
+        return mZooKeeper;
+    }
+
+
+    /**
+     * Set the {@link ZooKeeper} instance. This method can be called after
+     * {@link #start()} to replace a {@code ZooKeeper} instance whose
+     * session has expired. The lease is kept if it is renewed through the
+     * new instance within the lease time.
+     *
+     * @param zooKeeper
+     *         A {@link ZooKeeper} instance.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaseElection setZooKeeper(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+
+        return this;
+    }
+
+
+    /**
+     * Get the path of the znode of the lease.
+     *
+     * @return
+     *         The path.
+     */
+    public String getPath()
+    {
+        return mPath;
+    }
+
+
+    /**
+     * Set the path of the persistent znode of the lease. If no path is
+     * set when {@link #start()} is called, {@code "/leader-lease"} is
+     * used. The parent znode must exist.
+     *
+     * @param path
+     *         The path.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaseElection setPath(String path)
+    {
+        mPath = path;
+
+        return this;
+    }
+
+
+    /**
+     * Get the ID that represents this candidate.
+     *
+     * @return
+     *         The ID.
+     */
+    public String getId()
+    {
+        return mId;
+    }
+
+
+    /**
+     * Set the ID that represents this candidate. The value must be
+     * different from other candidates' IDs. A candidate restarted with
+     * the same ID resumes the lease it held. If no ID is set when
+     * {@link #start()} is called, a random ID is generated.
+     *
+     * @param id
+     *         The ID.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaseElection setId(String id)
+    {
+        mId = id;
+
+        return this;
+    }
+
+
+    /**
+     * Get the ACL list used for creation of the znode of the lease.
+     *
+     * @return
+     *         The ACL list.
+     */
+    public List<ACL> getAclList()
+    {
+        return mAclList;
+    }
+
+
+    /**
+     * Set the ACL list used for creation of the znode of the lease. If
+     * no ACL list is set when {@link #start()} is called, {@link
+     * ZooDefs.Ids#OPEN_ACL_UNSAFE} is used.
+     *
+     * @param list
+     *         The ACL list.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaseElection setAclList(List<ACL> list)
+    {
+        mAclList = list;
+
+        return this;
+    }
+
+
+    /**
+     * Get the lease time.
+     *
+     * @return
+     *         The lease time in milliseconds.
+     */
+    public long getLeaseTime()
+    {
+        return mLeaseTime;
+    }
+
+
+    /**
+     * Set the lease time, that is, how long leadership is valid after
+     * the last renewal. The default value is 10 seconds. All candidates
+     * must use the same lease time. This method should be called before
+     * {@link #start()}.
+     *
+     * @param time
+     *         The lease time.
+     *
+     * @param unit
+     *         The unit of {@code time}.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalArgumentException
+     *         {@code time} is not positive.
+     */
+    public LeaseElection setLeaseTime(long time, TimeUnit unit)
+    {
+        long millis = unit.toMillis(time);
+
+        if (millis <= 0)
+        {
+            throw new IllegalArgumentException("The lease time must be positive.");
+        }
+
+        mLeaseTime = millis;
+
+        return this;
+    }
+
+
+    /**
+     * Get the renewal interval.
+     *
+     * @return
+     *         The renewal interval in milliseconds. 0 means one third of
+     *         the lease time.
+     */
+    public long getRenewalInterval()
+    {
+        return mRenewalInterval;
+    }
+
+
+    /**
+     * Set the interval at which the leader renews the lease and the
+     * other candidates read it. It should be a fraction of the lease
+     * time so that a few renewals can fail without losing the lease.
+     * If not set, one third of the lease time is used. This method
+     * should be called before {@link #start()}.
+     *
+     * @param interval
+     *         The interval.
+     *
+     * @param unit
+     *         The unit of {@code interval}.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalArgumentException
+     *         {@code interval} is not positive.
+     */
+    public LeaseElection setRenewalInterval(long interval, TimeUnit unit)
+    {
+        long millis = unit.toMillis(interval);
+
+        if (millis <= 0)
+        {
+            throw new IllegalArgumentException("The interval must be positive.");
+        }
+
+        mRenewalInterval = millis;
+
+        return this;
+    }
+
+
+    /**
+     * Get the listener.
+     *
+     * @return
+     *         The listener.
+     */
+    public Listener getListener()
+    {
+        return mListener;
+    }
+
+
+    /**
+     * Set a listener.
+     *
+     * @param listener
+     *         A listener.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaseElection setListener(Listener listener)
+    {
+        mListener = listener;
+
+        return this;
+    }
+
+
+    /**
+     * Get the executor which runs the heartbeat.
+     *
+     * @return
+     *         The executor. {@code null} if no executor is set.
+     */
+    public ScheduledExecutorService getExecutor()
+    {
+        return mExecutor;
+    }
+
+
+    /**
+     * Set the executor which runs the heartbeat. If no executor is set,
+     * a single-thread executor with a daemon thread shared by all recipes
+     * is used. This method should be called before {@link
+     * #start()}.
+     *
+     * @param executor
+     *         An executor.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaseElection setExecutor(ScheduledExecutorService executor)
+    {
+        mExecutor = executor;
+
+        return this;
+    }
+
+
+    /**
+     * Get the current state.
+     *
+     * @return
+     *         The current state.
+     */
+    public synchronized State getState()
+    {
+        return mState;
+    }
+
+
+    /**
+     * Check if this candidate holds a lease which has not expired. This
+     * method checks the lease time by itself, so it returns {@code false}
+     * as soon as the lease expires even before {@link
+     * Listener#onLose(LeaseElection) onLose()} is called.
+     *
+     * @return
+     *         {@code true} if this candidate is the leader.
+     */
+    public synchronized boolean isLeader()
+    {
+        return mState == State.LEADER && System.nanoTime() - mDeadline < 0;
+    }
+
+
+    /**
+     * Start the election.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalStateException
+     *         <ul>
+     *           <li>No {@link ZooKeeper} instance is set.
+     *           <li>The current state is not {@link State#CREATED CREATED}.
+     *         </ul>
+     */
+    public LeaseElection start()
+    {
+        // If a ZooKeeper instance is not set.
+        if (mZooKeeper == null)
+        {
+            // A ZooKeeper instance must be set before start().
+            throw new IllegalStateException("A ZooKeeper instance must be set.");
+        }
+
+        if (mPath == null)
+        {
+            mPath = DEFAULT_PATH;
+        }
+
+        if (mId == null)
+        {
+            mId = String.valueOf(Math.abs(new Random().nextLong()));
+        }
+
+        if (mAclList == null)
+        {
+            mAclList = DEFAULT_ACL_LIST;
+        }
+
+        mIdBytes = getBytes(mId);
+
+        long interval = (0 < mRenewalInterval) ? mRenewalInterval : Math.max(1, mLeaseTime / 3);
+
+        synchronized (this)
+        {
+            if (mState != State.CREATED)
+            {
+                throw new IllegalStateException(
+                    "start() can be called only when the state is CREATED. " +
+                    "The current state is " + mState + ".");
+            }
+
+            mState = State.FOLLOWER;
+
+            mHeartbeat = getExecutorToUse().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run()
+                {
+                    beat();
+                }
+            }, 0, interval, TimeUnit.MILLISECONDS);
+        }
+
+        return this;
+    }
+
+
+    /**
+     * Stop the election. If this candidate holds the lease, the znode of
+     * the lease is deleted so that another candidate can take over
+     * without waiting for the lease time.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaseElection finish()
+    {
+        boolean wasLeader;
+        int version;
+
+        synchronized (this)
+        {
+            if (mState == State.DONE)
+            {
+                return this;
+            }
+
+            wasLeader = (mState == State.LEADER);
+            version   = mVersion;
+            mState    = State.DONE;
+
+            if (mHeartbeat != null)
+            {
+                mHeartbeat.cancel(false);
+                mHeartbeat = null;
+            }
+        }
+
+        if (wasLeader)
+        {
+            // Resign. Fails harmlessly if another candidate has taken over.
+            mZooKeeper.delete(mPath, version, sIgnoreCallback, null);
+        }
+
+        callOnFinish();
+
+        return this;
+    }
+
+
+    private ScheduledExecutorService getExecutorToUse()
+    {
+        if (mExecutor != null)
+        {
+            return mExecutor;
+        }
+
+        return DaemonScheduler.getShared();
+    }
+
+
+    /**
+     * Called at every renewal interval.
+     */
+    private void beat()
+    {
+        if (expireIfNecessary())
+        {
+            callOnLose();
+        }
+
+        boolean leader;
+        int version;
+
+        synchronized (this)
+        {
+            if (mState == State.DONE || mRequesting)
+            {
+                // A previous request has not been answered yet.
+                return;
+            }
+
+            mRequesting  = true;
+            mRequestTime = System.nanoTime();
+            leader       = (mState == State.LEADER);
+            version      = mVersion;
+        }
+
+        ZooKeeper zooKeeper = mZooKeeper;
+
+        if (leader)
+        {
+            // Renew the lease.
+            zooKeeper.setData(mPath, mIdBytes, version, sWriteCallback, this);
+        }
+        else
+        {
+            // Check the lease.
+            zooKeeper.getData(mPath, false, sReadCallback, this);
+        }
+    }
+
+
+    private synchronized boolean expireIfNecessary()
+    {
+        if (mState != State.LEADER || System.nanoTime() - mDeadline < 0)
+        {
+            return false;
+        }
+
+        // Not renewed within the lease time. Other candidates may take
+        // over. The lease is resumed if the znode still has this ID.
+        lose();
+
+        return true;
+    }
+
+
+    private void lose()
+    {
+        mState         = State.FOLLOWER;
+        mVersion       = -1;
+        mObservedMzxid = -1;
+    }
+
+
+    private void onRead(int rc, byte[] data, Stat stat)
+    {
+        long now = System.nanoTime();
+        ZooKeeper zooKeeper = mZooKeeper;
+
+        synchronized (this)
+        {
+            mRequesting = false;
+
+            if (mState != State.FOLLOWER)
+            {
+                return;
+            }
+
+            switch (Code.get(rc))
+            {
+                case NONODE:
+                    // Nobody holds the lease.
+                    break;
+
+                case OK:
+                    if (Arrays.equals(data, mIdBytes))
+                    {
+                        // This candidate held the lease before restart.
+                        break;
+                    }
+
+                    if (stat.getMzxid() != mObservedMzxid)
+                    {
+                        // The lease has been renewed.
+                        mObservedMzxid = stat.getMzxid();
+                        mObservedTime  = now;
+                        return;
+                    }
+
+                    if (now - mObservedTime < TimeUnit.MILLISECONDS.toNanos(mLeaseTime))
+                    {
+                        // The lease is still valid.
+                        return;
+                    }
+
+                    // The lease has expired.
+                    break;
+
+                default:
+                    // Try again at the next beat.
+                    return;
+            }
+
+            mRequesting  = true;
+            mRequestTime = now;
+        }
+
+        if (stat == null)
+        {
+            zooKeeper.create(mPath, mIdBytes, mAclList, CreateMode.PERSISTENT, sCreateCallback, this);
+        }
+        else
+        {
+            // Take over the lease unless it has been renewed meanwhile.
+            zooKeeper.setData(mPath, mIdBytes, stat.getVersion(), sWriteCallback, this);
+        }
+    }
+
+
+    private void onWritten(int rc, int version)
+    {
+        boolean won  = false;
+        boolean lost = false;
+
+        synchronized (this)
+        {
+            mRequesting = false;
+
+            if (mState == State.DONE)
+            {
+                return;
+            }
+
+            switch (Code.get(rc))
+            {
+                case OK:
+                    // The lease is valid for the lease time since the
+                    // request was sent.
+                    long deadline = mRequestTime + TimeUnit.MILLISECONDS.toNanos(mLeaseTime);
+
+                    if (deadline - System.nanoTime() <= 0)
+                    {
+                        // Answered too late. Try again at the next beat.
+                        break;
+                    }
+
+                    won       = (mState == State.FOLLOWER);
+                    mState    = State.LEADER;
+                    mVersion  = version;
+                    mDeadline = deadline;
+                    break;
+
+                case BADVERSION:
+                case NONODE:
+                case NODEEXISTS:
+                    // Another candidate has taken over the lease.
+                    if (mState == State.LEADER)
+                    {
+                        lose();
+                        lost = true;
+                    }
+                    break;
+
+                default:
+                    // Try again at the next beat. The lease expires
+                    // unless a renewal succeeds in time.
+                    break;
+            }
+        }
+
+        if (won)
+        {
+            callOnWin();
+        }
+        else if (lost)
+        {
+            callOnLose();
+        }
+    }
+
+
+    private void callOnWin()
+    {
+        if (mListener == null)
+        {
+            return;
+        }
+
+        try
+        {
+            mListener.onWin(this);
+        }
+        catch (RuntimeException e)
+        {
+            // Ignore.
+        }
+    }
+
+
+    private void callOnLose()
+    {
+        if (mListener == null)
+        {
+            return;
+        }
+
+        try
+        {
+            mListener.onLose(this);
+        }
+        catch (RuntimeException e)
+        {
+            // Ignore.
+        }
+    }
+
+
+    private void callOnFinish()
+    {
+        if (mListener == null)
+        {
+            return;
+        }
+
+        try
+        {
+            mListener.onFinish(this);
+        }
+        catch (RuntimeException e)
+        {
+            // Ignore.
+        }
+    }
+
+
+    private static byte[] getBytes(String string)
+    {
+        try
+        {
+            return string.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // This never happens.
+            return null;
+        }
+    }
+
+
+    private static class ReadCallback implements DataCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat)
+        {
+            ((LeaseElection)ctx).onRead(rc, data, stat);
+        }
+    }
+
+
+    private static class CreateCallback implements StringCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, String name)
+        {
+            // A created znode has version 0.
+            ((LeaseElection)ctx).onWritten(rc, 0);
+        }
+    }
+
+
+    private static class WriteCallback implements StatCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat)
+        {
+            ((LeaseElection)ctx).onWritten(rc, (stat != null) ? stat.getVersion() : -1);
+        }
+    }
+
+
+    private static class IgnoreCallback implements VoidCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx)
+        {
+        }
+    }
+}
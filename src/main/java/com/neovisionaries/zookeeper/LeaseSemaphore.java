@@ -0,0 +1,1350 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Counting semaphore which lets at most <i>N</i> holders have a lease
+ * at the same time.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * LeaseSemaphore semaphore = <span style="color: purple; font-weight: bold;">new</span> LeaseSemaphore(zooKeeper)
+ *     .{@link #setPath(String) setPath}(<span style="color: mediumblue;">"/semaphores/resource"</span>)
+ *     .{@link #setMaxLeases(int) setMaxLeases}(10)
+ *     .{@link #setLeaseTime(long, TimeUnit) setLeaseTime}(1, TimeUnit.MINUTES);
+ *
+ * <span style="color: darkgreen;">// Wait for a lease for up to 30 seconds.</span>
+ * semaphore.{@link #acquire(Listener, long, TimeUnit) acquire}(<span style="color: purple; font-weight: bold;">new</span> LeaseSemaphore.{@link Adapter}() {
+ *     <span style="color: gray;">&#x40;Override</span>
+ *     <span style="color: purple; font-weight: bold;">public void</span> {@link Listener#onAcquired(Lease) onAcquired}(LeaseSemaphore.Lease lease) {
+ *         <span style="color: darkgreen;">// Do not block the event thread of ZooKeeper. The worker</span>
+ *         <span style="color: darkgreen;">// calls lease.release() when it has finished.</span>
+ *         workers.execute(<span style="color: purple; font-weight: bold;">new</span> Worker(lease));
+ *     }
+ * }, 30, TimeUnit.SECONDS);
+ * </pre>
+ *
+ * <p>
+ * Each {@link #acquire(Listener) acquire()} creates an ephemeral sequential
+ * znode under the {@link #setPath(String) path}. The contenders whose
+ * znodes are among the first <i>N</i> ones hold leases. A waiter does not
+ * watch all the znodes. The first waiter watches the children of the path
+ * and each of the other waiters watches only its predecessor, so releasing
+ * a lease wakes up only one waiter. When a waiter obtains a lease, it
+ * touches its znode to let its successor move to the head of the queue.
+ * </p>
+ *
+ * <p>
+ * A lease ends in one of the following ways.
+ * </p>
+ *
+ * <blockquote>
+ * <table border="1" cellpadding="5" style="border-collapse: collapse;">
+ *   <tr>
+ *     <th>State</th>
+ *     <th>Cause</th>
+ *   </tr>
+ *   <tr>
+ *     <td>{@link State#RELEASED RELEASED}</td>
+ *     <td>{@link Lease#release()} was called.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>{@link State#TIMED_OUT TIMED_OUT}</td>
+ *     <td>The lease was not obtained within the timeout given to {@link
+ *         #acquire(Listener, long, TimeUnit) acquire()}.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>{@link State#EXPIRED EXPIRED}</td>
+ *     <td>The lease was held longer than the {@link #setLeaseTime(long,
+ *         TimeUnit) lease time}.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>{@link State#REVOKED REVOKED}</td>
+ *     <td>Another client called {@link #revoke(String)}, or the znode of
+ *         the lease was deleted, e.g. because the session expired.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>{@link State#GAVE_UP GAVE_UP}</td>
+ *     <td>The session expired, authentication failed or the {@link
+ *         ZooKeeper} instance was closed.</td>
+ *   </tr>
+ * </table>
+ * </blockquote>
+ *
+ * <p>
+ * Except {@code RELEASED}, the corresponding method of {@link Listener} is
+ * called. In every case, the znode of the lease is deleted. Note that
+ * expiration and revocation only tell the holder to stop. The holder is
+ * responsible for stopping using the resource.
+ * </p>
+ *
+ * <p>
+ * While the client is disconnected, the session may expire on the server
+ * and the slot may be given to another contender before the expiration
+ * is reported as {@code GAVE_UP}. A holder which needs the "at most
+ * <i>N</i>" guarantee strictly should treat a {@code Disconnected} event
+ * of its {@code ZooKeeper} instance as a possible loss of the lease and
+ * stop using the resource until the connection is restored.
+ * </p>
+ *
+ * <p>
+ * All the contenders of the same path must use the same {@link
+ * #setMaxLeases(int) maximum number of leases}. The parent of the path
+ * must exist. The path itself is created if it does not exist.
+ * </p>
+ *
+ * @since 1.3
+ */
+public class LeaseSemaphore
+{
+    /**
+     * Listener interface to receive events of a lease.
+     */
+    public interface Listener
+    {
+        /**
+         * Called when the lease has been obtained.
+         *
+         * @param lease
+         *         The lease.
+         */
+        void onAcquired(Lease lease);
+
+
+        /**
+         * Called when the lease was not obtained within the timeout.
+         *
+         * @param lease
+         *         The lease.
+         */
+        void onTimedOut(Lease lease);
+
+
+        /**
+         * Called when the lease has been held longer than the lease time.
+         *
+         * @param lease
+         *         The lease.
+         */
+        void onExpired(Lease lease);
+
+
+        /**
+         * Called when the lease has been revoked.
+         *
+         * @param lease
+         *         The lease.
+         */
+        void onRevoked(Lease lease);
+
+
+        /**
+         * Called when the session has expired, authentication has failed
+         * or the {@link ZooKeeper} instance has been closed.
+         *
+         * @param lease
+         *         The lease.
+         */
+        void onGaveUp(Lease lease);
+    }
+
+
+    /**
+     * An empty implementation of {@link Listener}.
+     */
+    public static class Adapter implements Listener
+    {
+        @Override
+        public void onAcquired(Lease lease)
+        {
+        }
+
+
+        @Override
+        public void onTimedOut(Lease lease)
+        {
+        }
+
+
+        @Override
+        public void onExpired(Lease lease)
+        {
+        }
+
+
+        @Override
+        public void onRevoked(Lease lease)
+        {
+        }
+
+
+        @Override
+        public void onGaveUp(Lease lease)
+        {
+        }
+    }
+
+
+    /**
+     * State of a lease.
+     */
+    public enum State
+    {
+        /**
+         * Waiting for the lease.
+         */
+        WAITING,
+
+
+        /**
+         * Holding the lease.
+         */
+        ACQUIRED,
+
+
+        /**
+         * Released by {@link Lease#release()}.
+         */
+        RELEASED,
+
+
+        /**
+         * Not obtained within the timeout.
+         */
+        TIMED_OUT,
+
+
+        /**
+         * Held longer than the lease time.
+         */
+        EXPIRED,
+
+
+        /**
+         * Revoked.
+         */
+        REVOKED,
+
+
+        /**
+         * The session expired, authentication failed or the {@link
+         * ZooKeeper} instance was closed.
+         */
+        GAVE_UP
+    }
+
+
+    /**
+     * Lease of a {@link LeaseSemaphore}.
+     */
+    public static final class Lease
+    {
+        private final ZooKeeper mZooKeeper;
+        private final String mPath;
+        private final int mMaxLeases;
+        private final List<ACL> mAclList;
+        private final long mLeaseTime;
+        private final ScheduledExecutorService mExecutor;
+        private final Listener mListener;
+        private final String mPrefix = "lease-" + UUID.randomUUID() + "-";
+        private final Watcher mWatcher = new LeaseWatcher();
+
+        // Guarded by this.
+        private String mNodeName;
+        private State mState = State.WAITING;
+        private ScheduledFuture<?> mTimeoutFuture;
+        private ScheduledFuture<?> mExpireFuture;
+
+
+        Lease(LeaseSemaphore semaphore, Listener listener)
+        {
+            mZooKeeper = semaphore.mZooKeeper;
+            mPath      = semaphore.mPath;
+            mMaxLeases = semaphore.mMaxLeases;
+            mAclList   = semaphore.mAclList;
+            mLeaseTime = semaphore.mLeaseTime;
+            mExecutor  = semaphore.getExecutorToUse();
+            mListener  = listener;
+        }
+
+
+        /**
+         * Get the name of the znode of this lease, which can be given to
+         * {@link LeaseSemaphore#revoke(String)}.
+         *
+         * @return
+         *         The name of the znode. {@code null} if the znode has
+         *         not been created yet.
+         */
+        public synchronized String getName()
+        {
+            return mNodeName;
+        }
+
+
+        /**
+         * Get the current state.
+         *
+         * @return
+         *         The current state.
+         */
+        public synchronized State getState()
+        {
+            return mState;
+        }
+
+
+        /**
+         * Check if this lease is being held.
+         *
+         * @return
+         *         {@code true} if the state is {@link State#ACQUIRED
+         *         ACQUIRED}.
+         */
+        public synchronized boolean isHeld()
+        {
+            return mState == State.ACQUIRED;
+        }
+
+
+        /**
+         * Release this lease, or stop waiting for it. The znode of this
+         * lease is deleted asynchronously. Calling this method after the
+         * lease has ended does nothing.
+         */
+        public void release()
+        {
+            end(State.RELEASED, true, true);
+        }
+
+
+        private void scheduleTimeout(long timeout, TimeUnit unit)
+        {
+            ScheduledFuture<?> future = mExecutor.schedule(new Runnable() {
+                @Override
+                public void run()
+                {
+                    if (end(State.TIMED_OUT, true, false))
+                    {
+                        callOnTimedOut();
+                    }
+                }
+            }, timeout, unit);
+
+            synchronized (this)
+            {
+                mTimeoutFuture = future;
+            }
+        }
+
+
+        private boolean isWaiting()
+        {
+            return getState() == State.WAITING;
+        }
+
+
+        private boolean shouldGiveUp()
+        {
+            switch (mZooKeeper.getState())
+            {
+                case AUTH_FAILED:
+                case CLOSED:
+                    if (end(State.GAVE_UP, true, true))
+                    {
+                        callOnGaveUp();
+                    }
+                    return true;
+
+                default:
+                    return false;
+            }
+        }
+
+
+        private void create()
+        {
+            if (isWaiting() == false || shouldGiveUp())
+            {
+                return;
+            }
+
+            mZooKeeper.create(mPath + "/" + mPrefix, null, mAclList,
+                CreateMode.EPHEMERAL_SEQUENTIAL, sCreateCallback, this);
+        }
+
+
+        private void createParent()
+        {
+            if (isWaiting() == false || shouldGiveUp())
+            {
+                return;
+            }
+
+            mZooKeeper.create(mPath, null, mAclList, CreateMode.PERSISTENT, sParentCallback, this);
+        }
+
+
+        private void find()
+        {
+            if (isWaiting() == false || shouldGiveUp())
+            {
+                return;
+            }
+
+            // The znode may have been created before the connection was
+            // lost. Look for it by the prefix unique to this lease.
+            mZooKeeper.getChildren(mPath, false, sFindCallback, this);
+        }
+
+
+        private void onFound(List<String> children)
+        {
+            for (String child : children)
+            {
+                if (child.startsWith(mPrefix))
+                {
+                    onCreated(child);
+                    return;
+                }
+            }
+
+            // Not created.
+            create();
+        }
+
+
+        private void onCreated(String name)
+        {
+            boolean ended;
+
+            synchronized (this)
+            {
+                mNodeName = name;
+                ended     = (mState != State.WAITING);
+            }
+
+            if (ended)
+            {
+                // The lease ended while the znode was being created.
+                deleteNode(name);
+                return;
+            }
+
+            check(false);
+        }
+
+
+        private void check(boolean watch)
+        {
+            if (isWaiting() == false || shouldGiveUp())
+            {
+                return;
+            }
+
+            if (watch)
+            {
+                mZooKeeper.getChildren(mPath, mWatcher, sWatchChildrenCallback, this);
+            }
+            else
+            {
+                mZooKeeper.getChildren(mPath, false, sChildrenCallback, this);
+            }
+        }
+
+
+        private void onChildren(List<String> children, boolean watched)
+        {
+            if (isWaiting() == false)
+            {
+                return;
+            }
+
+            String[] names = children.toArray(new String[children.size()]);
+            Arrays.sort(names, sSequenceComparator);
+
+            int index = Arrays.asList(names).indexOf(getName());
+
+            if (index < 0)
+            {
+                // The znode has gone. The session must have expired.
+                if (end(State.REVOKED, true, false))
+                {
+                    callOnRevoked();
+                }
+                return;
+            }
+
+            if (index < mMaxLeases)
+            {
+                acquired(index + 1 < names.length);
+                return;
+            }
+
+            if (index == mMaxLeases)
+            {
+                // The head of the queue waits for any holder to leave.
+                if (watched == false)
+                {
+                    check(true);
+                }
+                return;
+            }
+
+            // Wait for the predecessor to leave or to obtain a lease.
+            mZooKeeper.exists(mPath + "/" + names[index - 1], mWatcher, sPredecessorCallback, this);
+        }
+
+
+        private void onPredecessor(Stat stat)
+        {
+            // A znode whose version is not 0 has been touched by a
+            // holder. The predecessor may have obtained a lease before
+            // the watch was set, so check the queue again.
+            if (stat == null || stat.getVersion() != 0)
+            {
+                check(false);
+            }
+        }
+
+
+        private void acquired(boolean hasSuccessor)
+        {
+            String name;
+
+            synchronized (this)
+            {
+                if (mState != State.WAITING)
+                {
+                    return;
+                }
+
+                mState = State.ACQUIRED;
+                name   = mNodeName;
+
+                cancel(mTimeoutFuture);
+
+                if (0 < mLeaseTime)
+                {
+                    mExpireFuture = mExecutor.schedule(new Runnable() {
+                        @Override
+                        public void run()
+                        {
+                            if (end(State.EXPIRED, false, true))
+                            {
+                                callOnExpired();
+                            }
+                        }
+                    }, mLeaseTime, TimeUnit.MILLISECONDS);
+                }
+            }
+
+            String path = mPath + "/" + name;
+
+            if (hasSuccessor)
+            {
+                // Wake up the successor which is watching this znode.
+                mZooKeeper.setData(path, null, 0, sIgnoreStatCallback, null);
+            }
+
+            // Watch this znode for revocation.
+            mZooKeeper.getData(path, mWatcher, sOwnDataCallback, this);
+
+            callOnAcquired();
+        }
+
+
+        private void watchOwn()
+        {
+            String name = getName();
+
+            if (isHeld() == false || name == null || shouldGiveUp())
+            {
+                return;
+            }
+
+            mZooKeeper.getData(mPath + "/" + name, mWatcher, sOwnDataCallback, this);
+        }
+
+
+        private void onOwnData(byte[] data)
+        {
+            if (Arrays.equals(data, REVOKED_DATA) && end(State.REVOKED, false, true))
+            {
+                callOnRevoked();
+            }
+        }
+
+
+        private void onOwnDeleted()
+        {
+            if (end(State.REVOKED, false, true))
+            {
+                callOnRevoked();
+            }
+        }
+
+
+        private boolean end(State state, boolean fromWaiting, boolean fromAcquired)
+        {
+            String name;
+
+            synchronized (this)
+            {
+                if ((mState == State.WAITING && fromWaiting == false) ||
+                    (mState == State.ACQUIRED && fromAcquired == false) ||
+                    (mState != State.WAITING && mState != State.ACQUIRED))
+                {
+                    return false;
+                }
+
+                mState = state;
+                name   = mNodeName;
+
+                cancel(mTimeoutFuture);
+                cancel(mExpireFuture);
+            }
+
+            if (name != null && state != State.GAVE_UP)
+            {
+                deleteNode(name);
+            }
+
+            return true;
+        }
+
+
+        private void deleteNode(String name)
+        {
+            mZooKeeper.delete(mPath + "/" + name, -1, sIgnoreVoidCallback, null);
+        }
+
+
+        private static void cancel(ScheduledFuture<?> future)
+        {
+            if (future != null)
+            {
+                future.cancel(false);
+            }
+        }
+
+
+        private void callOnAcquired()
+        {
+            if (mListener == null)
+            {
+                return;
+            }
+
+            try
+            {
+                mListener.onAcquired(this);
+            }
+            catch (RuntimeException e)
+            {
+                // Ignore.
+            }
+        }
+
+
+        private void callOnTimedOut()
+        {
+            if (mListener == null)
+            {
+                return;
+            }
+
+            try
+            {
+                mListener.onTimedOut(this);
+            }
+            catch (RuntimeException e)
+            {
+                // Ignore.
+            }
+        }
+
+
+        private void callOnExpired()
+        {
+            if (mListener == null)
+            {
+                return;
+            }
+
+            try
+            {
+                mListener.onExpired(this);
+            }
+            catch (RuntimeException e)
+            {
+                // Ignore.
+            }
+        }
+
+
+        private void callOnRevoked()
+        {
+            if (mListener == null)
+            {
+                return;
+            }
+
+            try
+            {
+                mListener.onRevoked(this);
+            }
+            catch (RuntimeException e)
+            {
+                // Ignore.
+            }
+        }
+
+
+        private void callOnGaveUp()
+        {
+            if (mListener == null)
+            {
+                return;
+            }
+
+            try
+            {
+                mListener.onGaveUp(this);
+            }
+            catch (RuntimeException e)
+            {
+                // Ignore.
+            }
+        }
+
+
+        private void onSessionEvent(KeeperState state)
+        {
+            switch (state)
+            {
+                case Expired:
+                case AuthFailed:
+                    // The znode has been deleted by the server, or will be.
+                    // Its slot may already be given to another contender.
+                    if (end(State.GAVE_UP, true, true))
+                    {
+                        callOnGaveUp();
+                    }
+                    return;
+
+                default:
+                    // A held lease never makes another request, so check
+                    // the state of the ZooKeeper instance here.
+                    shouldGiveUp();
+                    return;
+            }
+        }
+
+
+        private class LeaseWatcher implements Watcher
+        {
+            @Override
+            public void process(WatchedEvent event)
+            {
+                String path = event.getPath();
+
+                if (path == null)
+                {
+                    // A change of the connection state.
+                    onSessionEvent(event.getState());
+                    return;
+                }
+
+                String name = getName();
+
+                if (name != null && path.equals(mPath + "/" + name))
+                {
+                    if (event.getType() == EventType.NodeDeleted)
+                    {
+                        onOwnDeleted();
+                    }
+                    else
+                    {
+                        watchOwn();
+                    }
+                    return;
+                }
+
+                // The predecessor or a holder has changed.
+                check(false);
+            }
+        }
+    }
+
+
+    private static final List<ACL> DEFAULT_ACL_LIST = ZooDefs.Ids.OPEN_ACL_UNSAFE;
+    private static final byte[] REVOKED_DATA = { 'r', 'e', 'v', 'o', 'k', 'e', 'd' };
+    private static final Comparator<String> sSequenceComparator = new SequenceComparator();
+    private static final StringCallback sCreateCallback = new CreateCallback();
+    private static final StringCallback sParentCallback = new ParentCallback();
+    private static final ChildrenCallback sFindCallback = new FindCallback();
+    private static final ChildrenCallback sChildrenCallback = new QueueCallback(false);
+    private static final ChildrenCallback sWatchChildrenCallback = new QueueCallback(true);
+    private static final StatCallback sPredecessorCallback = new PredecessorCallback();
+    private static final DataCallback sOwnDataCallback = new OwnDataCallback();
+    private static final StatCallback sIgnoreStatCallback = new IgnoreStatCallback();
+    private static final VoidCallback sIgnoreVoidCallback = new IgnoreVoidCallback();
+
+
+    private ZooKeeper mZooKeeper;
+    private String mPath;
+    private int mMaxLeases = 1;
+    private List<ACL> mAclList = DEFAULT_ACL_LIST;
+    private long mLeaseTime;
+    private ScheduledExecutorService mExecutor;
+
+
+    public LeaseSemaphore()
+    {
+    }
+
+
+    public LeaseSemaphore(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+    }
+
+
+    /**
+     * Get the {@link ZooKeeper} instance.
+     *
+     * @return
+     *         The {@link ZooKeeper} instance.
+     */
+    public ZooKeeper getZooKeeper()
+    {
+        return mZooKeeper;
+    }
+
+
+    /**
+     * Set a {@link ZooKeeper} instance.
+     *
+     * @param zooKeeper
+     *         A {@link ZooKeeper} instance.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaseSemaphore setZooKeeper(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+
+        return this;
+    }
+
+
+    /**
+     * Get the path of the znode under which leases are created.
+     *
+     * @return
+     *         The path.
+     */
+    public String getPath()
+    {
+        return mPath;
+    }
+
+
+    /**
+     * Set the path of the znode under which leases are created.
+     *
+     * @param path
+     *         The path.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaseSemaphore setPath(String path)
+    {
+        mPath = path;
+
+        return this;
+    }
+
+
+    /**
+     * Get the maximum number of leases held at the same time.
+     *
+     * @return
+     *         The maximum number of leases.
+     */
+    public int getMaxLeases()
+    {
+        return mMaxLeases;
+    }
+
+
+    /**
+     * Set the maximum number of leases held at the same time. The
+     * default value is 1.
+     *
+     * @param maxLeases
+     *         The maximum number of leases.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalArgumentException
+     *         {@code maxLeases} is not positive.
+     */
+    public LeaseSemaphore setMaxLeases(int maxLeases)
+    {
+        if (maxLeases <= 0)
+        {
+            throw new IllegalArgumentException("The maximum number of leases must be positive.");
+        }
+
+        mMaxLeases = maxLeases;
+
+        return this;
+    }
+
+
+    /**
+     * Get the ACL list of znodes.
+     *
+     * @return
+     *         The ACL list.
+     */
+    public List<ACL> getAclList()
+    {
+        return mAclList;
+    }
+
+
+    /**
+     * Set the ACL list of znodes. The default value is {@link
+     * ZooDefs.Ids#OPEN_ACL_UNSAFE}.
+     *
+     * @param list
+     *         An ACL list.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaseSemaphore setAclList(List<ACL> list)
+    {
+        mAclList = (list != null) ? list : DEFAULT_ACL_LIST;
+
+        return this;
+    }
+
+
+    /**
+     * Get the maximum time for which a lease can be held.
+     *
+     * @return
+     *         The lease time in milliseconds. 0 means no limit.
+     */
+    public long getLeaseTime()
+    {
+        return mLeaseTime;
+    }
+
+
+    /**
+     * Set the maximum time for which a lease can be held. When a lease
+     * has been held longer than this time, it {@link State#EXPIRED
+     * expires}. The default value is 0, which means no limit.
+     *
+     * @param time
+     *         The lease time. 0 means no limit.
+     *
+     * @param unit
+     *         The unit of {@code time}.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaseSemaphore setLeaseTime(long time, TimeUnit unit)
+    {
+        mLeaseTime = Math.max(0, unit.toMillis(time));
+
+        return this;
+    }
+
+
+    /**
+     * Get the executor which runs timeouts.
+     *
+     * @return
+     *         The executor. {@code null} if no executor is set.
+     */
+    public ScheduledExecutorService getExecutor()
+    {
+        return mExecutor;
+    }
+
+
+    /**
+     * Set the executor which runs timeouts and calls {@link
+     * Listener#onTimedOut(Lease) onTimedOut()} and {@link
+     * Listener#onExpired(Lease) onExpired()}. If no executor is set, a
+     * single-thread executor with a daemon thread shared by all recipes
+     * is used, so the listener should not block in these callbacks.
+     *
+     * @param executor
+     *         An executor.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public LeaseSemaphore setExecutor(ScheduledExecutorService executor)
+    {
+        mExecutor = executor;
+
+        return this;
+    }
+
+
+    /**
+     * Start waiting for a lease without timeout. This method is an
+     * alias of {@link #acquire(Listener, long, TimeUnit) acquire}{@code
+     * (listener, 0, TimeUnit.MILLISECONDS)}.
+     *
+     * @param listener
+     *         A listener to receive events of the lease.
+     *
+     * @return
+     *         A lease in the state {@link State#WAITING WAITING}.
+     */
+    public Lease acquire(Listener listener)
+    {
+        return acquire(listener, 0, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Start waiting for a lease. This method does not block. {@link
+     * Listener#onAcquired(Lease) onAcquired()} is called when the lease
+     * is obtained.
+     *
+     * @param listener
+     *         A listener to receive events of the lease.
+     *
+     * @param timeout
+     *         The maximum time to wait for the lease. 0 or a negative
+     *         value means no timeout.
+     *
+     * @param unit
+     *         The unit of {@code timeout}.
+     *
+     * @return
+     *         A lease in the state {@link State#WAITING WAITING}.
+     *
+     * @throws IllegalStateException
+     *         No {@link ZooKeeper} instance or no path is set.
+     */
+    public Lease acquire(Listener listener, long timeout, TimeUnit unit)
+    {
+        if (mZooKeeper == null)
+        {
+            throw new IllegalStateException("A ZooKeeper instance must be set.");
+        }
+
+        if (mPath == null)
+        {
+            throw new IllegalStateException("A path must be set.");
+        }
+
+        Lease lease = new Lease(this, listener);
+
+        if (0 < timeout)
+        {
+            lease.scheduleTimeout(timeout, unit);
+        }
+
+        lease.create();
+
+        return lease;
+    }
+
+
+    /**
+     * Revoke a lease. The holder of the lease is notified by {@link
+     * Listener#onRevoked(Lease) onRevoked()} and the lease is ended.
+     * This method does not block.
+     *
+     * @param name
+     *         The name of the znode of the lease. See {@link
+     *         Lease#getName()}.
+     *
+     * @throws IllegalStateException
+     *         No {@link ZooKeeper} instance or no path is set.
+     */
+    public void revoke(String name)
+    {
+        if (mZooKeeper == null)
+        {
+            throw new IllegalStateException("A ZooKeeper instance must be set.");
+        }
+
+        if (mPath == null)
+        {
+            throw new IllegalStateException("A path must be set.");
+        }
+
+        mZooKeeper.setData(mPath + "/" + name, REVOKED_DATA, -1, sIgnoreStatCallback, null);
+    }
+
+
+    private ScheduledExecutorService getExecutorToUse()
+    {
+        if (mExecutor != null)
+        {
+            return mExecutor;
+        }
+
+        return DaemonScheduler.getShared();
+    }
+
+
+    private static class SequenceComparator implements Comparator<String>
+    {
+        @Override
+        public int compare(String name1, String name2)
+        {
+            // ZooKeeper appends a 10-digit sequence number.
+            return name1.substring(name1.length() - 10).compareTo(name2.substring(name2.length() - 10));
+        }
+    }
+
+
+    private static class CreateCallback implements StringCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, String name)
+        {
+            Lease lease = (Lease)ctx;
+
+            switch (Code.get(rc))
+            {
+                case OK:
+                    // Enter the queue.
+                    lease.onCreated(name.substring(name.lastIndexOf('/') + 1));
+                    return;
+
+                case NONODE:
+                    // The path does not exist.
+                    lease.createParent();
+                    return;
+
+                case CONNECTIONLOSS:
+                    // The znode may have been created.
+                    lease.find();
+                    return;
+
+                default:
+                    // Retry.
+                    lease.create();
+                    return;
+            }
+        }
+    }
+
+
+    private static class ParentCallback implements StringCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, String name)
+        {
+            Lease lease = (Lease)ctx;
+
+            switch (Code.get(rc))
+            {
+                case OK:
+                case NODEEXISTS:
+                    // Try again to enter the queue.
+                    lease.create();
+                    return;
+
+                case NONODE:
+                    // The parent of the path does not exist.
+                    if (lease.end(State.GAVE_UP, true, false))
+                    {
+                        lease.callOnGaveUp();
+                    }
+                    return;
+
+                default:
+                    // Retry.
+                    lease.createParent();
+                    return;
+            }
+        }
+    }
+
+
+    private static class FindCallback implements ChildrenCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<String> children)
+        {
+            Lease lease = (Lease)ctx;
+
+            switch (Code.get(rc))
+            {
+                case OK:
+                    lease.onFound(children);
+                    return;
+
+                case NONODE:
+                    lease.create();
+                    return;
+
+                default:
+                    // Retry.
+                    lease.find();
+                    return;
+            }
+        }
+    }
+
+
+    private static class QueueCallback implements ChildrenCallback
+    {
+        private final boolean mWatched;
+
+
+        public QueueCallback(boolean watched)
+        {
+            mWatched = watched;
+        }
+
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<String> children)
+        {
+            Lease lease = (Lease)ctx;
+
+            switch (Code.get(rc))
+            {
+                case OK:
+                    lease.onChildren(children, mWatched);
+                    return;
+
+                case NONODE:
+                    lease.onChildren(Collections.<String>emptyList(), mWatched);
+                    return;
+
+                default:
+                    // Retry.
+                    lease.check(mWatched);
+                    return;
+            }
+        }
+    }
+
+
+    private static class PredecessorCallback implements StatCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat)
+        {
+            Lease lease = (Lease)ctx;
+
+            switch (Code.get(rc))
+            {
+                case OK:
+                    // Wait for the watch unless the predecessor has
+                    // obtained a lease.
+                    lease.onPredecessor(stat);
+                    return;
+
+                default:
+                    // The predecessor has gone, or an error occurred.
+                    lease.check(false);
+                    return;
+            }
+        }
+    }
+
+
+    private static class OwnDataCallback implements DataCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat)
+        {
+            Lease lease = (Lease)ctx;
+
+            switch (Code.get(rc))
+            {
+                case OK:
+                    lease.onOwnData(data);
+                    return;
+
+                case NONODE:
+                    lease.onOwnDeleted();
+                    return;
+
+                default:
+                    // Retry.
+                    lease.watchOwn();
+                    return;
+            }
+        }
+    }
+
+
+    private static class IgnoreStatCallback implements StatCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat)
+        {
+        }
+    }
+
+
+    private static class IgnoreVoidCallback implements VoidCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx)
+        {
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.util.concurrent.Executor;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Feed of successive versions of a znode.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * NodeChangeFeed feed = <span style="color: purple; font-weight: bold;">new</span> NodeChangeFeed()
+ *     .{@link #setZooKeeper(ZooKeeper) setZooKeeper}(zooKeeper)
+ *     .{@link #setPath(String) setPath}(<span style="color: mediumblue;">"/config"</span>)
+ *     .{@link #start()};
+ *
+ * feed.{@link #subscribe(ChangeFeed.Subscriber) subscribe}(subscriber);
+ * </pre>
+ *
+ * <p>
+ * The znode is read by a {@link NodeReader} whose {@link
+ * NodeReader#setWatching(boolean) watching} is enabled. Each version is
+ * published as a {@link Version}. When the znode does not exist or has
+ * been deleted, a {@code Version} whose {@link Version#exists() exists()}
+ * returns {@code false} is published. See {@link ChangeFeed} for flow
+ * control.
+ * </p>
+ *
+ * @since 1.3
+ */
+public class NodeChangeFeed extends ChangeFeed<NodeChangeFeed.Version>
+{
+    /**
+     * A version of a znode.
+     */
+    public static final class Version
+    {
+        private final byte[] mData;
+        private final Stat mStat;
+
+
+        private Version(byte[] data, Stat stat)
+        {
+            mData = data;
+            mStat = stat;
+        }
+
+
+        /**
+         * Get the content of the znode.
+         *
+         * @return
+         *         The content of the znode. {@code null} if the znode
+         *         does not exist.
+         */
+        public byte[] getData()
+        {
+            return mData;
+        }
+
+
+        /**
+         * Get statistics of the znode.
+         *
+         * @return
+         *         Statistics of the znode. {@code null} if the znode
+         *         does not exist.
+         */
+        public Stat getStat()
+        {
+            return mStat;
+        }
+
+
+        /**
+         * Check if the znode exists.
+         *
+         * @return
+         *         {@code true} if the znode exists.
+         */
+        public boolean exists()
+        {
+            return mStat != null;
+        }
+    }
+
+
+    private final NodeReader mReader = new NodeReader();
+
+    // Accessed only by callbacks of the reader.
+    private long mLastZxid = -1;
+
+
+    public NodeChangeFeed()
+    {
+        mReader.setWatching(true).setListener(new FeedListener());
+    }
+
+
+    public NodeChangeFeed(ZooKeeper zooKeeper)
+    {
+        this();
+
+        mReader.setZooKeeper(zooKeeper);
+    }
+
+
+    /**
+     * Get the {@link ZooKeeper} instance to read the znode.
+     *
+     * @return
+     *         The {@link ZooKeeper} instance.
+     */
+    public ZooKeeper getZooKeeper()
+    {
+        return mReader.getZooKeeper();
+    }
+
+
+    /**
+     * Set the {@link ZooKeeper} instance to read the znode.
+     *
+     * @param zooKeeper
+     *         A {@link ZooKeeper} instance.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public NodeChangeFeed setZooKeeper(ZooKeeper zooKeeper)
+    {
+        mReader.setZooKeeper(zooKeeper);
+
+        return this;
+    }
+
+
+    /**
+     * Get the path of the znode.
+     *
+     * @return
+     *         The path of the znode.
+     */
+    public String getPath()
+    {
+        return mReader.getPath();
+    }
+
+
+    /**
+     * Set the path of the znode.
+     *
+     * @param path
+     *         The path of the znode.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public NodeChangeFeed setPath(String path)
+    {
+        mReader.setPath(path);
+
+        return this;
+    }
+
+
+    /**
+     * Get the codec to decode the content of the znode.
+     *
+     * @return
+     *         The codec. {@code null} if no codec is set.
+     */
+    public PayloadCodec getCodec()
+    {
+        return mReader.getCodec();
+    }
+
+
+    /**
+     * Set a codec to decode the content of the znode.
+     *
+     * @param codec
+     *         A codec. {@code null} not to decode the content.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @see NodeReader#setCodec(PayloadCodec)
+     */
+    public NodeChangeFeed setCodec(PayloadCodec codec)
+    {
+        mReader.setCodec(codec);
+
+        return this;
+    }
+
+
+    @Override
+    public NodeChangeFeed setExecutor(Executor executor)
+    {
+        super.setExecutor(executor);
+
+        return this;
+    }
+
+
+    /**
+     * Start reading the znode.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalStateException
+     *         <ul>
+     *           <li>No {@link ZooKeeper} instance is set.
+     *           <li>No path is set.
+     *         </ul>
+     */
+    public NodeChangeFeed start()
+    {
+        mReader.start();
+
+        return this;
+    }
+
+
+    /**
+     * Stop reading the znode. Subscribers receive {@code onComplete()}.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public NodeChangeFeed finish()
+    {
+        mReader.finish();
+        complete();
+
+        return this;
+    }
+
+
+    private class FeedListener implements NodeReader.WatchListener
+    {
+        @Override
+        public void onRead(NodeReader reader, byte[] data, Stat stat)
+        {
+            if (stat.getMzxid() == mLastZxid)
+            {
+                // The same version.
+                return;
+            }
+
+            mLastZxid = stat.getMzxid();
+
+            publish(new Version(data, stat));
+        }
+
+
+        @Override
+        public void onDeleted(NodeReader reader)
+        {
+            if (mLastZxid == 0)
+            {
+                // Already published.
+                return;
+            }
+
+            mLastZxid = 0;
+
+            publish(new Version(null, null));
+        }
+
+
+        @Override
+        public void onGaveUp(NodeReader reader)
+        {
+            if (reader.getZooKeeper().getState().isAlive())
+            {
+                // The content is broken or the feed has finished.
+                // The reader keeps watching in the former case.
+                return;
+            }
+
+            fail(new IllegalStateException("The ZooKeeper session is no longer available."));
+        }
+    }
+}
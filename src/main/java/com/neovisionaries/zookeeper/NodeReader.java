@@ -18,8 +18,8 @@ package com.neovisionaries.zookeeper;
 
 import org.apache.zookeeper.AsyncCallback.DataCallback;
 import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
 import org.apache.zookeeper.KeeperException.Code;
-import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.ZooKeeper;
@@ -61,6 +61,14 @@ import org.apache.zookeeper.data.Stat;
  *     .{@link #start()};
  * </pre>
  *
+ * <p>
+ * By default, the target znode is read only once. If {@link
+ * #setWatching(boolean) watching} is enabled, the target znode is
+ * read again every time its content is changed, and {@link
+ * Listener#onRead(NodeReader, byte[], Stat) onRead()} is called
+ * for each version.
+ * </p>
+ *
  * @since 1.2
  */
 public class NodeReader
@@ -135,13 +143,80 @@ public class NodeReader
     }
 
 
+    /**
+     * Listener interface which is notified also of absence of the
+     * target znode. This is meaningful only when {@link
+     * #setWatching(boolean) watching} is enabled.
+     *
+     * @since 1.3
+     */
+    public interface WatchListener extends Listener
+    {
+        /**
+         * Called when the target znode was found not to exist, that is,
+         * when it did not exist at the time of reading or when it has
+         * been deleted. The reader keeps waiting for the target znode
+         * to be created.
+         *
+         * @param reader
+         *         The {@link NodeReader} instance which this
+         *         listener is associated with.
+         */
+        void onDeleted(NodeReader reader);
+    }
+
+
+    /**
+     * Listener interface which is notified also of the content of the
+     * target znode cached in a {@link DiskNodeCache}. This is meaningful
+     * only when a {@link #setCache(DiskNodeCache) cache} is set.
+     *
+     * @since 1.3
+     */
+    public interface CacheListener extends Listener
+    {
+        /**
+         * Called by {@link #start()} when the content of the target znode
+         * was found in the cache. The content may be stale. {@link
+         * #onRead(NodeReader, byte[], Stat) onRead()} is called later
+         * when the target znode is read from ZooKeeper, even if it has
+         * not been changed since it was cached.
+         *
+         * @param reader
+         *         The {@link NodeReader} instance which this
+         *         listener is associated with.
+         *
+         * @param data
+         *         The cached content of the target znode.
+         *
+         * @param stat
+         *         The cached statistics of the target znode.
+         */
+        void onCachedRead(NodeReader reader, byte[] data, Stat stat);
+    }
+
+
+    // Callbacks shared by all readers. Each reader passes itself as
+    // the context. Watch events are dispatched by PathRegistry.
+    private static final DataCallback sReadCallback = new ReadCallback();
+    private static final StatCallback sTrackCallback = new TrackCallback();
+    private static final VoidCallback sSyncCallback = new SyncCallback();
+
+
     private ZooKeeper mZooKeeper;
     private String mPath;
     private Listener mListener;
+    private PayloadCodec mCodec;
+    private boolean mWatching;
+    private ReadConsistency mConsistency = ReadConsistency.LOCAL;
+    private RequestDispatcher mDispatcher;
+    private FlightRecorder mRecorder;
+    private WatchManager.Priority mWatchPriority = WatchManager.Priority.NORMAL;
+    private DiskNodeCache mCache;
+    private final PathRegistry.Waiter mWaiter = new RegistryWaiter();
+    private boolean mSynced;
     private boolean mShouldFinish;
-    private DataCallback mReadCallback = new ReadCallback();
-    private Watcher mTrackWatcher = new TrackWatcher();
-    private StatCallback mTrackCallback = new TrackCallback();
+    private PathRegistry.Node mNode;
 
 
     public NodeReader()
@@ -238,6 +313,12 @@ public class NodeReader
     /**
      * Set a listener.
      *
+     * <p>
+     * If the listener implements {@link WatchListener} and {@link
+     * #setWatching(boolean) watching} is enabled, the listener is
+     * notified also when the target znode does not exist.
+     * </p>
+     *
      * @param listener
      *         A listener.
      *
@@ -252,6 +333,296 @@ public class NodeReader
     }
 
 
+    /**
+     * Get the codec to decode the content of the target znode.
+     *
+     * @return
+     *         The codec. {@code null} if no codec is set.
+     *
+     * @since 1.3
+     */
+    public PayloadCodec getCodec()
+    {
+        return mCodec;
+    }
+
+
+    /**
+     * Set a codec to decode the content of the target znode.
+     *
+     * <p>
+     * If a codec is set, the content of the target znode is decoded
+     * through the codec before {@link Listener#onRead(NodeReader, byte[], Stat)
+     * onRead()} is called. If the codec fails to decode the content,
+     * {@link Listener#onGaveUp(NodeReader) onGaveUp()} is called
+     * instead. If no codec is set (default), the content is passed to
+     * {@code onRead()} as is.
+     * </p>
+     *
+     * @param codec
+     *         A codec. {@code null} not to decode the content.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @since 1.3
+     */
+    public NodeReader setCodec(PayloadCodec codec)
+    {
+        mCodec = codec;
+
+        return this;
+    }
+
+
+    /**
+     * Check if the target znode is watched for changes.
+     *
+     * @return
+     *         {@code true} if the target znode is watched for changes.
+     *
+     * @since 1.3
+     */
+    public boolean isWatching()
+    {
+        return mWatching;
+    }
+
+
+    /**
+     * Enable or disable watching the target znode for changes.
+     *
+     * <p>
+     * If enabled, a {@link Watcher} is set when the target znode is read,
+     * and the target znode is read again when its content is changed.
+     * If the target znode is deleted, this reader waits for it to be
+     * created again. Watching continues until {@link #finish()} is called
+     * or the {@link ZooKeeper} instance becomes unavailable. Disabled by
+     * default. This method should be called before {@link #start()}.
+     * </p>
+     *
+     * @param watching
+     *         {@code true} to watch the target znode for changes.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @since 1.3
+     */
+    public NodeReader setWatching(boolean watching)
+    {
+        mWatching = watching;
+
+        return this;
+    }
+
+
+    /**
+     * Get the consistency level of reading.
+     *
+     * @return
+     *         The consistency level.
+     *
+     * @since 1.3
+     */
+    public ReadConsistency getConsistency()
+    {
+        return mConsistency;
+    }
+
+
+    /**
+     * Set the consistency level of reading. The default value is
+     * {@link ReadConsistency#LOCAL LOCAL}.
+     *
+     * <p>
+     * With {@link ReadConsistency#SYNCED SYNCED}, {@link
+     * ZooKeeper#sync(String, VoidCallback, Object) sync()} is called
+     * before the first read. Subsequent reads triggered by watch events
+     * do not need it because the connected server has already applied
+     * the change. With {@link ReadConsistency#atLeast(long) atLeast(zxid)},
+     * {@link Listener#onRead(NodeReader, byte[], Stat) onRead()} is not
+     * called for older versions of the target znode, and the target znode
+     * is watched until a version which is new enough is read. This method
+     * should be called before {@link #start()}.
+     * </p>
+     *
+     * @param consistency
+     *         The consistency level. {@code null} is regarded as
+     *         {@code LOCAL}.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @since 1.3
+     */
+    public NodeReader setConsistency(ReadConsistency consistency)
+    {
+        mConsistency = (consistency != null) ? consistency : ReadConsistency.LOCAL;
+
+        return this;
+    }
+
+
+    /**
+     * Get the dispatcher of read requests.
+     *
+     * @return
+     *         The dispatcher. {@code null} if no dispatcher is set.
+     *
+     * @since 1.3
+     */
+    public RequestDispatcher getDispatcher()
+    {
+        return mDispatcher;
+    }
+
+
+    /**
+     * Set a dispatcher of read requests. If a dispatcher is set, {@code
+     * getData()} and {@code exists()} requests are sent through the
+     * dispatcher with {@link RequestDispatcher.Priority#NORMAL NORMAL}
+     * priority. The dispatcher must be associated with the same {@link
+     * ZooKeeper} instance. This method should be called before {@link
+     * #start()}.
+     *
+     * @param dispatcher
+     *         A dispatcher. {@code null} to send requests directly
+     *         (default).
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @since 1.3
+     */
+    public NodeReader setDispatcher(RequestDispatcher dispatcher)
+    {
+        mDispatcher = dispatcher;
+
+        return this;
+    }
+
+
+    /**
+     * Get the flight recorder.
+     *
+     * @return
+     *         The flight recorder. {@code null} if recording is disabled.
+     *
+     * @since 1.3
+     */
+    public FlightRecorder getRecorder()
+    {
+        return mRecorder;
+    }
+
+
+    /**
+     * Set a flight recorder. Results of requests, watch events and
+     * exceptions thrown by the listener are recorded. Readers may be
+     * numerous, so recording is disabled by default. One recorder can
+     * be shared by multiple readers.
+     *
+     * @param recorder
+     *         A flight recorder. {@code null} to disable recording
+     *         (default).
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @since 1.3
+     */
+    public NodeReader setRecorder(FlightRecorder recorder)
+    {
+        mRecorder = recorder;
+
+        return this;
+    }
+
+
+    /**
+     * Get the priority of the watch of the target znode.
+     *
+     * @return
+     *         The priority.
+     *
+     * @since 1.3
+     */
+    public WatchManager.Priority getWatchPriority()
+    {
+        return mWatchPriority;
+    }
+
+
+    /**
+     * Set the priority of the watch of the target znode. When the
+     * {@link WatchManager#setBudget(int) budget} of watches is exceeded,
+     * watches of lower priorities are replaced with polling first. The
+     * default value is {@link WatchManager.Priority#NORMAL NORMAL}.
+     * This method should be called before {@link #start()}.
+     *
+     * @param priority
+     *         The priority.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @since 1.3
+     */
+    public NodeReader setWatchPriority(WatchManager.Priority priority)
+    {
+        mWatchPriority = (priority != null) ? priority : WatchManager.Priority.NORMAL;
+
+        return this;
+    }
+
+
+    /**
+     * Get the local disk cache of the target znode.
+     *
+     * @return
+     *         The cache. {@code null} if no cache is set.
+     *
+     * @since 1.3
+     */
+    public DiskNodeCache getCache()
+    {
+        return mCache;
+    }
+
+
+    /**
+     * Set a local disk cache of the target znode.
+     *
+     * <p>
+     * If a cache is set and the listener implements {@link CacheListener},
+     * {@link #start()} passes the cached content of the target znode to
+     * {@link CacheListener#onCachedRead(NodeReader, byte[], Stat)
+     * onCachedRead()} before reading it from ZooKeeper, so the application
+     * can start even while ZooKeeper is unreachable. Contents read from
+     * ZooKeeper are written to the cache, and the cached entry is removed
+     * when the target znode is found not to exist. Contents whose {@link
+     * Stat#getMzxid() mzxid} is the same as the cached one are not written
+     * again. The cache can be shared by multiple readers. This method
+     * should be called before {@link #start()}.
+     * </p>
+     *
+     * @param cache
+     *         An open cache. {@code null} not to use a cache (default).
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @since 1.3
+     */
+    public NodeReader setCache(DiskNodeCache cache)
+    {
+        mCache = cache;
+
+        return this;
+    }
+
+
     /**
      * Start reading the target znode.
      *
@@ -264,6 +635,9 @@ public class NodeReader
      *           <li>No {@link ZooKeeper} instance is set.
      *           <li>No path is set.
      *         </ul>
+     *
+     * @throws IllegalArgumentException
+     *         The path is invalid as a znode path.
      */
     public NodeReader start()
     {
@@ -281,6 +655,20 @@ public class NodeReader
             throw new IllegalStateException("A path must be set.");
         }
 
+        synchronized (this)
+        {
+            if (mNode == null)
+            {
+                // Share the path and the watcher with other readers
+                // of the same ZooKeeper instance.
+                mNode = PathRegistry.getInstance(mZooKeeper).acquire(mPath, mWatchPriority);
+                mPath = mNode.getPath();
+            }
+        }
+
+        // Serve the last known content first.
+        readCache();
+
         // Schedule reading.
         read();
 
@@ -294,7 +682,8 @@ public class NodeReader
      *
      * <p>
      * Note that calling this method does not remove an existing
-     * {@link Watcher} which is watching the target znode.
+     * {@link Watcher} which is watching the target znode, but events
+     * of the watcher are no longer delivered to this instance.
      * </p>
      *
      * @return
@@ -307,6 +696,8 @@ public class NodeReader
             mShouldFinish = true;
         }
 
+        release();
+
         return this;
     }
 
@@ -339,6 +730,7 @@ public class NodeReader
 
         if (shouldFinish)
         {
+            release();
             callOnGaveUp();
         }
 
@@ -359,7 +751,41 @@ public class NodeReader
         }
         catch (RuntimeException e)
         {
-            // Ignore.
+            // Ignore but record.
+            recordError("onRead", e);
+        }
+    }
+
+
+    private void callOnCachedRead(byte[] data, Stat stat)
+    {
+        try
+        {
+            ((CacheListener)mListener).onCachedRead(this, data, stat);
+        }
+        catch (RuntimeException e)
+        {
+            // Ignore but record.
+            recordError("onCachedRead", e);
+        }
+    }
+
+
+    private void callOnDeleted()
+    {
+        if (mWatching == false || (mListener instanceof WatchListener) == false)
+        {
+            return;
+        }
+
+        try
+        {
+            ((WatchListener)mListener).onDeleted(this);
+        }
+        catch (RuntimeException e)
+        {
+            // Ignore but record.
+            recordError("onDeleted", e);
         }
     }
 
@@ -377,11 +803,57 @@ public class NodeReader
         }
         catch (RuntimeException e)
         {
-            // Ignore.
+            // Ignore but record.
+            recordError("onGaveUp", e);
+        }
+    }
+
+
+    private void record(String operation, int rc)
+    {
+        FlightRecorder recorder = mRecorder;
+
+        if (recorder != null)
+        {
+            recorder.record(operation, mPath, rc, null, null);
+        }
+    }
+
+
+    private void recordError(String operation, RuntimeException cause)
+    {
+        FlightRecorder recorder = mRecorder;
+
+        if (recorder != null)
+        {
+            recorder.recordError(operation, mPath, cause);
+        }
+    }
+
+
+    private void release()
+    {
+        PathRegistry.Node node;
+
+        synchronized (this)
+        {
+            node = mNode;
+            mNode = null;
+        }
+
+        if (node != null)
+        {
+            node.release(mWaiter);
         }
     }
 
 
+    private synchronized PathRegistry.Node getNode()
+    {
+        return mNode;
+    }
+
+
     private void read()
     {
         if (finishIfAppropriate())
@@ -390,7 +862,32 @@ public class NodeReader
             return;
         }
 
-        mZooKeeper.getData(mPath, false, mReadCallback, null);
+        if (mConsistency.getMode() == ReadConsistency.Mode.SYNCED && mSynced == false)
+        {
+            // Let the connected server catch up with the leader first.
+            mZooKeeper.sync(mPath, sSyncCallback, this);
+            return;
+        }
+
+        // An older version may be read in AT_LEAST mode. In that case,
+        // a newer version is waited for by the watch.
+        if (mWatching == false && mConsistency.getMode() != ReadConsistency.Mode.AT_LEAST)
+        {
+            getData(null);
+            return;
+        }
+
+        PathRegistry.Node node = getNode();
+
+        if (node == null)
+        {
+            // Finished concurrently.
+            return;
+        }
+
+        // Read the znode and watch it for changes.
+        node.addWaiter(mWaiter);
+        getData(node.getWatcher());
     }
 
 
@@ -402,69 +899,297 @@ public class NodeReader
             return;
         }
 
-        mZooKeeper.exists(mPath, mTrackWatcher, mTrackCallback, null);
+        PathRegistry.Node node = getNode();
+
+        if (node == null)
+        {
+            // Finished concurrently.
+            return;
+        }
+
+        node.addWaiter(mWaiter);
+
+        if (mDispatcher != null)
+        {
+            mDispatcher.exists(mPath, node.getWatcher(), sTrackCallback, this, RequestDispatcher.Priority.NORMAL);
+        }
+        else
+        {
+            mZooKeeper.exists(mPath, node.getWatcher(), sTrackCallback, this);
+        }
+    }
+
+
+    private void getData(Watcher watcher)
+    {
+        if (mDispatcher != null)
+        {
+            mDispatcher.getData(mPath, watcher, sReadCallback, this, RequestDispatcher.Priority.NORMAL);
+        }
+        else
+        {
+            mZooKeeper.getData(mPath, watcher, sReadCallback, this);
+        }
+    }
+
+
+    private void observe(Stat stat)
+    {
+        PathRegistry.Node node = getNode();
+
+        if (node != null)
+        {
+            node.observe(stat);
+        }
+    }
+
+
+    private void readCache()
+    {
+        DiskNodeCache cache = mCache;
+
+        if (cache == null || (mListener instanceof CacheListener) == false)
+        {
+            return;
+        }
+
+        DiskNodeCache.Entry entry = cache.get(mPath);
+
+        if (entry == null || mConsistency.isSatisfiedBy(entry.getStat()) == false)
+        {
+            return;
+        }
+
+        byte[] data = entry.getData();
+
+        if (mCodec != null)
+        {
+            try
+            {
+                data = mCodec.decode(data);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // The cached content is broken. Wait for ZooKeeper.
+                return;
+            }
+        }
+
+        callOnCachedRead(data, entry.getStat());
+    }
+
+
+    private void writeCache(byte[] data, Stat stat)
+    {
+        DiskNodeCache cache = mCache;
+
+        if (cache == null)
+        {
+            return;
+        }
+
+        try
+        {
+            if (stat != null)
+            {
+                // Nothing is written if the mzxid is the same.
+                cache.put(mPath, data, stat);
+            }
+            else
+            {
+                cache.remove(mPath);
+            }
+        }
+        catch (IllegalStateException e)
+        {
+            // The cache has been closed.
+        }
+    }
+
+
+    private void stopWaiting()
+    {
+        PathRegistry.Node node = getNode();
+
+        if (node != null)
+        {
+            node.removeWaiter(mWaiter);
+        }
+    }
+
+
+    private void processData(byte[] data, Stat stat)
+    {
+        if (mConsistency.isSatisfiedBy(stat) == false)
+        {
+            // The version is older than required. The watch set by
+            // read() triggers reading again when the znode is changed.
+            return;
+        }
+
+        // Cache the content as it is stored in the znode.
+        writeCache(data, stat);
+
+        PayloadCodec codec = mCodec;
+        boolean decoded = true;
+
+        if (codec != null)
+        {
+            try
+            {
+                data = codec.decode(data);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // The content of the znode is broken.
+                decoded = false;
+            }
+        }
+
+        if (mWatching == false)
+        {
+            // Reading has been completed.
+            release();
+        }
+
+        if (decoded)
+        {
+            callOnRead(data, stat);
+        }
+        else
+        {
+            callOnGaveUp();
+        }
     }
 
 
-    private class ReadCallback implements DataCallback
+    /**
+     * Called by {@link PathRegistry} when an event of the target znode
+     * has been triggered or detected by polling while this reader was
+     * waiting for it.
+     */
+    void process(EventType type)
+    {
+        record(type.name(), 0);
+
+        switch (type)
+        {
+            case NodeCreated:
+            case NodeDataChanged:
+                // Read the (new) content of the znode.
+                read();
+                return;
+
+            case NodeDeleted:
+                // Wait for the znode to be created again.
+                callOnDeleted();
+                track();
+                return;
+
+            default:
+                return;
+        }
+    }
+
+
+    private class RegistryWaiter implements PathRegistry.Waiter
+    {
+        @Override
+        public void process(EventType type)
+        {
+            NodeReader.this.process(type);
+        }
+    }
+
+
+    private static class ReadCallback implements DataCallback
     {
         @Override
         public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat)
         {
+            NodeReader reader = (NodeReader)ctx;
+
+            reader.record("getData", rc);
+
             switch (Code.get(rc))
             {
                 case OK:
                     // Successfully obtained the data of the znode.
-                    callOnRead(data, stat);
+                    reader.observe(stat);
+                    reader.processData(data, stat);
                     return;
 
                 case NONODE:
                     // The znode does not exist. Wait for it to be created.
-                    track();
+                    reader.observe(null);
+                    reader.writeCache(null, null);
+                    reader.callOnDeleted();
+                    reader.track();
                     return;
 
                 default:
                     // Retry to read the znode.
-                    read();
+                    reader.read();
                     return;
             }
         }
     }
 
 
-    private class TrackWatcher implements Watcher
+    private static class SyncCallback implements VoidCallback
     {
         @Override
-        public void process(WatchedEvent event)
+        public void processResult(int rc, String path, Object ctx)
         {
-            if (event.getType() == EventType.NodeCreated)
+            NodeReader reader = (NodeReader)ctx;
+
+            reader.record("sync", rc);
+
+            switch (Code.get(rc))
             {
-                // Read the node.
-                read();
+                case OK:
+                case NONODE:
+                    // The connected server has caught up with the leader.
+                    reader.mSynced = true;
+                    reader.read();
+                    return;
+
+                default:
+                    // Retry to sync.
+                    reader.read();
+                    return;
             }
         }
     }
 
 
-    private class TrackCallback implements StatCallback
+    private static class TrackCallback implements StatCallback
     {
         @Override
         public void processResult(int rc, String path, Object ctx, Stat stat)
         {
+            NodeReader reader = (NodeReader)ctx;
+
+            reader.record("exists", rc);
+
             switch (Code.get(rc))
             {
                 case OK:
-                    // The znode exists. Read the node.
-                    read();
+                    // The znode exists. Read the node instead of
+                    // waiting for it to be created.
+                    reader.observe(stat);
+                    reader.stopWaiting();
+                    reader.read();
                     return;
 
                 case NONODE:
                     // Wait for the watcher to be triggered.
+                    reader.observe(null);
                     return;
 
                 default:
                     // Keep tracking the znode.
-                    track();
+                    reader.track();
                     return;
             }
         }
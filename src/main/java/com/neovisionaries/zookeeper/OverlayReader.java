@@ -0,0 +1,650 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Reader which watches layered znodes and keeps a merged view of them.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * OverlayReader&lt;Map&lt;String, String&gt;&gt; reader = <span style="color: purple; font-weight: bold;">new</span> OverlayReader&lt;Map&lt;String, String&gt;&gt;()
+ *     .{@link #setZooKeeper(ZooKeeper) setZooKeeper}(zooKeeper)
+ *     .{@link #setPaths(String...) setPaths}(
+ *         <span style="color: mediumblue;">"/config/global"</span>,
+ *         <span style="color: mediumblue;">"/config/"</span> + region,
+ *         <span style="color: mediumblue;">"/config/"</span> + cluster,
+ *         <span style="color: mediumblue;">"/config/"</span> + host)
+ *     .{@link #setMerger(Merger) setMerger}(<span style="color: purple; font-weight: bold;">new</span> OverlayReader.{@link PropertiesMerger}())
+ *     .{@link #start()};
+ *
+ * <span style="color: darkgreen;">// Read the merged config. No lock, no merge.</span>
+ * Map&lt;String, String&gt; config = reader.{@link #getValue()};
+ * </pre>
+ *
+ * <p>
+ * Each layer is read by a {@link NodeReader} whose {@link
+ * NodeReader#setWatching(boolean) watching} is enabled. Layers are given
+ * in ascending order of priority, i.e. a later layer overrides earlier
+ * ones. A layer whose znode does not exist is skipped.
+ * </p>
+ *
+ * <p>
+ * When a layer changes, only the content of the layer is parsed, and
+ * the merged view is recomputed from the layer upward by reusing the
+ * merged results of the lower layers. The result is published as an
+ * immutable {@link Snapshot} through a volatile field, so {@link
+ * #getSnapshot()} and {@link #getValue()} cost a single volatile read
+ * and never block. No snapshot is published until every layer has been
+ * read or found not to exist.
+ * </p>
+ *
+ * @param <T>
+ *         The type of the content of layers and the merged view.
+ *
+ * @since 1.3
+ */
+public class OverlayReader<T>
+{
+    /**
+     * Parser and merger of layers.
+     *
+     * <p>
+     * Implementations must not modify objects passed to them because
+     * the objects are held as parts of published snapshots.
+     * </p>
+     *
+     * @param <T>
+     *         The type of the content of layers and the merged view.
+     */
+    public interface Merger<T>
+    {
+        /**
+         * Parse the content of a layer.
+         *
+         * @param data
+         *         The content of the znode of a layer. May be {@code null}.
+         *
+         * @return
+         *         The parsed content.
+         *
+         * @throws RuntimeException
+         *         The content cannot be parsed. In this case, the layer
+         *         keeps its previous content.
+         */
+        T parse(byte[] data);
+
+
+        /**
+         * Merge two layers.
+         *
+         * @param lower
+         *         The merged result of the lower layers.
+         *
+         * @param upper
+         *         The parsed content of the upper layer.
+         *
+         * @return
+         *         A new object of the merged result.
+         */
+        T merge(T lower, T upper);
+    }
+
+
+    /**
+     * Listener interface to receive merged views.
+     *
+     * @param <T>
+     *         The type of the content of layers and the merged view.
+     */
+    public interface Listener<T>
+    {
+        /**
+         * Called when a new snapshot of the merged view was published.
+         *
+         * @param reader
+         *         The {@link OverlayReader} instance which this
+         *         listener is associated with.
+         *
+         * @param snapshot
+         *         The new snapshot.
+         */
+        void onMerged(OverlayReader<T> reader, Snapshot<T> snapshot);
+    }
+
+
+    /**
+     * Immutable snapshot of the merged view.
+     *
+     * @param <T>
+     *         The type of the merged view.
+     */
+    public static final class Snapshot<T>
+    {
+        private final T mValue;
+        private final long mZxid;
+
+
+        private Snapshot(T value, long zxid)
+        {
+            mValue = value;
+            mZxid  = zxid;
+        }
+
+
+        /**
+         * Get the merged view.
+         *
+         * @return
+         *         The merged view. {@code null} if none of the layers
+         *         exists.
+         */
+        public T getValue()
+        {
+            return mValue;
+        }
+
+
+        /**
+         * Get the largest zxid of the last modification among the layers.
+         * This can be used to tell whether two snapshots have the same
+         * content.
+         *
+         * @return
+         *         The largest {@link Stat#getMzxid() mzxid} among the
+         *         layers. 0 if none of the layers exists.
+         */
+        public long getZxid()
+        {
+            return mZxid;
+        }
+    }
+
+
+    /**
+     * Merger of layers in the format of {@link Properties}. Properties
+     * of an upper layer override the ones of lower layers. The merged
+     * view is an unmodifiable map.
+     */
+    public static class PropertiesMerger implements Merger<Map<String, String>>
+    {
+        @Override
+        public Map<String, String> parse(byte[] data)
+        {
+            Properties properties = new Properties();
+
+            if (data != null)
+            {
+                try
+                {
+                    properties.load(new ByteArrayInputStream(data));
+                }
+                catch (IOException e)
+                {
+                    // This never happens.
+                }
+            }
+
+            Map<String, String> map = new HashMap<String, String>();
+
+            for (Enumeration<?> e = properties.propertyNames(); e.hasMoreElements(); )
+            {
+                String name = (String)e.nextElement();
+                map.put(name, properties.getProperty(name));
+            }
+
+            return Collections.unmodifiableMap(map);
+        }
+
+
+        @Override
+        public Map<String, String> merge(Map<String, String> lower, Map<String, String> upper)
+        {
+            Map<String, String> map = new HashMap<String, String>(lower);
+            map.putAll(upper);
+
+            return Collections.unmodifiableMap(map);
+        }
+    }
+
+
+    private ZooKeeper mZooKeeper;
+    private String[] mPaths;
+    private Merger<T> mMerger;
+    private Listener<T> mListener;
+    private PayloadCodec mCodec;
+    private NodeReader[] mReaders;
+    private volatile Snapshot<T> mSnapshot;
+
+    // Guarded by this.
+    private Object[] mLayers;
+    private Object[] mMerged;
+    private long[] mZxids;
+    private boolean[] mResolved;
+    private int mUnresolvedCount;
+
+
+    public OverlayReader()
+    {
+    }
+
+
+    public OverlayReader(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+    }
+
+
+    /**
+     * Get the {@link ZooKeeper} instance to read the layers.
+     *
+     * @return
+     *         The {@link ZooKeeper} instance.
+     */
+    public ZooKeeper getZooKeeper()
+    {
+        return mZooKeeper;
+    }
+
+
+    /**
+     * Set the {@link ZooKeeper} instance to read the layers.
+     *
+     * @param zooKeeper
+     *         A {@link ZooKeeper} instance.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public OverlayReader<T> setZooKeeper(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+
+        return this;
+    }
+
+
+    /**
+     * Get the paths of the layers.
+     *
+     * @return
+     *         The paths of the layers in ascending order of priority.
+     */
+    public String[] getPaths()
+    {
+        return (mPaths != null) ? mPaths.clone() : null;
+    }
+
+
+    /**
+     * Set the paths of the layers.
+     *
+     * @param paths
+     *         The paths of the layers in ascending order of priority,
+     *         i.e. the last path has the highest priority.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public OverlayReader<T> setPaths(String... paths)
+    {
+        mPaths = (paths != null) ? paths.clone() : null;
+
+        return this;
+    }
+
+
+    /**
+     * Get the merger.
+     *
+     * @return
+     *         The merger.
+     */
+    public Merger<T> getMerger()
+    {
+        return mMerger;
+    }
+
+
+    /**
+     * Set the merger.
+     *
+     * @param merger
+     *         The merger.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public OverlayReader<T> setMerger(Merger<T> merger)
+    {
+        mMerger = merger;
+
+        return this;
+    }
+
+
+    /**
+     * Get the listener.
+     *
+     * @return
+     *         The listener.
+     */
+    public Listener<T> getListener()
+    {
+        return mListener;
+    }
+
+
+    /**
+     * Set a listener.
+     *
+     * @param listener
+     *         A listener.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public OverlayReader<T> setListener(Listener<T> listener)
+    {
+        mListener = listener;
+
+        return this;
+    }
+
+
+    /**
+     * Get the codec to decode the content of the layers.
+     *
+     * @return
+     *         The codec. {@code null} if no codec is set.
+     */
+    public PayloadCodec getCodec()
+    {
+        return mCodec;
+    }
+
+
+    /**
+     * Set a codec to decode the content of the layers before they
+     * are parsed.
+     *
+     * @param codec
+     *         A codec. {@code null} not to decode the content.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @see NodeReader#setCodec(PayloadCodec)
+     */
+    public OverlayReader<T> setCodec(PayloadCodec codec)
+    {
+        mCodec = codec;
+
+        return this;
+    }
+
+
+    /**
+     * Get the latest snapshot of the merged view.
+     *
+     * @return
+     *         The latest snapshot. {@code null} if no snapshot has been
+     *         published yet.
+     */
+    public Snapshot<T> getSnapshot()
+    {
+        return mSnapshot;
+    }
+
+
+    /**
+     * Get the latest merged view. This is a shortcut of
+     * {@link #getSnapshot()}{@code .}{@link Snapshot#getValue()
+     * getValue()}.
+     *
+     * @return
+     *         The latest merged view. {@code null} if no snapshot has
+     *         been published yet or none of the layers exists.
+     */
+    public T getValue()
+    {
+        Snapshot<T> snapshot = mSnapshot;
+
+        return (snapshot != null) ? snapshot.getValue() : null;
+    }
+
+
+    /**
+     * Start reading the layers.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalStateException
+     *         <ul>
+     *           <li>No {@link ZooKeeper} instance is set.
+     *           <li>No path is set.
+     *           <li>No merger is set.
+     *         </ul>
+     */
+    public OverlayReader<T> start()
+    {
+        if (mZooKeeper == null)
+        {
+            throw new IllegalStateException("A ZooKeeper instance must be set.");
+        }
+
+        if (mPaths == null || mPaths.length == 0)
+        {
+            throw new IllegalStateException("Paths must be set.");
+        }
+
+        if (mMerger == null)
+        {
+            throw new IllegalStateException("A merger must be set.");
+        }
+
+        int count = mPaths.length;
+
+        synchronized (this)
+        {
+            mLayers          = new Object[count];
+            mMerged          = new Object[count];
+            mZxids           = new long[count];
+            mResolved        = new boolean[count];
+            mUnresolvedCount = count;
+        }
+
+        mReaders = new NodeReader[count];
+
+        for (int i = 0; i < count; ++i)
+        {
+            mReaders[i] = new NodeReader()
+                .setZooKeeper(mZooKeeper)
+                .setPath(mPaths[i])
+                .setCodec(mCodec)
+                .setWatching(true)
+                .setListener(new LayerListener(i));
+        }
+
+        for (NodeReader reader : mReaders)
+        {
+            reader.start();
+        }
+
+        return this;
+    }
+
+
+    /**
+     * Stop watching the layers. The last snapshot remains available.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public OverlayReader<T> finish()
+    {
+        if (mReaders != null)
+        {
+            for (NodeReader reader : mReaders)
+            {
+                reader.finish();
+            }
+        }
+
+        return this;
+    }
+
+
+    private void update(int index, byte[] data, Stat stat)
+    {
+        Snapshot<T> snapshot;
+
+        synchronized (this)
+        {
+            long zxid = (stat != null) ? stat.getMzxid() : 0;
+
+            if (mResolved[index] && mZxids[index] == zxid)
+            {
+                // The same version of the layer.
+                return;
+            }
+
+            Object layer = null;
+
+            if (stat != null)
+            {
+                try
+                {
+                    layer = mMerger.parse(data);
+                }
+                catch (RuntimeException e)
+                {
+                    // Keep the previous content of the layer.
+                    return;
+                }
+            }
+
+            mLayers[index] = layer;
+            mZxids[index]  = zxid;
+
+            if (mResolved[index] == false)
+            {
+                mResolved[index] = true;
+                --mUnresolvedCount;
+            }
+
+            snapshot = remerge(index);
+        }
+
+        if (snapshot != null)
+        {
+            callOnMerged(snapshot);
+        }
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private Snapshot<T> remerge(int from)
+    {
+        // Reuse the merged result of the lower layers.
+        T merged = (from == 0) ? null : (T)mMerged[from - 1];
+
+        for (int i = from; i < mLayers.length; ++i)
+        {
+            T layer = (T)mLayers[i];
+
+            if (layer != null)
+            {
+                merged = (merged == null) ? layer : mMerger.merge(merged, layer);
+            }
+
+            mMerged[i] = merged;
+        }
+
+        if (0 < mUnresolvedCount)
+        {
+            // Some layers have not been read yet.
+            return null;
+        }
+
+        long zxid = 0;
+
+        for (long z : mZxids)
+        {
+            zxid = Math.max(zxid, z);
+        }
+
+        Snapshot<T> snapshot = new Snapshot<T>(merged, zxid);
+        mSnapshot = snapshot;
+
+        return snapshot;
+    }
+
+
+    private void callOnMerged(Snapshot<T> snapshot)
+    {
+        if (mListener == null)
+        {
+            return;
+        }
+
+        try
+        {
+            mListener.onMerged(this, snapshot);
+        }
+        catch (RuntimeException e)
+        {
+            // Ignore.
+        }
+    }
+
+
+    private class LayerListener extends NodeReader.Adapter implements NodeReader.WatchListener
+    {
+        private final int mIndex;
+
+
+        public LayerListener(int index)
+        {
+            mIndex = index;
+        }
+
+
+        @Override
+        public void onRead(NodeReader reader, byte[] data, Stat stat)
+        {
+            update(mIndex, data, stat);
+        }
+
+
+        @Override
+        public void onDeleted(NodeReader reader)
+        {
+            update(mIndex, null, null);
+        }
+    }
+}
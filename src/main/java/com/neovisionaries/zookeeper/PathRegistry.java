@@ -0,0 +1,879 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.common.PathUtils;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Registry of paths watched by recipes of a {@link ZooKeeper} instance.
+ *
+ * <p>
+ * Paths are kept in a trie whose nodes correspond to path segments, so
+ * a common prefix such as {@code /services/app/config} is held only once
+ * however many paths share it. A trie node holds only its segment. The
+ * full path is built from the ancestors when a recipe asks for it, and
+ * the built {@code String} instance is kept in the node so that recipes
+ * of the same path share it instead of holding their own copies.
+ * </p>
+ *
+ * <p>
+ * A registry has a single {@link Watcher} which is set for all watched
+ * paths. ZooKeeper triggers a watcher object at most once per path and
+ * event, so the registry dispatches each event to all the {@link Waiter}s
+ * which are waiting for an event of the path.
+ * </p>
+ *
+ * <p>
+ * The number of paths in watch mode is limited by the budget configured
+ * through {@link WatchManager}. Paths beyond the budget are polled instead,
+ * and the registry dispatches synthesized events to their waiters when it
+ * detects changes by polling.
+ * </p>
+ *
+ * <p>
+ * A trie node is kept while a recipe holds it. It is removed when the
+ * last recipe releases it and it has no children.
+ * </p>
+ */
+final class PathRegistry
+{
+    /**
+     * Receiver of events dispatched by the registry.
+     */
+    interface Waiter
+    {
+        /**
+         * Called when an event of the path has occurred. The waiter
+         * has been unregistered when this method is called.
+         */
+        void process(EventType type);
+    }
+
+
+    private static final Map<ZooKeeper, PathRegistry> sRegistries =
+        new WeakHashMap<ZooKeeper, PathRegistry>();
+    private static final long UNKNOWN = Long.MIN_VALUE;
+    private static final long ABSENT = -1;
+    private static final long DEFAULT_POLLING_INTERVAL = 5000;
+    private static final StatCallback sPollCallback = new PollCallback();
+
+
+    // The registry is the value of a WeakHashMap whose key is the
+    // ZooKeeper instance, so it must not hold the instance strongly.
+    private final WeakReference<ZooKeeper> mZooKeeper;
+    private final Node mRoot = new Node(this, null, "");
+    private final Watcher mWatcher = new DispatchWatcher();
+
+    // Guarded by this.
+    private final List<Set<Node>> mWatchedNodes = new ArrayList<Set<Node>>();
+    private final List<Set<Node>> mPollingNodes = new ArrayList<Set<Node>>();
+    private int mBudget = Integer.MAX_VALUE;
+    private int mWatchCount;
+    private long mEvictionCount;
+    private long mPollingInterval = DEFAULT_POLLING_INTERVAL;
+    private ScheduledFuture<?> mPollingTask;
+
+    // Nodes which have been promoted from polling mode to watch mode
+    // while the lock is held. Their waiters are notified after the lock
+    // is released so that they read again with the watcher.
+    private List<Node> mSwitched;
+
+
+    private PathRegistry(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = new WeakReference<ZooKeeper>(zooKeeper);
+
+        for (int i = 0; i < WatchManager.Priority.values().length; ++i)
+        {
+            mWatchedNodes.add(new LinkedHashSet<Node>());
+            mPollingNodes.add(new LinkedHashSet<Node>());
+        }
+    }
+
+
+    /**
+     * Get the registry of the given {@link ZooKeeper} instance. The
+     * registry is discarded when the {@code ZooKeeper} instance is
+     * garbage-collected.
+     */
+    static PathRegistry getInstance(ZooKeeper zooKeeper)
+    {
+        synchronized (sRegistries)
+        {
+            PathRegistry registry = sRegistries.get(zooKeeper);
+
+            if (registry == null)
+            {
+                registry = new PathRegistry(zooKeeper);
+                sRegistries.put(zooKeeper, registry);
+            }
+
+            return registry;
+        }
+    }
+
+
+    /**
+     * Get the trie node of the path, creating it if necessary. The
+     * returned node must be released by {@link Node#release(Waiter)}
+     * when it is no longer used.
+     *
+     * @throws IllegalArgumentException
+     *         The path is invalid as a znode path.
+     */
+    Node acquire(String path, WatchManager.Priority priority)
+    {
+        // Reject paths which ZooKeeper would reject, e.g. "/a//b" and
+        // "/a/", so that one znode has only one spelling in the trie.
+        PathUtils.validatePath(path);
+
+        Node node = mRoot;
+        List<Node> switched;
+
+        synchronized (this)
+        {
+            int length = path.length();
+            int start = 1;
+
+            while (start < length)
+            {
+                int end = path.indexOf('/', start);
+
+                if (end < 0)
+                {
+                    end = length;
+                }
+
+                node = node.getOrCreateChild(path.substring(start, end));
+
+                start = end + 1;
+            }
+
+            node.mRefCount++;
+
+            if (node.mRefCount == 1)
+            {
+                node.mPriority = priority;
+                admit(node);
+            }
+            else if (node.mPriority.compareTo(priority) < 0)
+            {
+                // A recipe of a higher priority has come. Move the node
+                // to the set of the new priority.
+                List<Set<Node>> sets = node.mPolling ? mPollingNodes : mWatchedNodes;
+                sets.get(node.mPriority.ordinal()).remove(node);
+                sets.get(priority.ordinal()).add(node);
+
+                node.mPriority = priority;
+
+                if (node.mPolling)
+                {
+                    admit(node);
+                }
+            }
+
+            switched = takeSwitched();
+        }
+
+        notifySwitched(switched);
+
+        return node;
+    }
+
+
+    synchronized int getBudget()
+    {
+        return mBudget;
+    }
+
+
+    void setBudget(int budget)
+    {
+        List<Node> switched;
+
+        synchronized (this)
+        {
+            mBudget = budget;
+
+            // Evict nodes of low priorities first.
+            for (int i = 0; mBudget < mWatchCount && i < WatchManager.Priority.HIGH.ordinal(); ++i)
+            {
+                Set<Node> nodes = mWatchedNodes.get(i);
+
+                while (mBudget < mWatchCount && nodes.isEmpty() == false)
+                {
+                    Node victim = nodes.iterator().next();
+                    evict(victim);
+                }
+            }
+
+            promote();
+
+            switched = takeSwitched();
+        }
+
+        notifySwitched(switched);
+    }
+
+
+    synchronized long getPollingInterval()
+    {
+        return mPollingInterval;
+    }
+
+
+    synchronized void setPollingInterval(long interval)
+    {
+        mPollingInterval = interval;
+
+        if (mPollingTask != null)
+        {
+            // Reschedule with the new interval.
+            mPollingTask.cancel(false);
+            mPollingTask = null;
+            schedulePolling();
+        }
+    }
+
+
+    synchronized int getWatchCount()
+    {
+        return mWatchCount;
+    }
+
+
+    synchronized int getPollingCount()
+    {
+        int count = 0;
+
+        for (Set<Node> nodes : mPollingNodes)
+        {
+            count += nodes.size();
+        }
+
+        return count;
+    }
+
+
+    synchronized long getEvictionCount()
+    {
+        return mEvictionCount;
+    }
+
+
+    private void admit(Node node)
+    {
+        if (mWatchCount < mBudget || node.mPriority == WatchManager.Priority.HIGH)
+        {
+            watch(node);
+            return;
+        }
+
+        // Look for a node of a lower priority to evict.
+        for (int i = 0; i < node.mPriority.ordinal(); ++i)
+        {
+            Set<Node> nodes = mWatchedNodes.get(i);
+
+            if (nodes.isEmpty() == false)
+            {
+                evict(nodes.iterator().next());
+                watch(node);
+                return;
+            }
+        }
+
+        // No room.
+        poll(node);
+    }
+
+
+    private void watch(Node node)
+    {
+        if (node.mPolling)
+        {
+            mPollingNodes.get(node.mPriority.ordinal()).remove(node);
+            markSwitched(node);
+        }
+
+        node.mPolling = false;
+        mWatchedNodes.get(node.mPriority.ordinal()).add(node);
+        mWatchCount++;
+    }
+
+
+    private void evict(Node node)
+    {
+        mWatchedNodes.get(node.mPriority.ordinal()).remove(node);
+        mWatchCount--;
+        mEvictionCount++;
+
+        // The watch which has already been set on the server cannot be
+        // removed. It is simply not set again.
+        poll(node);
+    }
+
+
+    private void poll(Node node)
+    {
+        node.mPolling = true;
+        mPollingNodes.get(node.mPriority.ordinal()).add(node);
+
+        schedulePolling();
+    }
+
+
+    private void promote()
+    {
+        // Promote the oldest nodes of the highest priority first.
+        for (int i = mPollingNodes.size() - 1; 0 <= i && mWatchCount < mBudget; --i)
+        {
+            Set<Node> nodes = mPollingNodes.get(i);
+
+            while (mWatchCount < mBudget && nodes.isEmpty() == false)
+            {
+                watch(nodes.iterator().next());
+            }
+        }
+    }
+
+
+    private void markSwitched(Node node)
+    {
+        if (mSwitched == null)
+        {
+            mSwitched = new ArrayList<Node>();
+        }
+
+        mSwitched.add(node);
+    }
+
+
+    private List<Node> takeSwitched()
+    {
+        List<Node> switched = mSwitched;
+        mSwitched = null;
+
+        return switched;
+    }
+
+
+    private void notifySwitched(List<Node> switched)
+    {
+        if (switched == null)
+        {
+            return;
+        }
+
+        // Waiters of the promoted nodes are waiting for polling. Let
+        // them read again to set watches.
+        for (Node node : switched)
+        {
+            dispatch(node, EventType.NodeDataChanged);
+        }
+    }
+
+
+    private void schedulePolling()
+    {
+        if (mPollingTask != null)
+        {
+            return;
+        }
+
+        mPollingTask = DaemonScheduler.getShared().scheduleWithFixedDelay(
+            new PollingTask(), mPollingInterval, mPollingInterval, TimeUnit.MILLISECONDS);
+    }
+
+
+    private void pollAll()
+    {
+        ZooKeeper zooKeeper = mZooKeeper.get();
+        List<Node> nodes;
+        List<String> paths;
+
+        synchronized (this)
+        {
+            int count = getPollingCount();
+
+            if (zooKeeper == null || zooKeeper.getState().isAlive() == false || count == 0)
+            {
+                // Nothing to poll. The task is scheduled again when
+                // a node is evicted.
+                if (mPollingTask != null)
+                {
+                    mPollingTask.cancel(false);
+                    mPollingTask = null;
+                }
+                return;
+            }
+
+            nodes = new ArrayList<Node>(count);
+            paths = new ArrayList<String>(count);
+
+            for (Set<Node> set : mPollingNodes)
+            {
+                for (Node node : set)
+                {
+                    // Poll only paths which someone is waiting for.
+                    if (node.mWaiters != null)
+                    {
+                        nodes.add(node);
+                        paths.add(node.buildPath());
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < nodes.size(); ++i)
+        {
+            zooKeeper.exists(paths.get(i), false, sPollCallback, nodes.get(i));
+        }
+    }
+
+
+    private Node find(String path)
+    {
+        Node node = mRoot;
+        int length = path.length();
+        int start = 1;
+
+        while (node != null && start < length)
+        {
+            int end = path.indexOf('/', start);
+
+            if (end < 0)
+            {
+                end = length;
+            }
+
+            if (start < end)
+            {
+                node = node.getChild(path.substring(start, end));
+            }
+
+            start = end + 1;
+        }
+
+        return node;
+    }
+
+
+    private void dispatch(String path, EventType type)
+    {
+        Node node;
+
+        synchronized (this)
+        {
+            node = find(path);
+        }
+
+        if (node != null)
+        {
+            dispatch(node, type);
+        }
+    }
+
+
+    private void dispatch(Node node, EventType type)
+    {
+        List<Waiter> waiters;
+
+        synchronized (this)
+        {
+            if (node.mWaiters == null)
+            {
+                return;
+            }
+
+            // The watch has been consumed. Waiters wait again if they need.
+            waiters = node.mWaiters;
+            node.mWaiters = null;
+        }
+
+        for (Waiter waiter : waiters)
+        {
+            waiter.process(type);
+        }
+    }
+
+
+    /**
+     * Node of the path trie.
+     */
+    static final class Node
+    {
+        private final PathRegistry mRegistry;
+        private final Node mParent;
+        private final String mSegment;
+        private String mPath;
+        private Map<String, Node> mChildren;
+        private List<Waiter> mWaiters;
+        private int mRefCount;
+        private WatchManager.Priority mPriority;
+        private boolean mPolling;
+        private long mObservedZxid = UNKNOWN;
+
+
+        private Node(PathRegistry registry, Node parent, String segment)
+        {
+            mRegistry = registry;
+            mParent   = parent;
+            mSegment  = segment;
+        }
+
+
+        /**
+         * Get the canonical instance of the path. The path is built from
+         * the segments of the ancestors, so recipes of the same znode get
+         * the same instance regardless of the string they have given.
+         */
+        String getPath()
+        {
+            synchronized (mRegistry)
+            {
+                return buildPath();
+            }
+        }
+
+
+        // Called while the lock of the registry is held. Intermediate
+        // nodes, which nobody asks for their paths, never build them.
+        private String buildPath()
+        {
+            if (mPath != null)
+            {
+                return mPath;
+            }
+
+            if (mParent == null)
+            {
+                mPath = "/";
+                return mPath;
+            }
+
+            StringBuilder builder = new StringBuilder();
+            appendPath(builder);
+            mPath = builder.toString();
+
+            return mPath;
+        }
+
+
+        private void appendPath(StringBuilder builder)
+        {
+            if (mParent != null)
+            {
+                mParent.appendPath(builder);
+                builder.append('/').append(mSegment);
+            }
+        }
+
+
+        /**
+         * Get the watcher to set for the path. {@code null} is returned
+         * if the path is polled instead of watched.
+         */
+        Watcher getWatcher()
+        {
+            synchronized (mRegistry)
+            {
+                return mPolling ? null : mRegistry.mWatcher;
+            }
+        }
+
+
+        /**
+         * Tell the registry which version of the znode the recipe has
+         * seen. Polling reports a change when it finds a different one.
+         *
+         * @param stat
+         *         The statistics of the znode, or {@code null} if the
+         *         znode does not exist.
+         */
+        void observe(Stat stat)
+        {
+            synchronized (mRegistry)
+            {
+                mObservedZxid = (stat != null) ? stat.getMzxid() : ABSENT;
+            }
+        }
+
+
+        /**
+         * Register a waiter which waits for the next event of the path.
+         * This method must be called before the watcher of the registry
+         * is set for the path so that the event is not missed.
+         */
+        void addWaiter(Waiter waiter)
+        {
+            synchronized (mRegistry)
+            {
+                if (mRefCount == 0)
+                {
+                    // Already released.
+                    return;
+                }
+
+                if (mWaiters == null)
+                {
+                    mWaiters = new ArrayList<Waiter>(1);
+                }
+                else if (mWaiters.contains(waiter))
+                {
+                    return;
+                }
+
+                mWaiters.add(waiter);
+            }
+        }
+
+
+        /**
+         * Unregister a waiter which no longer waits for events of the path.
+         */
+        void removeWaiter(Waiter waiter)
+        {
+            synchronized (mRegistry)
+            {
+                if (mWaiters == null)
+                {
+                    return;
+                }
+
+                mWaiters.remove(waiter);
+
+                if (mWaiters.isEmpty())
+                {
+                    mWaiters = null;
+                }
+            }
+        }
+
+
+        /**
+         * Release this node. The waiter stops waiting for events of
+         * the path.
+         */
+        void release(Waiter waiter)
+        {
+            List<Node> switched;
+
+            synchronized (mRegistry)
+            {
+                removeWaiter(waiter);
+
+                mRefCount--;
+
+                if (mRefCount == 0)
+                {
+                    unregister();
+                }
+
+                // Remove nodes which are no longer used.
+                for (Node node = this; node.isRemovable(); node = node.mParent)
+                {
+                    node.mParent.removeChild(node.mSegment);
+                }
+
+                switched = mRegistry.takeSwitched();
+            }
+
+            mRegistry.notifySwitched(switched);
+        }
+
+
+        private void unregister()
+        {
+            if (mPolling)
+            {
+                mRegistry.mPollingNodes.get(mPriority.ordinal()).remove(this);
+                mPolling = false;
+            }
+            else
+            {
+                mRegistry.mWatchedNodes.get(mPriority.ordinal()).remove(this);
+                mRegistry.mWatchCount--;
+                mRegistry.promote();
+            }
+
+            mObservedZxid = UNKNOWN;
+        }
+
+
+        private void onPolled(long zxid)
+        {
+            EventType type;
+
+            synchronized (mRegistry)
+            {
+                long observed = mObservedZxid;
+
+                if (observed == UNKNOWN)
+                {
+                    // The waiters have not read the znode yet.
+                    mObservedZxid = zxid;
+                    return;
+                }
+
+                if (observed == zxid)
+                {
+                    // Not changed.
+                    return;
+                }
+
+                if (observed == ABSENT)
+                {
+                    type = EventType.NodeCreated;
+                }
+                else if (zxid == ABSENT)
+                {
+                    type = EventType.NodeDeleted;
+                }
+                else
+                {
+                    type = EventType.NodeDataChanged;
+                }
+
+                mObservedZxid = zxid;
+            }
+
+            mRegistry.dispatch(this, type);
+        }
+
+
+        private boolean isRemovable()
+        {
+            return mParent != null && mRefCount <= 0 && mChildren == null && mWaiters == null;
+        }
+
+
+        private Node getChild(String segment)
+        {
+            return (mChildren != null) ? mChildren.get(segment) : null;
+        }
+
+
+        private Node getOrCreateChild(String segment)
+        {
+            Node child = getChild(segment);
+
+            if (child != null)
+            {
+                return child;
+            }
+
+            if (mChildren == null)
+            {
+                mChildren = new HashMap<String, Node>(4);
+            }
+
+            child = new Node(mRegistry, this, segment);
+            mChildren.put(segment, child);
+
+            return child;
+        }
+
+
+        private void removeChild(String segment)
+        {
+            mChildren.remove(segment);
+
+            if (mChildren.isEmpty())
+            {
+                mChildren = null;
+            }
+        }
+    }
+
+
+    private class DispatchWatcher implements Watcher
+    {
+        @Override
+        public void process(WatchedEvent event)
+        {
+            String path = event.getPath();
+
+            if (path == null)
+            {
+                // Not an event of a znode.
+                return;
+            }
+
+            dispatch(path, event.getType());
+        }
+    }
+
+
+    private class PollingTask implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                pollAll();
+            }
+            catch (RuntimeException e)
+            {
+                // Keep the task running.
+            }
+        }
+    }
+
+
+    private static class PollCallback implements StatCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat)
+        {
+            Node node = (Node)ctx;
+
+            switch (Code.get(rc))
+            {
+                case OK:
+                    node.onPolled(stat.getMzxid());
+                    return;
+
+                case NONODE:
+                    node.onPolled(ABSENT);
+                    return;
+
+                default:
+                    // Try again at the next polling.
+                    return;
+            }
+        }
+    }
+}
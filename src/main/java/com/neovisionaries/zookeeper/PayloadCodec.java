@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Codec to convert the content of a znode to and from its
+ * representation on the wire.
+ *
+ * <p>
+ * A codec can be set to {@link NodeReader#setCodec(PayloadCodec)
+ * NodeReader} and {@link LeaderElection#setCodec(PayloadCodec)
+ * LeaderElection}. {@code NodeReader} decodes the content of the
+ * target znode through the codec before calling {@link
+ * NodeReader.Listener#onRead(NodeReader, byte[], org.apache.zookeeper.data.Stat)
+ * onRead()}, and {@code LeaderElection} encodes the ID of the
+ * candidate through the codec before writing it.
+ * </p>
+ *
+ * <p>
+ * Implementations must be thread-safe because a codec instance may
+ * be shared by multiple readers and writers.
+ * </p>
+ *
+ * @since 1.3
+ *
+ * @see DeflatePayloadCodec
+ */
+public interface PayloadCodec
+{
+    /**
+     * Encode data.
+     *
+     * @param data
+     *         Data to encode. May be {@code null}.
+     *
+     * @return
+     *         Encoded data. {@code null} if {@code data} is {@code null}.
+     */
+    byte[] encode(byte[] data);
+
+
+    /**
+     * Decode data.
+     *
+     * @param data
+     *         Data to decode. May be {@code null}.
+     *
+     * @return
+     *         Decoded data. {@code null} if {@code data} is {@code null}.
+     *
+     * @throws IllegalArgumentException
+     *         The data is broken.
+     */
+    byte[] decode(byte[] data);
+
+
+    /**
+     * Decode data into the given buffer.
+     *
+     * <p>
+     * The decoded data is written into {@code buffer} from its position
+     * zero. If the capacity of {@code buffer} is not enough (or if
+     * {@code buffer} is {@code null}), a new buffer is allocated. In
+     * either case, the returned buffer is ready to be read, i.e. its
+     * position is zero and its limit is the length of the decoded data.
+     * </p>
+     *
+     * @param data
+     *         Data to decode. Must not be {@code null}.
+     *
+     * @param buffer
+     *         A buffer to reuse. May be {@code null}.
+     *
+     * @return
+     *         A buffer containing the decoded data. The same instance
+     *         as {@code buffer} if its capacity was enough.
+     *
+     * @throws IllegalArgumentException
+     *         The data is broken.
+     */
+    ByteBuffer decode(byte[] data, ByteBuffer buffer);
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Consistency level of reading a znode.
+ *
+ * <p>
+ * A ZooKeeper server which a session is connected to may lag behind
+ * the leader of the ensemble, so a read may return a version older than
+ * the one which another client has just written. A consistency level
+ * tells {@link NodeReader} how much latency it may pay for freshness.
+ * </p>
+ *
+ * <blockquote>
+ * <table border="1" cellpadding="5" style="border-collapse: collapse;">
+ *   <tr>
+ *     <th>Level</th>
+ *     <th>Description</th>
+ *   </tr>
+ *   <tr>
+ *     <td>{@link #LOCAL}</td>
+ *     <td>Read from the connected server as is. The fastest.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>{@link #SYNCED}</td>
+ *     <td>Call {@link ZooKeeper#sync(String,
+ *         org.apache.zookeeper.AsyncCallback.VoidCallback, Object) sync()}
+ *         before the first read so that the connected server catches up
+ *         with the leader. Costs one more round trip to the leader.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>{@link #atLeast(long) atLeast(zxid)}</td>
+ *     <td>Deliver the content only when its {@link Stat#getMzxid()
+ *         mzxid} is equal to or greater than the given zxid. Until then,
+ *         the znode is watched and read again when it is changed. Costs
+ *         nothing extra if the connected server is fresh enough.</td>
+ *   </tr>
+ * </table>
+ * </blockquote>
+ *
+ * @since 1.3
+ *
+ * @see NodeReader#setConsistency(ReadConsistency)
+ */
+public final class ReadConsistency
+{
+    /**
+     * Kinds of consistency levels.
+     */
+    public enum Mode
+    {
+        /**
+         * Read from the connected server as is.
+         */
+        LOCAL,
+
+
+        /**
+         * Call {@code sync()} before reading.
+         */
+        SYNCED,
+
+
+        /**
+         * Wait for a version whose mzxid reaches a given zxid.
+         */
+        AT_LEAST
+    }
+
+
+    /**
+     * Read from the connected server as is.
+     */
+    public static final ReadConsistency LOCAL = new ReadConsistency(Mode.LOCAL, 0);
+
+
+    /**
+     * Call {@code sync()} before reading.
+     */
+    public static final ReadConsistency SYNCED = new ReadConsistency(Mode.SYNCED, 0);
+
+
+    private final Mode mMode;
+    private final long mZxid;
+
+
+    private ReadConsistency(Mode mode, long zxid)
+    {
+        mMode = mode;
+        mZxid = zxid;
+    }
+
+
+    /**
+     * Get a consistency level which requires a version of the znode
+     * whose {@link Stat#getMzxid() mzxid} is equal to or greater than
+     * the given zxid.
+     *
+     * <p>
+     * {@code zxid} should be the mzxid of a version of the target znode,
+     * e.g. {@code getMzxid()} of the {@link Stat} returned by {@link
+     * ZooKeeper#setData(String, byte[], int) setData()}. If it is not,
+     * the reader waits until the target znode is modified after the zxid.
+     * </p>
+     *
+     * @param zxid
+     *         The minimum zxid of the last modification.
+     *
+     * @return
+     *         A consistency level.
+     */
+    public static ReadConsistency atLeast(long zxid)
+    {
+        return new ReadConsistency(Mode.AT_LEAST, zxid);
+    }
+
+
+    /**
+     * Get the kind of this consistency level.
+     *
+     * @return
+     *         The kind of this consistency level.
+     */
+    public Mode getMode()
+    {
+        return mMode;
+    }
+
+
+    /**
+     * Get the minimum zxid required by {@link Mode#AT_LEAST AT_LEAST}.
+     *
+     * @return
+     *         The minimum zxid. 0 for other modes.
+     */
+    public long getZxid()
+    {
+        return mZxid;
+    }
+
+
+    /**
+     * Check if the given statistics satisfy this consistency level.
+     */
+    boolean isSatisfiedBy(Stat stat)
+    {
+        return mMode != Mode.AT_LEAST || mZxid <= stat.getMzxid();
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return (mMode == Mode.AT_LEAST) ? "AT_LEAST(" + mZxid + ")" : mMode.name();
+    }
+}
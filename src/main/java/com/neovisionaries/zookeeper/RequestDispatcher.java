@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Dispatcher of read requests which recipes send to a {@link ZooKeeper}
+ * instance.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * <span style="color: darkgreen;">// Share one dispatcher among recipes of the same ZooKeeper instance.</span>
+ * RequestDispatcher dispatcher = <span style="color: purple; font-weight: bold;">new</span> RequestDispatcher(zooKeeper)
+ *     .{@link #setWindow(int) setWindow}(200);
+ *
+ * <span style="color: purple; font-weight: bold;">new</span> NodeReader(zooKeeper)
+ *     .{@link NodeReader#setDispatcher(RequestDispatcher) setDispatcher}(dispatcher)
+ *     ......
+ *
+ * <span style="color: purple; font-weight: bold;">new</span> LeaderElection(zooKeeper)
+ *     .{@link LeaderElection#setDispatcher(RequestDispatcher) setDispatcher}(dispatcher)
+ *     ......
+ * </pre>
+ *
+ * <p>
+ * A dispatcher does the following for asynchronous {@code getData()}
+ * and {@code exists()} requests.
+ * </p>
+ *
+ * <ol>
+ *   <li>
+ *     <p>
+ *     <b>Window</b> &mdash; At most {@link #setWindow(int) window}
+ *     {@link Priority#NORMAL NORMAL} requests are outstanding at the
+ *     same time. Other requests wait in the dispatcher and are sent when
+ *     outstanding requests complete.
+ *     </p>
+ *   </li>
+ *   <li>
+ *     <p>
+ *     <b>Coalescing</b> &mdash; A request which is identical to a waiting
+ *     one (the same operation, the same path and the same {@link Watcher}
+ *     instance) is not sent separately. Its callback is called with the
+ *     result of the waiting one. Requests which have already been sent
+ *     are never shared, so every caller receives a result which is not
+ *     older than the time of its call.
+ *     </p>
+ *   </li>
+ *   <li>
+ *     <p>
+ *     <b>Priority</b> &mdash; {@link Priority#HIGH HIGH} requests, which
+ *     {@link LeaderElection} uses to track the leader, are sent without
+ *     waiting for the window, so they are queued behind at most {@code
+ *     window} outstanding requests even during a storm of reads.
+ *     </p>
+ *   </li>
+ * </ol>
+ *
+ * <p>
+ * Note that the {@code byte[]} and {@link Stat} instances given to
+ * coalesced callbacks are shared, so callbacks must not modify them.
+ * </p>
+ *
+ * <p>
+ * When {@link ZooKeeper} rejects a request synchronously, e.g. because
+ * of an invalid path, the exception is thrown to the caller if the
+ * request is sent at once. If the request has waited in the dispatcher,
+ * its callbacks are called with {@link
+ * org.apache.zookeeper.KeeperException.Code#BADARGUMENTS BADARGUMENTS}
+ * instead. In both cases, the slot in the window is returned.
+ * </p>
+ *
+ * @since 1.3
+ */
+public class RequestDispatcher
+{
+    /**
+     * Priority of requests.
+     */
+    public enum Priority
+    {
+        /**
+         * Lease-critical requests. Sent without waiting for the window.
+         */
+        HIGH,
+
+
+        /**
+         * Bulk requests. Subject to the window and coalescing.
+         */
+        NORMAL
+    }
+
+
+    private static final int DEFAULT_WINDOW = 100;
+    private static final int GET_DATA = 0;
+    private static final int EXISTS = 1;
+
+
+    private final ZooKeeper mZooKeeper;
+    private final DataCallback mDataCallback = new DispatchDataCallback();
+    private final StatCallback mStatCallback = new DispatchStatCallback();
+    private int mWindow = DEFAULT_WINDOW;
+
+    // Guarded by this.
+    private final Map<Request, Request> mWaiting = new HashMap<Request, Request>();
+    private final LinkedList<Request> mQueue = new LinkedList<Request>();
+    private int mOutstanding;
+    private long mCoalescedCount;
+
+
+    public RequestDispatcher(ZooKeeper zooKeeper)
+    {
+        if (zooKeeper == null)
+        {
+            throw new NullPointerException("zooKeeper is null.");
+        }
+
+        mZooKeeper = zooKeeper;
+    }
+
+
+    /**
+     * Get the {@link ZooKeeper} instance to send requests.
+     *
+     * @return
+     *         The {@link ZooKeeper} instance.
+     */
+    public ZooKeeper getZooKeeper()
+    {
+        return mZooKeeper;
+    }
+
+
+    /**
+     * Get the maximum number of outstanding {@link Priority#NORMAL
+     * NORMAL} requests.
+     *
+     * @return
+     *         The window.
+     */
+    public synchronized int getWindow()
+    {
+        return mWindow;
+    }
+
+
+    /**
+     * Set the maximum number of outstanding {@link Priority#NORMAL
+     * NORMAL} requests. The default value is 100.
+     *
+     * @param window
+     *         The window.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalArgumentException
+     *         {@code window} is not positive.
+     */
+    public RequestDispatcher setWindow(int window)
+    {
+        if (window <= 0)
+        {
+            throw new IllegalArgumentException("The window must be positive.");
+        }
+
+        synchronized (this)
+        {
+            mWindow = window;
+        }
+
+        sendQueued();
+
+        return this;
+    }
+
+
+    /**
+     * Get the number of requests waiting in this dispatcher.
+     *
+     * @return
+     *         The number of waiting requests.
+     */
+    public synchronized int getWaitingCount()
+    {
+        return mQueue.size();
+    }
+
+
+    /**
+     * Get the number of outstanding {@link Priority#NORMAL NORMAL}
+     * requests.
+     *
+     * @return
+     *         The number of outstanding requests.
+     */
+    public synchronized int getOutstandingCount()
+    {
+        return mOutstanding;
+    }
+
+
+    /**
+     * Get the total number of requests which have been coalesced into
+     * other requests.
+     *
+     * @return
+     *         The number of coalesced requests.
+     */
+    public synchronized long getCoalescedCount()
+    {
+        return mCoalescedCount;
+    }
+
+
+    /**
+     * Dispatch {@link ZooKeeper#getData(String, Watcher, DataCallback,
+     * Object) getData()}.
+     *
+     * @param path
+     *         The path of the znode.
+     *
+     * @param watcher
+     *         A watcher. {@code null} not to set a watch.
+     *
+     * @param callback
+     *         The callback.
+     *
+     * @param ctx
+     *         The context passed to the callback.
+     *
+     * @param priority
+     *         The priority.
+     */
+    public void getData(String path, Watcher watcher, DataCallback callback, Object ctx, Priority priority)
+    {
+        dispatch(new Request(GET_DATA, path, watcher), callback, ctx, priority);
+    }
+
+
+    /**
+     * Dispatch {@link ZooKeeper#exists(String, Watcher, StatCallback,
+     * Object) exists()}.
+     *
+     * @param path
+     *         The path of the znode.
+     *
+     * @param watcher
+     *         A watcher. {@code null} not to set a watch.
+     *
+     * @param callback
+     *         The callback.
+     *
+     * @param ctx
+     *         The context passed to the callback.
+     *
+     * @param priority
+     *         The priority.
+     */
+    public void exists(String path, Watcher watcher, StatCallback callback, Object ctx, Priority priority)
+    {
+        dispatch(new Request(EXISTS, path, watcher), callback, ctx, priority);
+    }
+
+
+    private void dispatch(Request request, Object callback, Object ctx, Priority priority)
+    {
+        if (priority == Priority.HIGH)
+        {
+            // Send it now without counting it in the window.
+            request.addCaller(callback, ctx);
+            send(request);
+            return;
+        }
+
+        synchronized (this)
+        {
+            Request waiting = mWaiting.get(request);
+
+            if (waiting != null)
+            {
+                // Share the result of the identical waiting request.
+                waiting.addCaller(callback, ctx);
+                ++mCoalescedCount;
+                return;
+            }
+
+            request.addCaller(callback, ctx);
+            request.mCounted = true;
+
+            if (mWindow <= mOutstanding)
+            {
+                // Wait for outstanding requests to complete.
+                mWaiting.put(request, request);
+                mQueue.add(request);
+                return;
+            }
+
+            ++mOutstanding;
+        }
+
+        try
+        {
+            send(request);
+        }
+        catch (RuntimeException e)
+        {
+            // No callback will return the slot. The caller receives
+            // the exception.
+            release();
+            sendQueued();
+            throw e;
+        }
+    }
+
+
+    private void send(Request request)
+    {
+        if (request.mType == GET_DATA)
+        {
+            mZooKeeper.getData(request.mPath, request.mWatcher, mDataCallback, request);
+        }
+        else
+        {
+            mZooKeeper.exists(request.mPath, request.mWatcher, mStatCallback, request);
+        }
+    }
+
+
+    private void complete(Request request)
+    {
+        if (request.mCounted)
+        {
+            release();
+
+            // Fill the window before calling back so that the pipeline
+            // does not drain while callers are processing results.
+            sendQueued();
+        }
+    }
+
+
+    private void sendQueued()
+    {
+        while (true)
+        {
+            Request request;
+
+            synchronized (this)
+            {
+                if (mWindow <= mOutstanding || mQueue.isEmpty())
+                {
+                    return;
+                }
+
+                request = mQueue.removeFirst();
+                mWaiting.remove(request);
+                ++mOutstanding;
+            }
+
+            try
+            {
+                send(request);
+            }
+            catch (RuntimeException e)
+            {
+                // The callers have already returned. Return the slot
+                // and fail them through their callbacks.
+                release();
+                fail(request);
+            }
+        }
+    }
+
+
+    private synchronized void release()
+    {
+        --mOutstanding;
+    }
+
+
+    private void fail(Request request)
+    {
+        // The slot has been returned. Do not return it again.
+        request.mCounted = false;
+
+        // ZooKeeper throws IllegalArgumentException for invalid paths.
+        int rc = Code.BADARGUMENTS.intValue();
+
+        if (request.mType == GET_DATA)
+        {
+            mDataCallback.processResult(rc, request.mPath, request, null, null);
+        }
+        else
+        {
+            mStatCallback.processResult(rc, request.mPath, request, null);
+        }
+    }
+
+
+    private static final class Request
+    {
+        private final int mType;
+        private final String mPath;
+        private final Watcher mWatcher;
+        private final List<Object> mCallers = new ArrayList<Object>(2);
+        private boolean mCounted;
+
+
+        public Request(int type, String path, Watcher watcher)
+        {
+            mType    = type;
+            mPath    = path;
+            mWatcher = watcher;
+        }
+
+
+        // Callers are added only while the request is waiting, i.e.
+        // under the lock of the dispatcher or before it is sent.
+        public void addCaller(Object callback, Object ctx)
+        {
+            mCallers.add(callback);
+            mCallers.add(ctx);
+        }
+
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if ((object instanceof Request) == false)
+            {
+                return false;
+            }
+
+            Request other = (Request)object;
+
+            return mType == other.mType && mWatcher == other.mWatcher && mPath.equals(other.mPath);
+        }
+
+
+        @Override
+        public int hashCode()
+        {
+            return mPath.hashCode() * 31 + mType;
+        }
+    }
+
+
+    private class DispatchDataCallback implements DataCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat)
+        {
+            Request request = (Request)ctx;
+            List<Object> callers = request.mCallers;
+
+            complete(request);
+
+            for (int i = 0; i < callers.size(); i += 2)
+            {
+                try
+                {
+                    ((DataCallback)callers.get(i)).processResult(rc, path, callers.get(i + 1), data, stat);
+                }
+                catch (RuntimeException e)
+                {
+                    // Do not let a broken callback affect others.
+                }
+            }
+        }
+    }
+
+
+    private class DispatchStatCallback implements StatCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat)
+        {
+            Request request = (Request)ctx;
+            List<Object> callers = request.mCallers;
+
+            complete(request);
+
+            for (int i = 0; i < callers.size(); i += 2)
+            {
+                try
+                {
+                    ((StatCallback)callers.get(i)).processResult(rc, path, callers.get(i + 1), stat);
+                }
+                catch (RuntimeException e)
+                {
+                    // Do not let a broken callback affect others.
+                }
+            }
+        }
+    }
+}
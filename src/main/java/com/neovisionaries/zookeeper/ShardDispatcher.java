@@ -0,0 +1,1280 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Dispatcher of shards to members. The leader elected by {@link
+ * LeaderElection} assigns shards to members, and each member receives
+ * its own shards through {@link NodeReader}.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * <span style="color: purple; font-weight: bold;">new</span> ShardDispatcher()
+ *     .{@link #setZooKeeper(ZooKeeper) setZooKeeper}(zooKeeper)
+ *     .{@link #setPath(String) setPath}(<span style="color: mediumblue;">"/workers"</span>)
+ *     .{@link #setMemberId(String) setMemberId}(hostName)
+ *     .{@link #setShardCount(int) setShardCount}(1024)
+ *     .{@link #setListener(Listener) setListener}(<span style="color: purple; font-weight: bold;">new</span> ShardDispatcher.Listener() {
+ *         <span style="color: gray;">&#x40;Override</span>
+ *         <span style="color: purple; font-weight: bold;">public void</span> onAssigned(ShardDispatcher dispatcher, <span style="color: purple; font-weight: bold;">int</span>[] shards) {
+ *             ...
+ *         }
+ *
+ *         <span style="color: gray;">&#x40;Override</span>
+ *         <span style="color: purple; font-weight: bold;">public void</span> onGaveUp(ShardDispatcher dispatcher) {
+ *             ...
+ *         }
+ *     })
+ *     .{@link #start()};
+ * </pre>
+ *
+ * <p>
+ * The following znodes are used under the {@link #setPath(String) path}.
+ * </p>
+ *
+ * <blockquote>
+ * <table border="1" cellpadding="5" style="border-collapse: collapse;">
+ *   <tr><td>{@code leader}</td><td>The znode for leader election.</td></tr>
+ *   <tr><td><code>members/<i>{member ID}</i></code></td><td>An ephemeral znode
+ *       created by each member.</td></tr>
+ *   <tr><td><code>assignments/<i>{member ID}</i></code></td><td>Shards assigned
+ *       to the member, in comma-separated decimal numbers.</td></tr>
+ * </table>
+ * </blockquote>
+ *
+ * <p>
+ * Every time the set of members changes, the leader recomputes the
+ * assignments with {@link #rebalance(Map, List, int)}, which keeps as
+ * many shards as possible where they are, and rewrites only the
+ * assignment znodes whose contents have changed. When a new leader is
+ * elected, it reads the current assignments first, so assignments stay
+ * sticky across leader changes.
+ * </p>
+ *
+ * @since 1.3
+ */
+public class ShardDispatcher
+{
+    /**
+     * Listener to receive shards assigned to this member.
+     */
+    public interface Listener
+    {
+        /**
+         * Called when shards assigned to this member were read.
+         * Called again every time the assignment changes.
+         *
+         * @param dispatcher
+         *         The {@link ShardDispatcher} instance which this
+         *         listener is associated with.
+         *
+         * @param shards
+         *         Shards assigned to this member in ascending order.
+         */
+        void onAssigned(ShardDispatcher dispatcher, int[] shards);
+
+
+        /**
+         * Called when this member failed to join the members for a
+         * reason other than connection loss, e.g. the session has
+         * expired or the parent of the {@link #setPath(String) path}
+         * does not exist. The dispatcher has been {@link #finish()
+         * finished} before this method is called.
+         *
+         * @param dispatcher
+         *         The {@link ShardDispatcher} instance which this
+         *         listener is associated with.
+         */
+        void onGaveUp(ShardDispatcher dispatcher);
+    }
+
+
+    private static final List<ACL> DEFAULT_ACL_LIST = ZooDefs.Ids.OPEN_ACL_UNSAFE;
+    private static final int[] NO_SHARDS = new int[0];
+    private static final long RETRY_DELAY = 1000;
+
+
+    private ZooKeeper mZooKeeper;
+    private String mPath;
+    private String mMemberId;
+    private int mShardCount;
+    private List<ACL> mAclList;
+    private Listener mListener;
+    private LeaderElection mElection;
+    private NodeReader mReader;
+    private boolean mStarted;
+    private boolean mShouldFinish;
+    private final ChildrenCallback mMembersCallback = new MembersCallback();
+    private final Watcher mMembersWatcher = new MembersWatcher();
+    private final DataCallback mLoadCallback = new LoadCallback();
+    private final StatCallback mPublishCallback = new PublishCallback();
+    private final StringCallback mCreateCallback = new CreateCallback();
+    private final StringCallback mIgnoreCallback = new IgnoreCallback();
+    private final StringCallback mJoinCallback = new JoinCallback();
+    private final VoidCallback mDeleteCallback = new DeleteCallback();
+
+    // Variables used while this member is the leader. Guarded by this.
+    private boolean mLeading;
+    private int mTerm;
+    private int mGeneration;
+    private Map<String, int[]> mAssignments;
+    private Map<String, int[]> mLoaded;
+    private List<String> mMembers;
+    private int mLoading;
+
+
+    public ShardDispatcher()
+    {
+    }
+
+
+    public ShardDispatcher(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+    }
+
+
+    /**
+     * Get the {@link ZooKeeper} instance.
+     *
+     * @return
+     *         The {@link ZooKeeper} instance.
+     */
+    public ZooKeeper getZooKeeper()
+    {
+        return mZooKeeper;
+    }
+
+
+    /**
+     * Set the {@link ZooKeeper} instance.
+     *
+     * @param zooKeeper
+     *         A {@link ZooKeeper} instance.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ShardDispatcher setZooKeeper(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+
+        return this;
+    }
+
+
+    /**
+     * Get the path of the znode under which znodes for dispatching
+     * are created.
+     *
+     * @return
+     *         The path.
+     */
+    public String getPath()
+    {
+        return mPath;
+    }
+
+
+    /**
+     * Set the path of the znode under which znodes for dispatching
+     * are created. The znode and the children used by this class are
+     * created if they do not exist. The parent of the znode must exist.
+     *
+     * @param path
+     *         The path.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ShardDispatcher setPath(String path)
+    {
+        mPath = path;
+
+        return this;
+    }
+
+
+    /**
+     * Get the ID of this member.
+     *
+     * @return
+     *         The ID of this member.
+     */
+    public String getMemberId()
+    {
+        return mMemberId;
+    }
+
+
+    /**
+     * Set the ID of this member. The ID must be unique among members
+     * and must be usable as a znode name. If no ID is set when {@link
+     * #start()} is called, a random ID is generated. The ID is used also
+     * as the candidate ID for leader election.
+     *
+     * @param id
+     *         The ID of this member.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ShardDispatcher setMemberId(String id)
+    {
+        mMemberId = id;
+
+        return this;
+    }
+
+
+    /**
+     * Get the number of shards.
+     *
+     * @return
+     *         The number of shards.
+     */
+    public int getShardCount()
+    {
+        return mShardCount;
+    }
+
+
+    /**
+     * Set the number of shards. Shards are identified by numbers from
+     * 0 to {@code count - 1}. All members must use the same value.
+     *
+     * @param count
+     *         The number of shards.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ShardDispatcher setShardCount(int count)
+    {
+        mShardCount = count;
+
+        return this;
+    }
+
+
+    /**
+     * Get the ACL list used for creation of znodes.
+     *
+     * @return
+     *         The ACL list used for creation of znodes.
+     */
+    public List<ACL> getAclList()
+    {
+        return mAclList;
+    }
+
+
+    /**
+     * Set the ACL list used for creation of znodes. If no ACL list is
+     * set when {@link #start()} is called, {@link
+     * ZooDefs.Ids#OPEN_ACL_UNSAFE OPEN_ACL_UNSAFE} is used.
+     *
+     * @param list
+     *         The ACL list used for creation of znodes.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ShardDispatcher setAclList(List<ACL> list)
+    {
+        mAclList = list;
+
+        return this;
+    }
+
+
+    /**
+     * Get the listener.
+     *
+     * @return
+     *         The listener.
+     */
+    public Listener getListener()
+    {
+        return mListener;
+    }
+
+
+    /**
+     * Set a listener.
+     *
+     * @param listener
+     *         A listener.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ShardDispatcher setListener(Listener listener)
+    {
+        mListener = listener;
+
+        return this;
+    }
+
+
+    /**
+     * Get the {@link LeaderElection} instance used by this dispatcher.
+     *
+     * @return
+     *         The {@link LeaderElection} instance, or {@code null}
+     *         if {@link #start()} has not been called.
+     */
+    public LeaderElection getLeaderElection()
+    {
+        return mElection;
+    }
+
+
+    /**
+     * Start dispatching. This member joins the members, runs for the
+     * leader and starts reading its assignment.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalStateException
+     *         <ul>
+     *           <li>No {@link ZooKeeper} instance is set.
+     *           <li>No path is set.
+     *           <li>The number of shards is negative.
+     *           <li>{@code start()} has already been called.
+     *         </ul>
+     */
+    public ShardDispatcher start()
+    {
+        if (mZooKeeper == null)
+        {
+            throw new IllegalStateException("A ZooKeeper instance must be set.");
+        }
+
+        if (mPath == null)
+        {
+            throw new IllegalStateException("A path must be set.");
+        }
+
+        if (mShardCount < 0)
+        {
+            throw new IllegalStateException("The number of shards must not be negative.");
+        }
+
+        synchronized (this)
+        {
+            if (mStarted)
+            {
+                throw new IllegalStateException("start() can be called only once.");
+            }
+
+            mStarted = true;
+        }
+
+        if (mMemberId == null)
+        {
+            mMemberId = String.valueOf(Math.abs(new Random().nextLong()));
+        }
+
+        if (mAclList == null)
+        {
+            mAclList = DEFAULT_ACL_LIST;
+        }
+
+        // Prepare the reader and the election before joining so that
+        // finish() can be called by a failure to join.
+        mReader = new NodeReader()
+            .setZooKeeper(mZooKeeper)
+            .setPath(getAssignmentPath(mMemberId))
+            .setWatching(true)
+            .setListener(new AssignmentListener());
+
+        mElection = new LeaderElection()
+            .setZooKeeper(mZooKeeper)
+            .setPath(mPath + "/leader")
+            .setId(mMemberId)
+            .setAclList(mAclList)
+            .setListener(new ElectionListener());
+
+        // Join the members.
+        join();
+
+        // Read the assignment for this member and follow its changes.
+        mReader.start();
+
+        // Run for the leader who dispatches shards.
+        mElection.start();
+
+        return this;
+    }
+
+
+    /**
+     * Stop dispatching. This member leaves the members so that the
+     * leader reassigns its shards to other members.
+     *
+     * <p>
+     * Note that the znode for leader election is not deleted, i.e. if
+     * this member is the leader, it remains the leader until its session
+     * ends. See {@link LeaderElection#finish()}.
+     * </p>
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public ShardDispatcher finish()
+    {
+        synchronized (this)
+        {
+            mShouldFinish = true;
+            stopLeading();
+
+            if (mStarted == false)
+            {
+                return this;
+            }
+        }
+
+        mElection.finish();
+        mReader.finish();
+
+        // Leave the members.
+        mZooKeeper.delete(getMembersPath() + "/" + mMemberId, -1, mDeleteCallback, null);
+
+        return this;
+    }
+
+
+    /**
+     * Compute a new assignment which moves as few shards as possible.
+     *
+     * <p>
+     * Each member gets either {@code floor(shardCount / members)} or
+     * {@code ceil(shardCount / members)} shards. A member keeps the shards
+     * which it currently has as long as its quota allows, and members which
+     * currently have more shards are given the larger quota first. Only
+     * shards of members which have left and shards exceeding quotas are
+     * moved. The time complexity is O(shardCount + members &times;
+     * log(members)).
+     * </p>
+     *
+     * @param current
+     *         The current assignment. Shards of members which are not in
+     *         {@code members} are regarded as unassigned.
+     *
+     * @param members
+     *         The current members.
+     *
+     * @param shardCount
+     *         The number of shards.
+     *
+     * @return
+     *         A new assignment for each member in {@code members}. Shards
+     *         of each member are sorted in ascending order.
+     */
+    public static Map<String, int[]> rebalance(Map<String, int[]> current, List<String> members, int shardCount)
+    {
+        Map<String, int[]> result = new HashMap<String, int[]>();
+
+        if (members.isEmpty())
+        {
+            return result;
+        }
+
+        boolean[] taken = new boolean[shardCount];
+        final Map<String, List<Integer>> kept = new HashMap<String, List<Integer>>();
+
+        // Collect valid shards which each member currently has.
+        for (String member : members)
+        {
+            List<Integer> shards = new ArrayList<Integer>();
+            int[] old = current.get(member);
+
+            if (old != null)
+            {
+                for (int shard : old)
+                {
+                    if (0 <= shard && shard < shardCount && taken[shard] == false)
+                    {
+                        taken[shard] = true;
+                        shards.add(Integer.valueOf(shard));
+                    }
+                }
+            }
+
+            kept.put(member, shards);
+        }
+
+        // Members which have more shards now get the larger quota first.
+        List<String> sorted = new ArrayList<String>(members);
+        Collections.sort(sorted, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b)
+            {
+                int diff = kept.get(b).size() - kept.get(a).size();
+
+                return (diff != 0) ? diff : a.compareTo(b);
+            }
+        });
+
+        int base  = shardCount / sorted.size();
+        int extra = shardCount % sorted.size();
+        int[] quotas = new int[sorted.size()];
+
+        // Give up shards exceeding the quota.
+        for (int i = 0; i < sorted.size(); ++i)
+        {
+            quotas[i] = base + ((i < extra) ? 1 : 0);
+
+            List<Integer> shards = kept.get(sorted.get(i));
+
+            while (quotas[i] < shards.size())
+            {
+                taken[shards.remove(shards.size() - 1).intValue()] = false;
+            }
+        }
+
+        // Assign unassigned shards to members which have room.
+        int shard = 0;
+
+        for (int i = 0; i < sorted.size(); ++i)
+        {
+            List<Integer> shards = kept.get(sorted.get(i));
+
+            while (shards.size() < quotas[i])
+            {
+                while (taken[shard])
+                {
+                    shard++;
+                }
+
+                taken[shard] = true;
+                shards.add(Integer.valueOf(shard));
+            }
+        }
+
+        for (String member : sorted)
+        {
+            List<Integer> shards = kept.get(member);
+            int[] array = new int[shards.size()];
+
+            for (int i = 0; i < array.length; ++i)
+            {
+                array[i] = shards.get(i).intValue();
+            }
+
+            Arrays.sort(array);
+            result.put(member, array);
+        }
+
+        return result;
+    }
+
+
+    private String getMembersPath()
+    {
+        return mPath + "/members";
+    }
+
+
+    private String getAssignmentsPath()
+    {
+        return mPath + "/assignments";
+    }
+
+
+    private String getAssignmentPath(String memberId)
+    {
+        return getAssignmentsPath() + "/" + memberId;
+    }
+
+
+    private String getMemberId(String assignmentPath)
+    {
+        return assignmentPath.substring(getAssignmentsPath().length() + 1);
+    }
+
+
+    private boolean isLeading()
+    {
+        synchronized (this)
+        {
+            return mLeading && mShouldFinish == false;
+        }
+    }
+
+
+    private void startLeading()
+    {
+        synchronized (this)
+        {
+            if (mLeading || mShouldFinish)
+            {
+                return;
+            }
+
+            mLeading     = true;
+            mAssignments = null;
+            mLoaded      = new HashMap<String, int[]>();
+            mMembers     = null;
+            mLoading     = 0;
+            mTerm++;
+            mGeneration++;
+        }
+
+        readMembers();
+    }
+
+
+    private void stopLeading()
+    {
+        synchronized (this)
+        {
+            mLeading     = false;
+            mAssignments = null;
+            mLoaded      = null;
+            mMembers     = null;
+            mGeneration++;
+        }
+    }
+
+
+    private void readMembers()
+    {
+        if (isLeading() == false)
+        {
+            return;
+        }
+
+        mZooKeeper.getChildren(getMembersPath(), mMembersWatcher, mMembersCallback, null);
+    }
+
+
+    private void onMembers(List<String> members)
+    {
+        Integer term;
+
+        synchronized (this)
+        {
+            if (isLeading() == false)
+            {
+                return;
+            }
+
+            mMembers = members;
+
+            // If the current assignments have been loaded.
+            if (mAssignments != null)
+            {
+                term = null;
+            }
+            else if (mLoaded != null && mLoading == 0 && members.isEmpty() == false)
+            {
+                // Load the current assignments of the members so that
+                // the assignments are kept across leader changes.
+                mLoading = members.size();
+                term = Integer.valueOf(mTerm);
+            }
+            else if (mLoaded != null && mLoading == 0)
+            {
+                // Nothing to load.
+                mAssignments = mLoaded;
+                mLoaded = null;
+                term = null;
+            }
+            else
+            {
+                // Loading is in progress. The latest members are used
+                // when it completes.
+                return;
+            }
+        }
+
+        if (term == null)
+        {
+            dispatch();
+            return;
+        }
+
+        for (String member : members)
+        {
+            mZooKeeper.getData(getAssignmentPath(member), false, mLoadCallback, term);
+        }
+    }
+
+
+    private void onLoaded(Integer term, String member, int[] shards)
+    {
+        synchronized (this)
+        {
+            if (isLeading() == false || term.intValue() != mTerm || mLoaded == null)
+            {
+                // The result is for a previous term.
+                return;
+            }
+
+            if (shards != null)
+            {
+                mLoaded.put(member, shards);
+            }
+
+            if (--mLoading != 0)
+            {
+                return;
+            }
+
+            mAssignments = mLoaded;
+            mLoaded      = null;
+        }
+
+        dispatch();
+    }
+
+
+    private void dispatch()
+    {
+        Map<String, int[]> oldAssignments;
+        Map<String, int[]> newAssignments;
+        List<String> members;
+        int generation;
+
+        synchronized (this)
+        {
+            if (isLeading() == false || mAssignments == null || mMembers == null)
+            {
+                return;
+            }
+
+            oldAssignments = mAssignments;
+            members        = mMembers;
+            newAssignments = rebalance(oldAssignments, members, mShardCount);
+            mAssignments   = newAssignments;
+            generation     = ++mGeneration;
+        }
+
+        // Publish only the assignments which have changed.
+        for (Map.Entry<String, int[]> entry : newAssignments.entrySet())
+        {
+            int[] oldShards = oldAssignments.get(entry.getKey());
+
+            if (oldShards != null && Arrays.equals(oldShards, entry.getValue()))
+            {
+                continue;
+            }
+
+            publish(new Publication(entry.getKey(), entry.getValue(), generation));
+        }
+
+        // Delete the assignments of members which have left.
+        Set<String> memberSet = new HashSet<String>(members);
+
+        for (String member : oldAssignments.keySet())
+        {
+            if (memberSet.contains(member) == false)
+            {
+                mZooKeeper.delete(getAssignmentPath(member), -1, mDeleteCallback, null);
+            }
+        }
+    }
+
+
+    private Publication refresh(Publication publication)
+    {
+        synchronized (this)
+        {
+            if (isLeading() == false || mAssignments == null)
+            {
+                return null;
+            }
+
+            if (publication.mGeneration == mGeneration)
+            {
+                return publication;
+            }
+
+            // A publication of a previous rebalance must not overwrite
+            // a newer assignment. A newer rebalance may have skipped the
+            // member because its assignment did not change, so publish
+            // the latest assignment instead.
+            int[] shards = mAssignments.get(publication.mMember);
+
+            if (shards == null)
+            {
+                // The member has left.
+                return null;
+            }
+
+            return new Publication(publication.mMember, shards, mGeneration);
+        }
+    }
+
+
+    private void publish(Publication publication)
+    {
+        publication = refresh(publication);
+
+        if (publication == null)
+        {
+            return;
+        }
+
+        mZooKeeper.setData(getAssignmentPath(publication.mMember),
+            format(publication.mShards), -1, mPublishCallback, publication);
+    }
+
+
+    private void create(Publication publication)
+    {
+        publication = refresh(publication);
+
+        if (publication == null)
+        {
+            return;
+        }
+
+        mZooKeeper.create(getAssignmentPath(publication.mMember),
+            format(publication.mShards), mAclList, CreateMode.PERSISTENT, mCreateCallback, publication);
+    }
+
+
+    private void publishLater(final Publication publication)
+    {
+        if (isLeading() == false)
+        {
+            return;
+        }
+
+        // Do not retry at once. The connection may be down.
+        DaemonScheduler.getShared().schedule(new Runnable() {
+            @Override
+            public void run()
+            {
+                publish(publication);
+            }
+        }, RETRY_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+
+    private void join()
+    {
+        // Issue the requests in the lock so that they are not sent
+        // after the member znode is deleted by finish().
+        synchronized (this)
+        {
+            if (mShouldFinish)
+            {
+                return;
+            }
+
+            // Create the znodes used by this class. Requests of a session
+            // are executed in order, so the parents are created before the
+            // member znode below even though the results are not waited for.
+            mZooKeeper.create(mPath, null, mAclList, CreateMode.PERSISTENT, mIgnoreCallback, null);
+            mZooKeeper.create(getMembersPath(), null, mAclList, CreateMode.PERSISTENT, mIgnoreCallback, null);
+            mZooKeeper.create(getAssignmentsPath(), null, mAclList, CreateMode.PERSISTENT, mIgnoreCallback, null);
+
+            mZooKeeper.create(getMembersPath() + "/" + mMemberId, null, mAclList,
+                CreateMode.EPHEMERAL, mJoinCallback, null);
+        }
+    }
+
+
+    private void joinLater()
+    {
+        // Do not retry at once. The connection may be down.
+        DaemonScheduler.getShared().schedule(new Runnable() {
+            @Override
+            public void run()
+            {
+                join();
+            }
+        }, RETRY_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+
+    private static byte[] format(int[] shards)
+    {
+        StringBuilder builder = new StringBuilder(shards.length * 5);
+
+        for (int i = 0; i < shards.length; ++i)
+        {
+            if (i != 0)
+            {
+                builder.append(',');
+            }
+
+            builder.append(shards[i]);
+        }
+
+        try
+        {
+            return builder.toString().getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // This never happens.
+            return null;
+        }
+    }
+
+
+    private static int[] parse(byte[] data)
+    {
+        if (data == null || data.length == 0)
+        {
+            return NO_SHARDS;
+        }
+
+        String string;
+
+        try
+        {
+            string = new String(data, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // This never happens.
+            return NO_SHARDS;
+        }
+
+        String[] elements = string.split(",");
+        int[] shards = new int[elements.length];
+        int count = 0;
+
+        for (String element : elements)
+        {
+            try
+            {
+                shards[count] = Integer.parseInt(element.trim());
+                count++;
+            }
+            catch (NumberFormatException e)
+            {
+                // Ignore the broken element.
+            }
+        }
+
+        if (count == shards.length)
+        {
+            return shards;
+        }
+
+        int[] valid = new int[count];
+        System.arraycopy(shards, 0, valid, 0, count);
+
+        return valid;
+    }
+
+
+    private void callOnAssigned(int[] shards)
+    {
+        if (mListener == null)
+        {
+            return;
+        }
+
+        try
+        {
+            mListener.onAssigned(this, shards);
+        }
+        catch (RuntimeException e)
+        {
+            // Ignore.
+        }
+    }
+
+
+    private void callOnGaveUp()
+    {
+        if (mListener == null)
+        {
+            return;
+        }
+
+        try
+        {
+            mListener.onGaveUp(this);
+        }
+        catch (RuntimeException e)
+        {
+            // Ignore.
+        }
+    }
+
+
+    private class ElectionListener extends LeaderElection.Adapter
+    {
+        @Override
+        public void onWin(LeaderElection election)
+        {
+            startLeading();
+        }
+
+
+        @Override
+        public void onLose(LeaderElection election)
+        {
+            stopLeading();
+        }
+
+
+        @Override
+        public void onVacant(LeaderElection election)
+        {
+            stopLeading();
+        }
+
+
+        @Override
+        public void onFinish(LeaderElection election)
+        {
+            stopLeading();
+        }
+    }
+
+
+    private class AssignmentListener extends NodeReader.Adapter
+    {
+        @Override
+        public void onRead(NodeReader reader, byte[] data, Stat stat)
+        {
+            callOnAssigned(parse(data));
+        }
+    }
+
+
+    private class MembersWatcher implements Watcher
+    {
+        @Override
+        public void process(WatchedEvent event)
+        {
+            if (event.getType() == EventType.NodeChildrenChanged ||
+                event.getType() == EventType.NodeCreated)
+            {
+                // Members have joined or left.
+                readMembers();
+            }
+        }
+    }
+
+
+    private class MembersCallback implements ChildrenCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<String> children)
+        {
+            switch (Code.get(rc))
+            {
+                case OK:
+                    onMembers(children);
+                    return;
+
+                case NONODE:
+                    // Nobody has joined yet. Wait for the first member.
+                    mZooKeeper.exists(path, mMembersWatcher, null, null);
+                    return;
+
+                default:
+                    // Retry to read the members.
+                    readMembers();
+                    return;
+            }
+        }
+    }
+
+
+    private class LoadCallback implements DataCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat)
+        {
+            switch (Code.get(rc))
+            {
+                case OK:
+                    onLoaded((Integer)ctx, getMemberId(path), parse(data));
+                    return;
+
+                case NONODE:
+                    // The member has no assignment yet.
+                    onLoaded((Integer)ctx, getMemberId(path), null);
+                    return;
+
+                default:
+                    if (isLeading())
+                    {
+                        // Retry to load the assignment.
+                        mZooKeeper.getData(path, false, this, ctx);
+                    }
+                    return;
+            }
+        }
+    }
+
+
+    private class PublishCallback implements StatCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat)
+        {
+            switch (Code.get(rc))
+            {
+                case OK:
+                    return;
+
+                case NONODE:
+                    // The assignment znode does not exist yet.
+                    create((Publication)ctx);
+                    return;
+
+                default:
+                    // Retry to publish the assignment later.
+                    publishLater((Publication)ctx);
+                    return;
+            }
+        }
+    }
+
+
+    private class CreateCallback implements StringCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, String name)
+        {
+            switch (Code.get(rc))
+            {
+                case OK:
+                    return;
+
+                case NODEEXISTS:
+                    // Created after setData() failed. Overwrite it.
+                    publish((Publication)ctx);
+                    return;
+
+                default:
+                    // Retry to publish the assignment later.
+                    publishLater((Publication)ctx);
+                    return;
+            }
+        }
+    }
+
+
+    /**
+     * Assignment of a member computed by a rebalance.
+     */
+    private static final class Publication
+    {
+        private final String mMember;
+        private final int[] mShards;
+        private final int mGeneration;
+
+
+        Publication(String member, int[] shards, int generation)
+        {
+            mMember     = member;
+            mShards     = shards;
+            mGeneration = generation;
+        }
+    }
+
+
+    private class IgnoreCallback implements StringCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, String name)
+        {
+            // A failure to create a parent is reported by the creation
+            // of the member znode, which is requested after it.
+        }
+    }
+
+
+    private class JoinCallback implements StringCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, String name)
+        {
+            switch (Code.get(rc))
+            {
+                case OK:
+                case NODEEXISTS:
+                    // Joined. The member znode may have been created by
+                    // a request whose response was lost.
+                    return;
+
+                case CONNECTIONLOSS:
+                case OPERATIONTIMEOUT:
+                    // Retry to join later.
+                    joinLater();
+                    return;
+
+                default:
+                    synchronized (ShardDispatcher.this)
+                    {
+                        if (mShouldFinish)
+                        {
+                            // Failed because finish() has been called.
+                            return;
+                        }
+                    }
+
+                    // This member cannot join the members.
+                    finish();
+                    callOnGaveUp();
+                    return;
+            }
+        }
+    }
+
+
+    private class DeleteCallback implements VoidCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx)
+        {
+            // The znode has been deleted or does not exist.
+        }
+    }
+}
@@ -0,0 +1,556 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedList;
+import java.util.List;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.common.PathUtils;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Exporter of a znode subtree into a snapshot.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * FileChannel channel = <span style="color: purple; font-weight: bold;">new</span> FileOutputStream(<span style="color: mediumblue;">"config.snapshot"</span>).getChannel();
+ *
+ * <span style="color: darkgreen;">// Export "/config" and its descendants.</span>
+ * <span style="color: purple; font-weight: bold;">long</span> count = <span style="color: purple; font-weight: bold;">new</span> SnapshotExporter()
+ *     .{@link #setZooKeeper(ZooKeeper) setZooKeeper}(zooKeeper)
+ *     .{@link #setPath(String) setPath}(<span style="color: mediumblue;">"/config"</span>)
+ *     .{@link #export(WritableByteChannel) export}(channel);
+ * </pre>
+ *
+ * <p>
+ * The path, the data and the {@link Stat} of each znode are written.
+ * Znodes are read by asynchronous {@link ZooKeeper#getData(String,
+ * boolean, DataCallback, Object) getData()} and {@link
+ * ZooKeeper#getChildren(String, boolean, ChildrenCallback, Object)
+ * getChildren()}, and up to {@link #setWindow(int) window} znodes are
+ * read at the same time. Each record is written to the channel as soon
+ * as it is read, so memory usage does not depend on the total size of
+ * the subtree. The subtree is not read atomically; znodes modified
+ * during export are exported as they are seen.
+ * </p>
+ *
+ * <p>
+ * When the root is {@code "/"}, the {@code "/zookeeper"} subtree
+ * which is managed by ZooKeeper itself is not exported.
+ * </p>
+ *
+ * @since 1.3
+ *
+ * @see SnapshotImporter
+ */
+public class SnapshotExporter
+{
+    private static final int DEFAULT_WINDOW = 100;
+    private static final String SYSTEM_PATH = "/zookeeper";
+
+
+    private final Object mLock = new Object();
+    private final DataCallback mDataCallback = new ExportDataCallback();
+    private final ChildrenCallback mChildrenCallback = new ExportChildrenCallback();
+    private ZooKeeper mZooKeeper;
+    private String mPath;
+    private int mWindow = DEFAULT_WINDOW;
+
+    // Variables used during export. Guarded by mLock.
+    private LinkedList<String> mPending;
+    private int mInFlight;
+    private long mCount;
+    private Code mErrorCode;
+    private String mErrorPath;
+    private IOException mIOException;
+
+    // Accessed only from the event thread of ZooKeeper while exporting.
+    private SnapshotFormat.Writer mWriter;
+
+
+    public SnapshotExporter()
+    {
+    }
+
+
+    public SnapshotExporter(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+    }
+
+
+    /**
+     * Get the {@link ZooKeeper} instance to read znodes.
+     *
+     * @return
+     *         The {@link ZooKeeper} instance.
+     */
+    public ZooKeeper getZooKeeper()
+    {
+        return mZooKeeper;
+    }
+
+
+    /**
+     * Set the {@link ZooKeeper} instance to read znodes.
+     *
+     * @param zooKeeper
+     *         A {@link ZooKeeper} instance.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public SnapshotExporter setZooKeeper(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+
+        return this;
+    }
+
+
+    /**
+     * Get the path of the root of the subtree to export.
+     *
+     * @return
+     *         The path of the root of the subtree.
+     */
+    public String getPath()
+    {
+        return mPath;
+    }
+
+
+    /**
+     * Set the path of the root of the subtree to export.
+     *
+     * @param path
+     *         The path of the root of the subtree.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public SnapshotExporter setPath(String path)
+    {
+        mPath = path;
+
+        return this;
+    }
+
+
+    /**
+     * Get the maximum number of znodes read at the same time.
+     *
+     * @return
+     *         The maximum number of znodes read at the same time.
+     */
+    public int getWindow()
+    {
+        return mWindow;
+    }
+
+
+    /**
+     * Set the maximum number of znodes read at the same time.
+     * The default value is 100.
+     *
+     * @param window
+     *         The maximum number of znodes read at the same time.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalArgumentException
+     *         {@code window} is not positive.
+     */
+    public SnapshotExporter setWindow(int window)
+    {
+        if (window <= 0)
+        {
+            throw new IllegalArgumentException("The window must be positive.");
+        }
+
+        mWindow = window;
+
+        return this;
+    }
+
+
+    /**
+     * Export the subtree. The channel is not closed by this method.
+     * This method must not be called on the event thread of the
+     * {@link ZooKeeper} instance.
+     *
+     * @param channel
+     *         The channel to write the snapshot to.
+     *
+     * @return
+     *         The number of exported znodes.
+     *
+     * @throws IOException
+     *         Failed to write the snapshot.
+     *
+     * @throws KeeperException
+     *         Failed to read a znode. {@link KeeperException#getPath()}
+     *         returns the path of the znode. {@link
+     *         KeeperException.NoNodeException NoNodeException} is thrown
+     *         when the root does not exist.
+     *
+     * @throws InterruptedException
+     *         Interrupted while waiting for ZooKeeper.
+     *
+     * @throws IllegalStateException
+     *         <ul>
+     *           <li>No {@link ZooKeeper} instance is set.
+     *           <li>No path is set.
+     *         </ul>
+     *
+     * @throws IllegalArgumentException
+     *         The path is invalid.
+     */
+    public long export(WritableByteChannel channel) throws IOException, KeeperException, InterruptedException
+    {
+        if (mZooKeeper == null)
+        {
+            throw new IllegalStateException("A ZooKeeper instance must be set.");
+        }
+
+        if (mPath == null)
+        {
+            throw new IllegalStateException("A path must be set.");
+        }
+
+        // Throw before any request is sent.
+        PathUtils.validatePath(mPath);
+
+        mWriter = new SnapshotFormat.Writer(channel);
+
+        synchronized (mLock)
+        {
+            mPending     = new LinkedList<String>();
+            mInFlight    = 0;
+            mCount       = 0;
+            mErrorCode   = null;
+            mErrorPath   = null;
+            mIOException = null;
+
+            mPending.add(mPath);
+        }
+
+        try
+        {
+            while (true)
+            {
+                String path = nextPath();
+
+                if (path == null)
+                {
+                    break;
+                }
+
+                try
+                {
+                    mZooKeeper.getData(path, false, mDataCallback, null);
+                }
+                catch (RuntimeException e)
+                {
+                    // No callback will return the slot.
+                    releaseSlot();
+                    throw e;
+                }
+            }
+        }
+        finally
+        {
+            // Wait for callbacks in progress so that nothing is written
+            // into the channel after this method returns.
+            awaitCallbacks();
+        }
+
+        synchronized (mLock)
+        {
+            if (mIOException != null)
+            {
+                throw mIOException;
+            }
+
+            if (mErrorCode != null)
+            {
+                throw KeeperException.create(mErrorCode, mErrorPath);
+            }
+        }
+
+        mWriter.close();
+        mWriter = null;
+
+        synchronized (mLock)
+        {
+            return mCount;
+        }
+    }
+
+
+    private String nextPath() throws InterruptedException
+    {
+        synchronized (mLock)
+        {
+            while (true)
+            {
+                if (mErrorCode != null || mIOException != null)
+                {
+                    return null;
+                }
+
+                if (mPending.isEmpty())
+                {
+                    if (mInFlight == 0)
+                    {
+                        // Exported all.
+                        return null;
+                    }
+                }
+                else if (mInFlight < mWindow)
+                {
+                    mInFlight++;
+
+                    // Depth-first so that the pending list stays small.
+                    return mPending.removeLast();
+                }
+
+                mLock.wait();
+            }
+        }
+    }
+
+
+    private void awaitCallbacks() throws InterruptedException
+    {
+        synchronized (mLock)
+        {
+            while (0 < mInFlight)
+            {
+                mLock.wait();
+            }
+        }
+    }
+
+
+    private void releaseSlot()
+    {
+        synchronized (mLock)
+        {
+            mInFlight--;
+            mLock.notifyAll();
+        }
+    }
+
+
+    private void complete(List<String> children, String parent)
+    {
+        synchronized (mLock)
+        {
+            if (children != null)
+            {
+                for (String child : children)
+                {
+                    String path = parent.equals("/") ? "/" + child : parent + "/" + child;
+
+                    if (mPath.equals("/") && path.equals(SYSTEM_PATH))
+                    {
+                        // Skip the subtree managed by ZooKeeper itself.
+                        continue;
+                    }
+
+                    mPending.add(path);
+                }
+            }
+
+            mInFlight--;
+            mLock.notifyAll();
+        }
+    }
+
+
+    private void fail(Code code, String path, IOException exception)
+    {
+        synchronized (mLock)
+        {
+            if (mErrorCode == null && mIOException == null)
+            {
+                mErrorCode   = code;
+                mErrorPath   = path;
+                mIOException = exception;
+            }
+
+            mInFlight--;
+            mLock.notifyAll();
+        }
+    }
+
+
+    private boolean hasFailed()
+    {
+        synchronized (mLock)
+        {
+            return mErrorCode != null || mIOException != null;
+        }
+    }
+
+
+    private boolean isClosed()
+    {
+        switch (mZooKeeper.getState())
+        {
+            case AUTH_FAILED:
+            case CLOSED:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+
+    private String getRelativePath(String path)
+    {
+        if (mPath.equals("/"))
+        {
+            return path.equals("/") ? "" : path;
+        }
+
+        return path.substring(mPath.length());
+    }
+
+
+    private class ExportDataCallback implements DataCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat)
+        {
+            if (hasFailed())
+            {
+                complete(null, path);
+                return;
+            }
+
+            switch (Code.get(rc))
+            {
+                case OK:
+                    // Write the record and then read the children.
+                    write(path, data, stat);
+                    return;
+
+                case NONODE:
+                    if (path.equals(mPath))
+                    {
+                        // The root does not exist.
+                        fail(Code.NONODE, path, null);
+                    }
+                    else
+                    {
+                        // The znode was deleted after its parent was read.
+                        complete(null, path);
+                    }
+                    return;
+
+                case CONNECTIONLOSS:
+                case OPERATIONTIMEOUT:
+                    if (isClosed())
+                    {
+                        fail(Code.get(rc), path, null);
+                        return;
+                    }
+
+                    // Retry to read the znode.
+                    mZooKeeper.getData(path, false, this, null);
+                    return;
+
+                default:
+                    fail(Code.get(rc), path, null);
+                    return;
+            }
+        }
+
+
+        private void write(String path, byte[] data, Stat stat)
+        {
+            try
+            {
+                mWriter.write(getRelativePath(path), stat, data);
+            }
+            catch (IOException e)
+            {
+                fail(null, path, e);
+                return;
+            }
+
+            synchronized (mLock)
+            {
+                mCount++;
+            }
+
+            mZooKeeper.getChildren(path, false, mChildrenCallback, null);
+        }
+    }
+
+
+    private class ExportChildrenCallback implements ChildrenCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<String> children)
+        {
+            if (hasFailed())
+            {
+                complete(null, path);
+                return;
+            }
+
+            switch (Code.get(rc))
+            {
+                case OK:
+                    complete(children, path);
+                    return;
+
+                case NONODE:
+                    // The znode was deleted after it was read.
+                    complete(null, path);
+                    return;
+
+                case CONNECTIONLOSS:
+                case OPERATIONTIMEOUT:
+                    if (isClosed())
+                    {
+                        fail(Code.get(rc), path, null);
+                        return;
+                    }
+
+                    // Retry to read the children.
+                    mZooKeeper.getChildren(path, false, this, null);
+                    return;
+
+                default:
+                    fail(Code.get(rc), path, null);
+                    return;
+            }
+        }
+    }
+}
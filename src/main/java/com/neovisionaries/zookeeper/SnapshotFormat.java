@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Binary format of a snapshot of a znode subtree.
+ *
+ * <pre style="margin: 1em;">
+ * snapshot = magic ("NVZS", 4 bytes) format (int) *record end
+ * record   = path-length (int) path (UTF-8) stat data-length (int) data
+ * stat     = czxid (long) mzxid (long) ctime (long) mtime (long)
+ *            version (int) cversion (int) aversion (int)
+ *            ephemeralOwner (long) dataLength (int) numChildren (int)
+ *            pzxid (long)
+ * end      = -1 (int)
+ * </pre>
+ *
+ * <p>
+ * A path is relative to the root of the exported subtree, i.e. the
+ * path of the root itself is an empty string. A data length of -1
+ * means that the data is {@code null}. A record of a znode always
+ * precedes records of its descendants.
+ * </p>
+ *
+ * @see SnapshotExporter
+ * @see SnapshotImporter
+ */
+final class SnapshotFormat
+{
+    private static final int MAGIC = 0x4E565A53;   // "NVZS"
+    private static final int FORMAT = 1;
+    private static final int END = -1;
+    private static final int STAT_LENGTH = 8 * 6 + 4 * 5;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+
+    private SnapshotFormat()
+    {
+    }
+
+
+    /**
+     * A record of a znode.
+     */
+    static final class Record
+    {
+        final String path;
+        final Stat stat;
+        final byte[] data;
+
+
+        Record(String path, Stat stat, byte[] data)
+        {
+            this.path = path;
+            this.stat = stat;
+            this.data = data;
+        }
+    }
+
+
+    /**
+     * Writer of a snapshot. Not thread-safe.
+     */
+    static final class Writer
+    {
+        private final WritableByteChannel mChannel;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+
+        Writer(WritableByteChannel channel) throws IOException
+        {
+            mChannel = channel;
+
+            mBuffer.putInt(MAGIC);
+            mBuffer.putInt(FORMAT);
+        }
+
+
+        void write(String path, Stat stat, byte[] data) throws IOException
+        {
+            byte[] pathBytes = getBytes(path);
+
+            reserve(4 + pathBytes.length + STAT_LENGTH + 4);
+
+            mBuffer.putInt(pathBytes.length);
+            mBuffer.put(pathBytes);
+            mBuffer.putLong(stat.getCzxid());
+            mBuffer.putLong(stat.getMzxid());
+            mBuffer.putLong(stat.getCtime());
+            mBuffer.putLong(stat.getMtime());
+            mBuffer.putInt(stat.getVersion());
+            mBuffer.putInt(stat.getCversion());
+            mBuffer.putInt(stat.getAversion());
+            mBuffer.putLong(stat.getEphemeralOwner());
+            mBuffer.putInt(stat.getDataLength());
+            mBuffer.putInt(stat.getNumChildren());
+            mBuffer.putLong(stat.getPzxid());
+
+            if (data == null)
+            {
+                mBuffer.putInt(-1);
+                return;
+            }
+
+            mBuffer.putInt(data.length);
+
+            if (data.length <= mBuffer.remaining())
+            {
+                mBuffer.put(data);
+                return;
+            }
+
+            // The data is too large to be buffered. Write it directly.
+            flush();
+            writeFully(ByteBuffer.wrap(data));
+        }
+
+
+        void close() throws IOException
+        {
+            reserve(4);
+            mBuffer.putInt(END);
+            flush();
+        }
+
+
+        private void reserve(int length) throws IOException
+        {
+            if (mBuffer.remaining() < length)
+            {
+                flush();
+            }
+
+            if (mBuffer.remaining() < length)
+            {
+                throw new IOException("A path is too long.");
+            }
+        }
+
+
+        private void flush() throws IOException
+        {
+            mBuffer.flip();
+            writeFully(mBuffer);
+            mBuffer.clear();
+        }
+
+
+        private void writeFully(ByteBuffer buffer) throws IOException
+        {
+            while (buffer.hasRemaining())
+            {
+                mChannel.write(buffer);
+            }
+        }
+    }
+
+
+    /**
+     * Reader of a snapshot. Not thread-safe.
+     */
+    static final class Reader
+    {
+        private final ReadableByteChannel mChannel;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+
+        Reader(ReadableByteChannel channel) throws IOException
+        {
+            mChannel = channel;
+
+            // Nothing has been read yet.
+            mBuffer.flip();
+
+            require(8);
+
+            if (mBuffer.getInt() != MAGIC || mBuffer.getInt() != FORMAT)
+            {
+                throw new IOException("The data is not a snapshot of znodes.");
+            }
+        }
+
+
+        /**
+         * Read the next record.
+         *
+         * @return
+         *         The next record, or {@code null} if the end is reached.
+         */
+        Record read() throws IOException
+        {
+            require(4);
+
+            int pathLength = mBuffer.getInt();
+
+            if (pathLength == END)
+            {
+                return null;
+            }
+
+            if (pathLength < 0 || BUFFER_SIZE - 4 - STAT_LENGTH < pathLength)
+            {
+                throw new IOException("The snapshot is broken.");
+            }
+
+            require(pathLength + STAT_LENGTH + 4);
+
+            byte[] pathBytes = new byte[pathLength];
+            mBuffer.get(pathBytes);
+
+            Stat stat = new Stat(
+                mBuffer.getLong(),    // czxid
+                mBuffer.getLong(),    // mzxid
+                mBuffer.getLong(),    // ctime
+                mBuffer.getLong(),    // mtime
+                mBuffer.getInt(),     // version
+                mBuffer.getInt(),     // cversion
+                mBuffer.getInt(),     // aversion
+                mBuffer.getLong(),    // ephemeralOwner
+                mBuffer.getInt(),     // dataLength
+                mBuffer.getInt(),     // numChildren
+                mBuffer.getLong());   // pzxid
+
+            int dataLength = mBuffer.getInt();
+            byte[] data = null;
+
+            if (dataLength < -1)
+            {
+                throw new IOException("The snapshot is broken.");
+            }
+
+            if (0 <= dataLength)
+            {
+                data = new byte[dataLength];
+                readFully(data);
+            }
+
+            return new Record(newString(pathBytes), stat, data);
+        }
+
+
+        private void require(int length) throws IOException
+        {
+            if (length <= mBuffer.remaining())
+            {
+                return;
+            }
+
+            mBuffer.compact();
+
+            while (mBuffer.position() < length)
+            {
+                if (mChannel.read(mBuffer) < 0)
+                {
+                    throw new EOFException("The snapshot is truncated.");
+                }
+            }
+
+            mBuffer.flip();
+        }
+
+
+        private void readFully(byte[] data) throws IOException
+        {
+            int buffered = Math.min(data.length, mBuffer.remaining());
+
+            mBuffer.get(data, 0, buffered);
+
+            ByteBuffer rest = ByteBuffer.wrap(data, buffered, data.length - buffered);
+
+            while (rest.hasRemaining())
+            {
+                if (mChannel.read(rest) < 0)
+                {
+                    throw new EOFException("The snapshot is truncated.");
+                }
+            }
+        }
+    }
+
+
+    private static byte[] getBytes(String string)
+    {
+        try
+        {
+            return string.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // This never happens.
+            return null;
+        }
+    }
+
+
+    private static String newString(byte[] bytes)
+    {
+        try
+        {
+            return new String(bytes, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // This never happens.
+            return null;
+        }
+    }
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.common.PathUtils;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Importer of a snapshot written by {@link SnapshotExporter}.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * FileChannel channel = <span style="color: purple; font-weight: bold;">new</span> FileInputStream(<span style="color: mediumblue;">"config.snapshot"</span>).getChannel();
+ *
+ * <span style="color: darkgreen;">// Restore the snapshot under "/config".</span>
+ * <span style="color: purple; font-weight: bold;">long</span> count = <span style="color: purple; font-weight: bold;">new</span> SnapshotImporter()
+ *     .{@link #setZooKeeper(ZooKeeper) setZooKeeper}(zooKeeper)
+ *     .{@link #setPath(String) setPath}(<span style="color: mediumblue;">"/config"</span>)
+ *     .{@link #importSnapshot(ReadableByteChannel) importSnapshot}(channel);
+ * </pre>
+ *
+ * <p>
+ * Each znode in the snapshot is created by asynchronous {@link
+ * ZooKeeper#create(String, byte[], List, CreateMode, StringCallback, Object)
+ * create()}. If the znode already exists, its data is overwritten by
+ * asynchronous {@link ZooKeeper#setData(String, byte[], int, StatCallback,
+ * Object) setData()}. Up to {@link #setWindow(int) window} requests are
+ * in flight at the same time, and records are read from the channel only
+ * as fast as the requests complete, so memory usage does not depend on
+ * the size of the snapshot. Because ZooKeeper executes requests of a
+ * session in order and a record of a znode always precedes records of its
+ * descendants in a snapshot, a parent znode is always created before its
+ * children even though requests are pipelined.
+ * </p>
+ *
+ * <p>
+ * Znodes which were ephemeral when exported are not imported because
+ * they belonged to sessions which no longer exist. Znodes in the target
+ * subtree which are not contained in the snapshot are left as they are.
+ * </p>
+ *
+ * @since 1.3
+ *
+ * @see SnapshotExporter
+ */
+public class SnapshotImporter
+{
+    private static final int DEFAULT_WINDOW = 100;
+    private static final List<ACL> DEFAULT_ACL_LIST = ZooDefs.Ids.OPEN_ACL_UNSAFE;
+
+
+    private final Object mLock = new Object();
+    private final StringCallback mCreateCallback = new ImportCreateCallback();
+    private final StatCallback mSetDataCallback = new ImportSetDataCallback();
+    private ZooKeeper mZooKeeper;
+    private String mPath;
+    private List<ACL> mAclList = DEFAULT_ACL_LIST;
+    private int mWindow = DEFAULT_WINDOW;
+
+    // Variables used during import. Guarded by mLock.
+    private int mInFlight;
+    private long mCount;
+    private Code mErrorCode;
+    private String mErrorPath;
+
+
+    public SnapshotImporter()
+    {
+    }
+
+
+    public SnapshotImporter(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+    }
+
+
+    /**
+     * Get the {@link ZooKeeper} instance to write znodes.
+     *
+     * @return
+     *         The {@link ZooKeeper} instance.
+     */
+    public ZooKeeper getZooKeeper()
+    {
+        return mZooKeeper;
+    }
+
+
+    /**
+     * Set the {@link ZooKeeper} instance to write znodes.
+     *
+     * @param zooKeeper
+     *         A {@link ZooKeeper} instance.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public SnapshotImporter setZooKeeper(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+
+        return this;
+    }
+
+
+    /**
+     * Get the path under which the snapshot is imported.
+     *
+     * @return
+     *         The path of the root of the target subtree.
+     */
+    public String getPath()
+    {
+        return mPath;
+    }
+
+
+    /**
+     * Set the path under which the snapshot is imported. The root of
+     * the snapshot is imported as this path. The parent of the path
+     * must exist. The path may differ from the one used for export.
+     *
+     * @param path
+     *         The path of the root of the target subtree.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public SnapshotImporter setPath(String path)
+    {
+        mPath = path;
+
+        return this;
+    }
+
+
+    /**
+     * Get the ACL list used for creation of znodes.
+     *
+     * @return
+     *         The ACL list used for creation of znodes.
+     */
+    public List<ACL> getAclList()
+    {
+        return mAclList;
+    }
+
+
+    /**
+     * Set the ACL list used for creation of znodes. The default
+     * value is {@link ZooDefs.Ids#OPEN_ACL_UNSAFE OPEN_ACL_UNSAFE}.
+     *
+     * @param list
+     *         The ACL list used for creation of znodes.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public SnapshotImporter setAclList(List<ACL> list)
+    {
+        mAclList = list;
+
+        return this;
+    }
+
+
+    /**
+     * Get the maximum number of requests in flight at the same time.
+     *
+     * @return
+     *         The maximum number of requests in flight.
+     */
+    public int getWindow()
+    {
+        return mWindow;
+    }
+
+
+    /**
+     * Set the maximum number of requests in flight at the same time.
+     * The default value is 100.
+     *
+     * @param window
+     *         The maximum number of requests in flight.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalArgumentException
+     *         {@code window} is not positive.
+     */
+    public SnapshotImporter setWindow(int window)
+    {
+        if (window <= 0)
+        {
+            throw new IllegalArgumentException("The window must be positive.");
+        }
+
+        mWindow = window;
+
+        return this;
+    }
+
+
+    /**
+     * Import a snapshot. The channel is not closed by this method.
+     * This method must not be called on the event thread of the
+     * {@link ZooKeeper} instance.
+     *
+     * @param channel
+     *         The channel to read the snapshot from.
+     *
+     * @return
+     *         The number of imported znodes.
+     *
+     * @throws IOException
+     *         Failed to read the snapshot, or the snapshot is broken.
+     *
+     * @throws KeeperException
+     *         Failed to write a znode. {@link KeeperException#getPath()}
+     *         returns the path of the znode. Znodes whose requests had
+     *         been sent before the failure may have been written.
+     *
+     * @throws InterruptedException
+     *         Interrupted while waiting for ZooKeeper.
+     *
+     * @throws IllegalStateException
+     *         <ul>
+     *           <li>No {@link ZooKeeper} instance is set.
+     *           <li>No path is set.
+     *         </ul>
+     *
+     * @throws IllegalArgumentException
+     *         The path or a path in the snapshot is invalid.
+     */
+    public long importSnapshot(ReadableByteChannel channel) throws IOException, KeeperException, InterruptedException
+    {
+        if (mZooKeeper == null)
+        {
+            throw new IllegalStateException("A ZooKeeper instance must be set.");
+        }
+
+        if (mPath == null)
+        {
+            throw new IllegalStateException("A path must be set.");
+        }
+
+        // Throw before any request is sent.
+        PathUtils.validatePath(mPath);
+
+        synchronized (mLock)
+        {
+            mInFlight  = 0;
+            mCount     = 0;
+            mErrorCode = null;
+            mErrorPath = null;
+        }
+
+        SnapshotFormat.Reader reader = new SnapshotFormat.Reader(channel);
+
+        try
+        {
+            while (true)
+            {
+                SnapshotFormat.Record record = reader.read();
+
+                if (record == null)
+                {
+                    break;
+                }
+
+                if (record.stat.getEphemeralOwner() != 0)
+                {
+                    // Skip the ephemeral znode.
+                    continue;
+                }
+
+                if (acquire() == false)
+                {
+                    // Failed to write a znode.
+                    break;
+                }
+
+                try
+                {
+                    create(getAbsolutePath(record.path), record.data);
+                }
+                catch (RuntimeException e)
+                {
+                    // E.g. an invalid path in the snapshot. No callback
+                    // will return the slot.
+                    releaseSlot();
+                    throw e;
+                }
+            }
+        }
+        finally
+        {
+            // Wait for all the requests to complete.
+            awaitCallbacks();
+        }
+
+        synchronized (mLock)
+        {
+            if (mErrorCode != null)
+            {
+                throw KeeperException.create(mErrorCode, mErrorPath);
+            }
+
+            return mCount;
+        }
+    }
+
+
+    private String getAbsolutePath(String relativePath)
+    {
+        if (relativePath.length() == 0)
+        {
+            return mPath;
+        }
+
+        return mPath.equals("/") ? relativePath : mPath + relativePath;
+    }
+
+
+    private void create(String path, byte[] data)
+    {
+        mZooKeeper.create(path, data, mAclList, CreateMode.PERSISTENT, mCreateCallback, data);
+    }
+
+
+    private void setData(String path, byte[] data)
+    {
+        mZooKeeper.setData(path, data, -1, mSetDataCallback, data);
+    }
+
+
+    private boolean acquire() throws InterruptedException
+    {
+        synchronized (mLock)
+        {
+            while (mErrorCode == null && mWindow <= mInFlight)
+            {
+                mLock.wait();
+            }
+
+            if (mErrorCode != null)
+            {
+                return false;
+            }
+
+            mInFlight++;
+
+            return true;
+        }
+    }
+
+
+    private void awaitCallbacks() throws InterruptedException
+    {
+        synchronized (mLock)
+        {
+            while (0 < mInFlight)
+            {
+                mLock.wait();
+            }
+        }
+    }
+
+
+    private void releaseSlot()
+    {
+        synchronized (mLock)
+        {
+            mInFlight--;
+            mLock.notifyAll();
+        }
+    }
+
+
+    private void complete(Code errorCode, String path)
+    {
+        synchronized (mLock)
+        {
+            if (errorCode == null)
+            {
+                mCount++;
+            }
+            else if (mErrorCode == null)
+            {
+                mErrorCode = errorCode;
+                mErrorPath = path;
+            }
+
+            mInFlight--;
+            mLock.notifyAll();
+        }
+    }
+
+
+    private boolean shouldRetry(Code code)
+    {
+        switch (code)
+        {
+            case CONNECTIONLOSS:
+            case OPERATIONTIMEOUT:
+                break;
+
+            default:
+                return false;
+        }
+
+        switch (mZooKeeper.getState())
+        {
+            case AUTH_FAILED:
+            case CLOSED:
+                return false;
+
+            default:
+                return true;
+        }
+    }
+
+
+    private class ImportCreateCallback implements StringCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, String name)
+        {
+            Code code = Code.get(rc);
+
+            switch (code)
+            {
+                case OK:
+                    complete(null, path);
+                    return;
+
+                case NODEEXISTS:
+                    // Overwrite the data of the existing znode.
+                    setData(path, (byte[])ctx);
+                    return;
+
+                default:
+                    if (shouldRetry(code))
+                    {
+                        // The znode may have been created. In that case,
+                        // the retry results in NODEEXISTS and setData().
+                        create(path, (byte[])ctx);
+                    }
+                    else
+                    {
+                        complete(code, path);
+                    }
+                    return;
+            }
+        }
+    }
+
+
+    private class ImportSetDataCallback implements StatCallback
+    {
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat)
+        {
+            Code code = Code.get(rc);
+
+            switch (code)
+            {
+                case OK:
+                    complete(null, path);
+                    return;
+
+                default:
+                    if (shouldRetry(code))
+                    {
+                        // Retry to overwrite the data.
+                        setData(path, (byte[])ctx);
+                    }
+                    else
+                    {
+                        complete(code, path);
+                    }
+                    return;
+            }
+        }
+    }
+}
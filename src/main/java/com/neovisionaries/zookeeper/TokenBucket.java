@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Lock-free local token bucket.
+ *
+ * <p>
+ * The bucket is implemented as a "generic cell rate algorithm", i.e.
+ * it keeps only the theoretical arrival time of the next permit in an
+ * {@link AtomicLong}. {@link #tryAcquire()} is O(1), never blocks and
+ * does not allocate. The rate can be changed at any time without
+ * resetting the bucket.
+ * </p>
+ *
+ * @since 1.3
+ *
+ * @see DistributedRateLimiter
+ */
+public class TokenBucket
+{
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    // Requests are counted in stripes so that threads acquiring permits
+    // at the same time do not contend on one more counter. Each stripe
+    // is padded to take a cache line of its own.
+    private static final int STRIPES = computeStripes();
+    private static final int PADDING = 8;
+
+
+    private final AtomicLong mNextFreeTime = new AtomicLong(System.nanoTime());
+    private final AtomicLongArray mRequestCounts = new AtomicLongArray(STRIPES * PADDING);
+    private volatile double mRate;
+    private volatile long mInterval;
+    private volatile double mBurst = 1;
+    private volatile long mTolerance;
+
+
+    /**
+     * Create a bucket whose rate is zero, i.e. which denies all requests
+     * until {@link #setRate(double)} is called.
+     */
+    public TokenBucket()
+    {
+    }
+
+
+    /**
+     * Create a bucket with the given rate.
+     *
+     * @param rate
+     *         The number of permits per second.
+     */
+    public TokenBucket(double rate)
+    {
+        setRate(rate);
+    }
+
+
+    /**
+     * Get the rate.
+     *
+     * @return
+     *         The number of permits per second.
+     */
+    public double getRate()
+    {
+        return mRate;
+    }
+
+
+    /**
+     * Set the rate. Zero or a negative value makes the bucket deny
+     * all requests.
+     *
+     * @param rate
+     *         The number of permits per second.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public TokenBucket setRate(double rate)
+    {
+        mRate     = rate;
+        mInterval = (0 < rate) ? Math.max(1L, (long)(NANOS_PER_SECOND / rate)) : 0;
+        mTolerance = computeTolerance();
+
+        return this;
+    }
+
+
+    /**
+     * Get the maximum number of permits which can be acquired at once
+     * after the bucket has been idle.
+     *
+     * @return
+     *         The burst size.
+     */
+    public double getBurst()
+    {
+        return mBurst;
+    }
+
+
+    /**
+     * Set the maximum number of permits which can be acquired at once
+     * after the bucket has been idle. The default value is 1.
+     *
+     * @param burst
+     *         The burst size.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public TokenBucket setBurst(double burst)
+    {
+        mBurst     = burst;
+        mTolerance = computeTolerance();
+
+        return this;
+    }
+
+
+    /**
+     * Try to acquire a permit.
+     *
+     * @return
+     *         {@code true} if a permit was acquired.
+     */
+    public boolean tryAcquire()
+    {
+        return tryAcquire(1);
+    }
+
+
+    /**
+     * Try to acquire permits.
+     *
+     * @param permits
+     *         The number of permits.
+     *
+     * @return
+     *         {@code true} if the permits were acquired.
+     *
+     * @throws IllegalArgumentException
+     *         {@code permits} is zero or negative.
+     */
+    public boolean tryAcquire(int permits)
+    {
+        if (permits <= 0)
+        {
+            throw new IllegalArgumentException("permits must be positive.");
+        }
+
+        int stripe = (int)Thread.currentThread().getId() & (STRIPES - 1);
+        mRequestCounts.addAndGet(stripe * PADDING, permits);
+
+        long interval = mInterval;
+
+        if (interval == 0)
+        {
+            // The rate is zero.
+            return false;
+        }
+
+        long tolerance = mTolerance;
+
+        if (Long.MAX_VALUE / interval < permits || tolerance < interval * permits)
+        {
+            // More permits than the burst size. The check on the
+            // division also prevents the multiplication from overflowing.
+            return false;
+        }
+
+        long now  = System.nanoTime();
+        long cost = interval * permits;
+
+        while (true)
+        {
+            long next = mNextFreeTime.get();
+
+            // The bucket does not accumulate permits while it is idle
+            // beyond the burst size.
+            long start = (next - now < 0) ? now : next;
+
+            // Same as "tolerance < start + cost - now" but cannot overflow.
+            if (tolerance - cost < start - now)
+            {
+                // Not enough permits.
+                return false;
+            }
+
+            if (mNextFreeTime.compareAndSet(next, start + cost))
+            {
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     * Get the total number of permits requested so far, including
+     * denied ones. This can be used to measure demand.
+     *
+     * @return
+     *         The total number of permits requested.
+     */
+    public long getRequestCount()
+    {
+        long count = 0;
+
+        for (int i = 0; i < STRIPES; ++i)
+        {
+            count += mRequestCounts.get(i * PADDING);
+        }
+
+        return count;
+    }
+
+
+    private long computeTolerance()
+    {
+        return (long)(mInterval * Math.max(1.0, mBurst));
+    }
+
+
+    private static int computeStripes()
+    {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+
+        // A power of two, at least twice the number of processors.
+        while (stripes < processors * 2)
+        {
+            stripes <<= 1;
+        }
+
+        return stripes;
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+
+
+/**
+ * Builder of a transaction which executes multiple operations atomically
+ * by {@link ZooKeeper#multi(Iterable) multi()}.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * <span style="color: darkgreen;">// Publish a new config only if I'm still the leader.</span>
+ * <span style="color: purple; font-weight: bold;">new</span> TransactionBuilder()
+ *     .{@link #setZooKeeper(ZooKeeper) setZooKeeper}(zooKeeper)
+ *     .{@link #checkLeader(LeaderElection) checkLeader}(election)
+ *     .{@link #setData(String, byte[], int) setData}(<span style="color: mediumblue;">"/config"</span>, config, -1)
+ *     .{@link #setData(String, byte[], int) setData}(<span style="color: mediumblue;">"/config-version"</span>, version, -1)
+ *     .{@link #commit()};
+ * </pre>
+ *
+ * <p>
+ * All the operations added to a builder are sent in one request and
+ * either all of them succeed or none of them is applied. If one of the
+ * operations fails, {@link #commit()} throws a {@link KeeperException}
+ * whose {@link KeeperException#getResults() getResults()} tells which
+ * operation failed.
+ * </p>
+ *
+ * <p>
+ * {@link #checkLeader(LeaderElection)} adds a guard which makes the
+ * transaction fail unless the znode which the given {@link LeaderElection}
+ * created as the leader still exists with the same version. A fenced
+ * leader write therefore costs one round trip instead of a read followed
+ * by a write. Note that the guard relies on the fact that the leader
+ * znode is an ephemeral znode of the same session, i.e. it cannot detect
+ * a case where the znode has been deleted explicitly and another candidate
+ * has created a new one which has the same version.
+ * </p>
+ *
+ * @since 1.3
+ */
+public class TransactionBuilder
+{
+    private static final List<ACL> DEFAULT_ACL_LIST = ZooDefs.Ids.OPEN_ACL_UNSAFE;
+
+
+    private final List<Op> mOps = new ArrayList<Op>();
+    private ZooKeeper mZooKeeper;
+    private PayloadCodec mCodec;
+
+
+    public TransactionBuilder()
+    {
+    }
+
+
+    public TransactionBuilder(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+    }
+
+
+    /**
+     * Get the {@link ZooKeeper} instance to execute the transaction.
+     *
+     * @return
+     *         The {@link ZooKeeper} instance.
+     */
+    public ZooKeeper getZooKeeper()
+    {
+        return mZooKeeper;
+    }
+
+
+    /**
+     * Set the {@link ZooKeeper} instance to execute the transaction.
+     *
+     * <p>
+     * If no {@link ZooKeeper} instance is set when {@link #commit()} is
+     * called, an {@code IllegalStateException} is thrown.
+     * </p>
+     *
+     * @param zooKeeper
+     *         A {@link ZooKeeper} instance.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public TransactionBuilder setZooKeeper(ZooKeeper zooKeeper)
+    {
+        mZooKeeper = zooKeeper;
+
+        return this;
+    }
+
+
+    /**
+     * Get the codec to encode data of create and set-data operations.
+     *
+     * @return
+     *         The codec. {@code null} if no codec is set.
+     */
+    public PayloadCodec getCodec()
+    {
+        return mCodec;
+    }
+
+
+    /**
+     * Set a codec to encode data of create and set-data operations.
+     * The codec is applied to operations added after this method is
+     * called.
+     *
+     * @param codec
+     *         A codec. {@code null} to write data as is (default).
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public TransactionBuilder setCodec(PayloadCodec codec)
+    {
+        mCodec = codec;
+
+        return this;
+    }
+
+
+    /**
+     * Add an operation to create a znode with {@link
+     * ZooDefs.Ids#OPEN_ACL_UNSAFE OPEN_ACL_UNSAFE}.
+     *
+     * @param path
+     *         The path of the znode.
+     *
+     * @param data
+     *         The initial data of the znode.
+     *
+     * @param mode
+     *         The create mode.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public TransactionBuilder create(String path, byte[] data, CreateMode mode)
+    {
+        return create(path, data, DEFAULT_ACL_LIST, mode);
+    }
+
+
+    /**
+     * Add an operation to create a znode.
+     *
+     * @param path
+     *         The path of the znode.
+     *
+     * @param data
+     *         The initial data of the znode.
+     *
+     * @param aclList
+     *         The ACL list of the znode.
+     *
+     * @param mode
+     *         The create mode.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public TransactionBuilder create(String path, byte[] data, List<ACL> aclList, CreateMode mode)
+    {
+        mOps.add(Op.create(path, encode(data), aclList, mode));
+
+        return this;
+    }
+
+
+    /**
+     * Add an operation to delete a znode.
+     *
+     * @param path
+     *         The path of the znode.
+     *
+     * @param version
+     *         The expected version of the znode. -1 matches any version.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public TransactionBuilder delete(String path, int version)
+    {
+        mOps.add(Op.delete(path, version));
+
+        return this;
+    }
+
+
+    /**
+     * Add an operation to set data of a znode.
+     *
+     * @param path
+     *         The path of the znode.
+     *
+     * @param data
+     *         The data to set.
+     *
+     * @param version
+     *         The expected version of the znode. -1 matches any version.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public TransactionBuilder setData(String path, byte[] data, int version)
+    {
+        mOps.add(Op.setData(path, encode(data), version));
+
+        return this;
+    }
+
+
+    /**
+     * Add an operation to check the version of a znode.
+     *
+     * @param path
+     *         The path of the znode.
+     *
+     * @param version
+     *         The expected version of the znode.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public TransactionBuilder check(String path, int version)
+    {
+        mOps.add(Op.check(path, version));
+
+        return this;
+    }
+
+
+    /**
+     * Add an operation to check that the given {@link LeaderElection}
+     * is still the leader. The operation checks the version of the znode
+     * which the {@code LeaderElection} created as the leader.
+     *
+     * @param election
+     *         A {@link LeaderElection} instance whose state is
+     *         {@link LeaderElection.State#LEADER LEADER}.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalStateException
+     *         <ul>
+     *           <li>No {@link ZooKeeper} instance is set to this builder.
+     *           <li>The state of {@code election} is not {@code LEADER}.
+     *         </ul>
+     *
+     * @throws IllegalArgumentException
+     *         {@code election} uses a {@link ZooKeeper} instance other
+     *         than the one of this builder. The leader znode is an
+     *         ephemeral znode of the session of the election, so the
+     *         guard is meaningless in another session.
+     */
+    public TransactionBuilder checkLeader(LeaderElection election)
+    {
+        // If a ZooKeeper instance is not set.
+        if (mZooKeeper == null)
+        {
+            // A ZooKeeper instance must be set before checkLeader().
+            throw new IllegalStateException("A ZooKeeper instance must be set.");
+        }
+
+        if (election.getZooKeeper() != mZooKeeper)
+        {
+            throw new IllegalArgumentException(
+                "The LeaderElection instance uses a different ZooKeeper instance.");
+        }
+
+        int version = election.getLeaderVersion();
+
+        if (version < 0)
+        {
+            throw new IllegalStateException("The LeaderElection instance is not the leader.");
+        }
+
+        return check(election.getPath(), version);
+    }
+
+
+    /**
+     * Get the number of operations added so far.
+     *
+     * @return
+     *         The number of operations.
+     */
+    public int size()
+    {
+        return mOps.size();
+    }
+
+
+    /**
+     * Execute the operations atomically. The operations are kept
+     * in this builder, so the same transaction can be retried by
+     * calling this method again.
+     *
+     * @return
+     *         The results of the operations.
+     *
+     * @throws KeeperException
+     *         One of the operations failed and none of them was applied.
+     *         {@link KeeperException#getResults()} returns the results
+     *         of the operations.
+     *
+     * @throws InterruptedException
+     *         Interrupted while waiting for ZooKeeper.
+     *
+     * @throws IllegalStateException
+     *         No {@link ZooKeeper} instance is set.
+     */
+    public List<OpResult> commit() throws KeeperException, InterruptedException
+    {
+        // If a ZooKeeper instance is not set.
+        if (mZooKeeper == null)
+        {
+            // A ZooKeeper instance must be set before commit().
+            throw new IllegalStateException("A ZooKeeper instance must be set.");
+        }
+
+        return mZooKeeper.multi(mOps);
+    }
+
+
+    private byte[] encode(byte[] data)
+    {
+        return (mCodec != null) ? mCodec.encode(data) : data;
+    }
+}
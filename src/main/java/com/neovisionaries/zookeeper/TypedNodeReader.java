@@ -0,0 +1,765 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Znode reader which delivers the content of the target znode
+ * as an object deserialized from the content.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * <span style="color: darkgreen;">// Read the target znode as a Config object.</span>
+ * <span style="color: purple; font-weight: bold;">new</span> TypedNodeReader&lt;Config&gt;()
+ *     .{@link #setZooKeeper(ZooKeeper) setZooKeeper}(zooKeeper)
+ *     .{@link #setPath(String) setPath}(path)
+ *     .{@link #setDeserializer(Deserializer) setDeserializer}(configDeserializer)
+ *     .{@link #setListener(Listener) setListener}(listener)
+ *     .{@link #start()};
+ * </pre>
+ *
+ * <p>
+ * Deserialized objects are cached per {@link ZooKeeper} instance per
+ * pair of a deserializer and a path, and are keyed by the modification
+ * zxid ({@link Stat#getMzxid()}) of the znode. Therefore, when multiple
+ * {@code TypedNodeReader} instances read the same version of the same
+ * znode through the same {@code ZooKeeper} instance with the same
+ * deserializer, the content is deserialized only once and all the
+ * listeners receive the same object. For this reason, deserialized
+ * objects should be immutable. Only the latest version is cached for
+ * each pair, and the cached object is dropped when the last reader of
+ * the pair completes reading, {@link #finish() finishes} or gives up.
+ * </p>
+ *
+ * <p>
+ * Reading is performed by an internal {@link NodeReader}, so the
+ * behavior on a missing znode and on errors is the same as that of
+ * {@code NodeReader}.
+ * </p>
+ *
+ * @param <T>
+ *         The type of deserialized objects.
+ *
+ * @since 1.3
+ */
+public class TypedNodeReader<T>
+{
+    /**
+     * Deserializer to convert the content of a znode into an object.
+     *
+     * <p>
+     * Implementations must be thread-safe. Deserialized objects are
+     * cached per deserializer instance, so the same instance should be
+     * shared by readers which read the same znode.
+     * </p>
+     *
+     * @param <T>
+     *         The type of deserialized objects.
+     */
+    public interface Deserializer<T>
+    {
+        /**
+         * Deserialize the content of a znode.
+         *
+         * @param data
+         *         The content of a znode. May be {@code null}.
+         *
+         * @return
+         *         A deserialized object.
+         *
+         * @throws RuntimeException
+         *         The content cannot be deserialized. In this case,
+         *         {@link Listener#onGaveUp(TypedNodeReader) onGaveUp()}
+         *         is called.
+         */
+        T deserialize(byte[] data);
+    }
+
+
+    /**
+     * Listener interface to receive the result of reading.
+     *
+     * @param <T>
+     *         The type of deserialized objects.
+     */
+    public interface Listener<T>
+    {
+        /**
+         * Called when the content of the target znode was read and
+         * deserialized successfully.
+         *
+         * @param reader
+         *         The {@link TypedNodeReader} instance which this
+         *         listener is associated with.
+         *
+         * @param value
+         *         The deserialized content of the target znode. The
+         *         same object may be passed to other listeners.
+         *
+         * @param stat
+         *         Statistics of the target znode.
+         */
+        void onRead(TypedNodeReader<T> reader, T value, Stat stat);
+
+
+        /**
+         * Called when the {@link TypedNodeReader} gave up reading the
+         * target znode. In addition to the cases described in {@link
+         * NodeReader.Listener#onGaveUp(NodeReader)}, this method is
+         * called when the content failed to be deserialized.
+         *
+         * @param reader
+         *         The {@link TypedNodeReader} instance which this
+         *         listener is associated with.
+         */
+        void onGaveUp(TypedNodeReader<T> reader);
+    }
+
+
+    /**
+     * An empty implementation of {@link Listener} interface.
+     *
+     * @param <T>
+     *         The type of deserialized objects.
+     */
+    public static class Adapter<T> implements Listener<T>
+    {
+        @Override
+        public void onRead(TypedNodeReader<T> reader, T value, Stat stat)
+        {
+        }
+
+
+        @Override
+        public void onGaveUp(TypedNodeReader<T> reader)
+        {
+        }
+    }
+
+
+    /**
+     * Listener interface which is notified also of absence of the
+     * target znode. This is meaningful only when {@link
+     * #setWatching(boolean) watching} is enabled.
+     *
+     * @param <T>
+     *         The type of deserialized objects.
+     *
+     * @see NodeReader.WatchListener
+     */
+    public interface WatchListener<T> extends Listener<T>
+    {
+        /**
+         * Called when the target znode was found not to exist, that is,
+         * when it did not exist at the time of reading or when it has
+         * been deleted. The reader keeps waiting for the target znode
+         * to be created.
+         *
+         * @param reader
+         *         The {@link TypedNodeReader} instance which this
+         *         listener is associated with.
+         */
+        void onDeleted(TypedNodeReader<T> reader);
+    }
+
+
+    private final NodeReader mReader = new NodeReader();
+    private Deserializer<T> mDeserializer;
+    private Listener<T> mListener;
+
+    // Guarded by this.
+    private Slot mSlot;
+    private boolean mReleased;
+
+
+    public TypedNodeReader()
+    {
+        mReader.setListener(new ReaderListener());
+    }
+
+
+    public TypedNodeReader(ZooKeeper zooKeeper)
+    {
+        this();
+
+        mReader.setZooKeeper(zooKeeper);
+    }
+
+
+    /**
+     * Get the {@link ZooKeeper} instance to read the target znode.
+     *
+     * @return
+     *         The {@link ZooKeeper} instance.
+     */
+    public ZooKeeper getZooKeeper()
+    {
+        return mReader.getZooKeeper();
+    }
+
+
+    /**
+     * Set the {@link ZooKeeper} instance to read the target znode.
+     *
+     * @param zooKeeper
+     *         A {@link ZooKeeper} instance.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public TypedNodeReader<T> setZooKeeper(ZooKeeper zooKeeper)
+    {
+        mReader.setZooKeeper(zooKeeper);
+
+        return this;
+    }
+
+
+    /**
+     * Get the path of the target znode to read.
+     *
+     * @return
+     *         The path of the target znode to read.
+     */
+    public String getPath()
+    {
+        return mReader.getPath();
+    }
+
+
+    /**
+     * Set the path of the target znode to read.
+     *
+     * @param path
+     *         The path of the target znode.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public TypedNodeReader<T> setPath(String path)
+    {
+        mReader.setPath(path);
+
+        return this;
+    }
+
+
+    /**
+     * Get the codec to decode the content of the target znode.
+     *
+     * @return
+     *         The codec. {@code null} if no codec is set.
+     */
+    public PayloadCodec getCodec()
+    {
+        return mReader.getCodec();
+    }
+
+
+    /**
+     * Set a codec to decode the content of the target znode before
+     * it is deserialized.
+     *
+     * @param codec
+     *         A codec. {@code null} not to decode the content.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @see NodeReader#setCodec(PayloadCodec)
+     */
+    public TypedNodeReader<T> setCodec(PayloadCodec codec)
+    {
+        mReader.setCodec(codec);
+
+        return this;
+    }
+
+
+    /**
+     * Check if watching the target znode for changes is enabled.
+     *
+     * @return
+     *         {@code true} if the target znode is watched for changes.
+     */
+    public boolean isWatching()
+    {
+        return mReader.isWatching();
+    }
+
+
+    /**
+     * Enable or disable watching the target znode for changes. If
+     * enabled, {@link Listener#onRead(TypedNodeReader, Object, Stat)
+     * onRead()} is called for each version of the target znode, and
+     * the cached object is kept until {@link #finish()} is called.
+     * Disabled by default. This method should be called before
+     * {@link #start()}.
+     *
+     * @param watching
+     *         {@code true} to watch the target znode for changes.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @see NodeReader#setWatching(boolean)
+     */
+    public TypedNodeReader<T> setWatching(boolean watching)
+    {
+        mReader.setWatching(watching);
+
+        return this;
+    }
+
+
+    /**
+     * Get the deserializer.
+     *
+     * @return
+     *         The deserializer.
+     */
+    public Deserializer<T> getDeserializer()
+    {
+        return mDeserializer;
+    }
+
+
+    /**
+     * Set a deserializer.
+     *
+     * <p>
+     * If no deserializer is set when {@link #start()} is called,
+     * an {@code IllegalStateException} is thrown.
+     * </p>
+     *
+     * @param deserializer
+     *         A deserializer.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public TypedNodeReader<T> setDeserializer(Deserializer<T> deserializer)
+    {
+        mDeserializer = deserializer;
+
+        return this;
+    }
+
+
+    /**
+     * Get the listener.
+     *
+     * @return
+     *         The listener.
+     */
+    public Listener<T> getListener()
+    {
+        return mListener;
+    }
+
+
+    /**
+     * Set a listener.
+     *
+     * @param listener
+     *         A listener.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public TypedNodeReader<T> setListener(Listener<T> listener)
+    {
+        mListener = listener;
+
+        return this;
+    }
+
+
+    /**
+     * Start reading the target znode.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalStateException
+     *         <ul>
+     *           <li>No {@link ZooKeeper} instance is set.
+     *           <li>No path is set.
+     *           <li>No deserializer is set.
+     *         </ul>
+     */
+    public TypedNodeReader<T> start()
+    {
+        // If a deserializer is not set.
+        if (mDeserializer == null)
+        {
+            // A deserializer must be set before start().
+            throw new IllegalStateException("A deserializer must be set.");
+        }
+
+        mReader.start();
+
+        return this;
+    }
+
+
+    /**
+     * Mark as 'shouldFinish' not to schedule ZooKeeper callbacks
+     * any further.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @see NodeReader#finish()
+     */
+    public TypedNodeReader<T> finish()
+    {
+        mReader.finish();
+
+        release();
+
+        return this;
+    }
+
+
+    private synchronized Slot acquire(String path)
+    {
+        if (mSlot == null && mReleased == false)
+        {
+            mSlot = SharedCache.getInstance(mReader.getZooKeeper())
+                .acquire(new CacheKey(mDeserializer, path));
+        }
+
+        return mSlot;
+    }
+
+
+    private void release()
+    {
+        Slot slot;
+
+        synchronized (this)
+        {
+            mReleased = true;
+            slot = mSlot;
+            mSlot = null;
+        }
+
+        if (slot != null)
+        {
+            slot.mCache.release(slot);
+        }
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private static <T> T deserialize(Deserializer<T> deserializer, Slot slot, byte[] data, Stat stat)
+    {
+        if (slot == null)
+        {
+            // The reader has finished. Do not cache it any more.
+            return deserializer.deserialize(data);
+        }
+
+        long mzxid = stat.getMzxid();
+
+        while (true)
+        {
+            CacheEntry entry = slot.get();
+
+            if (entry != null)
+            {
+                // If the cached entry is for the same version.
+                if (entry.mMzxid == mzxid)
+                {
+                    return (T)entry.getValue(deserializer, data);
+                }
+
+                // If the given data is older than the cached one.
+                if (mzxid < entry.mMzxid)
+                {
+                    // Deserialize it without caching.
+                    return deserializer.deserialize(data);
+                }
+            }
+
+            CacheEntry newEntry = new CacheEntry(mzxid);
+
+            if (slot.compareAndSet(entry, newEntry))
+            {
+                return (T)newEntry.getValue(deserializer, data);
+            }
+
+            // Another thread has updated the entry. Retry.
+        }
+    }
+
+
+    private static class CacheKey
+    {
+        private final Deserializer<?> mDeserializer;
+        private final String mPath;
+
+
+        CacheKey(Deserializer<?> deserializer, String path)
+        {
+            mDeserializer = deserializer;
+            mPath         = path;
+        }
+
+
+        @Override
+        public int hashCode()
+        {
+            return System.identityHashCode(mDeserializer) * 31 + mPath.hashCode();
+        }
+
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if (object instanceof CacheKey == false)
+            {
+                return false;
+            }
+
+            CacheKey key = (CacheKey)object;
+
+            return mDeserializer == key.mDeserializer && mPath.equals(key.mPath);
+        }
+    }
+
+
+    /**
+     * Objects deserialized from znodes read through one {@link ZooKeeper}
+     * instance. The cache is the value of a {@link WeakHashMap} whose key
+     * is the {@code ZooKeeper} instance, so it must not refer to it.
+     */
+    private static final class SharedCache
+    {
+        private static final Map<ZooKeeper, SharedCache> sCaches =
+            new WeakHashMap<ZooKeeper, SharedCache>();
+
+
+        // Guarded by this.
+        private final Map<CacheKey, Slot> mSlots = new HashMap<CacheKey, Slot>();
+
+
+        static SharedCache getInstance(ZooKeeper zooKeeper)
+        {
+            synchronized (sCaches)
+            {
+                SharedCache cache = sCaches.get(zooKeeper);
+
+                if (cache == null)
+                {
+                    cache = new SharedCache();
+                    sCaches.put(zooKeeper, cache);
+                }
+
+                return cache;
+            }
+        }
+
+
+        synchronized Slot acquire(CacheKey key)
+        {
+            Slot slot = mSlots.get(key);
+
+            if (slot == null)
+            {
+                slot = new Slot(this, key);
+                mSlots.put(key, slot);
+            }
+
+            ++slot.mReaders;
+
+            return slot;
+        }
+
+
+        synchronized void release(Slot slot)
+        {
+            if (--slot.mReaders == 0)
+            {
+                // No reader uses the cached object any more.
+                mSlots.remove(slot.mKey);
+            }
+        }
+    }
+
+
+    /**
+     * Holder of the latest cached entry of a pair of a deserializer and
+     * a path.
+     */
+    @SuppressWarnings("serial")
+    private static final class Slot extends AtomicReference<CacheEntry>
+    {
+        private final SharedCache mCache;
+        private final CacheKey mKey;
+
+        // Guarded by mCache.
+        private int mReaders;
+
+
+        Slot(SharedCache cache, CacheKey key)
+        {
+            mCache = cache;
+            mKey   = key;
+        }
+    }
+
+
+    private static class CacheEntry
+    {
+        private final long mMzxid;
+        private boolean mDone;
+        private Object mValue;
+
+
+        CacheEntry(long mzxid)
+        {
+            mMzxid = mzxid;
+        }
+
+
+        Object getValue(Deserializer<?> deserializer, byte[] data)
+        {
+            // Deserialize the data only once. Other threads reading
+            // the same version wait for the deserialization.
+            synchronized (this)
+            {
+                if (mDone == false)
+                {
+                    mValue = deserializer.deserialize(data);
+                    mDone  = true;
+                }
+
+                return mValue;
+            }
+        }
+    }
+
+
+    private class ReaderListener implements NodeReader.WatchListener
+    {
+        @Override
+        public void onRead(NodeReader reader, byte[] data, Stat stat)
+        {
+            T value;
+
+            try
+            {
+                value = deserialize(mDeserializer, acquire(reader.getPath()), data, stat);
+            }
+            catch (RuntimeException e)
+            {
+                // The content cannot be deserialized.
+                callOnGaveUp();
+                return;
+            }
+            finally
+            {
+                if (reader.isWatching() == false)
+                {
+                    // Reading has been completed.
+                    release();
+                }
+            }
+
+            callOnRead(value, stat);
+        }
+
+
+        @Override
+        public void onGaveUp(NodeReader reader)
+        {
+            // The reader has ended.
+            release();
+
+            callOnGaveUp();
+        }
+
+
+        @Override
+        public void onDeleted(NodeReader reader)
+        {
+            callOnDeleted();
+        }
+    }
+
+
+    private void callOnRead(T value, Stat stat)
+    {
+        if (mListener == null)
+        {
+            return;
+        }
+
+        try
+        {
+            mListener.onRead(this, value, stat);
+        }
+        catch (RuntimeException e)
+        {
+            // Ignore.
+        }
+    }
+
+
+    private void callOnDeleted()
+    {
+        if ((mListener instanceof WatchListener) == false)
+        {
+            return;
+        }
+
+        try
+        {
+            ((WatchListener<T>)mListener).onDeleted(this);
+        }
+        catch (RuntimeException e)
+        {
+            // Ignore.
+        }
+    }
+
+
+    private void callOnGaveUp()
+    {
+        if (mListener == null)
+        {
+            return;
+        }
+
+        try
+        {
+            mListener.onGaveUp(this);
+        }
+        catch (RuntimeException e)
+        {
+            // Ignore.
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.ZooKeeper;
+
+
+/**
+ * Manager of watches which recipes set through a {@link ZooKeeper}
+ * instance.
+ *
+ * <pre style="border: 1px solid black; padding: 0.5em; margin: 1em;">
+ * <span style="color: darkgreen;">// Keep at most 10,000 paths watched. Poll the others every 10 seconds.</span>
+ * WatchManager.{@link #getInstance(ZooKeeper) getInstance}(zooKeeper)
+ *     .{@link #setBudget(int) setBudget}(10000)
+ *     .{@link #setPollingInterval(long, TimeUnit) setPollingInterval}(10, TimeUnit.SECONDS);
+ * </pre>
+ *
+ * <p>
+ * {@link NodeReader} and {@link LeaderElection} register the paths they
+ * watch to the manager of their {@code ZooKeeper} instance. Recipes which
+ * watch the same path share one watcher, so the server holds one watch
+ * per path and session however many recipes watch the path. A reconnected
+ * session re-sends all the watches it holds, so fewer watches also mean
+ * faster reconnection.
+ * </p>
+ *
+ * <p>
+ * When more paths than the {@link #setBudget(int) budget} are registered,
+ * paths of lower {@link Priority priorities} are evicted to polling. The
+ * manager polls them at the {@link #setPollingInterval(long, TimeUnit)
+ * polling interval} and notifies recipes of changes it finds, so recipes
+ * behave the same way except for the latency. A path of {@link
+ * Priority#HIGH HIGH} priority, which {@code LeaderElection} uses, is
+ * never evicted even if the budget is exceeded. When registered paths
+ * decrease, polled paths of higher priorities are watched again.
+ * </p>
+ *
+ * <p>
+ * ZooKeeper 3.4 cannot remove a watch which has been set, so an evicted
+ * path keeps its current watch on the server until the watch is
+ * triggered. It is not set again after that.
+ * </p>
+ *
+ * @since 1.3
+ *
+ * @see NodeReader#setWatchPriority(Priority)
+ */
+public final class WatchManager
+{
+    /**
+     * Priority of watches.
+     */
+    public enum Priority
+    {
+        /**
+         * Evicted first.
+         */
+        LOW,
+
+
+        /**
+         * The default priority of {@link NodeReader}.
+         */
+        NORMAL,
+
+
+        /**
+         * Never evicted. Used by {@link LeaderElection}.
+         */
+        HIGH
+    }
+
+
+    private final PathRegistry mRegistry;
+
+
+    private WatchManager(PathRegistry registry)
+    {
+        mRegistry = registry;
+    }
+
+
+    /**
+     * Get the manager of the given {@link ZooKeeper} instance.
+     *
+     * @param zooKeeper
+     *         A {@link ZooKeeper} instance.
+     *
+     * @return
+     *         The manager.
+     */
+    public static WatchManager getInstance(ZooKeeper zooKeeper)
+    {
+        if (zooKeeper == null)
+        {
+            throw new NullPointerException("zooKeeper is null.");
+        }
+
+        return new WatchManager(PathRegistry.getInstance(zooKeeper));
+    }
+
+
+    /**
+     * Get the maximum number of watched paths.
+     *
+     * @return
+     *         The budget. {@link Integer#MAX_VALUE} means no limit.
+     */
+    public int getBudget()
+    {
+        return mRegistry.getBudget();
+    }
+
+
+    /**
+     * Set the maximum number of watched paths. Paths beyond the budget
+     * are polled. The default value is {@link Integer#MAX_VALUE}, which
+     * means no limit. If the new budget is smaller than the current
+     * number of watched paths, paths of lower priorities are evicted.
+     *
+     * @param budget
+     *         The budget.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalArgumentException
+     *         {@code budget} is negative.
+     */
+    public WatchManager setBudget(int budget)
+    {
+        if (budget < 0)
+        {
+            throw new IllegalArgumentException("The budget must not be negative.");
+        }
+
+        mRegistry.setBudget(budget);
+
+        return this;
+    }
+
+
+    /**
+     * Get the interval of polling evicted paths.
+     *
+     * @return
+     *         The interval in milliseconds.
+     */
+    public long getPollingInterval()
+    {
+        return mRegistry.getPollingInterval();
+    }
+
+
+    /**
+     * Set the interval of polling evicted paths. The default value is
+     * 5 seconds. Each polling sends one {@code exists()} request per
+     * polled path which a recipe is waiting for.
+     *
+     * @param interval
+     *         The interval.
+     *
+     * @param unit
+     *         The unit of {@code interval}.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalArgumentException
+     *         {@code interval} is not positive.
+     */
+    public WatchManager setPollingInterval(long interval, TimeUnit unit)
+    {
+        long millis = unit.toMillis(interval);
+
+        if (millis <= 0)
+        {
+            throw new IllegalArgumentException("The interval must be positive.");
+        }
+
+        mRegistry.setPollingInterval(millis);
+
+        return this;
+    }
+
+
+    /**
+     * Get the number of watched paths.
+     *
+     * @return
+     *         The number of watched paths.
+     */
+    public int getWatchCount()
+    {
+        return mRegistry.getWatchCount();
+    }
+
+
+    /**
+     * Get the number of polled paths.
+     *
+     * @return
+     *         The number of polled paths.
+     */
+    public int getPollingCount()
+    {
+        return mRegistry.getPollingCount();
+    }
+
+
+    /**
+     * Get the total number of paths which have been evicted to polling.
+     *
+     * @return
+     *         The number of evictions.
+     */
+    public long getEvictionCount()
+    {
+        return mRegistry.getEvictionCount();
+    }
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * {@link ZooKeeper} whose asynchronous methods used by the recipes
+ * work on an in-memory tree.
+ *
+ * <p>
+ * The base class starts connecting to an unreachable address, which
+ * does no harm. Callbacks and watch events are queued in the order a
+ * server would send them, and are delivered on the calling thread by
+ * {@link #deliver()}. Changes made by other sessions are simulated by
+ * {@link #createNode(String, byte[])}, {@link #setNodeData(String,
+ * byte[])} and {@link #deleteNode(String)}.
+ * </p>
+ *
+ * <p>
+ * Watches behave as those of ZooKeeper 3.4: a watcher is registered at
+ * most once per path and is removed when it is triggered. Only data and
+ * existence watches are supported.
+ * </p>
+ */
+class FakeZooKeeper extends ZooKeeper
+{
+    private static final String UNREACHABLE_ADDRESS = "127.0.0.1:1";
+    private static final int SESSION_TIMEOUT = 10000;
+    private static final int MAX_DELIVERIES = 10000;
+
+
+    // Guarded by this.
+    private final Map<String, Znode> mNodes = new HashMap<String, Znode>();
+    private final Map<String, Set<Watcher>> mDataWatches = new HashMap<String, Set<Watcher>>();
+    private final Map<String, Set<Watcher>> mExistWatches = new HashMap<String, Set<Watcher>>();
+    private final LinkedList<Runnable> mQueue = new LinkedList<Runnable>();
+    private long mZxid;
+    private States mState = States.CONNECTED;
+
+
+    public FakeZooKeeper() throws IOException
+    {
+        super(UNREACHABLE_ADDRESS, SESSION_TIMEOUT, new IgnoreWatcher());
+    }
+
+
+    /**
+     * Deliver queued callbacks and watch events on the calling thread,
+     * including those queued while delivering.
+     *
+     * @return
+     *         The number of delivered callbacks and events.
+     */
+    public int deliver()
+    {
+        int count = 0;
+
+        while (true)
+        {
+            Runnable task;
+
+            synchronized (this)
+            {
+                task = mQueue.poll();
+            }
+
+            if (task == null)
+            {
+                return count;
+            }
+
+            if (MAX_DELIVERIES <= ++count)
+            {
+                throw new IllegalStateException("Callbacks do not stop.");
+            }
+
+            task.run();
+        }
+    }
+
+
+    /**
+     * Create a persistent znode as another session does.
+     */
+    public synchronized void createNode(String path, byte[] data)
+    {
+        Code code = doCreate(path, data, 0);
+
+        if (code != Code.OK)
+        {
+            throw new IllegalStateException("Failed to create " + path + ": " + code);
+        }
+    }
+
+
+    /**
+     * Update the content of a znode as another session does.
+     */
+    public synchronized void setNodeData(String path, byte[] data)
+    {
+        Znode node = getNode(path);
+
+        node.mData = data;
+        node.mStat.setMzxid(++mZxid);
+        node.mStat.setMtime(System.currentTimeMillis());
+        node.mStat.setVersion(node.mStat.getVersion() + 1);
+        node.mStat.setDataLength(length(data));
+
+        trigger(path, EventType.NodeDataChanged);
+    }
+
+
+    /**
+     * Delete a znode as another session does.
+     */
+    public synchronized void deleteNode(String path)
+    {
+        getNode(path);
+
+        doDelete(path);
+    }
+
+
+    /**
+     * Get the content of a znode.
+     */
+    public synchronized byte[] getNodeData(String path)
+    {
+        Znode node = mNodes.get(path);
+
+        return (node != null) ? node.mData : null;
+    }
+
+
+    /**
+     * Check if a znode exists.
+     */
+    public synchronized boolean hasNode(String path)
+    {
+        return mNodes.containsKey(path);
+    }
+
+
+    @Override
+    public synchronized States getState()
+    {
+        return mState;
+    }
+
+
+    @Override
+    public synchronized void close()
+    {
+        if (mState == States.CLOSED)
+        {
+            return;
+        }
+
+        mState = States.CLOSED;
+
+        // Stop connecting to the unreachable address.
+        cnxn.disconnect();
+    }
+
+
+    @Override
+    public synchronized void create(
+            final String path, byte[] data, List<ACL> acl, CreateMode createMode,
+            final StringCallback cb, final Object ctx)
+    {
+        String name = path;
+
+        if (createMode.isSequential())
+        {
+            Znode parent = mNodes.get(getParent(path));
+            int sequence = (parent != null) ? parent.mStat.getCversion() : 0;
+
+            name = path + String.format("%010d", sequence);
+        }
+
+        final Code code = doCreate(name, data, createMode.isEphemeral() ? getSessionId() : 0);
+        final String created = (code == Code.OK) ? name : null;
+
+        queue(new Runnable() {
+            @Override
+            public void run()
+            {
+                cb.processResult(code.intValue(), path, ctx, created);
+            }
+        });
+    }
+
+
+    @Override
+    public synchronized void delete(final String path, int version, final VoidCallback cb, final Object ctx)
+    {
+        Znode node = mNodes.get(path);
+        final Code code;
+
+        if (node == null)
+        {
+            code = Code.NONODE;
+        }
+        else if (version != -1 && version != node.mStat.getVersion())
+        {
+            code = Code.BADVERSION;
+        }
+        else
+        {
+            code = Code.OK;
+            doDelete(path);
+        }
+
+        queue(new Runnable() {
+            @Override
+            public void run()
+            {
+                cb.processResult(code.intValue(), path, ctx);
+            }
+        });
+    }
+
+
+    @Override
+    public synchronized void exists(final String path, Watcher watcher, final StatCallback cb, final Object ctx)
+    {
+        Znode node = mNodes.get(path);
+
+        if (watcher != null)
+        {
+            watch((node != null) ? mDataWatches : mExistWatches, path, watcher);
+        }
+
+        final Code code = (node != null) ? Code.OK : Code.NONODE;
+        final Stat stat = (node != null) ? copy(node.mStat) : null;
+
+        queue(new Runnable() {
+            @Override
+            public void run()
+            {
+                cb.processResult(code.intValue(), path, ctx, stat);
+            }
+        });
+    }
+
+
+    @Override
+    public void exists(String path, boolean watch, StatCallback cb, Object ctx)
+    {
+        exists(path, toWatcher(watch), cb, ctx);
+    }
+
+
+    @Override
+    public synchronized void getData(final String path, Watcher watcher, final DataCallback cb, final Object ctx)
+    {
+        Znode node = mNodes.get(path);
+
+        if (node != null && watcher != null)
+        {
+            watch(mDataWatches, path, watcher);
+        }
+
+        final Code code = (node != null) ? Code.OK : Code.NONODE;
+        final byte[] data = (node != null) ? node.mData : null;
+        final Stat stat = (node != null) ? copy(node.mStat) : null;
+
+        queue(new Runnable() {
+            @Override
+            public void run()
+            {
+                cb.processResult(code.intValue(), path, ctx, data, stat);
+            }
+        });
+    }
+
+
+    @Override
+    public void getData(String path, boolean watch, DataCallback cb, Object ctx)
+    {
+        getData(path, toWatcher(watch), cb, ctx);
+    }
+
+
+    @Override
+    public synchronized void sync(final String path, final VoidCallback cb, final Object ctx)
+    {
+        queue(new Runnable() {
+            @Override
+            public void run()
+            {
+                cb.processResult(Code.OK.intValue(), path, ctx);
+            }
+        });
+    }
+
+
+    private Code doCreate(String path, byte[] data, long ephemeralOwner)
+    {
+        if (mNodes.containsKey(path))
+        {
+            return Code.NODEEXISTS;
+        }
+
+        String parentPath = getParent(path);
+        Znode parent = mNodes.get(parentPath);
+
+        if (parent == null && "/".equals(parentPath) == false)
+        {
+            return Code.NONODE;
+        }
+
+        long zxid = ++mZxid;
+        long now  = System.currentTimeMillis();
+        Stat stat = new Stat();
+
+        stat.setCzxid(zxid);
+        stat.setMzxid(zxid);
+        stat.setPzxid(zxid);
+        stat.setCtime(now);
+        stat.setMtime(now);
+        stat.setEphemeralOwner(ephemeralOwner);
+        stat.setDataLength(length(data));
+
+        mNodes.put(path, new Znode(data, stat));
+
+        if (parent != null)
+        {
+            parent.mStat.setCversion(parent.mStat.getCversion() + 1);
+            parent.mStat.setNumChildren(parent.mStat.getNumChildren() + 1);
+        }
+
+        trigger(path, EventType.NodeCreated);
+
+        return Code.OK;
+    }
+
+
+    private void doDelete(String path)
+    {
+        mNodes.remove(path);
+
+        Znode parent = mNodes.get(getParent(path));
+
+        if (parent != null)
+        {
+            parent.mStat.setCversion(parent.mStat.getCversion() + 1);
+            parent.mStat.setNumChildren(parent.mStat.getNumChildren() - 1);
+        }
+
+        trigger(path, EventType.NodeDeleted);
+    }
+
+
+    private Znode getNode(String path)
+    {
+        Znode node = mNodes.get(path);
+
+        if (node == null)
+        {
+            throw new IllegalStateException("No such znode: " + path);
+        }
+
+        return node;
+    }
+
+
+    private void watch(Map<String, Set<Watcher>> watches, String path, Watcher watcher)
+    {
+        Set<Watcher> watchers = watches.get(path);
+
+        if (watchers == null)
+        {
+            watchers = new LinkedHashSet<Watcher>();
+            watches.put(path, watchers);
+        }
+
+        watchers.add(watcher);
+    }
+
+
+    private void trigger(String path, EventType type)
+    {
+        // A watcher set by both exists() and getData() is called once.
+        Set<Watcher> watchers = new LinkedHashSet<Watcher>();
+        Set<Watcher> data  = mDataWatches.remove(path);
+        Set<Watcher> exist = mExistWatches.remove(path);
+
+        if (data != null)
+        {
+            watchers.addAll(data);
+        }
+
+        if (exist != null)
+        {
+            watchers.addAll(exist);
+        }
+
+        final WatchedEvent event = new WatchedEvent(type, KeeperState.SyncConnected, path);
+
+        for (final Watcher watcher : watchers)
+        {
+            queue(new Runnable() {
+                @Override
+                public void run()
+                {
+                    watcher.process(event);
+                }
+            });
+        }
+    }
+
+
+    private void queue(Runnable task)
+    {
+        mQueue.add(task);
+    }
+
+
+    private static Watcher toWatcher(boolean watch)
+    {
+        if (watch)
+        {
+            throw new UnsupportedOperationException("The default watcher is not supported.");
+        }
+
+        return null;
+    }
+
+
+    private static String getParent(String path)
+    {
+        int index = path.lastIndexOf('/');
+
+        return (index <= 0) ? "/" : path.substring(0, index);
+    }
+
+
+    private static int length(byte[] data)
+    {
+        return (data != null) ? data.length : 0;
+    }
+
+
+    private static Stat copy(Stat stat)
+    {
+        return new Stat(
+            stat.getCzxid(), stat.getMzxid(), stat.getCtime(), stat.getMtime(),
+            stat.getVersion(), stat.getCversion(), stat.getAversion(),
+            stat.getEphemeralOwner(), stat.getDataLength(), stat.getNumChildren(),
+            stat.getPzxid());
+    }
+
+
+    private static class Znode
+    {
+        private byte[] mData;
+        private final Stat mStat;
+
+
+        Znode(byte[] data, Stat stat)
+        {
+            mData = data;
+            mStat = stat;
+        }
+    }
+
+
+    private static class IgnoreWatcher implements Watcher
+    {
+        @Override
+        public void process(WatchedEvent event)
+        {
+            // Session events of the unreachable connection.
+        }
+    }
+}
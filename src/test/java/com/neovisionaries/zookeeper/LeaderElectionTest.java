@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class LeaderElectionTest
+{
+    private static final String PATH = "/election";
+
+
+    private FakeZooKeeper mZooKeeper;
+
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mZooKeeper = new FakeZooKeeper();
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        mZooKeeper.close();
+    }
+
+
+    private LeaderElection start(String id)
+    {
+        LeaderElection election = new LeaderElection(mZooKeeper)
+            .setPath(PATH)
+            .setId(id)
+            .start();
+
+        mZooKeeper.deliver();
+
+        return election;
+    }
+
+
+    @Test
+    public void winWhenVacant()
+    {
+        LeaderElection election = start("me");
+
+        assertEquals(LeaderElection.State.LEADER, election.getState());
+        assertArrayEquals("me".getBytes(), mZooKeeper.getNodeData(PATH));
+    }
+
+
+    @Test
+    public void followExistingLeader()
+    {
+        mZooKeeper.createNode(PATH, "other".getBytes());
+
+        LeaderElection election = start("me");
+
+        assertEquals(LeaderElection.State.FOLLOWER, election.getState());
+    }
+
+
+    @Test
+    public void runWhenLeaderResigns()
+    {
+        mZooKeeper.createNode(PATH, "other".getBytes());
+
+        LeaderElection election = start("me");
+
+        mZooKeeper.deleteNode(PATH);
+        mZooKeeper.deliver();
+
+        assertEquals(LeaderElection.State.LEADER, election.getState());
+        assertArrayEquals("me".getBytes(), mZooKeeper.getNodeData(PATH));
+    }
+
+
+    @Test
+    public void keepTrackingAfterEventOfSharedWatch()
+    {
+        mZooKeeper.createNode(PATH, "other".getBytes());
+
+        // An observer in the same session watches the same path.
+        LeaderObserver observer = new LeaderObserver(mZooKeeper).setPath(PATH).start();
+        LeaderElection election = start("me");
+
+        assertEquals(LeaderElection.State.FOLLOWER, election.getState());
+
+        // The shared watch is triggered by an event other than deletion.
+        // It must not stop the follower from tracking the leader.
+        mZooKeeper.setNodeData(PATH, "other".getBytes());
+        mZooKeeper.deliver();
+
+        mZooKeeper.deleteNode(PATH);
+        mZooKeeper.deliver();
+
+        assertEquals(LeaderElection.State.LEADER, election.getState());
+        assertEquals("me", observer.currentLeader());
+
+        observer.finish();
+    }
+
+
+    @Test
+    public void finishBeforeCallback()
+    {
+        mZooKeeper.createNode(PATH, "other".getBytes());
+
+        LeaderElection election = new LeaderElection(mZooKeeper)
+            .setPath(PATH)
+            .setId("me")
+            .start();
+
+        election.finish();
+        mZooKeeper.deliver();
+
+        assertEquals(LeaderElection.State.DONE, election.getState());
+
+        // No watch is left to run for the leader.
+        mZooKeeper.deleteNode(PATH);
+        mZooKeeper.deliver();
+
+        assertFalse(mZooKeeper.hasNode(PATH));
+    }
+}
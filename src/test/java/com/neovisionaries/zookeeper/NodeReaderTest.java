@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.zookeeper;
+
+
+import static org.junit.Assert.assertEquals;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.zookeeper.data.Stat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class NodeReaderTest
+{
+    private static final String PATH = "/node";
+
+
+    private FakeZooKeeper mZooKeeper;
+
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mZooKeeper = new FakeZooKeeper();
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        mZooKeeper.close();
+    }
+
+
+    @Test
+    public void readOnce()
+    {
+        mZooKeeper.createNode(PATH, "v1".getBytes());
+
+        RecordingListener listener = new RecordingListener();
+        new NodeReader(mZooKeeper).setPath(PATH).setListener(listener).start();
+        mZooKeeper.deliver();
+
+        // Not read again without watching.
+        mZooKeeper.setNodeData(PATH, "v2".getBytes());
+        mZooKeeper.deliver();
+
+        assertEquals("[read v1]", listener.mEvents.toString());
+    }
+
+
+    @Test
+    public void waitForCreation()
+    {
+        RecordingListener listener = new RecordingListener();
+        new NodeReader(mZooKeeper).setPath(PATH).setListener(listener).start();
+        mZooKeeper.deliver();
+
+        assertEquals("[]", listener.mEvents.toString());
+
+        mZooKeeper.createNode(PATH, "v1".getBytes());
+        mZooKeeper.deliver();
+
+        assertEquals("[read v1]", listener.mEvents.toString());
+    }
+
+
+    @Test
+    public void watchChanges()
+    {
+        mZooKeeper.createNode(PATH, "v1".getBytes());
+
+        RecordingListener listener = new RecordingListener();
+        NodeReader reader = new NodeReader(mZooKeeper)
+            .setPath(PATH)
+            .setWatching(true)
+            .setListener(listener)
+            .start();
+        mZooKeeper.deliver();
+
+        mZooKeeper.setNodeData(PATH, "v2".getBytes());
+        mZooKeeper.deliver();
+
+        mZooKeeper.deleteNode(PATH);
+        mZooKeeper.deliver();
+
+        mZooKeeper.createNode(PATH, "v3".getBytes());
+        mZooKeeper.deliver();
+
+        assertEquals("[read v1, read v2, deleted, read v3]", listener.mEvents.toString());
+
+        // No callback after finish().
+        reader.finish();
+        mZooKeeper.setNodeData(PATH, "v4".getBytes());
+        mZooKeeper.deliver();
+
+        assertEquals("[read v1, read v2, deleted, read v3]", listener.mEvents.toString());
+    }
+
+
+    @Test
+    public void shareWatchWithElection()
+    {
+        mZooKeeper.createNode(PATH, "other".getBytes());
+
+        // A watching reader and a follower in the same session share
+        // the watch on the same path.
+        RecordingListener listener = new RecordingListener();
+        new NodeReader(mZooKeeper)
+            .setPath(PATH)
+            .setWatching(true)
+            .setListener(listener)
+            .start();
+        LeaderElection election = new LeaderElection(mZooKeeper)
+            .setPath(PATH)
+            .setId("me")
+            .start();
+        mZooKeeper.deliver();
+
+        mZooKeeper.deleteNode(PATH);
+        mZooKeeper.deliver();
+
+        assertEquals(LeaderElection.State.LEADER, election.getState());
+        assertEquals("[read other, deleted, read me]", listener.mEvents.toString());
+    }
+
+
+    private static class RecordingListener implements NodeReader.WatchListener
+    {
+        private final List<String> mEvents = new ArrayList<String>();
+
+
+        @Override
+        public void onRead(NodeReader reader, byte[] data, Stat stat)
+        {
+            mEvents.add("read " + new String(data));
+        }
+
+
+        @Override
+        public void onGaveUp(NodeReader reader)
+        {
+            mEvents.add("gave up");
+        }
+
+
+        @Override
+        public void onDeleted(NodeReader reader)
+        {
+            mEvents.add("deleted");
+        }
+    }
+}